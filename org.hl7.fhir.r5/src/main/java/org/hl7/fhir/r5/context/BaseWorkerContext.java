@@ -29,10 +29,17 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang3.StringUtils;
 import org.fhir.ucum.UcumService;
@@ -40,6 +47,7 @@ import org.hl7.fhir.exceptions.DefinitionException;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.exceptions.TerminologyServiceException;
 import org.hl7.fhir.r5.conformance.ProfileUtilities;
+import org.hl7.fhir.r5.context.CanonicalResourceManager.CanonicalResourceProxy;
 import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService.LogCategory;
 import org.hl7.fhir.r5.context.TerminologyCache.CacheToken;
 import org.hl7.fhir.r5.formats.IParser.OutputStyle;
@@ -80,6 +88,7 @@ import org.hl7.fhir.r5.model.TerminologyCapabilities.TerminologyCapabilitiesCode
 import org.hl7.fhir.r5.model.ValueSet;
 import org.hl7.fhir.r5.model.ValueSet.ConceptSetComponent;
 import org.hl7.fhir.r5.model.ValueSet.ValueSetComposeComponent;
+import org.hl7.fhir.r5.terminologies.CodeSystemUtilities;
 import org.hl7.fhir.r5.terminologies.TerminologyClient;
 import org.hl7.fhir.r5.terminologies.ValueSetCheckerSimple;
 import org.hl7.fhir.r5.terminologies.ValueSetExpander.TerminologyServiceErrorClass;
@@ -135,24 +144,31 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
   private Object lock = new Object(); // used as a lock for the data that follows
   protected String version;
 
+  /**
+   * once the context is loaded, it can be switched to lock free reads. After that, the collections that follow are 
+   * never changed in place: cacheResource and dropResource change a copy of the collection, and then publish the copy 
+   * by replacing the field. So readers can use whatever they find without holding the lock 
+   */
+  private volatile boolean lockFreeReads;
   
-  private Map<String, Map<String, Resource>> allResourcesById = new HashMap<String, Map<String, Resource>>();
+  private volatile Map<String, Map<String, Resource>> allResourcesById = new HashMap<String, Map<String, Resource>>();
   // all maps are to the full URI
-  private CanonicalResourceManager<CodeSystem> codeSystems = new CanonicalResourceManager<CodeSystem>(false);
-  private Set<String> supportedCodeSystems = new HashSet<String>();
-  private CanonicalResourceManager<ValueSet> valueSets = new CanonicalResourceManager<ValueSet>(false);
-  private CanonicalResourceManager<ConceptMap> maps = new CanonicalResourceManager<ConceptMap>(false);
-  protected CanonicalResourceManager<StructureMap> transforms = new CanonicalResourceManager<StructureMap>(false);
-  private CanonicalResourceManager<StructureDefinition> structures = new CanonicalResourceManager<StructureDefinition>(false);
-  private CanonicalResourceManager<Measure> measures = new CanonicalResourceManager<Measure>(false);
-  private CanonicalResourceManager<Library> libraries = new CanonicalResourceManager<Library>(false);
-  private CanonicalResourceManager<ImplementationGuide> guides = new CanonicalResourceManager<ImplementationGuide>(false);
-  private CanonicalResourceManager<CapabilityStatement> capstmts = new CanonicalResourceManager<CapabilityStatement>(false);
-  private CanonicalResourceManager<SearchParameter> searchParameters = new CanonicalResourceManager<SearchParameter>(false);
-  private CanonicalResourceManager<Questionnaire> questionnaires = new CanonicalResourceManager<Questionnaire>(false);
-  private CanonicalResourceManager<OperationDefinition> operations = new CanonicalResourceManager<OperationDefinition>(false);
-  private CanonicalResourceManager<PlanDefinition> plans = new CanonicalResourceManager<PlanDefinition>(false);
-  private List<NamingSystem> systems = new ArrayList<NamingSystem>();
+  private volatile CanonicalResourceManager<CodeSystem> codeSystems = new CanonicalResourceManager<CodeSystem>(false);
+  private Set<String> supportedCodeSystems = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private volatile CanonicalResourceManager<ValueSet> valueSets = new CanonicalResourceManager<ValueSet>(false);
+  private volatile CanonicalResourceManager<ConceptMap> maps = new CanonicalResourceManager<ConceptMap>(false);
+  protected volatile CanonicalResourceManager<StructureMap> transforms = new CanonicalResourceManager<StructureMap>(false);
+  private volatile CanonicalResourceManager<StructureDefinition> structures = new CanonicalResourceManager<StructureDefinition>(false);
+  private volatile int structuresVersion;
+  private volatile CanonicalResourceManager<Measure> measures = new CanonicalResourceManager<Measure>(false);
+  private volatile CanonicalResourceManager<Library> libraries = new CanonicalResourceManager<Library>(false);
+  private volatile CanonicalResourceManager<ImplementationGuide> guides = new CanonicalResourceManager<ImplementationGuide>(false);
+  private volatile CanonicalResourceManager<CapabilityStatement> capstmts = new CanonicalResourceManager<CapabilityStatement>(false);
+  private volatile CanonicalResourceManager<SearchParameter> searchParameters = new CanonicalResourceManager<SearchParameter>(false);
+  private volatile CanonicalResourceManager<Questionnaire> questionnaires = new CanonicalResourceManager<Questionnaire>(false);
+  private volatile CanonicalResourceManager<OperationDefinition> operations = new CanonicalResourceManager<OperationDefinition>(false);
+  private volatile CanonicalResourceManager<PlanDefinition> plans = new CanonicalResourceManager<PlanDefinition>(false);
+  private volatile List<NamingSystem> systems = new ArrayList<NamingSystem>();
   private UcumService ucumService;
   protected Map<String, byte[]> binaries = new HashMap<String, byte[]>();
 
@@ -204,6 +220,7 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
       maps.copy(other.maps);
       transforms.copy(other.transforms);
       structures.copy(other.structures);
+      structuresVersion++;
       searchParameters.copy(other.searchParameters);
       plans.copy(other.plans);
       questionnaires.copy(other.questionnaires);
@@ -232,12 +249,16 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
   
   public void cacheResource(Resource r) throws FHIRException {
     synchronized (lock) {
-      Map<String, Resource> map = allResourcesById.get(r.fhirType());
+      Map<String, Map<String, Resource>> byId = lockFreeReads ? new HashMap<String, Map<String, Resource>>(allResourcesById) : allResourcesById;
+      Map<String, Resource> map = byId.get(r.fhirType());
       if (map == null) {
         map = new HashMap<String, Resource>();
-        allResourcesById.put(r.fhirType(), map);
+      } else if (lockFreeReads) {
+        map = new HashMap<String, Resource>(map);
       }
       map.put(r.getId(), r);
+      byId.put(r.fhirType(), map);
+      allResourcesById = byId;
 
       if (r instanceof CanonicalResource) {
         CanonicalResource m = (CanonicalResource) r;
@@ -254,34 +275,167 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
           if ("1.4.0".equals(version)) {
             fixOldSD(sd);
           }
-          structures.see(sd);
-        } else if (r instanceof ValueSet)
-          valueSets.see((ValueSet) m);
-        else if (r instanceof CodeSystem)
-          codeSystems.see((CodeSystem) m);
+          structures = see(structures, sd);
+          structuresVersion++;
+        } else if (r instanceof ValueSet) {
+          // the value set may have been changed since its terminology cache key was worked out
+          TerminologyCache.invalidateEssenceDigest((ValueSet) m);
+          valueSets = see(valueSets, (ValueSet) m);
+        }
+        else if (r instanceof CodeSystem) {
+          // the code system may have been changed since it was last indexed
+          CodeSystemUtilities.invalidateIndex((CodeSystem) m);
+          codeSystems = see(codeSystems, (CodeSystem) m);
+        }
         else if (r instanceof ImplementationGuide)
-          guides.see((ImplementationGuide) m);
+          guides = see(guides, (ImplementationGuide) m);
         else if (r instanceof CapabilityStatement)
-          capstmts.see((CapabilityStatement) m);
+          capstmts = see(capstmts, (CapabilityStatement) m);
         else if (r instanceof Measure)
-          measures.see((Measure) m);
+          measures = see(measures, (Measure) m);
         else if (r instanceof Library)
-          libraries.see((Library) m);        
+          libraries = see(libraries, (Library) m);        
         else if (r instanceof SearchParameter)
-          searchParameters.see((SearchParameter) m);
+          searchParameters = see(searchParameters, (SearchParameter) m);
         else if (r instanceof PlanDefinition)
-          plans.see((PlanDefinition) m);
+          plans = see(plans, (PlanDefinition) m);
         else if (r instanceof OperationDefinition)
-          operations.see((OperationDefinition) m);
+          operations = see(operations, (OperationDefinition) m);
         else if (r instanceof Questionnaire)
-          questionnaires.see((Questionnaire) m);
+          questionnaires = see(questionnaires, (Questionnaire) m);
         else if (r instanceof ConceptMap)
-          maps.see((ConceptMap) m);
+          maps = see(maps, (ConceptMap) m);
         else if (r instanceof StructureMap)
-          transforms.see((StructureMap) m);
-        else if (r instanceof NamingSystem)
-          systems.add((NamingSystem) r);
+          transforms = see(transforms, (StructureMap) m);
+        else if (r instanceof NamingSystem) {
+          List<NamingSystem> list = lockFreeReads ? new ArrayList<NamingSystem>(systems) : systems;
+          list.add((NamingSystem) r);
+          systems = list;
+        }
+      }
+    }
+  }
+
+  /**
+   * Register a resource by its type, id, url and version, so that it is only loaded when it's first used. Resources
+   * of types that aren't kept in a canonical resource manager are loaded straight away
+   */
+  public void registerResourceFromProxy(CanonicalResourceProxy r) throws FHIRException {
+    synchronized (lock) {
+      String type = r.getType();
+      if ("StructureDefinition".equals(type)) {
+        structures = register(structures, r);
+        structuresVersion++;
+      } else if ("ValueSet".equals(type))
+        valueSets = register(valueSets, r);
+      else if ("CodeSystem".equals(type))
+        codeSystems = register(codeSystems, r);
+      else if ("ImplementationGuide".equals(type))
+        guides = register(guides, r);
+      else if ("CapabilityStatement".equals(type))
+        capstmts = register(capstmts, r);
+      else if ("Measure".equals(type))
+        measures = register(measures, r);
+      else if ("Library".equals(type))
+        libraries = register(libraries, r);
+      else if ("SearchParameter".equals(type))
+        searchParameters = register(searchParameters, r);
+      else if ("PlanDefinition".equals(type))
+        plans = register(plans, r);
+      else if ("OperationDefinition".equals(type))
+        operations = register(operations, r);
+      else if ("Questionnaire".equals(type))
+        questionnaires = register(questionnaires, r);
+      else if ("ConceptMap".equals(type))
+        maps = register(maps, r);
+      else if ("StructureMap".equals(type))
+        transforms = register(transforms, r);
+      else
+        cacheResource(r.loadResource());
+    }
+  }
+
+  private <T extends CanonicalResource> CanonicalResourceManager<T> register(CanonicalResourceManager<T> manager, CanonicalResourceProxy r) {
+    if (!allowLoadingDuplicates && r.hasUrl() && manager.has(r.getUrl())) {
+      // spcial workaround for known problems with existing packages
+      if (Utilities.existsInList(r.getUrl(), "http://hl7.org/fhir/SearchParameter/example")) {
+        return manager;
       }
+      throw new DefinitionException(formatMessage(I18nConstants.DUPLICATE_RESOURCE_, r.getUrl()));
+    }
+    CanonicalResourceManager<T> res = writable(manager);
+    res.register(r);
+    return res;
+  }
+
+  /**
+   * the manager for resources of this type, if there is one
+   */
+  private CanonicalResourceManager<? extends CanonicalResource> getManager(String type) {
+    if ("StructureDefinition".equals(type))
+      return structures;
+    if ("ValueSet".equals(type))
+      return valueSets;
+    if ("CodeSystem".equals(type))
+      return codeSystems;
+    if ("ImplementationGuide".equals(type))
+      return guides;
+    if ("CapabilityStatement".equals(type))
+      return capstmts;
+    if ("Measure".equals(type))
+      return measures;
+    if ("Library".equals(type))
+      return libraries;
+    if ("SearchParameter".equals(type))
+      return searchParameters;
+    if ("PlanDefinition".equals(type))
+      return plans;
+    if ("OperationDefinition".equals(type))
+      return operations;
+    if ("Questionnaire".equals(type))
+      return questionnaires;
+    if ("ConceptMap".equals(type))
+      return maps;
+    if ("StructureMap".equals(type))
+      return transforms;
+    return null;
+  }
+
+  /**
+   * add the resource to the manager, and return the manager to store in the field. When reads are lock free, this is 
+   * a changed copy, and the caller publishes it by assigning the field
+   */
+  private <T extends CanonicalResource> CanonicalResourceManager<T> see(CanonicalResourceManager<T> manager, T r) {
+    CanonicalResourceManager<T> res = writable(manager);
+    res.see(r);
+    return res;
+  }
+
+  private <T extends CanonicalResource> CanonicalResourceManager<T> drop(CanonicalResourceManager<T> manager, String id) {
+    CanonicalResourceManager<T> res = writable(manager);
+    res.drop(id);
+    return res;
+  }
+
+  private <T extends CanonicalResource> CanonicalResourceManager<T> writable(CanonicalResourceManager<T> manager) {
+    if (!lockFreeReads)
+      return manager;
+    CanonicalResourceManager<T> res = new CanonicalResourceManager<T>(manager.isEnforceUniqueId());
+    res.copy(manager);
+    return res;
+  }
+
+  public boolean isLockFreeReads() {
+    return lockFreeReads;
+  }
+
+  /**
+   * Switch the context to lock free reads. Do this once the context is loaded (e.g. after finishLoading()) - 
+   * after that, every cacheResource or dropResource copies the collections it changes, which is too slow for loading
+   */
+  public void setLockFreeReads(boolean lockFreeReads) {
+    synchronized (lock) {
+      this.lockFreeReads = lockFreeReads;
     }
   }
 
@@ -383,6 +537,8 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
 
   @Override
   public CodeSystem fetchCodeSystem(String system) {
+    if (lockFreeReads)
+      return codeSystems.get(system);
     synchronized (lock) {
       return codeSystems.get(system);
     }
@@ -390,6 +546,13 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
 
   @Override
   public boolean supportsSystem(String system) throws TerminologyServiceException {
+    if (lockFreeReads) {
+      CodeSystem cs = codeSystems.get(system);
+      if (cs != null && cs.getContent() != CodeSystemContentMode.NOTPRESENT)
+        return true;
+    }
+    if (supportedCodeSystems.contains(system))
+      return true;
     synchronized (lock) {
       if (codeSystems.has(system) && codeSystems.get(system).getContent() != CodeSystemContentMode.NOTPRESENT)
         return true;
@@ -617,6 +780,14 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
     if (noTerminologyServer) {
       return new ValidationResult(IssueSeverity.ERROR,formatMessage(I18nConstants.ERROR_VALIDATING_CODE_RUNNING_WITHOUT_TERMINOLOGY_SERVICES), TerminologyServiceErrorClass.NOSERVICE);
     }
+    Parameters pIn = new Parameters();
+    pIn.addParameter().setName("coding").setValue(code);
+    if (options.isGuessSystem())
+      pIn.addParameter().setName("implySystem").setValue(new BooleanType(true));
+    setTerminologyOptions(options, pIn);
+    if (deferValidation(cacheToken, vs, pIn)) {
+      return new ValidationResult(new ConceptDefinitionComponent());
+    }
     String csumm =  txCache != null ? txCache.summary(code) : null;
     if (txCache != null) {
       tlog("$validate "+csumm+" for "+ txCache.summary(vs));
@@ -624,11 +795,6 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
       tlog("$validate "+csumm+" before cache exists");
     }
     try {
-      Parameters pIn = new Parameters();
-      pIn.addParameter().setName("coding").setValue(code);
-      if (options.isGuessSystem())
-        pIn.addParameter().setName("implySystem").setValue(new BooleanType(true));
-      setTerminologyOptions(options, pIn);
       res = validateOnServer(vs, pIn);
     } catch (Exception e) {
       res = new ValidationResult(IssueSeverity.ERROR, e.getMessage() == null ? e.getClass().getName() : e.getMessage()).setTxLink(txLog == null ? null : txLog.getLastId());
@@ -672,11 +838,14 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
     // if that failed, we try to validate on the server
     if (noTerminologyServer)
       return new ValidationResult(IssueSeverity.ERROR, "Error validating code: running without terminology services", TerminologyServiceErrorClass.NOSERVICE);
+    Parameters pIn = new Parameters();
+    pIn.addParameter().setName("codeableConcept").setValue(code);
+    setTerminologyOptions(options, pIn);
+    if (deferValidation(cacheToken, vs, pIn)) {
+      return new ValidationResult(new ConceptDefinitionComponent());
+    }
     tlog("$validate "+txCache.summary(code)+" for "+ txCache.summary(vs));
     try {
-      Parameters pIn = new Parameters();
-      pIn.addParameter().setName("codeableConcept").setValue(code);
-      setTerminologyOptions(options, pIn);
       res = validateOnServer(vs, pIn);
     } catch (Exception e) {
       res = new ValidationResult(IssueSeverity.ERROR, e.getMessage() == null ? e.getClass().getName() : e.getMessage()).setTxLink(txLog.getLastId());
@@ -685,6 +854,92 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
     return res;
   }
 
+  // --- collected code validations ----------------------------------------------------------------------
+
+  /**
+   * a validation that would have gone to the terminology server while collecting (see collectCodeValidations)
+   */
+  private class DeferredValidation {
+    private CacheToken cacheToken;
+    private ValueSet vs;
+    private Parameters pIn;
+  }
+
+  // per thread, because validators running on different threads share the context. A stack, because a validation 
+  // can start another one (e.g. validating a contained or referenced resource) that collects and resolves its own
+  private ThreadLocal<Stack<Map<String, DeferredValidation>>> deferredValidations = new ThreadLocal<Stack<Map<String, DeferredValidation>>>();
+
+  private boolean deferValidation(CacheToken cacheToken, ValueSet vs, Parameters pIn) {
+    Stack<Map<String, DeferredValidation>> stack = deferredValidations.get();
+    if (stack == null || cacheToken == null) {
+      return false;
+    }
+    Map<String, DeferredValidation> list = stack.peek();
+    if (!list.containsKey(cacheToken.getKey())) {
+      DeferredValidation dv = new DeferredValidation();
+      dv.cacheToken = cacheToken;
+      dv.vs = vs;
+      dv.pIn = pIn;
+      list.put(cacheToken.getKey(), dv);
+    }
+    return true;
+  }
+
+  @Override
+  public void collectCodeValidations() {
+    Stack<Map<String, DeferredValidation>> stack = deferredValidations.get();
+    if (stack == null) {
+      stack = new Stack<Map<String, DeferredValidation>>();
+      deferredValidations.set(stack);
+    }
+    stack.push(new HashMap<String, DeferredValidation>());
+  }
+
+  @Override
+  public int resolveCodeValidations(int threads) throws FHIRException {
+    Stack<Map<String, DeferredValidation>> stack = deferredValidations.get();
+    if (stack == null) {
+      return 0;
+    }
+    Map<String, DeferredValidation> list = stack.pop();
+    if (stack.isEmpty()) {
+      deferredValidations.remove();
+    }
+    if (list.isEmpty()) {
+      return 0;
+    }
+    tlog("$validate: "+list.size()+" collected validations, "+threads+" at a time");
+    // the validations share txClient, txLog and txCache. The clients make a new http connection for each request, and only
+    // read their settings; the loggers are synchronized and track the last request id per thread (so the txLinks are
+    // right); and the cache is synchronized
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, list.size())));
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (final DeferredValidation dv : list.values()) {
+        futures.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            ValidationResult res;
+            try {
+              res = validateOnServer(dv.vs, dv.pIn);
+            } catch (Exception e) {
+              res = new ValidationResult(IssueSeverity.ERROR, e.getMessage() == null ? e.getClass().getName() : e.getMessage()).setTxLink(txLog == null ? null : txLog.getLastId());
+            }
+            txCache.cacheValidation(dv.cacheToken, res, TerminologyCache.PERMANENT);
+          }
+        }));
+      }
+      for (Future<?> f : futures) {
+        f.get();
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      throw new FHIRException(e.getMessage(), e);
+    } finally {
+      executor.shutdownNow();
+    }
+    return list.size();
+  }
+
   private ValidationResult validateOnServer(ValueSet vs, Parameters pin) throws FHIRException {
     if (vs != null)
       pin.addParameter().setName("valueSet").setResource(vs);
@@ -745,15 +1000,24 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
 
   @Override
   public List<ConceptMap> findMapsForSource(String url) throws FHIRException {
+    if (lockFreeReads)
+      return doFindMapsForSource(url);
     synchronized (lock) {
-      List<ConceptMap> res = new ArrayList<ConceptMap>();
-      for (ConceptMap map : maps.getList())
-        if (((Reference) map.getSource()).getReference().equals(url)) 
-          res.add(map);
-      return res;
+      return doFindMapsForSource(url);
     }
   }
 
+  /**
+   * the caller holds the lock, or reads are lock free
+   */
+  private List<ConceptMap> doFindMapsForSource(String url) {
+    List<ConceptMap> res = new ArrayList<ConceptMap>();
+    for (ConceptMap map : maps.getList())
+      if (((Reference) map.getSource()).getReference().equals(url)) 
+        res.add(map);
+    return res;
+  }
+
   public boolean isCanRunWithoutTerminology() {
     return canRunWithoutTerminology;
   }
@@ -802,7 +1066,6 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
     this.allowLoadingDuplicates = allowLoadingDuplicates;
   }
 
-  @SuppressWarnings("unchecked")
   @Override
   public <T extends Resource> T fetchResourceWithException(Class<T> class_, String uri) throws FHIRException {
     if (uri == null) {
@@ -811,110 +1074,120 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
    
     if (class_ == StructureDefinition.class)
       uri = ProfileUtilities.sdNs(uri, getOverrideVersionNs());
+    if (lockFreeReads)
+      return doFetchResourceWithException(class_, uri);
     synchronized (lock) {
+      return doFetchResourceWithException(class_, uri);
+    }
+  }
 
-      String version = null;
-      if (uri.contains("|")) {
-        version = uri.substring(uri.lastIndexOf("|")+1);
-        uri = uri.substring(0, uri.lastIndexOf("|"));
-      }
-      if (uri.contains("#"))
-        uri = uri.substring(0, uri.indexOf("#"));
-      if (class_ == Resource.class || class_ == null) {
-        if (structures.has(uri))
-          return (T) structures.get(uri);
-        if (guides.has(uri))
-          return (T) guides.get(uri);
-        if (capstmts.has(uri))
-          return (T) capstmts.get(uri);
-        if (measures.has(uri))
-          return (T) measures.get(uri);
-        if (libraries.has(uri))
-          return (T) libraries.get(uri);        
-        if (valueSets.has(uri))
-          return (T) valueSets.get(uri);
-        if (codeSystems.has(uri))
-          return (T) codeSystems.get(uri);
-        if (operations.has(uri))
-          return (T) operations.get(uri);
-        if (searchParameters.has(uri))
-          return (T) searchParameters.get(uri);
-        if (plans.has(uri))
-          return (T) plans.get(uri);
-        if (maps.has(uri))
-          return (T) maps.get(uri);
-        if (transforms.has(uri))
-          return (T) transforms.get(uri);
-        if (questionnaires.has(uri))
-          return (T) questionnaires.get(uri);
-        for (Map<String, Resource> rt : allResourcesById.values()) {
-          for (Resource r : rt.values()) {
-            if (r instanceof CanonicalResource) {
-              CanonicalResource mr = (CanonicalResource) r;
-              if (uri.equals(mr.getUrl()))
-                return (T) mr;
-            }
-          }            
-        }
-        return null;      
-      } else if (class_ == ImplementationGuide.class) {
+  /**
+   * the caller holds the lock, or reads are lock free
+   */
+  @SuppressWarnings("unchecked")
+  private <T extends Resource> T doFetchResourceWithException(Class<T> class_, String uri) throws FHIRException {
+
+    String version = null;
+    if (uri.contains("|")) {
+      version = uri.substring(uri.lastIndexOf("|")+1);
+      uri = uri.substring(0, uri.lastIndexOf("|"));
+    }
+    if (uri.contains("#"))
+      uri = uri.substring(0, uri.indexOf("#"));
+    if (class_ == Resource.class || class_ == null) {
+      if (structures.has(uri))
+        return (T) structures.get(uri);
+      if (guides.has(uri))
         return (T) guides.get(uri);
-      } else if (class_ == CapabilityStatement.class) {
+      if (capstmts.has(uri))
         return (T) capstmts.get(uri);
-      } else if (class_ == Measure.class) {
+      if (measures.has(uri))
         return (T) measures.get(uri);
-      } else if (class_ == Library.class) {
-        return (T) libraries.get(uri);
-      } else if (class_ == StructureDefinition.class) {
-        return (T) structures.get(uri);
-      } else if (class_ == StructureMap.class) {
-        return (T) transforms.get(uri);
-      } else if (class_ == ValueSet.class) {
-        if (valueSets.has(uri, version))
-          return (T) valueSets.get(uri, version);
-        else
-          return (T) valueSets.get(uri);
-      } else if (class_ == CodeSystem.class) {
-        if (codeSystems.has(uri, version))
-          return (T) codeSystems.get(uri, version);
-        else
-          return (T) codeSystems.get(uri);
-      } else if (class_ == ConceptMap.class) {
-        return (T) maps.get(uri);
-      } else if (class_ == PlanDefinition.class) {
+      if (libraries.has(uri))
+        return (T) libraries.get(uri);        
+      if (valueSets.has(uri))
+        return (T) valueSets.get(uri);
+      if (codeSystems.has(uri))
+        return (T) codeSystems.get(uri);
+      if (operations.has(uri))
+        return (T) operations.get(uri);
+      if (searchParameters.has(uri))
+        return (T) searchParameters.get(uri);
+      if (plans.has(uri))
         return (T) plans.get(uri);
-      } else if (class_ == OperationDefinition.class) {
-        OperationDefinition od = operations.get(uri);
-        return (T) od;
-      } else if (class_ == Questionnaire.class) {
+      if (maps.has(uri))
+        return (T) maps.get(uri);
+      if (transforms.has(uri))
+        return (T) transforms.get(uri);
+      if (questionnaires.has(uri))
         return (T) questionnaires.get(uri);
-      } else if (class_ == SearchParameter.class) {
-        SearchParameter res = searchParameters.get(uri);
-        return (T) res;
+      for (Map<String, Resource> rt : allResourcesById.values()) {
+        for (Resource r : rt.values()) {
+          if (r instanceof CanonicalResource) {
+            CanonicalResource mr = (CanonicalResource) r;
+            if (uri.equals(mr.getUrl()))
+              return (T) mr;
+          }
+        }            
       }
-      if (class_ == CodeSystem.class && codeSystems.has(uri))
-        return (T) codeSystems.get(uri);
-      if (class_ == ValueSet.class && valueSets.has(uri))
+      return null;      
+    } else if (class_ == ImplementationGuide.class) {
+      return (T) guides.get(uri);
+    } else if (class_ == CapabilityStatement.class) {
+      return (T) capstmts.get(uri);
+    } else if (class_ == Measure.class) {
+      return (T) measures.get(uri);
+    } else if (class_ == Library.class) {
+      return (T) libraries.get(uri);
+    } else if (class_ == StructureDefinition.class) {
+      return (T) structures.get(uri);
+    } else if (class_ == StructureMap.class) {
+      return (T) transforms.get(uri);
+    } else if (class_ == ValueSet.class) {
+      if (valueSets.has(uri, version))
+        return (T) valueSets.get(uri, version);
+      else
         return (T) valueSets.get(uri);
-      
-      if (class_ == Questionnaire.class)
-        return (T) questionnaires.get(uri);
-      if (class_ == null) {
-        if (uri.matches(Constants.URI_REGEX) && !uri.contains("ValueSet"))
-          return null;
-
-        // it might be a special URL.
-        if (Utilities.isAbsoluteUrl(uri) || uri.startsWith("ValueSet/")) {
-          Resource res = null; // findTxValueSet(uri);
-          if (res != null)
-            return (T) res;
-        }
-        return null;      
-      }    
-      if (supportedCodeSystems.contains(uri))
-        return null;
-      throw new FHIRException(formatMessage(I18nConstants.NOT_DONE_YET_CANT_FETCH_, uri));
+    } else if (class_ == CodeSystem.class) {
+      if (codeSystems.has(uri, version))
+        return (T) codeSystems.get(uri, version);
+      else
+        return (T) codeSystems.get(uri);
+    } else if (class_ == ConceptMap.class) {
+      return (T) maps.get(uri);
+    } else if (class_ == PlanDefinition.class) {
+      return (T) plans.get(uri);
+    } else if (class_ == OperationDefinition.class) {
+      OperationDefinition od = operations.get(uri);
+      return (T) od;
+    } else if (class_ == Questionnaire.class) {
+      return (T) questionnaires.get(uri);
+    } else if (class_ == SearchParameter.class) {
+      SearchParameter res = searchParameters.get(uri);
+      return (T) res;
     }
+    if (class_ == CodeSystem.class && codeSystems.has(uri))
+      return (T) codeSystems.get(uri);
+    if (class_ == ValueSet.class && valueSets.has(uri))
+      return (T) valueSets.get(uri);
+    
+    if (class_ == Questionnaire.class)
+      return (T) questionnaires.get(uri);
+    if (class_ == null) {
+      if (uri.matches(Constants.URI_REGEX) && !uri.contains("ValueSet"))
+        return null;
+
+      // it might be a special URL.
+      if (Utilities.isAbsoluteUrl(uri) || uri.startsWith("ValueSet/")) {
+        Resource res = null; // findTxValueSet(uri);
+        if (res != null)
+          return (T) res;
+      }
+      return null;      
+    }    
+    if (supportedCodeSystems.contains(uri))
+      return null;
+    throw new FHIRException(formatMessage(I18nConstants.NOT_DONE_YET_CANT_FETCH_, uri));
   }
 
   private Set<String> notCanonical = new HashSet<String>();
@@ -948,22 +1221,46 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
 
   @Override
   public Resource fetchResourceById(String type, String uri) {
+    if (lockFreeReads)
+      return doFetchResourceById(type, uri);
     synchronized (lock) {
-      String[] parts = uri.split("\\/");
-      if (!Utilities.noString(type) && parts.length == 1) {
-        if (allResourcesById.containsKey(type))
-          return allResourcesById.get(type).get(parts[0]);
-        else
-          return null;
+      return doFetchResourceById(type, uri);
+    }
+  }
+
+  /**
+   * the caller holds the lock, or reads are lock free
+   */
+  private Resource doFetchResourceById(String type, String uri) {
+    String[] parts = uri.split("\\/");
+    if (!Utilities.noString(type) && parts.length == 1) {
+      return fetchById(type, parts[0]);
+    }
+    if (parts.length >= 2) {
+      if (!Utilities.noString(type))
+        if (!type.equals(parts[parts.length-2])) 
+          throw new Error(formatMessage(I18nConstants.RESOURCE_TYPE_MISMATCH_FOR___, type, uri));
+      return fetchById(parts[parts.length-2], parts[parts.length-1]);
+    } else
+      throw new Error(formatMessage(I18nConstants.UNABLE_TO_PROCESS_REQUEST_FOR_RESOURCE_FOR___, type, uri));
+  }
+
+  /**
+   * resources that were registered by proxy aren't in allResourcesById, so look for them in their manager
+   */
+  private Resource fetchById(String type, String id) {
+    Map<String, Resource> map = allResourcesById.get(type);
+    Resource res = map == null ? null : map.get(id);
+    if (res == null) {
+      CanonicalResourceManager<? extends CanonicalResource> manager = getManager(type);
+      if (manager != null) {
+        CanonicalResource cr = manager.get(id);
+        if (cr != null && id.equals(cr.getId())) {
+          res = cr;
+        }
       }
-      if (parts.length >= 2) {
-        if (!Utilities.noString(type))
-          if (!type.equals(parts[parts.length-2])) 
-            throw new Error(formatMessage(I18nConstants.RESOURCE_TYPE_MISMATCH_FOR___, type, uri));
-        return allResourcesById.get(parts[parts.length-2]).get(parts[parts.length-1]);
-      } else
-        throw new Error(formatMessage(I18nConstants.UNABLE_TO_PROCESS_REQUEST_FOR_RESOURCE_FOR___, type, uri));
     }
+    return res;
   }
 
   public <T extends Resource> T fetchResource(Class<T> class_, String uri) {
@@ -1034,19 +1331,30 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
   }
   
   public void reportStatus(JsonObject json) {
-    synchronized (lock) {
-      json.addProperty("codeystem-count", codeSystems.size());
-      json.addProperty("valueset-count", valueSets.size());
-      json.addProperty("conceptmap-count", maps.size());
-      json.addProperty("transforms-count", transforms.size());
-      json.addProperty("structures-count", structures.size());
-      json.addProperty("guides-count", guides.size());
-      json.addProperty("statements-count", capstmts.size());
-      json.addProperty("measures-count", measures.size());
-      json.addProperty("libraries-count", libraries.size());
+    if (lockFreeReads) {
+      doReportStatus(json);
+    } else {
+      synchronized (lock) {
+        doReportStatus(json);
+      }
     }
   }
 
+  /**
+   * the caller holds the lock, or reads are lock free
+   */
+  private void doReportStatus(JsonObject json) {
+    json.addProperty("codeystem-count", codeSystems.size());
+    json.addProperty("valueset-count", valueSets.size());
+    json.addProperty("conceptmap-count", maps.size());
+    json.addProperty("transforms-count", transforms.size());
+    json.addProperty("structures-count", structures.size());
+    json.addProperty("guides-count", guides.size());
+    json.addProperty("statements-count", capstmts.size());
+    json.addProperty("measures-count", measures.size());
+    json.addProperty("libraries-count", libraries.size());
+  }
+
 
   public void dropResource(Resource r) throws FHIRException {
     dropResource(r.fhirType(), r.getId());   
@@ -1055,41 +1363,51 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
   public void dropResource(String fhirType, String id) {
     synchronized (lock) {
 
-      Map<String, Resource> map = allResourcesById.get(fhirType);
+      Map<String, Map<String, Resource>> byId = lockFreeReads ? new HashMap<String, Map<String, Resource>>(allResourcesById) : allResourcesById;
+      Map<String, Resource> map = byId.get(fhirType);
       if (map == null) {
         map = new HashMap<String, Resource>();
-        allResourcesById.put(fhirType, map);
+      } else if (lockFreeReads) {
+        map = new HashMap<String, Resource>(map);
+      }
+      Resource dropped = map.remove(id);
+      byId.put(fhirType, map);
+      allResourcesById = byId;
+      if (dropped instanceof CodeSystem) {
+        CodeSystemUtilities.invalidateIndex((CodeSystem) dropped);
       }
-      if (map.containsKey(id))
-        map.remove(id);
 
-      if (fhirType.equals("StructureDefinition"))
-        structures.drop(id);
-      else if (fhirType.equals("ImplementationGuide"))
-        guides.drop(id);
+      if (fhirType.equals("StructureDefinition")) {
+        structures = drop(structures, id);
+        structuresVersion++;
+      } else if (fhirType.equals("ImplementationGuide"))
+        guides = drop(guides, id);
       else if (fhirType.equals("CapabilityStatement"))
-        capstmts.drop(id);
+        capstmts = drop(capstmts, id);
       else if (fhirType.equals("Measure"))
-        measures.drop(id);
+        measures = drop(measures, id);
       else if (fhirType.equals("Library"))
-        libraries.drop(id);
+        libraries = drop(libraries, id);
       else if (fhirType.equals("ValueSet"))
-        valueSets.drop(id);
+        valueSets = drop(valueSets, id);
       else if (fhirType.equals("CodeSystem"))
-        codeSystems.drop(id);
+        codeSystems = drop(codeSystems, id);
       else if (fhirType.equals("OperationDefinition"))
-        operations.drop(id);
+        operations = drop(operations, id);
       else if (fhirType.equals("Questionnaire"))
-        questionnaires.drop(id);
+        questionnaires = drop(questionnaires, id);
       else if (fhirType.equals("ConceptMap"))
-        maps.drop(id);
+        maps = drop(maps, id);
       else if (fhirType.equals("StructureMap"))
-        transforms.drop(id);
-      else if (fhirType.equals("NamingSystem"))
-        for (int i = systems.size()-1; i >= 0; i--) {
-          if (systems.get(i).getId().equals(id))
-            systems.remove(i);
+        transforms = drop(transforms, id);
+      else if (fhirType.equals("NamingSystem")) {
+        List<NamingSystem> list = lockFreeReads ? new ArrayList<NamingSystem>(systems) : systems;
+        for (int i = list.size()-1; i >= 0; i--) {
+          if (list.get(i).getId().equals(id))
+            list.remove(i);
         }
+        systems = list;
+      }
     }
   }
 
@@ -1107,34 +1425,101 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
 
   @Override
   public List<CanonicalResource> allConformanceResources() {
+    if (lockFreeReads)
+      return doAllConformanceResources();
     synchronized (lock) {
-      List<CanonicalResource> result = new ArrayList<CanonicalResource>();
-      structures.listAllM(result);
-      guides.listAllM(result);
-      capstmts.listAllM(result);
-      measures.listAllM(result);
-      libraries.listAllM(result);
-      codeSystems.listAllM(result);
-      valueSets.listAllM(result);
-      maps.listAllM(result);
-      transforms.listAllM(result);
-      plans.listAllM(result);
-      questionnaires.listAllM(result);
-      return result;
+      return doAllConformanceResources();
     }
   }
+
+  /**
+   * the caller holds the lock, or reads are lock free
+   */
+  private List<CanonicalResource> doAllConformanceResources() {
+    List<CanonicalResource> result = new ArrayList<CanonicalResource>();
+    structures.listAllM(result);
+    guides.listAllM(result);
+    capstmts.listAllM(result);
+    measures.listAllM(result);
+    libraries.listAllM(result);
+    codeSystems.listAllM(result);
+    valueSets.listAllM(result);
+    maps.listAllM(result);
+    transforms.listAllM(result);
+    plans.listAllM(result);
+    questionnaires.listAllM(result);
+    return result;
+  }
   
+  /**
+   * every resource in the context, with the canonical resources in the order they were loaded. Note that this loads 
+   * any resources that were registered by proxy
+   */
+  public List<Resource> listAllResources() {
+    if (lockFreeReads)
+      return doListAllResources();
+    synchronized (lock) {
+      return doListAllResources();
+    }
+  }
+
+  /**
+   * the caller holds the lock, or reads are lock free
+   */
+  private List<Resource> doListAllResources() {
+    List<CanonicalResource> list = new ArrayList<CanonicalResource>();
+    structures.listAllM(list);
+    guides.listAllM(list);
+    capstmts.listAllM(list);
+    measures.listAllM(list);
+    libraries.listAllM(list);
+    codeSystems.listAllM(list);
+    valueSets.listAllM(list);
+    maps.listAllM(list);
+    transforms.listAllM(list);
+    plans.listAllM(list);
+    questionnaires.listAllM(list);
+    operations.listAllM(list);
+    searchParameters.listAllM(list);
+    List<Resource> result = new ArrayList<Resource>();
+    Set<Resource> seen = Collections.newSetFromMap(new IdentityHashMap<Resource, Boolean>());
+    for (Resource r : list) {
+      if (seen.add(r)) {
+        result.add(r);
+      }
+    }
+    for (Map<String, Resource> rt : allResourcesById.values()) {
+      for (Resource r : rt.values()) {
+        if (seen.add(r)) {
+          result.add(r);
+        }
+      }
+    }
+    return result;
+  }
+
   public String listSupportedSystems() {
+    if (lockFreeReads)
+      return doListSupportedSystems();
     synchronized (lock) {
-      String sl = null;
-      for (String s : supportedCodeSystems)
-        sl = sl == null ? s : sl + "\r\n" + s;
-      return sl;
+      return doListSupportedSystems();
     }
   }
 
+  /**
+   * the caller holds the lock, or reads are lock free
+   */
+  private String doListSupportedSystems() {
+    String sl = null;
+    for (String s : supportedCodeSystems)
+      sl = sl == null ? s : sl + "\r\n" + s;
+    return sl;
+  }
+
 
   public int totalCount() {
+    if (lockFreeReads)
+      return valueSets.size() +  maps.size() + structures.size() + transforms.size();
     synchronized (lock) {
       return valueSets.size() +  maps.size() + structures.size() + transforms.size();
     }
@@ -1142,21 +1527,31 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
   
   public List<ConceptMap> listMaps() {
     List<ConceptMap> m = new ArrayList<ConceptMap>();
-    synchronized (lock) {
+    if (lockFreeReads) {
       maps.listAll(m);
+    } else {
+      synchronized (lock) {
+        maps.listAll(m);
+      }
     }
     return m;
   }
   
   public List<StructureMap> listTransforms() {
     List<StructureMap> m = new ArrayList<StructureMap>();
-    synchronized (lock) {
-      transforms.listAll(m);    
+    if (lockFreeReads) {
+      transforms.listAll(m);
+    } else {
+      synchronized (lock) {
+        transforms.listAll(m);
+      }
     }
     return m;
   }
   
   public StructureMap getTransform(String code) {
+    if (lockFreeReads)
+      return transforms.get(code);
     synchronized (lock) {
       return transforms.get(code);
     }
@@ -1164,13 +1559,19 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
 
   public List<StructureDefinition> listStructures() {
     List<StructureDefinition> m = new ArrayList<StructureDefinition>();
-    synchronized (lock) {
-      structures.listAll(m);    
+    if (lockFreeReads) {
+      structures.listAll(m);
+    } else {
+      synchronized (lock) {
+        structures.listAll(m);
+      }
     }
     return m;
   }
 
   public StructureDefinition getStructure(String code) {
+    if (lockFreeReads)
+      return structures.get(code);
     synchronized (lock) {
       return structures.get(code);
     }
@@ -1178,22 +1579,32 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
 
   @Override
   public String oid2Uri(String oid) {
+    if (lockFreeReads)
+      return doOid2Uri(oid);
     synchronized (lock) {
-      if (oid != null && oid.startsWith("urn:oid:")) {
-        oid = oid.substring(8);
-      }
+      return doOid2Uri(oid);
+    }
+  }
 
-      String uri = OIDUtils.getUriForOid(oid);
-      if (uri != null)
-        return uri;
-      for (NamingSystem ns : systems) {
-        if (hasOid(ns, oid)) {
-          uri = getUri(ns);
-          if (uri != null)
-            return null;
-        }
+  /**
+   * the caller holds the lock, or reads are lock free
+   */
+  private String doOid2Uri(String oid) {
+    if (oid != null && oid.startsWith("urn:oid:")) {
+      oid = oid.substring(8);
+    }
+
+    String uri = OIDUtils.getUriForOid(oid);
+    if (uri != null)
+      return uri;
+    for (NamingSystem ns : systems) {
+      if (hasOid(ns, oid)) {
+        uri = getUri(ns);
+        if (uri != null)
+          return null;
       }
     }
+
     return null;
   }
   
@@ -1221,6 +1632,8 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
   }
 
   public SearchParameter getSearchParameter(String code) {
+    if (lockFreeReads)
+      return searchParameters.get(code);
     synchronized (lock) {
       return searchParameters.get(code);
     }
@@ -1265,11 +1678,20 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
     this.ucumService = ucumService;
   }
 
+  @Override
+  public int getStructuresVersion() {
+    return structuresVersion;
+  }
+
   @Override
   public List<StructureDefinition> getStructures() {
     List<StructureDefinition> res = new ArrayList<>();
-    synchronized (lock) { // tricky, because you need to lock this as well, but it's really not in use yet
+    if (lockFreeReads) {
       structures.listAll(res);
+    } else {
+      synchronized (lock) {
+        structures.listAll(res);
+      }
     }
     return res;
   }
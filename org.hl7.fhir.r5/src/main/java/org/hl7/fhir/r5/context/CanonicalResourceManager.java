@@ -4,27 +4,149 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
+import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r5.context.BaseWorkerContext.MetadataResourceVersionComparator;
 import org.hl7.fhir.r5.context.CanonicalResourceManager.CanonicalListSorter;
 import org.hl7.fhir.r5.model.CodeSystem;
 import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.VersionUtilities;
 
 /**
  * This manages a cached list of resources, and provides high speed access by URL / URL+version, and assumes that patch version doesn't matter for access
  * note, though, that not all resources have semver versions
- * 
+ *
+ * Resources can be registered by proxy - that is, by their type, id, url and version - and then they are only loaded
+ * when they are actually used
+ *
  * @author graha
  *
  */
 
 public class CanonicalResourceManager<T extends CanonicalResource> {
 
+  /**
+   * The identifying details of a resource that hasn't been loaded yet, and how to load it
+   */
+  public static abstract class CanonicalResourceProxy {
+    private String type;
+    private String id;
+    private String url;
+    private String version;
+
+    public CanonicalResourceProxy(String type, String id, String url, String version) {
+      super();
+      this.type = type;
+      this.id = id;
+      this.url = url;
+      this.version = version;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public void setId(String id) {
+      this.id = id;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public String getVersion() {
+      return version;
+    }
+
+    public boolean hasId() {
+      return id != null;
+    }
+
+    public boolean hasUrl() {
+      return url != null;
+    }
+
+    public boolean hasVersion() {
+      return version != null;
+    }
+
+    /**
+     * load the resource. This is called once, the first time the resource is actually used
+     */
+    public abstract CanonicalResource loadResource() throws FHIRException;
+  }
+
+  /**
+   * a resource in the manager, which is either loaded, or a proxy that will be loaded when the resource is first asked for
+   */
+  public class CachedCanonicalResource {
+    private T resource;
+    private CanonicalResourceProxy proxy;
+
+    public CachedCanonicalResource(T resource) {
+      super();
+      this.resource = resource;
+    }
+
+    public CachedCanonicalResource(CanonicalResourceProxy proxy) {
+      super();
+      this.proxy = proxy;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized T getResource() throws FHIRException {
+      if (resource == null) {
+        T res = (T) proxy.loadResource();
+        if (res == null) {
+          throw new FHIRException("Unable to load "+proxy.getType()+" "+proxy.getUrl());
+        }
+        res.setId(proxy.getId());
+        resource = res;
+        proxy = null;
+      }
+      return resource;
+    }
+
+    public synchronized boolean isLoaded() {
+      return resource != null;
+    }
+
+    public synchronized String getId() {
+      return resource != null ? resource.getId() : proxy.getId();
+    }
+
+    public synchronized String getUrl() {
+      return resource != null ? resource.getUrl() : proxy.getUrl();
+    }
+
+    public synchronized String getVersion() {
+      return resource != null ? resource.getVersion() : proxy.getVersion();
+    }
+
+    public boolean hasUrl() {
+      return getUrl() != null;
+    }
+
+    public boolean hasVersion() {
+      return getVersion() != null;
+    }
+
+    private synchronized boolean isFor(T r) {
+      return resource == r;
+    }
+  }
+
   public class CanonicalListSorter implements Comparator<CanonicalResource> {
 
     @Override
@@ -35,13 +157,13 @@ public class CanonicalResourceManager<T extends CanonicalResource> {
     }
   }
 
-  public class MetadataResourceVersionComparator<T extends CanonicalResource> implements Comparator<T> {
+  public class MetadataResourceVersionComparator implements Comparator<CachedCanonicalResource> {
     @Override
-    public int compare(T arg1, T arg2) {
+    public int compare(CachedCanonicalResource arg1, CachedCanonicalResource arg2) {
       String v1 = arg1.getVersion();
       String v2 = arg2.getVersion();
       if (v1 == null && v2 == null) {
-        return Integer.compare(list.indexOf(arg1), list.indexOf(arg2)); // retain original order
+        return 0; // the version index is kept in insertion order for equal versions
       } else if (v1 == null) {
         return -1;
       } else if (v2 == null) {
@@ -52,18 +174,31 @@ public class CanonicalResourceManager<T extends CanonicalResource> {
         if (mm1 == null || mm2 == null) {
           return v1.compareTo(v2);
         } else {
-          return mm1.compareTo(mm2);
+          return compareMajMin(mm1, mm2);
         }
       }
     }
+
+    private int compareMajMin(String mm1, String mm2) {
+      String[] p1 = mm1.split("\\.");
+      String[] p2 = mm2.split("\\.");
+      if (Utilities.isInteger(p1[0]) && Utilities.isInteger(p1[1]) && Utilities.isInteger(p2[0]) && Utilities.isInteger(p2[1])) {
+        int c = Integer.compare(Integer.parseInt(p1[0]), Integer.parseInt(p2[0]));
+        return c != 0 ? c : Integer.compare(Integer.parseInt(p1[1]), Integer.parseInt(p2[1]));
+      } else {
+        return mm1.compareTo(mm2);
+      }
+    }
   }
 
 
-  private boolean enforceUniqueId; 
-  private List<T> list = new ArrayList<>();
-  private Map<String, T> map = new HashMap<>();
-  
-  
+  private boolean enforceUniqueId;
+  private List<CachedCanonicalResource> list = new ArrayList<>();
+  private Map<String, CachedCanonicalResource> map = new HashMap<>();
+  private Map<String, List<CachedCanonicalResource>> versions = new HashMap<>(); // url -> resources with that url, sorted by version, then by insertion order
+  private MetadataResourceVersionComparator versionComparator = new MetadataResourceVersionComparator();
+
+
   public CanonicalResourceManager(boolean enforceUniqueId) {
     super();
     this.enforceUniqueId = enforceUniqueId;
@@ -72,45 +207,86 @@ public class CanonicalResourceManager<T extends CanonicalResource> {
   public void copy(CanonicalResourceManager<T> source) {
     list.clear();
     map.clear();
+    versions.clear();
     list.addAll(source.list);
     map.putAll(source.map);
+    for (String url : source.versions.keySet()) {
+      versions.put(url, new ArrayList<CachedCanonicalResource>(source.versions.get(url)));
+    }
   }
-  
+
   public void see(T r) {
     if (!r.hasId()) {
       r.setId(UUID.randomUUID().toString());
     }
-    if (enforceUniqueId && map.containsKey(r.getId())) {
-      drop(r.getId());      
+    see(r.getId(), new CachedCanonicalResource(r));
+  }
+
+  /**
+   * register a resource that will be loaded by the proxy when it's first used
+   */
+  public void register(CanonicalResourceProxy r) {
+    if (!r.hasId()) {
+      r.setId(UUID.randomUUID().toString());
+    }
+    see(r.getId(), new CachedCanonicalResource(r));
+  }
+
+  private void see(String id, CachedCanonicalResource cr) {
+    if (enforceUniqueId && map.containsKey(id)) {
+      drop(id);
     }
-    list.add(r);
-    map.put(r.getId(), r); // we do this so we can drop by id
+    list.add(cr);
+    map.put(id, cr); // we do this so we can drop by id
 
-    if (r.hasUrl()) {
+    if (cr.hasUrl()) {
       // first, this is the correct reosurce for this version (if it has a version)
-      if (r.hasVersion()) {
-        map.put(r.getUrl()+"|"+r.getVersion(), r);
+      if (cr.hasVersion()) {
+        map.put(cr.getUrl()+"|"+cr.getVersion(), cr);
       }
-      updateList(r.getUrl(), r.getVersion());
+      addToVersions(cr);
+      updateList(cr.getUrl(), cr.getVersion());
     }
   }
 
-  private void updateList(String url, String version) {
-    List<T> rl = new ArrayList<T>();
-    for (T t : list) {
-      if (url.equals(t.getUrl()) && !rl.contains(t)) {
-        rl.add(t);
+  /**
+   * insert after any resource that sorts the same, so that resources with equal versions stay in the order they were seen
+   */
+  private void addToVersions(CachedCanonicalResource cr) {
+    List<CachedCanonicalResource> rl = versions.get(cr.getUrl());
+    if (rl == null) {
+      rl = new ArrayList<CachedCanonicalResource>();
+      versions.put(cr.getUrl(), rl);
+    }
+    if (cr.isLoaded()) {
+      for (CachedCanonicalResource t : rl) {
+        if (t.isFor(cr.resource)) {
+          return;
+        }
+      }
+    }
+    int lo = 0;
+    int hi = rl.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (versionComparator.compare(rl.get(mid), cr) <= 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
       }
     }
-    if (rl.size() > 0) {
-      // sort by version as much as we are able
-      Collections.sort(rl, new MetadataResourceVersionComparator<T>());
+    rl.add(lo, cr);
+  }
+
+  private void updateList(String url, String version) {
+    List<CachedCanonicalResource> rl = versions.get(url);
+    if (rl != null && rl.size() > 0) {
       // the current is the latest
       map.put(url, rl.get(rl.size()-1));
       // now, also, the latest for major/minor
       if (version != null) {
-        T latest = null;
-        for (T t : rl) {
+        CachedCanonicalResource latest = null;
+        for (CachedCanonicalResource t : rl) {
           if (VersionUtilities.versionsCompatible(t.getVersion(), version)) {
             latest = t;
           }
@@ -118,31 +294,32 @@ public class CanonicalResourceManager<T extends CanonicalResource> {
         if (latest != null) { // might be null if it's not using semver
           String lv = VersionUtilities.getMajMin(latest.getVersion());
           if (lv != null && !lv.equals(version))
-            map.put(url+"|"+lv, rl.get(rl.size()-1));
+            map.put(url+"|"+lv, latest);
         }
       }
     }
   }
- 
+
 
   public T get(String url) {
-    return map.get(url);
+    CachedCanonicalResource cr = map.get(url);
+    return cr == null ? null : cr.getResource();
   }
-  
+
   public boolean has(String url) {
     return map.containsKey(url);
   }
-  
+
   public T get(String system, String version) {
     if (map.containsKey(system+"|"+version))
-      return map.get(system+"|"+version);
+      return map.get(system+"|"+version).getResource();
     String mm = VersionUtilities.getMajMin(version);
     if (mm != null)
-      return map.get(system+"|"+mm);
+      return get(system+"|"+mm);
     else
       return null;
   }
-  
+
   public boolean has(String system, String version) {
     if (map.containsKey(system+"|"+version))
       return true;
@@ -152,69 +329,113 @@ public class CanonicalResourceManager<T extends CanonicalResource> {
     else
       return false;
   }
-  
+
   public int size() {
     return list.size();
   }
-  
+
   public void drop(String id) {
-    T res = null;
-    do {
-      res = null;
-      for (T t : list) {
-        if (t.getId().equals(id)) {
-          res = t;
+    List<CachedCanonicalResource> dropped = new ArrayList<>();
+    for (Iterator<CachedCanonicalResource> it = list.iterator(); it.hasNext(); ) {
+      CachedCanonicalResource t = it.next();
+      if (t.getId().equals(id)) {
+        it.remove();
+        dropped.add(t);
+      }
+    }
+    if (dropped.isEmpty()) {
+      return;
+    }
+    map.remove(id);
+    for (CachedCanonicalResource res : dropped) {
+      if (res.hasUrl()) {
+        dropFromVersions(res);
+      }
+    }
+  }
+
+  private void dropFromVersions(CachedCanonicalResource res) {
+    String url = res.getUrl();
+    List<CachedCanonicalResource> rl = versions.get(url);
+    if (rl != null) {
+      for (Iterator<CachedCanonicalResource> it = rl.iterator(); it.hasNext(); ) {
+        if (it.next() == res) {
+          it.remove();
         }
       }
-      if (res != null) {
-        list.remove(res);
-        map.remove(id);
-        map.remove(res.getUrl());
-        if (res.hasVersion()) {
-          map.remove(res.getUrl()+"|"+res.getVersion());
-          String mm = VersionUtilities.getMajMin(res.getVersion());
-          if (mm != null) {
-            map.remove(res.getUrl()+"|"+mm);
+      if (rl.isEmpty()) {
+        versions.remove(url);
+      }
+    }
+    map.remove(url);
+    if (res.hasVersion()) {
+      map.remove(url+"|"+res.getVersion());
+      String mm = VersionUtilities.getMajMin(res.getVersion());
+      if (mm != null) {
+        map.remove(url+"|"+mm);
+      }
+      if (rl != null) {
+        // another resource may still carry the same version
+        for (CachedCanonicalResource t : rl) {
+          if (res.getVersion().equals(t.getVersion())) {
+            map.put(url+"|"+t.getVersion(), t);
           }
         }
-        updateList(res.getUrl(), res.getVersion()); 
       }
-    } while (res != null);
+    }
+    updateList(url, res.getVersion());
   }
-  
-  
+
+
+  /**
+   * note that this loads any resources that are only registered by proxy
+   */
   public void listAll(List<T> result) {
-    result.addAll(list);    
+    for (CachedCanonicalResource t : list) {
+      result.add(t.getResource());
+    }
   }
 
   public void listAllM(List<CanonicalResource> result) {
-    result.addAll(list);    
+    for (CachedCanonicalResource t : list) {
+      result.add(t.getResource());
+    }
   }
 
   public void clear() {
     list.clear();
     map.clear();
-    
+    versions.clear();
   }
 
   public List<T> getList() {
     List<T> res = new ArrayList<>();
-    for (T t : list) {
-      if (!res.contains(t)) {
-        res.add(t);
+    Set<T> seen = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+    for (CachedCanonicalResource t : list) {
+      T r = t.getResource();
+      if (seen.add(r)) {
+        res.add(r);
       }
     }
     return res;
   }
 
   public List<T> getSortedList() {
-    List<T> res = new ArrayList<>();
-    for (T t : list) {
-      if (!res.contains(t)) {
-        res.add(t);
+    List<T> res = getList();
+    Collections.sort(res, new CanonicalListSorter());
+    return res;
+  }
+
+  /**
+   * the number of resources that are registered by proxy and haven't been loaded yet
+   */
+  public int unloadedCount() {
+    int res = 0;
+    for (CachedCanonicalResource t : list) {
+      if (!t.isLoaded()) {
+        res++;
       }
     }
-    Collections.sort(res, new CanonicalListSorter());
     return res;
   }
 
@@ -225,5 +446,5 @@ public class CanonicalResourceManager<T extends CanonicalResource> {
   public boolean isEnforceUniqueId() {
     return enforceUniqueId;
   }
-  
+
 }
@@ -0,0 +1,295 @@
+package org.hl7.fhir.r5.context;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.CanonicalResourceManager.CanonicalResourceProxy;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.Resource;
+
+/**
+ * A binary image of a loaded worker context, so that a context can be started without parsing
+ * all the resources in the packages it was loaded from again.
+ *
+ * The image has a header (the version information and the binaries), then an index of the resources
+ * (type, whether it's a canonical resource, id, url, version, and where the resource is), then the resources themselves, as compact json.
+ * When an image is loaded, the file is memory mapped, the resources are registered from the index, and
+ * each canonical resource is only parsed when it's first used. The file is mapped in chunks (a single
+ * mapping can't be more than 2GB), and a resource may be split across two chunks
+ *
+ * Images are specific to the version of this library that wrote them - if the format changes, change IMAGE_VERSION
+ */
+public class ContextImage {
+
+  public static final int MAGIC = 0x46484943; // FHIC
+  public static final int IMAGE_VERSION = 1;
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+
+  public interface IContextImageTarget {
+    void setImageVersionInfo(String version, String revision, String date);
+    void registerResourceFromProxy(CanonicalResourceProxy r) throws FHIRException;
+    void cacheResource(Resource r) throws FHIRException;
+    Map<String, byte[]> getBinaries();
+  }
+
+  private class ImageResourceProxy extends CanonicalResourceProxy {
+    private long offset;
+    private int length;
+
+    public ImageResourceProxy(String type, String id, String url, String version, long offset, int length) {
+      super(type, id, url, version);
+      this.offset = offset;
+      this.length = length;
+    }
+
+    @Override
+    public CanonicalResource loadResource() throws FHIRException {
+      Resource r = parse();
+      if (!(r instanceof CanonicalResource)) {
+        throw new FHIRException("The resource "+getType()+"/"+getId()+" in the context image is not a canonical resource");
+      }
+      return (CanonicalResource) r;
+    }
+
+    private Resource parse() throws FHIRException {
+      try {
+        return new JsonParser().parse(new ByteArrayInputStream(readBytes(offset, length)));
+      } catch (IOException e) {
+        throw new FHIRException("Unable to read "+getType()+"/"+getId()+" from the context image: "+e.getMessage(), e);
+      }
+    }
+  }
+
+  private List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+  private int chunkSize;
+  private long size;
+  private int count;
+
+  private ContextImage(int chunkSize) {
+    super();
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * write the context to the image file. The resources are written as they are, so generate the snapshots first
+   *
+   * @param version, revision, date - the version information from the context
+   * @param resources - all the resources in the context, in the order they were loaded
+   * @param binaries - the binaries in the context
+   */
+  public static void save(String filename, String version, String revision, String date, List<Resource> resources, Map<String, byte[]> binaries) throws IOException {
+    List<byte[]> content = new ArrayList<byte[]>();
+    for (Resource r : resources) {
+      content.add(new JsonParser().setOutputStyle(OutputStyle.NORMAL).composeBytes(r));
+    }
+
+    File f = new File(filename);
+    File tmp = new File(filename+".tmp");
+    DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      stream.writeInt(MAGIC);
+      stream.writeInt(IMAGE_VERSION);
+      writeString(stream, version);
+      writeString(stream, revision);
+      writeString(stream, date);
+      stream.writeInt(binaries.size());
+      for (String name : binaries.keySet()) {
+        byte[] b = binaries.get(name);
+        stream.writeUTF(name);
+        stream.writeInt(b.length);
+        stream.write(b);
+      }
+      // the index. Offsets are relative to the start of the content
+      stream.writeInt(resources.size());
+      long offset = 0;
+      for (int i = 0; i < resources.size(); i++) {
+        Resource r = resources.get(i);
+        stream.writeUTF(r.fhirType());
+        stream.writeBoolean(r instanceof CanonicalResource);
+        writeString(stream, r.getId());
+        if (r instanceof CanonicalResource) {
+          writeString(stream, ((CanonicalResource) r).getUrl());
+          writeString(stream, ((CanonicalResource) r).getVersion());
+        } else {
+          writeString(stream, null);
+          writeString(stream, null);
+        }
+        stream.writeLong(offset);
+        stream.writeInt(content.get(i).length);
+        offset = offset + content.get(i).length;
+      }
+      for (byte[] b : content) {
+        stream.write(b);
+      }
+    } finally {
+      stream.close();
+    }
+    try {
+      Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * load the image into the target. Canonical resources are registered by proxy, and loaded when they are first used.
+   * Other resources are loaded now
+   */
+  public static ContextImage load(String filename, IContextImageTarget target) throws IOException, FHIRException {
+    return load(filename, target, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * load the image, mapping chunkSize bytes of the file at a time (mostly for testing - the default is fine otherwise)
+   */
+  public static ContextImage load(String filename, IContextImageTarget target, int chunkSize) throws IOException, FHIRException {
+    ContextImage res = new ContextImage(chunkSize);
+    res.read(filename, target);
+    return res;
+  }
+
+  private void read(String filename, IContextImageTarget target) throws IOException, FHIRException {
+    RandomAccessFile file = new RandomAccessFile(filename, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      size = file.length();
+      for (long pos = 0; pos < size; pos = pos + chunkSize) {
+        chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(chunkSize, size - pos)));
+      }
+    } finally {
+      file.close(); // the mappings stay valid after the file is closed
+    }
+    ImageInputStream input = new ImageInputStream();
+    DataInputStream stream = new DataInputStream(input);
+    if (stream.readInt() != MAGIC) {
+      throw new IOException("The file "+filename+" is not a context image");
+    }
+    int v = stream.readInt();
+    if (v != IMAGE_VERSION) {
+      throw new IOException("The context image "+filename+" has format version "+v+", but this version of the library needs "+IMAGE_VERSION);
+    }
+    target.setImageVersionInfo(readString(stream), readString(stream), readString(stream));
+    int bc = stream.readInt();
+    for (int i = 0; i < bc; i++) {
+      String name = stream.readUTF();
+      byte[] b = new byte[stream.readInt()];
+      stream.readFully(b);
+      target.getBinaries().put(name, b);
+    }
+    count = stream.readInt();
+    List<ImageResourceProxy> index = new ArrayList<ImageResourceProxy>();
+    List<Boolean> canonical = new ArrayList<Boolean>();
+    for (int i = 0; i < count; i++) {
+      String type = stream.readUTF();
+      canonical.add(stream.readBoolean());
+      String id = readString(stream);
+      String url = readString(stream);
+      String version = readString(stream);
+      long offset = stream.readLong();
+      int length = stream.readInt();
+      index.add(new ImageResourceProxy(type, id, url, version, offset, length));
+    }
+    long start = input.position;
+    for (int i = 0; i < count; i++) {
+      ImageResourceProxy p = index.get(i);
+      p.offset = p.offset + start;
+      if (canonical.get(i)) {
+        target.registerResourceFromProxy(p);
+      } else {
+        target.cacheResource(p.parse());
+      }
+    }
+  }
+
+  private byte[] readBytes(long offset, int length) throws IOException {
+    if (offset < 0 || offset + length > size) {
+      throw new IOException("The context image is truncated or corrupt (reading "+length+" bytes at "+offset+" from "+size+")");
+    }
+    byte[] res = new byte[length];
+    readBytes(offset, res, 0, length);
+    return res;
+  }
+
+  private void readBytes(long offset, byte[] b, int off, int len) {
+    while (len > 0) {
+      ByteBuffer chunk = chunks.get((int) (offset / chunkSize)).duplicate();
+      int pos = (int) (offset % chunkSize);
+      int l = Math.min(len, chunkSize - pos);
+      chunk.position(pos);
+      chunk.get(b, off, l);
+      offset = offset + l;
+      off = off + l;
+      len = len - l;
+    }
+  }
+
+  /**
+   * the number of resources in the image
+   */
+  public int getCount() {
+    return count;
+  }
+
+  private static void writeString(DataOutputStream stream, String s) throws IOException {
+    stream.writeBoolean(s != null);
+    if (s != null) {
+      stream.writeUTF(s);
+    }
+  }
+
+  private static String readString(DataInputStream stream) throws IOException {
+    return stream.readBoolean() ? stream.readUTF() : null;
+  }
+
+  /**
+   * reads the image from the start, across the chunks
+   */
+  private class ImageInputStream extends InputStream {
+    private long position;
+
+    @Override
+    public int read() throws IOException {
+      if (position >= size) {
+        return -1;
+      }
+      byte[] b = new byte[1];
+      readBytes(position, b, 0, 1);
+      position++;
+      return b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (position >= size) {
+        return -1;
+      }
+      int l = (int) Math.min(len, size - position);
+      readBytes(position, b, off, l);
+      position = position + l;
+      return l;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(Integer.MAX_VALUE, size - position);
+    }
+  }
+}
@@ -235,6 +235,12 @@ public interface IWorkerContext {
    * @return a list of all structure definitions, without trying to generate snapshots
    */
   public List<StructureDefinition> getStructures();
+
+  /**
+   * @return a number that changes whenever a structure definition is added to or removed from the context, so that 
+   * users of the context can tell when what they've worked out from the structures needs to be worked out again
+   */
+  public int getStructuresVersion();
   
   /**
    * @return a list of all conformance resources
@@ -499,6 +505,29 @@ public interface IWorkerContext {
    * @return
    */
   public ValidationResult validateCode(ValidationOptions options, Coding code, ValueSet vs);
+
+  /**
+   * Start collecting code validations on this thread, instead of doing them one at a time.
+   * 
+   * While collecting, a validateCode call that isn't cached, and would have to go to the terminology 
+   * server, is recorded instead, and returns a provisional result (valid, with no display). Use 
+   * resolveCodeValidations to do all the recorded validations at once - the results are cached, so
+   * the same validateCode calls made afterwards get the real results. 
+   * 
+   * Calls can be nested: each collectCodeValidations starts a new collection, and the matching 
+   * resolveCodeValidations only does the validations from that collection, and goes back to the one before
+   */
+  public void collectCodeValidations();
+
+  /**
+   * Stop collecting code validations on this thread (see collectCodeValidations), and do the ones that
+   * were recorded, with up to [threads] requests to the terminology server at a time. Validations that 
+   * were recorded more than once are only done once
+   * 
+   * @param threads - the maximum number of concurrent requests
+   * @return the number of validations done 
+   */
+  public int resolveCodeValidations(int threads) throws FHIRException;
   
   /**
    * returns the recommended tla for the type  (from the structure definitions)
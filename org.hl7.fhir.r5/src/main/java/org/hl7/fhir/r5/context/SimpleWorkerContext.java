@@ -34,6 +34,11 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -43,6 +48,8 @@ import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.exceptions.FHIRFormatError;
 import org.hl7.fhir.r5.conformance.ProfileUtilities;
 import org.hl7.fhir.r5.conformance.ProfileUtilities.ProfileKnowledgeProvider;
+import org.hl7.fhir.r5.context.CanonicalResourceManager.CanonicalResourceProxy;
+import org.hl7.fhir.r5.context.ContextImage.IContextImageTarget;
 import org.hl7.fhir.r5.context.IWorkerContext.ILoggingService.LogCategory;
 import org.hl7.fhir.r5.formats.IParser;
 import org.hl7.fhir.r5.formats.JsonParser;
@@ -70,6 +77,7 @@ import org.hl7.fhir.utilities.i18n.I18nConstants;
 import org.hl7.fhir.utilities.TextFile;
 import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.cache.NpmPackage;
+import org.hl7.fhir.utilities.cache.NpmPackage.PackageResourceInformation;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
 import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
@@ -82,7 +90,7 @@ import ca.uhn.fhir.parser.DataFormatException;
  * very light client to connect to an open unauthenticated terminology service
  */
 
-public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerContext, ProfileKnowledgeProvider {
+public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerContext, ProfileKnowledgeProvider, IContextImageTarget {
 
   public interface ILoadFilter {
 
@@ -106,7 +114,13 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
   private IValidatorFactory validatorFactory;
   private boolean ignoreProfileErrors;
   private boolean progress;
+  private SnapshotCache snapshotCache;
+  private final Object snapshotLock = new Object();
+  private int loadThreads = 1;
+  private boolean lazyLoading;
   
+  private static final String[] DEFAULT_PACKAGE_TYPES = new String[] { "StructureDefinition", "ValueSet", "CodeSystem", "SearchParameter", "OperationDefinition", "Questionnaire","ConceptMap","StructureMap", "NamingSystem"};
+
   public SimpleWorkerContext() throws FileNotFoundException, IOException, FHIRException {
     super();
   }
@@ -133,6 +147,9 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
     revision = other.revision;
     date = other.date;
     validatorFactory = other.validatorFactory;
+    snapshotCache = other.snapshotCache;
+    loadThreads = other.loadThreads;
+    lazyLoading = other.lazyLoading;
   }
 
   // -- Initializations
@@ -195,6 +212,17 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
     return res;
   }
 
+  /**
+   * Load the working context from an image written by saveImage(). This is much quicker than loading the packages 
+   * again - the resources are only parsed when they are first used
+   */
+  public static SimpleWorkerContext fromImage(String filename) throws FileNotFoundException, IOException, FHIRException {
+    SimpleWorkerContext res = new SimpleWorkerContext();
+    res.setAllowLoadingDuplicates(true);
+    ContextImage.load(filename, res);
+    return res;
+  }
+
 	public static SimpleWorkerContext fromClassPath() throws IOException, FHIRException {
 		SimpleWorkerContext res = new SimpleWorkerContext();
 		res.loadFromStream(SimpleWorkerContext.class.getResourceAsStream("validation.json.zip"), null);
@@ -261,19 +289,25 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
   }
   
 	public void loadFromFile(InputStream stream, String name, IContextResourceLoader loader, ILoadFilter filter) throws IOException, FHIRException {
-		Resource f;
+	  registerFromFile(name, parseFromFile(stream, name, loader), filter);
+	}
+
+	private Resource parseFromFile(InputStream stream, String name, IContextResourceLoader loader) throws FHIRException {
 		try {
 		  if (loader != null)
-		    f = loader.loadBundle(stream, false);
+		    return loader.loadBundle(stream, false);
 		  else {
 		    XmlParser xml = new XmlParser();
-		    f = xml.parse(stream);
+		    return xml.parse(stream);
 		  }
     } catch (DataFormatException e1) {
       throw new org.hl7.fhir.exceptions.FHIRFormatError(formatMessage(I18nConstants.ERROR_PARSING_, name, e1.getMessage()), e1);
     } catch (Exception e1) {
 			throw new org.hl7.fhir.exceptions.FHIRFormatError(formatMessage(I18nConstants.ERROR_PARSING_, name, e1.getMessage()), e1);
 		}
+	}
+
+	private void registerFromFile(String name, Resource f, ILoadFilter filter) throws FHIRException {
 		if (f instanceof Bundle) {
 		  Bundle bnd = (Bundle) f;
 		  for (BundleEntryComponent e : bnd.getEntry()) {
@@ -292,27 +326,31 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
 	}
 
   private void loadFromFileJson(InputStream stream, String name, IContextResourceLoader loader, ILoadFilter filter) throws IOException, FHIRException {
-    Bundle f = null;
+    registerFromFileJson(parseFromFileJson(stream, loader), filter);
+  }
+
+  private Resource parseFromFileJson(InputStream stream, IContextResourceLoader loader) throws IOException, FHIRException {
     try {
       if (loader != null)
-        f = loader.loadBundle(stream, true);
+        return loader.loadBundle(stream, true);
       else {
         JsonParser json = new JsonParser();
-        Resource r = json.parse(stream);
-        if (r instanceof Bundle)
-          f = (Bundle) r;
-        else if (filter == null || filter.isOkToLoad(f)) {
-          cacheResource(r);
-        }
+        return json.parse(stream);
       }
     } catch (FHIRFormatError e1) {
       throw new org.hl7.fhir.exceptions.FHIRFormatError(e1.getMessage(), e1);
     }
-    if (f != null)
-      for (BundleEntryComponent e : f.getEntry()) {
+  }
+
+  private void registerFromFileJson(Resource r, ILoadFilter filter) throws FHIRException {
+    if (r instanceof Bundle) {
+      for (BundleEntryComponent e : ((Bundle) r).getEntry()) {
         if (filter == null || filter.isOkToLoad(e.getResource())) {
           cacheResource(e.getResource());
         }
+      }
+    } else if (filter == null || filter.isOkToLoad(r)) {
+      cacheResource(r);
     }
   }
 
@@ -324,13 +362,7 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
     if (progress) {
       System.out.println("Load Package "+pi.name()+"#"+pi.version());
     }
-    for (String s : pi.listResources(loader.getTypes())) {
-       try {
-        loadDefinitionItem(s, pi.load("package", s), loader, filter);
-      } catch (FHIRException | IOException e) {
-        throw new FHIRException(formatMessage(I18nConstants.ERROR_READING__FROM_PACKAGE__, s, pi.name(), pi.version(), e.getMessage()), e);
-      }
-    }
+    loadResourcesFromPackage(pi, loader == null ? DEFAULT_PACKAGE_TYPES : loader.getTypes(), loader, filter);
     for (String s : pi.list("other")) {
       binaries.put(s, TextFile.streamToBytes(pi.load("other", s)));
     }
@@ -344,10 +376,8 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
 	    System.out.println("Load Package "+pi.name()+"#"+pi.version());
 	  }
 	  if (types.length == 0)
-	    types = new String[] { "StructureDefinition", "ValueSet", "CodeSystem", "SearchParameter", "OperationDefinition", "Questionnaire","ConceptMap","StructureMap", "NamingSystem"};
-	  for (String s : pi.listResources(types)) {
-       loadDefinitionItem(s, pi.load("package", s), loader, null);
-	  }
+	    types = DEFAULT_PACKAGE_TYPES;
+	  loadResourcesFromPackage(pi, types, loader, null);
 	  for (String s : pi.list("other")) {
 	    binaries.put(s, TextFile.streamToBytes(pi.load("other", s)));
 	  }
@@ -356,6 +386,99 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
 	  }
 	}
 
+  /**
+   * Load the resources in the order they are listed. If there's more than one load thread, the resources are 
+   * read and parsed on a pool of threads, but they are still registered in order, one at a time, so that 
+   * duplicates and versions are handled the same way as when they are loaded by a single thread. 
+   * 
+   * Loaders are not thread safe (e.g. they collect code systems as they convert value sets), so when there's 
+   * a loader, the resources are always loaded by a single thread 
+   */
+  private void loadResourcesFromPackage(final NpmPackage pi, String[] types, IContextResourceLoader loader, ILoadFilter filter) throws IOException, FHIRException {
+    if (lazyLoading && loader == null && filter == null) {
+      registerResourcesFromPackage(pi, types);
+      return;
+    }
+    List<String> names = pi.listResources(types);
+    if (loadThreads <= 1 || loader != null || names.size() < 2) {
+      for (String s : names) {
+        try {
+          loadDefinitionItem(s, pi.load("package", s), loader, filter);
+        } catch (FHIRException | IOException e) {
+          throw new FHIRException(formatMessage(I18nConstants.ERROR_READING__FROM_PACKAGE__, s, pi.name(), pi.version(), e.getMessage()), e);
+        }
+      }
+    } else {
+      ExecutorService pool = Executors.newFixedThreadPool(Math.min(loadThreads, names.size()));
+      try {
+        List<Future<Resource>> parsed = new ArrayList<Future<Resource>>();
+        for (final String s : names) {
+          parsed.add(pool.submit(new Callable<Resource>() {
+            @Override
+            public Resource call() throws Exception {
+              if (s.endsWith(".json"))
+                return parseFromFileJson(pi.load("package", s), null);
+              else if (s.endsWith(".xml"))
+                return parseFromFile(pi.load("package", s), s, null);
+              else
+                return null;
+            }
+          }));
+        }
+        for (int i = 0; i < names.size(); i++) {
+          String s = names.get(i);
+          try {
+            Resource r = parsed.get(i).get();
+            if (s.endsWith(".json"))
+              registerFromFileJson(r, filter);
+            else if (s.endsWith(".xml"))
+              registerFromFile(s, r, filter);
+            else
+              loadDefinitionItem(s, pi.load("package", s), null, filter);
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new FHIRException(formatMessage(I18nConstants.ERROR_READING__FROM_PACKAGE__, s, pi.name(), pi.version(), cause.getMessage()), cause);
+          } catch (InterruptedException e) {
+            throw new FHIRException(formatMessage(I18nConstants.ERROR_READING__FROM_PACKAGE__, s, pi.name(), pi.version(), e.getMessage()), e);
+          } catch (FHIRException | IOException e) {
+            throw new FHIRException(formatMessage(I18nConstants.ERROR_READING__FROM_PACKAGE__, s, pi.name(), pi.version(), e.getMessage()), e);
+          }
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Register the resources from the package index, so that each resource is only parsed when it's first used
+   */
+  private void registerResourcesFromPackage(final NpmPackage pi, String[] types) throws IOException, FHIRException {
+    for (final PackageResourceInformation pri : pi.listIndexedResources(types)) {
+      try {
+        registerResourceFromProxy(new CanonicalResourceProxy(pri.getType(), pri.getId(), pri.getUrl(), pri.getVersion()) {
+          @Override
+          public CanonicalResource loadResource() throws FHIRException {
+            try {
+              Resource r = new JsonParser().parse(pi.load("package", pri.getFilename()));
+              if (!(r instanceof CanonicalResource)) {
+                throw new FHIRException(formatMessage(I18nConstants.ERROR_READING__FROM_PACKAGE__, pri.getFilename(), pi.name(), pi.version(), "not a canonical resource"));
+              }
+              if (r instanceof StructureDefinition && "1.4.0".equals(version)) {
+                fixOldSD((StructureDefinition) r);
+              }
+              return (CanonicalResource) r;
+            } catch (IOException e) {
+              throw new FHIRException(formatMessage(I18nConstants.ERROR_READING__FROM_PACKAGE__, pri.getFilename(), pi.name(), pi.version(), e.getMessage()), e);
+            }
+          }
+        });
+      } catch (FHIRException e) {
+        throw new FHIRException(formatMessage(I18nConstants.ERROR_READING__FROM_PACKAGE__, pri.getFilename(), pi.name(), pi.version(), e.getMessage()), e);
+      }
+    }
+  }
+
   public void loadFromFile(String file, IContextResourceLoader loader) throws IOException, FHIRException {
     loadDefinitionItem(file, new CSFileInputStream(file), loader, null);
   }
@@ -648,35 +771,56 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
   @Override
   public void generateSnapshot(StructureDefinition p, boolean logical) throws DefinitionException, FHIRException {
     if (!p.hasSnapshot() && (logical || p.getKind() != StructureDefinitionKind.LOGICAL)) {
-      if (!p.hasBaseDefinition())
-        throw new DefinitionException(formatMessage(I18nConstants.PROFILE___HAS_NO_BASE_AND_NO_SNAPSHOT, p.getName(), p.getUrl()));
-      StructureDefinition sd = fetchResource(StructureDefinition.class, p.getBaseDefinition());
-      if (sd == null && "http://hl7.org/fhir/StructureDefinition/Base".equals(p.getBaseDefinition())) {
-        sd = ProfileUtilities.makeBaseDefinition(p.getFhirVersion());
-      }
-      if (sd == null) {
-        throw new DefinitionException(formatMessage(I18nConstants.PROFILE___BASE__COULD_NOT_BE_RESOLVED, p.getName(), p.getUrl(), p.getBaseDefinition()));
-      }
-      List<ValidationMessage> msgs = new ArrayList<ValidationMessage>();
-      List<String> errors = new ArrayList<String>();
-      ProfileUtilities pu = new ProfileUtilities(this, msgs, this);
-      pu.setAutoFixSliceNames(true);
-      pu.setThrowException(false);
-      if (sd.getDerivation() == TypeDerivationRule.CONSTRAINT) {
-        pu.sortDifferential(sd, p, p.getUrl(), errors, true);
+      // snapshots are generated into the profile in place, so two threads must not generate the same one at once
+      synchronized (snapshotLock) {
+        if (!p.hasSnapshot()) {
+          makeSnapshot(p);
+        }
       }
-      pu.setDebug(false);
-      for (String err : errors)
-        msgs.add(new ValidationMessage(Source.ProfileValidator, IssueType.EXCEPTION, p.getUserString("path"), "Error sorting Differential: "+err, ValidationMessage.IssueSeverity.ERROR));
-      pu.generateSnapshot(sd, p, p.getUrl(), Utilities.extractBaseUrl(sd.getUserString("path")), p.getName());
-      for (ValidationMessage msg : msgs) {
-        if ((!ignoreProfileErrors && msg.getLevel() == ValidationMessage.IssueSeverity.ERROR) || msg.getLevel() == ValidationMessage.IssueSeverity.FATAL)
-          throw new DefinitionException(formatMessage(I18nConstants.PROFILE___ELEMENT__ERROR_GENERATING_SNAPSHOT_, p.getName(), p.getUrl(), msg.getLocation(), msg.getMessage()));
+    }
+  }
+
+  private void makeSnapshot(StructureDefinition p) throws DefinitionException, FHIRException {
+    if (!p.hasBaseDefinition())
+      throw new DefinitionException(formatMessage(I18nConstants.PROFILE___HAS_NO_BASE_AND_NO_SNAPSHOT, p.getName(), p.getUrl()));
+    StructureDefinition sd = fetchResource(StructureDefinition.class, p.getBaseDefinition());
+    if (sd == null && "http://hl7.org/fhir/StructureDefinition/Base".equals(p.getBaseDefinition())) {
+      sd = ProfileUtilities.makeBaseDefinition(p.getFhirVersion());
+    }
+    if (sd == null) {
+      throw new DefinitionException(formatMessage(I18nConstants.PROFILE___BASE__COULD_NOT_BE_RESOLVED, p.getName(), p.getUrl(), p.getBaseDefinition()));
+    }
+    String key = null;
+    if (snapshotCache != null) {
+      try {
+        key = snapshotCache.getKey(p, sd);
+      } catch (IOException e) {
+        key = null;
       }
-      if (!p.hasSnapshot())
-        throw new FHIRException(formatMessage(I18nConstants.PROFILE___ERROR_GENERATING_SNAPSHOT, p.getName(), p.getUrl()));
-      pu = null;
+      if (key != null && snapshotCache.load(p, key))
+        return;
+    }
+    List<ValidationMessage> msgs = new ArrayList<ValidationMessage>();
+    List<String> errors = new ArrayList<String>();
+    ProfileUtilities pu = new ProfileUtilities(this, msgs, this);
+    pu.setAutoFixSliceNames(true);
+    pu.setThrowException(false);
+    if (sd.getDerivation() == TypeDerivationRule.CONSTRAINT) {
+      pu.sortDifferential(sd, p, p.getUrl(), errors, true);
     }
+    pu.setDebug(false);
+    for (String err : errors)
+      msgs.add(new ValidationMessage(Source.ProfileValidator, IssueType.EXCEPTION, p.getUserString("path"), "Error sorting Differential: "+err, ValidationMessage.IssueSeverity.ERROR));
+    pu.generateSnapshot(sd, p, p.getUrl(), Utilities.extractBaseUrl(sd.getUserString("path")), p.getName());
+    for (ValidationMessage msg : msgs) {
+      if ((!ignoreProfileErrors && msg.getLevel() == ValidationMessage.IssueSeverity.ERROR) || msg.getLevel() == ValidationMessage.IssueSeverity.FATAL)
+        throw new DefinitionException(formatMessage(I18nConstants.PROFILE___ELEMENT__ERROR_GENERATING_SNAPSHOT_, p.getName(), p.getUrl(), msg.getLocation(), msg.getMessage()));
+    }
+    if (!p.hasSnapshot())
+      throw new FHIRException(formatMessage(I18nConstants.PROFILE___ERROR_GENERATING_SNAPSHOT, p.getName(), p.getUrl()));
+    pu = null;
+    if (key != null)
+      snapshotCache.save(p, key);
   }
 
   public boolean isIgnoreProfileErrors() {
@@ -687,6 +831,57 @@ public class SimpleWorkerContext extends BaseWorkerContext implements IWorkerCon
     this.ignoreProfileErrors = ignoreProfileErrors;
   }
 
+  public SnapshotCache getSnapshotCache() {
+    return snapshotCache;
+  }
+
+  /**
+   * Use a persistent cache for the snapshots generated for profiles that only have a differential. Off (null) by default
+   */
+  public void setSnapshotCache(SnapshotCache snapshotCache) {
+    this.snapshotCache = snapshotCache;
+  }
+
+  /**
+   * Save the context as an image that can be loaded quickly by fromImage(). Snapshots are generated 
+   * first, so that they don't need to be generated when the image is loaded
+   */
+  public void saveImage(String filename) throws IOException {
+    finishLoading();
+    ContextImage.save(filename, version, revision, date, listAllResources(), binaries);
+  }
+
+  @Override
+  public void setImageVersionInfo(String version, String revision, String date) {
+    this.version = version;
+    this.revision = revision;
+    this.date = date;
+  }
+
+  public int getLoadThreads() {
+    return loadThreads;
+  }
+
+  /**
+   * The number of threads used to read and parse resources when loading a package. The default is 1 (load 
+   * the resources one at a time)
+   */
+  public void setLoadThreads(int loadThreads) {
+    this.loadThreads = loadThreads;
+  }
+
+  public boolean isLazyLoading() {
+    return lazyLoading;
+  }
+
+  /**
+   * If this is true, packages loaded without a loader or a filter are loaded from the package index, and 
+   * each resource is only parsed when it's first used (listing the resources of a type loads all of them)
+   */
+  public void setLazyLoading(boolean lazyLoading) {
+    this.lazyLoading = lazyLoading;
+  }
+
   public String listMapUrls() {
     return Utilities.listCanonicalUrls(transforms.keys());
   }
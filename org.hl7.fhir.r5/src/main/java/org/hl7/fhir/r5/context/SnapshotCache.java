@@ -0,0 +1,152 @@
+package org.hl7.fhir.r5.context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.Utilities;
+
+/**
+ * A persistent cache of generated snapshots, so that profiles that only have a differential don't need
+ * to have their snapshots generated again every time a process starts
+ *
+ * Each snapshot is stored in a file named by a digest of the profile url and version, its differential, and
+ * the digest of its base profile (which includes the base's snapshot). So a change to the profile or any
+ * ancestor changes the key, and the old entry is simply never used again. The digests are worked out
+ * from the resources as they are each time, rather than remembered, so that a profile that is edited
+ * after it's been seen doesn't pick up the old snapshot
+ *
+ * Note that the snapshots that are loaded from the cache don't have the user data that the snapshot generator
+ * adds for rendering, so this is for tools such as the validator that only use the snapshot content
+ *
+ * The cache can be used by multiple threads at once
+ */
+public class SnapshotCache {
+
+  private static final String CACHE_VERSION = "1"; // change this if the snapshot generation changes in ways that invalidate the cache
+
+  private String folder;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public SnapshotCache(String folder) throws IOException {
+    super();
+    this.folder = folder;
+    if (!new File(folder).exists())
+      Utilities.createDirectory(folder);
+  }
+
+  /**
+   * the default location for the cache, beside the package cache (~/.fhir/snapshots)
+   */
+  public static String defaultFolder() throws IOException {
+    return Utilities.path(System.getProperty("user.home"), ".fhir", "snapshots");
+  }
+
+  public String getFolder() {
+    return folder;
+  }
+
+  /**
+   * work out the key for the snapshot of this profile. This must be called before the snapshot is generated, since generating
+   * the snapshot changes the differential
+   */
+  public String getKey(StructureDefinition profile, StructureDefinition base) throws IOException {
+    StructureDefinition t = new StructureDefinition();
+    t.setUrl(profile.getUrl());
+    t.setVersion(profile.getVersion());
+    t.setFhirVersion(profile.getFhirVersion());
+    t.setKind(profile.getKind());
+    t.setType(profile.getType());
+    t.setDerivation(profile.getDerivation());
+    t.setBaseDefinition(profile.getBaseDefinition());
+    t.setDifferential(profile.getDifferential());
+    return digest(CACHE_VERSION+"|"+compose(t)+"|"+digest(compose(base)));
+  }
+
+  /**
+   * if there's a snapshot in the cache for this key, set it on the profile, and return true
+   */
+  public boolean load(StructureDefinition profile, String key) {
+    File f = new File(folder, key+".json");
+    if (f.exists()) {
+      try {
+        InputStream stream = new FileInputStream(f);
+        try {
+          StructureDefinition sd = (StructureDefinition) new JsonParser().parse(stream);
+          profile.setSnapshot(sd.getSnapshot());
+          profile.setDifferential(sd.getDifferential());
+          hits.incrementAndGet();
+          return true;
+        } finally {
+          stream.close();
+        }
+      } catch (Exception e) {
+        // the file's corrupt - we'll just generate the snapshot again, and replace it
+      }
+    }
+    misses.incrementAndGet();
+    return false;
+  }
+
+  public void save(StructureDefinition profile, String key) {
+    try {
+      File f = new File(folder, key+".json");
+      File tmp = new File(folder, key+".json.tmp"+Thread.currentThread().getId());
+      OutputStream stream = new FileOutputStream(tmp);
+      try {
+        new JsonParser().setOutputStyle(OutputStyle.NORMAL).compose(stream, profile);
+      } finally {
+        stream.close();
+      }
+      try {
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (Exception e) {
+      System.out.println("Unable to save snapshot for "+profile.getUrl()+" in the snapshot cache: "+e.getMessage());
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private String compose(Resource r) throws IOException {
+    return new JsonParser().setOutputStyle(OutputStyle.NORMAL).composeString(r);
+  }
+
+  private String digest(String s) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] hash = md.digest(s.getBytes(StandardCharsets.UTF_8));
+      StringBuilder b = new StringBuilder();
+      for (byte h : hash) {
+        b.append(Character.forDigit((h >> 4) & 0xF, 16));
+        b.append(Character.forDigit(h & 0xF, 16));
+      }
+      return b.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
+  }
+}
@@ -21,16 +21,29 @@ package org.hl7.fhir.r5.context;
  */
 
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r5.context.IWorkerContext.ValidationResult;
@@ -39,6 +52,7 @@ import org.hl7.fhir.r5.formats.JsonParser;
 import org.hl7.fhir.r5.model.CodeSystem.ConceptDefinitionComponent;
 import org.hl7.fhir.r5.model.CodeableConcept;
 import org.hl7.fhir.r5.model.Coding;
+import org.hl7.fhir.r5.model.DataType;
 import org.hl7.fhir.r5.model.UriType;
 import org.hl7.fhir.r5.model.ValueSet;
 import org.hl7.fhir.r5.model.ValueSet.ConceptSetComponent;
@@ -47,7 +61,6 @@ import org.hl7.fhir.r5.model.ValueSet.ValueSetExpansionContainsComponent;
 import org.hl7.fhir.r5.terminologies.ValueSetExpander.TerminologyServiceErrorClass;
 import org.hl7.fhir.r5.terminologies.ValueSetExpander.ValueSetExpansionOutcome;
 import org.hl7.fhir.utilities.CommaSeparatedStringBuilder;
-import org.hl7.fhir.utilities.TextFile;
 import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.validation.ValidationOptions;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
@@ -64,6 +77,14 @@ import com.google.gson.JsonPrimitive;
  *  
  * the cache is a series of pairs: a map, and a list. the map is the loaded cache, the list is the persiistent cache, carefully maintained in order for version control consistency
  * 
+ * the persistent cache files are journals: new entries are appended to the end of the file, and a later entry for 
+ * the same request replaces an earlier one when the file is loaded. Once a file carries too many replaced entries, 
+ * it is compacted in the background by rewriting it from the list 
+ * 
+ * Reading the cache, and adding temporary entries, doesn't take the context lock. The temporary entries are limited 
+ * to a total weight (roughly, the number of concepts they hold), and the oldest are evicted first once the limit 
+ * is reached. Persistent entries are never evicted
+ * 
  * @author graha
  *
  */
@@ -73,11 +94,17 @@ public class TerminologyCache {
   private static final String NAME_FOR_NO_SYSTEM = "all-systems";
   private static final String ENTRY_MARKER = "-------------------------------------------------------------------------------------";
   private static final String BREAK = "####";
+  private static final String USER_DATA_ESSENCE_DIGEST = "tx-cache-essence-digest";
+  private static final long DEFAULT_MAX_TRANSIENT_WEIGHT = 250000;
+  private static final int COMPACTION_MIN_GARBAGE = 100; // don't bother compacting a file for less than this many replaced entries
 
   public class CacheToken {
     private String name;
     private String key;
     private String request;
+    public String getKey() {
+      return key;
+    }
     public void setName(String n) {
       if (name == null)
         name = n;
@@ -91,18 +118,34 @@ public class TerminologyCache {
     private boolean persistent;
     private ValidationResult v;
     private ValueSetExpansionOutcome e;
+    private String journal; // the entry as written to the cache file (persistent entries only)
+    private int weight;
   }
   
   private class NamedCache {
     private String name; 
     private List<CacheEntry> list = new ArrayList<CacheEntry>(); // persistent entries
-    private Map<String, CacheEntry> map = new HashMap<String, CacheEntry>();
+    private Map<String, CacheEntry> map = new ConcurrentHashMap<String, CacheEntry>();
+    private int journalled; // number of entries in the cache file, including ones that have since been replaced
+    private boolean compacting;
   }
   
+  private class TransientEntry {
+    private NamedCache cache;
+    private String key;
+    private CacheEntry entry;
+  }
 
   private Object lock;
   private String folder;
-  private Map<String, NamedCache> caches = new HashMap<String, NamedCache>();
+  private Map<String, NamedCache> caches = new ConcurrentHashMap<String, NamedCache>();
+  private Queue<TransientEntry> transients = new ConcurrentLinkedQueue<TransientEntry>(); // in the order they were added
+  private AtomicLong transientWeight = new AtomicLong();
+  private long maxTransientWeight = DEFAULT_MAX_TRANSIENT_WEIGHT;
+  private AtomicLong hits = new AtomicLong();
+  private AtomicLong misses = new AtomicLong();
+  private AtomicLong evictions = new AtomicLong();
+  private Map<String, String> normalisedOptions = new ConcurrentHashMap<String, String>();
   
   // use lock from the context
   public TerminologyCache(Object lock, String folder) throws FileNotFoundException, IOException, FHIRException {
@@ -119,15 +162,11 @@ public class TerminologyCache {
       ct.name = getNameForSystem(code.getSystem());
     else
       ct.name = NAME_FOR_NO_SYSTEM;
-    JsonParser json = new JsonParser();
-    json.setOutputStyle(OutputStyle.PRETTY);
-    ValueSet vsc = getVSEssense(vs);
-    try {
-      ct.request = "{\"code\" : "+json.composeString(code, "code")+", \"valueSet\" :"+(vsc == null ? "null" : json.composeString(vsc))+(options == null ? "" : ", "+options.toJson())+"}";
-    } catch (IOException e) {
-      throw new Error(e);
-    }
-    ct.key = String.valueOf(hashNWS(ct.request));
+    EssenceDigest vsd = getVSEssenceDigest(vs);
+    String cj = composeCompact(code, "code");
+    String oj = options == null ? null : options.toJson();
+    ct.request = "{\"code\" : "+cj+", \"valueSet\" :"+vsd.json+(oj == null ? "" : ", "+oj)+"}";
+    ct.key = makeKey(cj, vsd.digest, normaliseOptions(oj));
     return ct;
   }
 
@@ -137,15 +176,11 @@ public class TerminologyCache {
       if (c.hasSystem())
         ct.setName(getNameForSystem(c.getSystem()));
     }
-    JsonParser json = new JsonParser();
-    json.setOutputStyle(OutputStyle.PRETTY);
-    ValueSet vsc = getVSEssense(vs);
-    try {
-      ct.request = "{\"code\" : "+json.composeString(code, "codeableConcept")+", \"valueSet\" :"+json.composeString(vsc)+(options == null ? "" : ", "+options.toJson())+"}";
-    } catch (IOException e) {
-      throw new Error(e);
-    }
-    ct.key = String.valueOf(hashNWS(ct.request));
+    EssenceDigest vsd = getVSEssenceDigest(vs);
+    String cj = composeCompact(code, "codeableConcept");
+    String oj = options == null ? null : options.toJson();
+    ct.request = "{\"code\" : "+cj+", \"valueSet\" :"+vsd.json+(oj == null ? "" : ", "+oj)+"}";
+    ct.key = makeKey(cj, vsd.digest, normaliseOptions(oj));
     return ct;
   }
   
@@ -163,7 +198,7 @@ public class TerminologyCache {
 
   public CacheToken generateExpandToken(ValueSet vs, boolean heirarchical) {
     CacheToken ct = new CacheToken();
-    ValueSet vsc = getVSEssense(vs);
+    EssenceDigest vsd = getVSEssenceDigest(vs);
     for (ConceptSetComponent inc : vs.getCompose().getInclude())
       if (inc.hasSystem())
         ct.setName(getNameForSystem(inc.getSystem()));
@@ -173,15 +208,141 @@ public class TerminologyCache {
     for (ValueSetExpansionContainsComponent inc : vs.getExpansion().getContains())
       if (inc.hasSystem())
         ct.setName(getNameForSystem(inc.getSystem()));
-    JsonParser json = new JsonParser();
-    json.setOutputStyle(OutputStyle.PRETTY);
+    ct.request = "{\"hierarchical\" : "+(heirarchical ? "true" : "false")+", \"valueSet\" :"+vsd.json+"}\r\n";
+    ct.key = makeKey(heirarchical ? "true" : "false", vsd.digest, "");
+    return ct;
+  }
+
+  /**
+   * The value set part of a cache key is the expensive part, so the composed essence and its digest are kept on 
+   * the value set, and reused until the value set is cached in the context again. Code that changes a value set 
+   * in place, without caching it again, needs to call invalidateEssenceDigest()
+   */
+  private class EssenceDigest {
+    private String json;
+    private String digest;
+  }
+
+  private EssenceDigest getVSEssenceDigest(ValueSet vs) {
+    if (vs == null) {
+      EssenceDigest res = new EssenceDigest();
+      res.json = "null";
+      res.digest = digest("null");
+      return res;
+    }
+    synchronized (vs) {
+      Object o = vs.getUserData(USER_DATA_ESSENCE_DIGEST);
+      if (o instanceof EssenceDigest)
+        return (EssenceDigest) o;
+    }
+    EssenceDigest res = new EssenceDigest();
+    res.json = composeCompact(getVSEssense(vs));
+    res.digest = digest(normalise(res.json));
+    synchronized (vs) {
+      vs.setUserData(USER_DATA_ESSENCE_DIGEST, res);
+    }
+    return res;
+  }
+
+  public static void invalidateEssenceDigest(ValueSet vs) {
+    synchronized (vs) {
+      vs.clearUserData(USER_DATA_ESSENCE_DIGEST);
+    }
+  }
+
+  /**
+   * there's only a handful of different sets of options in use, so their normalised form is worth keeping
+   */
+  private String normaliseOptions(String oj) {
+    if (oj == null)
+      return "";
+    String res = normalisedOptions.get(oj);
+    if (res == null) {
+      res = normalise("{"+oj+"}");
+      normalisedOptions.put(oj, res);
+    }
+    return res;
+  }
+
+  private String composeCompact(DataType type, String name) {
     try {
-      ct.request = "{\"hierarchical\" : "+(heirarchical ? "true" : "false")+", \"valueSet\" :"+json.composeString(vsc)+"}\r\n";
+      JsonParser json = new JsonParser();
+      json.setOutputStyle(OutputStyle.NORMAL);
+      return json.composeString(type, name);
     } catch (IOException e) {
       throw new Error(e);
     }
-    ct.key = String.valueOf(hashNWS(ct.request));
-    return ct;
+  }
+
+  private String composeCompact(ValueSet vs) {
+    try {
+      JsonParser json = new JsonParser();
+      json.setOutputStyle(OutputStyle.NORMAL);
+      return json.composeString(vs);
+    } catch (IOException e) {
+      throw new Error(e);
+    }
+  }
+
+  /**
+   * The key is a SHA-256 digest over a canonical form of the request, so it doesn't depend on the way 
+   * the request happens to be formatted in the cache file, and two different requests won't share a key 
+   */
+  private String makeKey(String code, String vsDigest, String options) {
+    return digest(code+"|"+vsDigest+"|"+options);
+  }
+
+  /**
+   * rebuild the key for a request loaded from a cache file (which might have been written in any format)
+   */
+  private String keyForRequest(String request) {
+    JsonObject o = (JsonObject) new com.google.gson.JsonParser().parse(request);
+    String vsDigest = digest(o.get("valueSet").toString());
+    if (o.has("hierarchical")) 
+      return makeKey(o.get("hierarchical").getAsString(), vsDigest, "");
+    JsonObject opts = new JsonObject();
+    for (Entry<String, JsonElement> p : o.entrySet()) {
+      if (!p.getKey().equals("code") && !p.getKey().equals("valueSet"))
+        opts.add(p.getKey(), p.getValue());
+    }
+    return makeKey(composeCode(o.getAsJsonObject("code")), vsDigest, opts.entrySet().isEmpty() ? "" : opts.toString());
+  }
+
+  /**
+   * the code part of the key is the code as this class composes it, so a request loaded from a file is 
+   * parsed and composed again, rather than normalising every code that is looked up
+   */
+  private String composeCode(JsonObject code) {
+    try {
+      if (code.has("coding") || code.has("text"))
+        return composeCompact(new JsonParser().parseType(code.toString(), "CodeableConcept"), "codeableConcept");
+      else
+        return composeCompact(new JsonParser().parseType(code.toString(), "Coding"), "code");
+    } catch (IOException e) {
+      throw new FHIRException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * canonical compact form of a JSON fragment: the same content always gives the same text, however it was formatted
+   */
+  private String normalise(String json) {
+    return new com.google.gson.JsonParser().parse(json).toString();
+  }
+
+  private String digest(String s) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      byte[] hash = md.digest(s.getBytes(StandardCharsets.UTF_8));
+      StringBuilder b = new StringBuilder();
+      for (byte h : hash) {
+        b.append(Character.forDigit((h >> 4) & 0xF, 16));
+        b.append(Character.forDigit(h & 0xF, 16));
+      }
+      return b.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new Error(e);
+    }
   }
 
   private String getNameForSystem(String system) {
@@ -217,71 +378,130 @@ public class TerminologyCache {
     if (nc == null) {
       nc = new NamedCache();
       nc.name = cacheToken.name;
-      caches.put(nc.name, nc);
+      NamedCache existing = caches.putIfAbsent(nc.name, nc);
+      if (existing != null)
+        nc = existing;
     }
     return nc;
   }
   
   public ValueSetExpansionOutcome getExpansion(CacheToken cacheToken) {
-    synchronized (lock) {
-      NamedCache nc = getNamedCache(cacheToken);
-      CacheEntry e = nc.map.get(cacheToken.key);
-      if (e == null)
-        return null;
-      else
-        return e.e;
+    NamedCache nc = getNamedCache(cacheToken);
+    CacheEntry e = nc.map.get(cacheToken.key);
+    if (e == null || e.e == null) {
+      misses.incrementAndGet();
+      return null;
+    } else {
+      hits.incrementAndGet();
+      return e.e;
     }
   }
 
   public void cacheExpansion(CacheToken cacheToken, ValueSetExpansionOutcome res, boolean persistent) {
-    synchronized (lock) {      
-      NamedCache nc = getNamedCache(cacheToken);
-      CacheEntry e = new CacheEntry();
-      e.request = cacheToken.request;
-      e.persistent = persistent;
-      e.e = res;
-      store(cacheToken, persistent, nc, e);
-    }    
+    NamedCache nc = getNamedCache(cacheToken);
+    CacheEntry e = new CacheEntry();
+    e.request = cacheToken.request;
+    e.persistent = persistent;
+    e.e = res;
+    e.weight = 1 + (res.getValueset() == null ? 0 : res.getValueset().getExpansion().getContains().size());
+    store(cacheToken, persistent, nc, e);
   }
 
   public void store(CacheToken cacheToken, boolean persistent, NamedCache nc, CacheEntry e) {
-    boolean n = nc.map.containsKey(cacheToken.key);
-    nc.map.put(cacheToken.key, e);
     if (persistent) {
-      if (n) {
-        for (int i = nc.list.size()- 1; i>= 0; i--) {
-          if (nc.list.get(i).request.equals(e.request)) {
-            nc.list.remove(i);
+      synchronized (lock) {
+        boolean n = nc.map.containsKey(cacheToken.key);
+        nc.map.put(cacheToken.key, e);
+        synchronized (nc) { // the list is also read by background compaction
+          if (n) {
+            for (int i = nc.list.size()- 1; i>= 0; i--) {
+              if (nc.list.get(i).request.equals(e.request)) {
+                nc.list.remove(i);
+              }
+            }
           }
+          nc.list.add(e);
         }
+        append(nc, e);
       }
-      nc.list.add(e);
-      save(nc);  
+    } else {
+      nc.map.put(cacheToken.key, e);
+      TransientEntry te = new TransientEntry();
+      te.cache = nc;
+      te.key = cacheToken.key;
+      te.entry = e;
+      transients.add(te);
+      if (transientWeight.addAndGet(e.weight) > maxTransientWeight)
+        evict();
+    }
+  }
+
+  /**
+   * drop the oldest temporary entries until the total weight is back under the limit
+   */
+  private void evict() {
+    while (transientWeight.get() > maxTransientWeight) {
+      TransientEntry te = transients.poll();
+      if (te == null)
+        return;
+      transientWeight.addAndGet(-te.entry.weight);
+      if (te.cache.map.remove(te.key, te.entry)) 
+        evictions.incrementAndGet();
     }
   }
 
   public ValidationResult getValidation(CacheToken cacheToken) {
-    synchronized (lock) {
-      NamedCache nc = getNamedCache(cacheToken);
-      CacheEntry e = nc.map.get(cacheToken.key);
-      if (e == null)
-        return null;
-      else
-        return e.v;
+    NamedCache nc = getNamedCache(cacheToken);
+    CacheEntry e = nc.map.get(cacheToken.key);
+    if (e == null || e.v == null) {
+      misses.incrementAndGet();
+      return null;
+    } else {
+      hits.incrementAndGet();
+      return e.v;
     }
   }
 
   public void cacheValidation(CacheToken cacheToken, ValidationResult res, boolean persistent) {
-    synchronized (lock) {      
-      NamedCache nc = getNamedCache(cacheToken);
-      CacheEntry e = new CacheEntry();
-      e.request = cacheToken.request;
-      e.persistent = persistent;
-      e.v = res;
-      store(cacheToken, persistent, nc, e);
-    }    
+    NamedCache nc = getNamedCache(cacheToken);
+    CacheEntry e = new CacheEntry();
+    e.request = cacheToken.request;
+    e.persistent = persistent;
+    e.v = res;
+    e.weight = 1;
+    store(cacheToken, persistent, nc, e);
+  }
+
+  public long getMaxTransientWeight() {
+    return maxTransientWeight;
+  }
+
+  /**
+   * @param maxTransientWeight the limit on the total weight of the temporary entries. An expansion weighs 1 + the 
+   *   number of codes it contains, and a validation result weighs 1
+   */
+  public void setMaxTransientWeight(long maxTransientWeight) {
+    this.maxTransientWeight = maxTransientWeight;
+    evict();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
   }
 
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public String getStatistics() {
+    long h = hits.get();
+    long m = misses.get();
+    return "hits: "+h+", misses: "+m+(h+m == 0 ? "" : " ("+((h * 100) / (h+m))+"% hit rate)")+", evictions: "+evictions.get()+", temporary weight: "+transientWeight.get()+"/"+maxTransientWeight;
+  }
   
   // persistence
   
@@ -289,35 +509,112 @@ public class TerminologyCache {
     
   }
   
-  private void save(NamedCache nc) {
+  private String journalEntry(CacheEntry ce) throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append(ce.request.trim());
+    b.append(BREAK+"\r\n");
+    if (ce.e != null) {
+      b.append("e: {\r\n");
+      if (ce.e.getValueset() != null) {
+        JsonParser json = new JsonParser();
+        json.setOutputStyle(OutputStyle.PRETTY);
+        b.append("  \"valueSet\" : "+json.composeString(ce.e.getValueset()).trim()+",\r\n");
+      }
+      b.append("  \"error\" : \""+Utilities.escapeJson(ce.e.getError()).trim()+"\"\r\n}\r\n");
+    } else {
+      b.append("v: {\r\n");
+      b.append("  \"display\" : \""+Utilities.escapeJson(ce.v.getDisplay()).trim()+"\",\r\n");
+      b.append("  \"severity\" : "+(ce.v.getSeverity() == null ? "null" : "\""+ce.v.getSeverity().toCode().trim()+"\"")+",\r\n");
+      b.append("  \"error\" : \""+Utilities.escapeJson(ce.v.getMessage()).trim()+"\"\r\n}\r\n");
+    }
+    b.append(ENTRY_MARKER+"\r\n");
+    return b.toString();
+  }
+
+  /**
+   * add a single entry to the end of the cache file, instead of rewriting the whole file
+   */
+  private void append(NamedCache nc, CacheEntry ce) {
     if (folder == null)
       return;
-    
+
     try {
-      OutputStreamWriter sw = new OutputStreamWriter(new FileOutputStream(Utilities.path(folder, nc.name+".cache")), "UTF-8");
-      sw.write(ENTRY_MARKER+"\r\n");
-      JsonParser json = new JsonParser();
-      json.setOutputStyle(OutputStyle.PRETTY);
-      for (CacheEntry ce : nc.list) {
-        sw.write(ce.request.trim());
-        sw.write(BREAK+"\r\n");
-        if (ce.e != null) {
-          sw.write("e: {\r\n");
-          if (ce.e.getValueset() != null)
-            sw.write("  \"valueSet\" : "+json.composeString(ce.e.getValueset()).trim()+",\r\n");
-          sw.write("  \"error\" : \""+Utilities.escapeJson(ce.e.getError()).trim()+"\"\r\n}\r\n");
-        } else {
-          sw.write("v: {\r\n");
-          sw.write("  \"display\" : \""+Utilities.escapeJson(ce.v.getDisplay()).trim()+"\",\r\n");
-          sw.write("  \"severity\" : "+(ce.v.getSeverity() == null ? "null" : "\""+ce.v.getSeverity().toCode().trim()+"\"")+",\r\n");
-          sw.write("  \"error\" : \""+Utilities.escapeJson(ce.v.getMessage()).trim()+"\"\r\n}\r\n");
+      ce.journal = journalEntry(ce);
+      synchronized (nc) {
+        File f = new File(Utilities.path(folder, nc.name+".cache"));
+        boolean exists = f.exists();
+        OutputStreamWriter sw = new OutputStreamWriter(new FileOutputStream(f, true), "UTF-8");
+        try {
+          if (!exists)
+            sw.write(ENTRY_MARKER+"\r\n");
+          sw.write(ce.journal);
+        } finally {
+          sw.close();
         }
-        sw.write(ENTRY_MARKER+"\r\n");
-      }      
-      sw.close();
+        nc.journalled++;
+      }
     } catch (Exception e) {
       System.out.println("error saving "+nc.name+": "+e.getMessage());
     }
+    if (nc.journalled - nc.list.size() > Math.max(COMPACTION_MIN_GARBAGE, nc.list.size()))
+      compactInBackground(nc);
+  }
+
+  private void compactInBackground(final NamedCache nc) {
+    synchronized (nc) {
+      if (nc.compacting)
+        return;
+      nc.compacting = true;
+    }
+    Thread t = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          save(nc);
+        } finally {
+          synchronized (nc) {
+            nc.compacting = false;
+          }
+        }
+      }
+    }, "Terminology Cache Compaction ("+nc.name+")");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * rewrite the cache file so it only contains the current entries. The new content is written to 
+   * a temporary file which then replaces the cache file, so a crash part way through leaves the old file intact
+   */
+  private void save(NamedCache nc) {
+    if (folder == null)
+      return;
+    
+    synchronized (nc) {
+      try {
+        File f = new File(Utilities.path(folder, nc.name+".cache"));
+        File tmp = new File(Utilities.path(folder, nc.name+".cache.tmp"));
+        OutputStreamWriter sw = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+          sw.write(ENTRY_MARKER+"\r\n");
+          for (CacheEntry ce : nc.list) {
+            if (ce.journal == null)
+              ce.journal = journalEntry(ce);
+            sw.write(ce.journal);
+          }
+        } finally {
+          sw.close();
+        }
+        try {
+          Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        nc.journalled = nc.list.size();
+      } catch (Exception e) {
+        System.out.println("error saving "+nc.name+": "+e.getMessage());
+      }
+    }
   }
 
   private void load() throws FHIRException {
@@ -328,45 +625,86 @@ public class TerminologyCache {
           NamedCache nc = new NamedCache();
           nc.name = title;
           caches.put(title, nc);
-          String src = TextFile.fileToString(Utilities.path(folder, fn));
-          if (src.startsWith("?"))
-            src = src.substring(1);
-          int i = src.indexOf(ENTRY_MARKER); 
-          while (i > -1) {
-            String s = src.substring(0, i);
-            src = src.substring(i+ENTRY_MARKER.length()+1);
-            i = src.indexOf(ENTRY_MARKER);
-            if (!Utilities.noString(s)) {
-              int j = s.indexOf(BREAK);
-              String q = s.substring(0, j);
-              String p = s.substring(j+BREAK.length()+1).trim();
-              CacheEntry ce = new CacheEntry();
-              ce.persistent = true;
-              ce.request = q;
-              boolean e = p.charAt(0) == 'e';
-              p = p.substring(3);
-              JsonObject o = (JsonObject) new com.google.gson.JsonParser().parse(p);
-              String error = loadJS(o.get("error"));
-              if (e) {
-                if (o.has("valueSet"))
-                  ce.e = new ValueSetExpansionOutcome((ValueSet) new JsonParser().parse(o.getAsJsonObject("valueSet")), error, TerminologyServiceErrorClass.UNKNOWN);
-                else
-                  ce.e = new ValueSetExpansionOutcome(error, TerminologyServiceErrorClass.UNKNOWN);
-              } else {
-                IssueSeverity severity = o.get("severity") instanceof JsonNull ? null :  IssueSeverity.fromCode(o.get("severity").getAsString());
-                String display = loadJS(o.get("display"));
-                ce.v = new ValidationResult(severity, error, new ConceptDefinitionComponent().setDisplay(display));
-              }
-              nc.map.put(String.valueOf(hashNWS(ce.request)), ce);
-              nc.list.add(ce);
-            }
-          }        
+          if (loadJournal(nc, new File(Utilities.path(folder, fn))))
+            save(nc);
         } catch (Exception e) {
           throw new FHIRException("Error loading "+fn+": "+e.getMessage(), e);
         }
       }
     }
   }
+
+  /**
+   * read the cache file an entry at a time. Returns true if the file needs to be rewritten, because 
+   * it has a partial or unreadable entry (e.g. the process was killed while appending to it)
+   */
+  private boolean loadJournal(NamedCache nc, File f) throws IOException {
+    boolean damaged = false;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+    try {
+      StringBuilder b = new StringBuilder();
+      boolean first = true;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (first) {
+          first = false;
+          if (line.startsWith("?") || line.startsWith("\uFEFF"))
+            line = line.substring(1);
+        }
+        if (line.equals(ENTRY_MARKER)) {
+          String s = b.toString();
+          b.setLength(0);
+          if (!Utilities.noString(s)) {
+            nc.journalled++;
+            try {
+              CacheEntry ce = loadEntry(s);
+              String key = keyForRequest(ce.request);
+              CacheEntry existing = nc.map.put(key, ce);
+              if (existing != null)
+                nc.list.remove(existing);
+              nc.list.add(ce);
+            } catch (Exception e) {
+              System.out.println("ignoring unreadable entry in "+f.getName()+": "+e.getMessage());
+              damaged = true;
+            }
+          }
+        } else {
+          b.append(line);
+          b.append("\r\n");
+        }
+      }
+      if (!Utilities.noString(b.toString()))
+        damaged = true;
+    } finally {
+      reader.close();
+    }
+    return damaged;
+  }
+
+  private CacheEntry loadEntry(String s) throws IOException {
+    int j = s.indexOf(BREAK);
+    String q = s.substring(0, j);
+    String p = s.substring(j+BREAK.length()).trim();
+    CacheEntry ce = new CacheEntry();
+    ce.persistent = true;
+    ce.request = q;
+    ce.journal = s + ENTRY_MARKER+"\r\n";
+    boolean e = p.charAt(0) == 'e';
+    p = p.substring(3);
+    JsonObject o = (JsonObject) new com.google.gson.JsonParser().parse(p);
+    String error = loadJS(o.get("error"));
+    if (e) {
+      if (o.has("valueSet"))
+        ce.e = new ValueSetExpansionOutcome((ValueSet) new JsonParser().parse(o.getAsJsonObject("valueSet")), error, TerminologyServiceErrorClass.UNKNOWN);
+      else
+        ce.e = new ValueSetExpansionOutcome(error, TerminologyServiceErrorClass.UNKNOWN);
+    } else {
+      IssueSeverity severity = o.get("severity") instanceof JsonNull ? null :  IssueSeverity.fromCode(o.get("severity").getAsString());
+      String display = loadJS(o.get("display"));
+      ce.v = new ValidationResult(severity, error, new ConceptDefinitionComponent().setDisplay(display));
+    }
+    return ce;
+  }
   
   private String loadJS(JsonElement e) {
     if (e == null)
@@ -379,10 +717,6 @@ public class TerminologyCache {
     return s;
   }
 
-  private String hashNWS(String s) {
-    return String.valueOf(s.replace("\r", "").replace("\n", "").replace(" ", "").hashCode());
-  }
-
   // management
   
   public TerminologyCache copy() {
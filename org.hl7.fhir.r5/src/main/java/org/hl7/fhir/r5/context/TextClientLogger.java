@@ -30,11 +30,15 @@ import java.util.List;
 import org.hl7.fhir.r5.utils.client.ToolingClientLogger;
 import org.hl7.fhir.utilities.Utilities;
 
+/**
+ * Can be shared by clients on several threads. The requests are numbered in the order they are made, and getLastId() is
+ * the number of the last request made on the calling thread
+ */
 public class TextClientLogger implements ToolingClientLogger {
 
   private PrintStream file;
   private int id = 0;
-  private String lastId;
+  private ThreadLocal<String> lastId = new ThreadLocal<String>();
   
   public TextClientLogger(String log) {
     if (log != null) {
@@ -46,12 +50,12 @@ public class TextClientLogger implements ToolingClientLogger {
   }
 
   @Override
-  public void logRequest(String method, String url, List<String> headers, byte[] body) {
+  public synchronized void logRequest(String method, String url, List<String> headers, byte[] body) {
     if (file == null)
       return;
     id++;
-    lastId = Integer.toString(id);
-    file.println("\r\n--- "+lastId+" -----------------\r\nRequest: \r\n");
+    lastId.set(Integer.toString(id));
+    file.println("\r\n--- "+lastId.get()+" -----------------\r\nRequest: \r\n");
     file.println(method+" "+url+" HTTP/1.0");
     for (String s : headers)  
       file.println(Utilities.escapeXml(s));
@@ -65,10 +69,10 @@ public class TextClientLogger implements ToolingClientLogger {
   }
 
   @Override
-  public void logResponse(String outcome, List<String> headers, byte[] body) {
+  public synchronized void logResponse(String outcome, List<String> headers, byte[] body) {
     if (file == null)
       return;
-    file.println("\r\n\r\nResponse: \r\n");
+    file.println("\r\n\r\nResponse to "+lastId.get()+": \r\n");
     file.println(outcome);
     for (String s : headers)  
       file.println(Utilities.escapeXml(s));
@@ -82,11 +86,11 @@ public class TextClientLogger implements ToolingClientLogger {
   }
 
   public String getLastId() {
-    return lastId;
+    return lastId.get();
   }
 
   public void clearLastId() {
-    lastId = null;    
+    lastId.remove();
   }
 
 }
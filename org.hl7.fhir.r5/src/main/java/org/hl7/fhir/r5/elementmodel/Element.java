@@ -299,6 +299,27 @@ public class Element extends Base {
   	return result.toArray(new Base[result.size()]);
 	}
 
+	@Override
+	public void listChildrenByName(String name, List<Base> result) throws FHIRException {
+	  if (name.equals("*") || (isPrimitive() && (name.hashCode() == "value".hashCode()) && !Utilities.noString(value))) {
+	    super.listChildrenByName(name, result);
+	    return;
+	  }
+	  if (children != null) {
+	    String choiceName = null;
+	    for (Element child : children) {
+	      if (child.getName().equals(name))
+	        result.add(child);
+	      if (child.getName().startsWith(name) && child.getProperty().isChoice()) {
+	        if (choiceName == null)
+	          choiceName = name+"[x]";
+	        if (child.getProperty().getName().equals(choiceName))
+	          result.add(child);
+	      }
+	    }
+	  }
+	}
+
 	@Override
 	protected void listChildren(List<org.hl7.fhir.r5.model.Property> childProps) {
 	  if (children != null) {
@@ -43,7 +43,10 @@ import ca.uhn.fhir.model.api.IElement;
 public abstract class Base implements Serializable, IBase, IElement {
 
   /**
-   * User appended data items - allow users to add extra information to the class
+   * User appended data items - allow users to add extra information to the class. 
+   * 
+   * Access is synchronized on the object, because definitions (and their user data) are shared 
+   * by validators running on different threads. Synchronize on the object to make several calls atomic
    */
 private Map<String, Object> userData; 
 
@@ -58,24 +61,24 @@ private Map<String, Object> userData;
   private List<String> formatCommentsPost; 
    
   
-  public Object getUserData(String name) {
+  public synchronized Object getUserData(String name) {
     if (userData == null)
       return null;
     return userData.get(name);
   }
   
-  public void setUserData(String name, Object value) {
+  public synchronized void setUserData(String name, Object value) {
     if (userData == null)
       userData = new HashMap<String, Object>();
     userData.put(name, value);
   }
 
-  public void clearUserData(String name) {
+  public synchronized void clearUserData(String name) {
     if (userData != null)
       userData.remove(name);
   }
   
-  public void setUserDataINN(String name, Object value) {
+  public synchronized void setUserDataINN(String name, Object value) {
     if (value == null)
       return;
     
@@ -84,7 +87,7 @@ private Map<String, Object> userData;
     userData.put(name, value);
   }
 
-  public boolean hasUserData(String name) {
+  public synchronized boolean hasUserData(String name) {
     if (userData == null)
       return false;
     else
@@ -100,7 +103,7 @@ private Map<String, Object> userData;
     return ud.toString();
   }
 
-  public int getUserInt(String name) {
+  public synchronized int getUserInt(String name) {
     if (!hasUserData(name))
       return 0;
     return (Integer) getUserData(name);
@@ -215,6 +218,18 @@ private Map<String, Object> userData;
     	return getProperty(name.hashCode(), name, checkValid);
   }
 
+  /**
+   * add the (non-null) children with the given name to result. This is the same as listChildrenByName(name, false), 
+   * but implementations that hold their children in a list can add them directly, without building an array first
+   */
+  public void listChildrenByName(String name, List<Base> result) throws FHIRException {
+    Base[] list = listChildrenByName(name, false);
+    if (list != null)
+      for (Base v : list)
+        if (v != null)
+          result.add(v);
+  }
+
 	public boolean isEmpty() {
 	  return true; // userData does not count
   }
@@ -334,8 +334,11 @@ public class ExpressionNode {
 	private SourceLocation end;
 	private SourceLocation opStart;
 	private SourceLocation opEnd;
+	// filled in by FHIRPathEngine.check(), unless the node is shared
 	private TypeDetails types;
 	private TypeDetails opTypes;
+	// set when the node is put in the ExpressionNodeCache, and so is shared by everyone who parses the same expression
+	private boolean shared;
 
 
 	public ExpressionNode(int uniqueId) {
@@ -637,6 +640,11 @@ public class ExpressionNode {
 		return Integer.toString(start.getLine())+", "+Integer.toString(start.getColumn());
 	}
 
+	/**
+	 * the types worked out for this node by the last FHIRPathEngine.check(). Shared nodes (from FHIRPathEngine.parse(String))
+	 * are never given types, since the same node is checked in different contexts; parse the expression with
+	 * FHIRPathEngine.parse(FHIRLexer) to get a node of your own
+	 */
 	public TypeDetails getTypes() {
 		return types;
 	}
@@ -652,5 +660,13 @@ public class ExpressionNode {
 	public void setOpTypes(TypeDetails opTypes) {
 		this.opTypes = opTypes;
 	}
+
+	public boolean isShared() {
+		return shared;
+	}
+
+	public void setShared(boolean shared) {
+		this.shared = shared;
+	}
 		
 }
@@ -23,8 +23,11 @@ package org.hl7.fhir.r5.terminologies;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import org.hl7.fhir.exceptions.FHIRException;
@@ -134,6 +137,159 @@ public class CodeSystemUtilities {
   }
 
 
+  /**
+   * An index of the concepts in a code system, so that codes can be found without walking the concept tree. 
+   * 
+   * The index is built the first time it's needed, and kept in the user data of the code system (see getIndex()). 
+   * The index notices if top level concepts are added or removed. After any other change to the concepts (adding 
+   * or removing concepts deeper in the tree, or changing codes), call invalidateIndex()
+   */
+  public static class CodeSystemIndex {
+    private List<ConceptDefinitionComponent> concepts;
+    private int count;
+    private Map<String, ConceptDefinitionComponent> codes = new HashMap<>();
+    private Map<String, ConceptDefinitionComponent> lowerCodes = new HashMap<>();
+    private Map<String, List<String>> parents = new HashMap<>();
+
+    private CodeSystemIndex(CodeSystem cs) {
+      concepts = cs.getConcept();
+      count = concepts.size();
+      index(null, concepts);
+    }
+
+    private void index(ConceptDefinitionComponent parent, List<ConceptDefinitionComponent> list) {
+      for (ConceptDefinitionComponent cc : list) {
+        String code = cc.getCode();
+        if (code != null) {
+          // the first concept found in a depth first walk of the tree wins, as it does when walking the tree
+          if (!codes.containsKey(code)) {
+            codes.put(code, cc);
+          }
+          String lower = code.toLowerCase(Locale.ENGLISH);
+          if (!lowerCodes.containsKey(lower)) {
+            lowerCodes.put(lower, cc);
+          }
+          if (parent != null && parent.getCode() != null) {
+            List<String> p = parents.get(code);
+            if (p == null) {
+              p = new ArrayList<>();
+              parents.put(code, p);
+            }
+            if (!p.contains(parent.getCode())) {
+              p.add(parent.getCode());
+            }
+          }
+        }
+        if (cc.hasConcept()) {
+          index(cc, cc.getConcept());
+        }
+      }
+    }
+
+    private boolean isCurrent(CodeSystem cs) {
+      return cs.getConcept() == concepts && concepts.size() == count;
+    }
+
+    public ConceptDefinitionComponent getConcept(String code) {
+      return code == null ? null : codes.get(code);
+    }
+
+    public ConceptDefinitionComponent getConcept(String code, boolean caseSensitive) {
+      if (code == null) {
+        return null;
+      } else if (caseSensitive) {
+        return codes.get(code);
+      } else {
+        return lowerCodes.get(code.toLowerCase(Locale.ENGLISH));
+      }
+    }
+
+    /**
+     * true if the concept is nested (at any depth) inside the concept for ancestor
+     */
+    public boolean isDescendantOf(String code, String ancestor) {
+      Set<String> done = new HashSet<>();
+      List<String> todo = new ArrayList<>();
+      todo.add(code);
+      while (!todo.isEmpty()) {
+        List<String> p = parents.get(todo.remove(todo.size()-1));
+        if (p != null) {
+          for (String s : p) {
+            if (s.equals(ancestor)) {
+              return true;
+            }
+            if (done.add(s)) {
+              todo.add(s);
+            }
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * the codes of the concepts that this concept is nested directly inside
+     */
+    public List<String> getParents(String code) {
+      List<String> p = parents.get(code);
+      return p == null ? new ArrayList<String>() : p;
+    }
+
+    public ConceptPropertyComponent getProperty(String code, String property) {
+      ConceptDefinitionComponent cc = getConcept(code);
+      return cc == null ? null : CodeSystemUtilities.getProperty(cc, property);
+    }
+
+    public int size() {
+      return codes.size();
+    }
+  }
+
+  private static final String USER_DATA_INDEX = "cs.concept.index";
+
+  /**
+   * get the concept index for the code system, building it if it doesn't exist, or the code system has changed
+   */
+  public static CodeSystemIndex getIndex(CodeSystem cs) {
+    synchronized (cs) {
+      CodeSystemIndex res = (CodeSystemIndex) cs.getUserData(USER_DATA_INDEX);
+      if (res == null || !res.isCurrent(cs)) {
+        res = new CodeSystemIndex(cs);
+        cs.setUserData(USER_DATA_INDEX, res);
+      }
+      return res;
+    }
+  }
+
+  /**
+   * call this after changing the concepts in a code system, so that the index is built again
+   */
+  public static void invalidateIndex(CodeSystem cs) {
+    synchronized (cs) {
+      cs.clearUserData(USER_DATA_INDEX);
+    }
+  }
+
+  /**
+   * find the concept with the code in the code system (anywhere in the hierarchy)
+   */
+  public static ConceptDefinitionComponent findCode(CodeSystem cs, String code) {
+    return findCode(cs, code, true);
+  }
+
+  public static ConceptDefinitionComponent findCode(CodeSystem cs, String code, boolean caseSensitive) {
+    if (code == null) {
+      return null;
+    }
+    ConceptDefinitionComponent res = getIndex(cs).getConcept(code, caseSensitive);
+    if (res != null && (caseSensitive ? !code.equals(res.getCode()) : !code.equalsIgnoreCase(res.getCode()))) {
+      // the code has been changed since the index was built
+      invalidateIndex(cs);
+      res = getIndex(cs).getConcept(code, caseSensitive);
+    }
+    return res;
+  }
+
   public static boolean isNotSelectable(CodeSystem cs, ConceptDefinitionComponent def) {
     for (ConceptPropertyComponent p : def.getProperty()) {
       if (p.getCode().equals("notSelectable") && p.hasValue() && p.getValue() instanceof BooleanType) 
@@ -228,7 +384,7 @@ public class CodeSystemUtilities {
   }
   
   public static boolean isInactive(CodeSystem cs, String code) throws FHIRException {
-    ConceptDefinitionComponent def = findCode(cs.getConcept(), code);
+    ConceptDefinitionComponent def = findCode(cs, code);
     if (def == null)
       return true;
     return isInactive(cs, def);
@@ -243,18 +399,8 @@ public class CodeSystemUtilities {
   }
 
   public static String getCodeDefinition(CodeSystem cs, String code) {
-    return getCodeDefinition(cs.getConcept(), code);
-  }
-
-  private static String getCodeDefinition(List<ConceptDefinitionComponent> list, String code) {
-    for (ConceptDefinitionComponent c : list) {
-      if (c.hasCode() &&  c.getCode().equals(code))
-        return c.getDefinition();
-      String s = getCodeDefinition(c.getConcept(), code);
-      if (s != null)
-        return s;
-    }
-    return null;
+    ConceptDefinitionComponent c = findCode(cs, code);
+    return c == null ? null : c.getDefinition();
   }
 
   public static CodeSystem makeShareable(CodeSystem cs) {
@@ -289,17 +435,6 @@ public class CodeSystemUtilities {
     return null;
   }
 
-  private static ConceptDefinitionComponent findCode(List<ConceptDefinitionComponent> list, String code) {
-    for (ConceptDefinitionComponent c : list) {
-      if (c.getCode().equals(code))
-        return c;
-      ConceptDefinitionComponent s = findCode(c.getConcept(), code);
-      if (s != null)
-        return s;
-    }
-    return null;
-  }
-
   public static void markStatus(CodeSystem cs, String wg, StandardsStatus status, String pckage, String fmm, String normativeVersion) throws FHIRException {
     if (wg != null) {
       if (!ToolingExtensions.hasExtension(cs, ToolingExtensions.EXT_WORKGROUP) || 
@@ -373,47 +508,11 @@ public class CodeSystemUtilities {
   }
 
   public static boolean hasCode(CodeSystem cs, String code) {
-    for (ConceptDefinitionComponent cc : cs.getConcept()) {
-      if (hasCode(cc, code)) {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  private static boolean hasCode(ConceptDefinitionComponent cc, String code) {
-    if (code.equals(cc.getCode())) {
-      return true;
-    }
-    for (ConceptDefinitionComponent c : cc.getConcept()) {
-      if (hasCode(c, code)) {
-        return true;
-      }
-    }
-    return false;
+    return findCode(cs, code) != null;
   }
 
   public static ConceptDefinitionComponent getCode(CodeSystem cs, String code) {
-    for (ConceptDefinitionComponent cc : cs.getConcept()) {
-      ConceptDefinitionComponent cd = getCode(cc, code);
-      if (cd != null) {
-        return cd;
-      }
-    }
-    return null;
-  }
-
-  private static ConceptDefinitionComponent getCode(ConceptDefinitionComponent cc, String code) {
-    if (code.equals(cc.getCode())) {
-      return cc;
-    }
-    for (ConceptDefinitionComponent c : cc.getConcept()) {
-      ConceptDefinitionComponent cd = getCode(c, code);
-      if (cd != null) {
-        return cd;
-      }
-    }
-    return null;
+    return findCode(cs, code);
   }
 
 }
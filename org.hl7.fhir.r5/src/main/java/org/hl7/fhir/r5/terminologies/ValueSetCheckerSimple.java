@@ -164,7 +164,7 @@ public class ValueSetCheckerSimple implements ValueSetChecker {
   }
 
   private ValidationResult validateCode(Coding code, CodeSystem cs) {
-    ConceptDefinitionComponent cc = findCodeInConcept(cs.getConcept(), code.getCode());
+    ConceptDefinitionComponent cc = code.getCode() == null ? null : CodeSystemUtilities.findCode(cs, code.getCode());
     if (cc == null)
       return new ValidationResult(IssueSeverity.ERROR, context.formatMessage(I18nConstants.UNKNOWN_CODE__IN_, gen(code), cs.getUrl()));
     if (code.getDisplay() == null)
@@ -270,17 +270,6 @@ public class ValueSetCheckerSimple implements ValueSetChecker {
     }
     return true;
   }
-  private ConceptDefinitionComponent findCodeInConcept(List<ConceptDefinitionComponent> concept, String code) {
-    for (ConceptDefinitionComponent cc : concept) {
-      if (code.equals(cc.getCode()))
-        return cc;
-      ConceptDefinitionComponent c = findCodeInConcept(cc.getConcept(), code);
-      if (c != null)
-        return c;
-    }
-    return null;
-  }
-
   
   private String systemForCodeInValueSet(String code) {
     String sys = null;
@@ -308,7 +297,7 @@ public class ValueSetCheckerSimple implements ValueSetChecker {
             }
           }
         } else {
-          ConceptDefinitionComponent cc = findCodeInConcept(cs.getConcept(), code);
+          ConceptDefinitionComponent cc = CodeSystemUtilities.findCode(cs, code);
           if (cc != null) {
             if (sys == null)
               sys = vsi.getSystem();
@@ -414,14 +403,17 @@ public class ValueSetCheckerSimple implements ValueSetChecker {
   private boolean codeInConceptIsAFilter(CodeSystem cs, ConceptSetFilterComponent f, String code) {
     if (code.equals(f.getProperty()))
       return true;
-   ConceptDefinitionComponent cc = findCodeInConcept(cs.getConcept(), f.getValue());
-   if (cc == null)
-     return false;
-   cc = findCodeInConcept(cc.getConcept(), code);
-   return cc != null;
+    ConceptDefinitionComponent cc = CodeSystemUtilities.findCode(cs, f.getValue());
+    if (cc == null || CodeSystemUtilities.findCode(cs, code) == null)
+      return false;
+    return CodeSystemUtilities.getIndex(cs).isDescendantOf(code, cc.getCode());
   }
 
   public boolean validateCodeInConceptList(String code, CodeSystem def, List<ConceptDefinitionComponent> list) {
+    if (list == def.getConcept()) {
+      // the whole code system, so use the index
+      return CodeSystemUtilities.findCode(def, code, def.getCaseSensitive()) != null;
+    }
     if (def.getCaseSensitive()) {
       for (ConceptDefinitionComponent cc : list) {
         if (cc.getCode().equals(code)) 
@@ -0,0 +1,147 @@
+package org.hl7.fhir.r5.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r5.model.ExpressionNode;
+import org.hl7.fhir.r5.model.ExpressionNode.Function;
+
+/**
+ * A shared cache of parsed FHIRPath expressions, used by FHIRPathEngine.parse(), so that all the engines
+ * share the work of parsing the same expressions (invariants, discriminators, map rules, liquid
+ * statements etc) over and over.
+ *
+ * The key is the expression text plus the name used when parsing it (which ends up in the error messages).
+ * Expressions that use custom functions are not cached, since whether they parse depends on the engine's
+ * host services.
+ *
+ * The parsed nodes are shared between all the users of the cache, so they must not be changed after
+ * they are parsed. They are marked as shared when they are cached (see ExpressionNode.isShared()), so
+ * FHIRPathEngine.check() doesn't record its types on them.
+ *
+ * The cache is bounded, and kept in two generations. New expressions go in the current generation; when
+ * that is full, it becomes the old generation, and the previous old one is dropped. Expressions found in
+ * the old generation are moved back to the current one, so the ones in steady use (e.g. the invariants
+ * in the profiles the validator is using) stay parsed while one-off expressions age out. It's safe to
+ * use from multiple threads
+ */
+public class ExpressionNodeCache {
+
+  /**
+   * the size of each generation
+   */
+  public static final int MAX_SIZE = 5000;
+
+  private static volatile Map<String, ExpressionNode> cache = new ConcurrentHashMap<String, ExpressionNode>();
+  private static volatile Map<String, ExpressionNode> old = new ConcurrentHashMap<String, ExpressionNode>();
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+
+  /**
+   * the parsed expression for this path, or null if it hasn't been parsed yet
+   */
+  public static ExpressionNode get(String path, String name) {
+    String key = key(path, name);
+    ExpressionNode node = cache.get(key);
+    if (node == null) {
+      node = old.get(key);
+      if (node != null) {
+        store(key, node);
+      }
+    }
+    if (node == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return node;
+  }
+
+  public static void put(String path, String name, ExpressionNode node) {
+    if (usesCustomFunctions(node)) {
+      return;
+    }
+    markShared(node);
+    store(key(path, name), node);
+  }
+
+  private static void markShared(ExpressionNode node) {
+    if (node == null) {
+      return;
+    }
+    node.setShared(true);
+    if (node.getParameters() != null) {
+      for (ExpressionNode p : node.getParameters()) {
+        markShared(p);
+      }
+    }
+    markShared(node.getInner());
+    markShared(node.getGroup());
+    markShared(node.getOpNext());
+  }
+
+  private static void store(String key, ExpressionNode node) {
+    if (cache.size() >= MAX_SIZE) {
+      synchronized (ExpressionNodeCache.class) {
+        if (cache.size() >= MAX_SIZE) {
+          old = cache;
+          cache = new ConcurrentHashMap<String, ExpressionNode>();
+        }
+      }
+    }
+    cache.put(key, node);
+  }
+
+  private static String key(String path, String name) {
+    return name == null ? path : name+"\u0000"+path;
+  }
+
+  private static boolean usesCustomFunctions(ExpressionNode node) {
+    if (node == null) {
+      return false;
+    }
+    if (node.getFunction() == Function.Custom) {
+      return true;
+    }
+    if (node.getParameters() != null) {
+      for (ExpressionNode p : node.getParameters()) {
+        if (usesCustomFunctions(p)) {
+          return true;
+        }
+      }
+    }
+    return usesCustomFunctions(node.getInner()) || usesCustomFunctions(node.getGroup()) || usesCustomFunctions(node.getOpNext());
+  }
+
+  /**
+   * the number of expressions in the current generation
+   */
+  public static int size() {
+    return cache.size();
+  }
+
+  public static long getHits() {
+    return hits.get();
+  }
+
+  public static long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * the proportion (0..1) of lookups that found an expression that was already parsed
+   */
+  public static double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+  public static synchronized void clear() {
+    cache = new ConcurrentHashMap<String, ExpressionNode>();
+    old = new ConcurrentHashMap<String, ExpressionNode>();
+    hits.set(0);
+    misses.set(0);
+  }
+}
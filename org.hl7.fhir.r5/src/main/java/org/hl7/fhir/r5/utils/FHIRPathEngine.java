@@ -19,12 +19,14 @@ import org.hl7.fhir.r5.model.StructureDefinition.TypeDerivationRule;
 import org.hl7.fhir.r5.model.TypeDetails.ProfiledType;
 import org.hl7.fhir.r5.utils.FHIRLexer.FHIRLexerException;
 import org.hl7.fhir.r5.utils.FHIRPathEngine.IEvaluationContext.FunctionDetails;
+import org.hl7.fhir.utilities.RegexCache;
 import org.hl7.fhir.utilities.TerminologyServiceOptions;
 import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.validation.ValidationOptions;
 
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.regex.Pattern;
 
 /*-
  * #%L
@@ -54,6 +56,23 @@ import java.util.*;
 public class FHIRPathEngine {
   private enum Equality { Null, True, False }
 
+  private static final Pattern TIME_PATTERN = Pattern.compile("T([01][0-9]|2[0-3]):[0-5][0-9]:([0-5][0-9]|60)(\\.[0-9]+)?(Z|(\\+|-)((0[0-9]|1[0-3]):[0-5][0-9]|14:00))?");
+
+  // values and lists that are shared between evaluations, so that evaluating doesn't create new objects 
+  // for the common results. Lists returned by execute() are never changed after they are returned, so 
+  // these can be passed around like any other result. See publish() for what the caller gets 
+  private static final BooleanType BOOLEAN_TRUE = (BooleanType) new BooleanType(true).noExtensions();
+  private static final BooleanType BOOLEAN_FALSE = (BooleanType) new BooleanType(false).noExtensions();
+  private static final IntegerType INTEGER_ZERO = new IntegerType(0);
+  private static final List<Base> EMPTY = Collections.emptyList();
+  private static final List<Base> TRUE_LIST = Collections.<Base>singletonList(BOOLEAN_TRUE);
+  private static final List<Base> FALSE_LIST = Collections.<Base>singletonList(BOOLEAN_FALSE);
+  private static final List<Base> ZERO_LIST = Collections.<Base>singletonList(INTEGER_ZERO);
+
+  // user data on the literal constants in parsed expressions (and the outcomes of operations on them 
+  // that are worked out when an expression is compiled). These are shared too, so publish() copies them
+  private static final String CONSTANT = "fhirpath.constant";
+
   private class FHIRConstant extends Base {
 
     private static final long serialVersionUID = -8933773658248269439L;
@@ -145,11 +164,55 @@ public class FHIRPathEngine {
     }
   }
 
+  /**
+   * The types defined in a context. Working these out means going through all the structure definitions, so 
+   * it's done once for each context (and again when its structures change), and shared by all the engines 
+   * that use the context. A registry is never changed once it's built
+   */
+  private static class TypeRegistry {
+    private int version;
+    private Set<String> primitiveTypes = new HashSet<String>();
+    private Map<String, StructureDefinition> allTypes = new HashMap<String, StructureDefinition>();
+
+    private TypeRegistry(IWorkerContext worker, int version) {
+      this.version = version;
+      for (StructureDefinition sd : worker.getStructures()) {
+        if (sd.getDerivation() == TypeDerivationRule.SPECIALIZATION && sd.getKind() != StructureDefinitionKind.LOGICAL)
+          allTypes.put(sd.getName(), sd);
+        if (sd.getDerivation() == TypeDerivationRule.SPECIALIZATION && sd.getKind() == StructureDefinitionKind.PRIMITIVETYPE) {
+          primitiveTypes.add(sd.getName());
+        }
+      }
+      primitiveTypes = Collections.unmodifiableSet(primitiveTypes);
+      allTypes = Collections.unmodifiableMap(allTypes);
+    }
+  }
+
+  private static final Map<IWorkerContext, TypeRegistry> registries = new WeakHashMap<IWorkerContext, TypeRegistry>();
+
+  private static TypeRegistry getTypeRegistry(IWorkerContext worker) {
+    int version = worker.getStructuresVersion();
+    synchronized (registries) {
+      TypeRegistry registry = registries.get(worker);
+      if (registry != null && registry.version == version)
+        return registry;
+    }
+    // built outside the lock - if two threads get here at the same time, they'll both build the same thing
+    TypeRegistry registry = new TypeRegistry(worker, version);
+    synchronized (registries) {
+      registries.put(worker, registry);
+    }
+    return registry;
+  }
+
+  // The engine can be shared between threads: nothing about an evaluation is kept in the 
+  // engine - it's all in the ExecutionContext - except for the log of the last evaluation, 
+  // which is kept for each thread. The settings (host services etc) should be set before 
+  // the engine is shared
   private IWorkerContext worker;
   private IEvaluationContext hostServices;
-  private StringBuilder log = new StringBuilder();
-  private Set<String> primitiveTypes = new HashSet<String>();
-  private Map<String, StructureDefinition> allTypes = new HashMap<String, StructureDefinition>();
+  private ThreadLocal<StringBuilder> lastLog = new ThreadLocal<StringBuilder>();
+  private volatile TypeRegistry types;
   private boolean legacyMode; // some R2 and R3 constraints assume that != is valid for emptty sets, so when running for R2/R3, this is set ot true  
   private ValidationOptions terminologyServiceOptions = new ValidationOptions();
   private ProfileUtilities profileUtilities;
@@ -251,13 +314,19 @@ public class FHIRPathEngine {
     super();
     this.worker = worker;
     profileUtilities = new ProfileUtilities(worker, null, null); 
-    for (StructureDefinition sd : worker.getStructures()) {
-      if (sd.getDerivation() == TypeDerivationRule.SPECIALIZATION && sd.getKind() != StructureDefinitionKind.LOGICAL)
-        allTypes.put(sd.getName(), sd);
-      if (sd.getDerivation() == TypeDerivationRule.SPECIALIZATION && sd.getKind() == StructureDefinitionKind.PRIMITIVETYPE) {
-        primitiveTypes.add(sd.getName());
-      }
+    types = getTypeRegistry(worker);
+  }
+
+  /**
+   * the types for the context, picking up any changes to the structure definitions since they were last looked at
+   */
+  private TypeRegistry types() {
+    TypeRegistry result = types;
+    if (result.version != worker.getStructuresVersion()) {
+      result = getTypeRegistry(worker);
+      types = result;
     }
+    return result;
   }
 
 
@@ -290,11 +359,7 @@ public class FHIRPathEngine {
 	 * @throws FHIRException 
    */
   protected void getChildrenByName(Base item, String name, List<Base> result) throws FHIRException {
-  	Base[] list = item.listChildrenByName(name, false);
-  	if (list != null)
-  		for (Base v : list)
-      if (v != null)
-        result.add(v);
+    item.listChildrenByName(name, result);
   }
 
   
@@ -321,14 +386,23 @@ public class FHIRPathEngine {
     return parse(path, null);
   }
   
+  /**
+   * Parse a path for later use using execute. The parsed expressions are shared through the ExpressionNodeCache,
+   * so the same path may return the same ExpressionNode - callers must not change it. For the same reason, check()
+   * doesn't record types on the nodes it returns; use parse(FHIRLexer) for a node that gets them
+   */
   public ExpressionNode parse(String path, String name) throws FHIRLexerException {
+    ExpressionNode result = ExpressionNodeCache.get(path, name);
+    if (result != null)
+      return result;
     FHIRLexer lexer = new FHIRLexer(path, name);
     if (lexer.done())
       throw lexer.error("Path cannot be empty");
-    ExpressionNode result = parseExpression(lexer, true);
+    result = parseExpression(lexer, true);
     if (!lexer.done())
       throw lexer.error("Premature ExpressionNode termination at unexpected token \""+lexer.getCurrent()+"\"");
     result.check();
+    ExpressionNodeCache.put(path, name, result);
     return result;    
   }
 
@@ -424,6 +498,13 @@ public class FHIRPathEngine {
   }
 
   public TypeDetails check(Object appContext, StructureDefinition sd, String context, ExpressionNode expr) throws FHIRLexerException, PathEngineException, DefinitionException {
+    return check(appContext, sd, context, expr, null);
+  }
+
+  /**
+   * as above, but also records the types that each node in the expression is applied to (for the optimiser)
+   */
+  private TypeDetails check(Object appContext, StructureDefinition sd, String context, ExpressionNode expr, Map<ExpressionNode, TypeDetails> focusTypes) throws FHIRLexerException, PathEngineException, DefinitionException {
     // if context is a path that refers to a type, do that conversion now 
     TypeDetails types; 
     if (!context.contains(".")) {
@@ -443,7 +524,9 @@ public class FHIRPathEngine {
       }
     }
 
-    return executeType(new ExecutionTypeContext(appContext, sd.getUrl(), types, types), types, expr, true);
+    ExecutionTypeContext ctxt = new ExecutionTypeContext(appContext, sd.getUrl(), types, types);
+    ctxt.focusTypes = focusTypes;
+    return executeType(ctxt, types, expr, true);
   }
 
   public TypeDetails check(Object appContext, StructureDefinition sd, ExpressionNode expr) throws FHIRLexerException, PathEngineException, DefinitionException {
@@ -490,11 +573,8 @@ public class FHIRPathEngine {
    * @
    */
 	public List<Base> evaluate(Base base, ExpressionNode ExpressionNode) throws FHIRException {
-    List<Base> list = new ArrayList<Base>();
-    if (base != null)
-      list.add(base);
-    log = new StringBuilder();
-    return execute(new ExecutionContext(null, base != null && base.isResource() ? base : null, base != null && base.isResource() ? base : null, base, null, base), list, ExpressionNode, true);
+    Base resource = base != null && base.isResource() ? base : null;
+    return publish(executeRoot(null, resource, resource, base, ExpressionNode));
   }
 
   /**
@@ -508,11 +588,8 @@ public class FHIRPathEngine {
    */
 	public List<Base> evaluate(Base base, String path) throws FHIRException {
     ExpressionNode exp = parse(path);
-    List<Base> list = new ArrayList<Base>();
-    if (base != null)
-      list.add(base);
-    log = new StringBuilder();
-    return execute(new ExecutionContext(null, base.isResource() ? base : null, base.isResource() ? base : null, base, null, base), list, exp, true);
+    Base resource = base.isResource() ? base : null;
+    return publish(executeRoot(null, resource, resource, base, exp));
   }
 
   /**
@@ -525,11 +602,7 @@ public class FHIRPathEngine {
    * @
    */
 	public List<Base> evaluate(Object appContext, Resource focusResource, Resource rootResource, Base base, ExpressionNode ExpressionNode) throws FHIRException {
-    List<Base> list = new ArrayList<Base>();
-    if (base != null)
-      list.add(base);
-    log = new StringBuilder();
-    return execute(new ExecutionContext(appContext, focusResource, rootResource, base, null, base), list, ExpressionNode, true);
+    return publish(executeRoot(appContext, focusResource, rootResource, base, ExpressionNode));
   }
 
   /**
@@ -542,11 +615,19 @@ public class FHIRPathEngine {
    * @
    */
   public List<Base> evaluate(Object appContext, Base focusResource, Base rootResource, Base base, ExpressionNode ExpressionNode) throws FHIRException {
+    return publish(executeRoot(appContext, focusResource, rootResource, base, ExpressionNode));
+  }
+
+  private List<Base> executeRoot(Object appContext, Base focusResource, Base rootResource, Base base, ExpressionNode expression) throws FHIRException {
     List<Base> list = new ArrayList<Base>();
     if (base != null)
       list.add(base);
-    log = new StringBuilder();
-    return execute(new ExecutionContext(appContext, focusResource, rootResource, base, null, base), list, ExpressionNode, true);
+    ExecutionContext context = new ExecutionContext(appContext, focusResource, rootResource, base, null, base);
+    try {
+      return execute(context, list, expression, true);
+    } finally {
+      lastLog.set(context.log);
+    }
   }
 
   /**
@@ -560,11 +641,7 @@ public class FHIRPathEngine {
    */
 	public List<Base> evaluate(Object appContext, Resource focusResource, Resource rootResource, Base base, String path) throws FHIRException {
     ExpressionNode exp = parse(path);
-    List<Base> list = new ArrayList<Base>();
-    if (base != null)
-      list.add(base);
-    log = new StringBuilder();
-    return execute(new ExecutionContext(appContext, focusResource, rootResource, base, null, base), list, exp, true);
+    return publish(executeRoot(appContext, focusResource, rootResource, base, exp));
   }
 
   /**
@@ -589,7 +666,7 @@ public class FHIRPathEngine {
    * @
    */
   public boolean evaluateToBoolean(Resource focusResource, Resource rootResource, Base base, ExpressionNode node) throws FHIRException {
-    return convertToBoolean(evaluate(null, focusResource, rootResource, base, node));
+    return convertToBoolean(executeRoot(null, focusResource, rootResource, base, node));
   }
 
   /**
@@ -602,7 +679,7 @@ public class FHIRPathEngine {
    * @
    */
   public boolean evaluateToBoolean(Object appInfo, Resource focusResource, Resource rootResource, Base base, ExpressionNode node) throws FHIRException {
-    return convertToBoolean(evaluate(appInfo, focusResource, rootResource, base, node));
+    return convertToBoolean(executeRoot(appInfo, focusResource, rootResource, base, node));
   }
 
   /**
@@ -614,7 +691,99 @@ public class FHIRPathEngine {
    * @
    */
   public boolean evaluateToBoolean(Object appInfo, Base focusResource, Base rootResource, Base base, ExpressionNode node) throws FHIRException {
-    return convertToBoolean(evaluate(appInfo, focusResource, rootResource, base, node));
+    return convertToBoolean(executeRoot(appInfo, focusResource, rootResource, base, node));
+  }
+
+  /**
+   * Compile a parsed expression for repeated use. Evaluating the compiled expression gives the same 
+   * outcome as evaluating the expression it was compiled from, but it doesn't have to work out what 
+   * each node is at every step, so it's faster when the same expression is evaluated many times.
+   * 
+   * A compiled expression doesn't keep a reference to the engine that compiled it, so it can be cached 
+   * and evaluated by any engine 
+   * 
+   * @param expression - the parsed ExpressionNode statement to compile
+   * @return
+   */
+  public CompiledExpression compile(ExpressionNode expression) {
+    return new CompiledExpression(expression, compileNode(expression, true, null));
+  }
+
+  /**
+   * Compile a parsed expression that will always be evaluated against the given element in a structure 
+   * definition (e.g. an invariant in a profile). As well as compile(expression), the expression is checked 
+   * against the types the element can have, and ofType() / as() calls that can't match any of the possible 
+   * types are replaced by an empty result. 
+   * 
+   * If the expression can't be checked, it's compiled without the type information
+   * 
+   * @param appContext - passed to the host services while checking the expression
+   * @param sd - the structure definition that contains the element
+   * @param context - the path of the element the expression will be evaluated against
+   * @param expression - the parsed ExpressionNode statement to compile
+   * @return
+   */
+  public CompiledExpression compile(Object appContext, StructureDefinition sd, String context, ExpressionNode expression) {
+    Map<ExpressionNode, TypeDetails> focusTypes = new IdentityHashMap<ExpressionNode, TypeDetails>();
+    try {
+      check(appContext, sd, context, expression, focusTypes);
+    } catch (Exception e) {
+      // the type checking doesn't handle everything that the engine can execute
+      focusTypes = null;
+    }
+    return new CompiledExpression(expression, compileNode(expression, true, focusTypes));
+  }
+
+  public CompiledExpression compile(String path) throws FHIRLexerException {
+    return compile(parse(path));
+  }
+
+  /**
+   * evaluate a compiled path and return the matching elements
+   * 
+   * @param base - the object against which the path is being evaluated
+   * @param expression - the compiled expression to use
+   * @return
+   * @throws FHIRException 
+   */
+  public List<Base> evaluate(Base base, CompiledExpression expression) throws FHIRException {
+    Base resource = base != null && base.isResource() ? base : null;
+    return publish(executeRoot(null, resource, resource, base, expression));
+  }
+
+  /**
+   * evaluate a compiled path and return the matching elements
+   * 
+   * @param base - the object against which the path is being evaluated
+   * @param expression - the compiled expression to use
+   * @return
+   * @throws FHIRException 
+   */
+  public List<Base> evaluate(Object appContext, Base focusResource, Base rootResource, Base base, CompiledExpression expression) throws FHIRException {
+    return publish(executeRoot(appContext, focusResource, rootResource, base, expression));
+  }
+
+  private List<Base> executeRoot(Object appContext, Base focusResource, Base rootResource, Base base, CompiledExpression expression) throws FHIRException {
+    List<Base> list = new ArrayList<Base>();
+    if (base != null)
+      list.add(base);
+    ExecutionContext context = new ExecutionContext(appContext, focusResource, rootResource, base, null, base);
+    try {
+      return expression.root.execute(this, context, list);
+    } finally {
+      lastLog.set(context.log);
+    }
+  }
+
+  /**
+   * evaluate a compiled path and return true or false (e.g. for an invariant)
+   * 
+   * @param base - the object against which the path is being evaluated
+   * @return
+   * @throws FHIRException 
+   */
+  public boolean evaluateToBoolean(Object appInfo, Base focusResource, Base rootResource, Base base, CompiledExpression expression) throws FHIRException {
+    return convertToBoolean(executeRoot(appInfo, focusResource, rootResource, base, expression));
   }
 
   /**
@@ -687,8 +856,12 @@ public class FHIRPathEngine {
   }
 
 
-  private void log(String name, List<Base> contents) {
+  private void log(ExecutionContext context, String name, List<Base> contents) {
     if (hostServices == null || !hostServices.log(name, contents)) {
+      ExecutionContext root = context.root == null ? context : context.root;
+      if (root.log == null)
+        root.log = new StringBuilder();
+      StringBuilder log = root.log;
       if (log.length() > 0)
         log.append("; ");
       log.append(name);
@@ -704,8 +877,12 @@ public class FHIRPathEngine {
     }
   }
 
+  /**
+   * the log from the last evaluation on this thread (as added to by the .trace() function)
+   */
   public String forLog() {
-    if (log.length() > 0)
+    StringBuilder log = lastLog.get();
+    if (log != null && log.length() > 0)
       return " ("+log.toString()+")";
     else
       return "";
@@ -719,6 +896,8 @@ public class FHIRPathEngine {
     private Base thisItem;
     private List<Base> total;
     private Map<String, Base> aliases;
+    private ExecutionContext root; // the context the evaluation started with, which holds the log (null if this is it)
+    private StringBuilder log; // created when something is logged
     
     public ExecutionContext(Object appInfo, Base resource, Base rootResource, Base context, Map<String, Base> aliases, Base thisItem) {
       this.appInfo = appInfo;
@@ -760,6 +939,7 @@ public class FHIRPathEngine {
     private TypeDetails context;
     private TypeDetails thisItem;
     private TypeDetails total;
+    private Map<ExpressionNode, TypeDetails> focusTypes; // if the caller wants to know what each node is applied to
 
 
     public ExecutionTypeContext(Object appInfo, String resource, TypeDetails context, TypeDetails thisItem) {
@@ -1013,13 +1193,13 @@ public class FHIRPathEngine {
 
   private Base processConstant(FHIRLexer lexer) throws FHIRLexerException {
     if (lexer.isStringConstant()) {
-      return new StringType(processConstantString(lexer.take(), lexer)).noExtensions();
+      return markConstant(new StringType(processConstantString(lexer.take(), lexer)).noExtensions());
     } else if (Utilities.isInteger(lexer.getCurrent())) {
-      return new IntegerType(lexer.take()).noExtensions();
+      return markConstant(new IntegerType(lexer.take()).noExtensions());
     } else if (Utilities.isDecimal(lexer.getCurrent(), false)) {
-      return new DecimalType(lexer.take()).noExtensions();
+      return markConstant(new DecimalType(lexer.take()).noExtensions());
     } else if (Utilities.existsInList(lexer.getCurrent(), "true", "false")) {
-      return new BooleanType(lexer.take()).noExtensions();
+      return markConstant(new BooleanType(lexer.take()).noExtensions());
     } else if (lexer.getCurrent().equals("{}")) {
       lexer.take();
       return null;
@@ -1029,6 +1209,12 @@ public class FHIRPathEngine {
       throw lexer.error("Invalid Constant "+lexer.getCurrent());
   }
 
+  private static Base markConstant(Base b) {
+    if (b != null && !isShared(b))
+      b.setUserData(CONSTANT, true);
+    return b;
+  }
+
   //  procedure CheckParamCount(c : integer);
   //  begin
   //    if exp.Parameters.Count <> c then
@@ -1129,36 +1315,44 @@ public class FHIRPathEngine {
 
 	private List<Base> execute(ExecutionContext context, List<Base> focus, ExpressionNode exp, boolean atEntry) throws FHIRException {
 //    System.out.println("Evaluate {'"+exp.toString()+"'} on "+focus.toString());
-    List<Base> work = new ArrayList<Base>();
+    List<Base> work;
     switch (exp.getKind()) {
     case Unary:
-      work.add(new IntegerType(0));
+      work = ZERO_LIST;
       break;
     case Name:
       if (atEntry && exp.getName().equals("$this"))
-        work.add(context.getThisItem());
+        work = Collections.singletonList(context.getThisItem());
       else if (atEntry && exp.getName().equals("$total"))
-        work.addAll(context.getTotal());
-      else
+        work = new ArrayList<Base>(context.getTotal());
+      else if (focus.isEmpty())
+        work = EMPTY;
+      else if (atEntry) {
+        work = new ArrayList<Base>();
         for (Base item : focus) {
           List<Base> outcome = execute(context, item, exp, atEntry);
           for (Base base : outcome)
             if (base != null)
               work.add(base);
-        }        		
+        }
+      } else {
+        work = new ArrayList<Base>();
+        for (Base item : focus)
+          getChildrenByName(item, exp.getName(), work);
+      }
       break;
     case Function:
-      List<Base> work2 = evaluateFunction(context, focus, exp);
-      work.addAll(work2);
+      work = evaluateFunction(context, focus, exp);
       break;
     case Constant:
       Base b = resolveConstant(context, exp.getConstant(), false);
-      if (b != null)
-        work.add(b);
+      work = b == null ? EMPTY : Collections.singletonList(b);
       break;
     case Group:
-      work2 = execute(context, focus, exp.getGroup(), atEntry);
-      work.addAll(work2);
+      work = execute(context, focus, exp.getGroup(), atEntry);
+      break;
+    default:
+      work = EMPTY;
     }
 
     if (exp.getInner() != null)
@@ -1187,6 +1381,778 @@ public class FHIRPathEngine {
     return work;
   }
 
+  // --- compiled expressions -------------------------------------------------------
+  // the compiled nodes follow the same steps as execute() above, but the decisions that 
+  // only depend on the expression (what kind of node, whether it's at entry, which function, 
+  // the operator chain) are made once, when the expression is compiled. Functions that 
+  // take expressions as parameters that are evaluated for each item (where, select, all, 
+  // exists, iif) run with compiled parameters; other functions use evaluateFunction
+  //
+  // while compiling, the expression is also optimised: 
+  //   * operations on literal constants are worked out once, when the expression is compiled
+  //   * name.name.exists() and name.name.empty() walk the tree and stop at the first element they find 
+  //   * ele-1 (which is applied to nearly every element) is run directly, without building the lists of children 
+  //   * if the types the nodes are applied to are known, ofType() and as() that can't match anything are dropped
+  // The 'and', 'or' and 'implies' operations don't evaluate their right operand when the left one decides 
+  // the outcome (see preOperate), the same as execute()
+
+  public static class CompiledExpression {
+    private ExpressionNode expression;
+    private CompiledNode root;
+
+    private CompiledExpression(ExpressionNode expression, CompiledNode root) {
+      super();
+      this.expression = expression;
+      this.root = root;
+    }
+
+    public ExpressionNode getExpression() {
+      return expression;
+    }
+
+    /**
+     * the steps the compiled expression runs, in FHIRPath like syntax, showing what the optimiser did 
+     * with the expression: const(..) for constants (including operations on constants, which are worked
+     * out when it's compiled), exists(path) and empty(path) for paths tested directly, ele-1 for the 
+     * standard element invariant, and {} for ofType() and as() on types the focus can't have
+     */
+    public String describe() {
+      StringBuilder b = new StringBuilder();
+      root.describe(b);
+      return b.toString();
+    }
+
+    @Override
+    public String toString() {
+      return expression.toString();
+    }
+  }
+
+  private static abstract class CompiledNode {
+    abstract List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException;
+
+    abstract void describe(StringBuilder b);
+
+    /**
+     * true if the outcome doesn't depend on the focus or the context
+     */
+    boolean isConstant() {
+      return false;
+    }
+  }
+
+  private CompiledNode compileNode(ExpressionNode exp, boolean atEntry, Map<ExpressionNode, TypeDetails> focusTypes) {
+    if (atEntry && isEle1(exp)) 
+      return new Ele1Step(compileNode(parse("id"), true, null));
+    if (!atEntry) {
+      CompiledNode walk = compilePathExists(exp);
+      if (walk != null)
+        return walk;
+    }
+    CompiledPath result = new CompiledPath();
+    result.step = compileStep(exp, atEntry, focusTypes);
+    if (exp.getInner() != null)
+      result.inner = compileNode(exp.getInner(), false, focusTypes);
+    if (exp.isProximal() && exp.getOperation() != null) {
+      List<Operation> operations = new ArrayList<Operation>();
+      List<ExpressionNode> operands = new ArrayList<ExpressionNode>();
+      ExpressionNode next = exp.getOpNext();
+      ExpressionNode last = exp;
+      while (next != null) {
+        operations.add(last.getOperation());
+        operands.add(next);
+        last = next;
+        next = next.getOpNext();
+      }
+      result.operations = operations.toArray(new Operation[operations.size()]);
+      result.operands = operands.toArray(new ExpressionNode[operands.size()]);
+      result.compiledOperands = new CompiledNode[operands.size()];
+      for (int i = 0; i < result.operations.length; i++) {
+        // Is and As take a type name, not an expression
+        if (result.operations[i] != Operation.Is && result.operations[i] != Operation.As)
+          result.compiledOperands[i] = compileNode(result.operands[i], true, focusTypes);
+      }
+      if (result.isConstant()) {
+        try {
+          return new ConstantStep(result.execute(this, new ExecutionContext(null, null, null, null, null, null), EMPTY));
+        } catch (Exception e) {
+          // leave it to fail when it's evaluated
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * the invariant that applies to every element: hasValue() or (children().count() > id.count())
+   */
+  private boolean isEle1(ExpressionNode exp) {
+    if (!isFunction(exp, Function.HasValue) || exp.getInner() != null || exp.getOperation() != Operation.Or)
+      return false;
+    ExpressionNode group = exp.getOpNext();
+    if (group.getKind() != Kind.Group || group.getInner() != null || group.getOperation() != null)
+      return false;
+    ExpressionNode children = group.getGroup();
+    if (!isFunction(children, Function.Children) || !isCount(children.getInner()) || children.getOperation() != Operation.Greater)
+      return false;
+    ExpressionNode id = children.getOpNext();
+    return id.getKind() == Kind.Name && "id".equals(id.getName()) && isCount(id.getInner()) && id.getOperation() == null;
+  }
+
+  private boolean isFunction(ExpressionNode exp, Function function) {
+    return exp != null && exp.getKind() == Kind.Function && exp.getFunction() == function && exp.getParameters().isEmpty();
+  }
+
+  /**
+   * .count() at the end of a path
+   */
+  private boolean isCount(ExpressionNode exp) {
+    return isFunction(exp, Function.Count) && exp.getInner() == null && exp.getOperation() == null;
+  }
+
+  /**
+   * name.name...exists() or name.name...empty(), not at the start of an expression 
+   */
+  private CompiledNode compilePathExists(ExpressionNode exp) {
+    List<String> names = new ArrayList<String>();
+    ExpressionNode node = exp;
+    while (node != null && node.getKind() == Kind.Name && node.getOperation() == null) {
+      names.add(node.getName());
+      node = node.getInner();
+    }
+    if (names.isEmpty() || node == null || node.getKind() != Kind.Function || node.getOperation() != null || node.getInner() != null || !node.getParameters().isEmpty())
+      return null;
+    if (node.getFunction() == Function.Exists)
+      return new PathExistsStep(names.toArray(new String[names.size()]), true);
+    if (node.getFunction() == Function.Empty)
+      return new PathExistsStep(names.toArray(new String[names.size()]), false);
+    return null;
+  }
+
+  /**
+   * whether an item with one of the types in focus could be of type tn (as ofType() and as() test it)
+   */
+  private boolean canBeType(TypeDetails focus, String tn) {
+    if (tn.startsWith("System."))
+      return true;
+    if (tn.startsWith("FHIR."))
+      tn = tn.substring(5);
+    StructureDefinition target = worker.fetchTypeDefinition(tn);
+    if (target == null || focus.hasNoTypes())
+      return true;
+    for (String t : focus.getTypes()) {
+      if (t.startsWith(TypeDetails.FP_NS) || t.contains("#"))
+        return true;
+      StructureDefinition sd = worker.fetchResource(StructureDefinition.class, t);
+      // the types for some functions are abstract (e.g. resolve() gives DomainResource, but might find a Bundle)
+      if (sd == null || sd.getAbstract())
+        return true;
+      // the item can have the type if the type is the same as the focus, or is derived from it
+      StructureDefinition walk = target;
+      while (walk != null) {
+        if (walk.getType().equalsIgnoreCase(sd.getType()))
+          return true;
+        walk = walk.hasBaseDefinition() ? worker.fetchResource(StructureDefinition.class, walk.getBaseDefinition()) : null;
+      }
+    }
+    return false;
+  }
+
+  private CompiledNode compileStep(ExpressionNode exp, boolean atEntry, Map<ExpressionNode, TypeDetails> focusTypes) {
+    switch (exp.getKind()) {
+    case Unary:
+      return new UnaryStep();
+    case Name:
+      if (atEntry && exp.getName().equals("$this"))
+        return new ThisStep();
+      else if (atEntry && exp.getName().equals("$total"))
+        return new TotalStep();
+      else if (atEntry)
+        return new EntryNameStep(exp);
+      else
+        return new NameStep(exp.getName());
+    case Function:
+      return compileFunction(exp, focusTypes);
+    case Constant:
+      if (exp.getConstant() instanceof FHIRConstant)
+        return new FHIRConstantStep(exp.getConstant());
+      else
+        return new ConstantStep(exp.getConstant());
+    case Group:
+      return new GroupStep(compileNode(exp.getGroup(), atEntry, focusTypes));
+    default:
+      return new EmptyStep();
+    }
+  }
+
+  private CompiledNode compileFunction(ExpressionNode exp, Map<ExpressionNode, TypeDetails> focusTypes) {
+    switch (exp.getFunction()) {
+    case Where: 
+      return new WhereStep(compileNode(exp.getParameters().get(0), true, focusTypes));
+    case Select: 
+      return new SelectStep(compileNode(exp.getParameters().get(0), true, focusTypes));
+    case All: 
+      if (exp.getParameters().size() == 1)
+        return new AllStep(compileNode(exp.getParameters().get(0), true, focusTypes));
+      break;
+    case Exists: 
+      if (exp.getParameters().size() == 1)
+        return new ExistsStep(compileNode(exp.getParameters().get(0), true, focusTypes));
+      break;
+    case Iif: 
+      return new IifStep(compileNode(exp.getParameters().get(0), true, focusTypes), compileNode(exp.getParameters().get(1), true, focusTypes), 
+          exp.getParameters().size() < 3 ? null : compileNode(exp.getParameters().get(2), true, focusTypes));
+    case Custom: {
+      CompiledNode[] params = new CompiledNode[exp.getParameters().size()];
+      for (int i = 0; i < params.length; i++)
+        params[i] = compileNode(exp.getParameters().get(i), true, focusTypes);
+      return new CustomStep(exp.getName(), params);
+    }
+    case As:
+    case OfType: {
+      TypeDetails focus = focusTypes == null ? null : focusTypes.get(exp);
+      ExpressionNode p = exp.getParameters().get(0);
+      if (focus != null && !canBeType(focus, p.getInner() != null ? p.getName()+"."+p.getInner().getName() : p.getName()))
+        return new EmptyStep();
+      break;
+    }
+    default:
+      break;
+    }
+    return new FunctionStep(exp);
+  }
+
+  private static class CompiledPath extends CompiledNode {
+    private CompiledNode step;
+    private CompiledNode inner;
+    private Operation[] operations;
+    private ExpressionNode[] operands;
+    private CompiledNode[] compiledOperands;
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      List<Base> work = step.execute(engine, context, focus);
+      if (inner != null)
+        work = inner.execute(engine, context, work);
+      if (operations != null) {
+        for (int i = 0; i < operations.length; i++) {
+          List<Base> work2 = engine.preOperate(work, operations[i]);
+          if (work2 != null)
+            work = work2;
+          else if (compiledOperands[i] == null)
+            work = engine.operate(context, work, operations[i], engine.executeTypeName(context, focus, operands[i], false));
+          else
+            work = engine.operate(context, work, operations[i], compiledOperands[i].execute(engine, context, focus));
+        }
+      }
+      return work;
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      step.describe(b);
+      if (inner != null) {
+        b.append(".");
+        inner.describe(b);
+      }
+      if (operations != null) {
+        for (int i = 0; i < operations.length; i++) {
+          b.append(" "+operations[i].toCode()+" ");
+          if (compiledOperands[i] == null)
+            b.append(operands[i].toString());
+          else
+            compiledOperands[i].describe(b);
+        }
+      }
+    }
+
+    @Override
+    boolean isConstant() {
+      if (!step.isConstant() || inner != null)
+        return false;
+      if (operations != null) {
+        for (int i = 0; i < operations.length; i++) {
+          // memberOf goes to the terminology service
+          if (compiledOperands[i] == null || operations[i] == Operation.MemberOf || !compiledOperands[i].isConstant())
+            return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static class EmptyStep extends CompiledNode {
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) {
+      return EMPTY;
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append("{}");
+    }
+  }
+
+  private static class UnaryStep extends CompiledNode {
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) {
+      return ZERO_LIST;
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append("0");
+    }
+
+    @Override
+    boolean isConstant() {
+      return true;
+    }
+  }
+
+  private static class ThisStep extends CompiledNode {
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) {
+      return Collections.singletonList(context.getThisItem());
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append("$this");
+    }
+  }
+
+  private static class TotalStep extends CompiledNode {
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) {
+      return new ArrayList<Base>(context.getTotal());
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append("$total");
+    }
+  }
+
+  /**
+   * a name at the start of a path, which might be a type, or a constant known to the host
+   */
+  private static class EntryNameStep extends CompiledNode {
+    private ExpressionNode exp;
+
+    public EntryNameStep(ExpressionNode exp) {
+      this.exp = exp;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      if (focus.isEmpty())
+        return EMPTY;
+      List<Base> work = new ArrayList<Base>();
+      for (Base item : focus) {
+        for (Base base : engine.execute(context, item, exp, true))
+          if (base != null)
+            work.add(base);
+      }
+      return work;
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append(exp.getName());
+    }
+  }
+
+  private static class NameStep extends CompiledNode {
+    private String name;
+
+    public NameStep(String name) {
+      this.name = name;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      if (focus.isEmpty())
+        return EMPTY;
+      List<Base> work = new ArrayList<Base>();
+      for (Base item : focus)
+        engine.getChildrenByName(item, name, work);
+      return work;
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append(name);
+    }
+  }
+
+  private static class ConstantStep extends CompiledNode {
+    private List<Base> constant;
+
+    public ConstantStep(Base constant) {
+      this.constant = Collections.singletonList(constant);
+    }
+
+    /**
+     * the outcome of operations on constants, worked out when the expression was compiled
+     */
+    public ConstantStep(List<Base> constant) {
+      for (Base b : constant)
+        markConstant(b);
+      this.constant = Collections.unmodifiableList(new ArrayList<Base>(constant));
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) {
+      return constant;
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append("const(");
+      for (int i = 0; i < constant.size(); i++) {
+        if (i > 0)
+          b.append(", ");
+        b.append(constant.get(i).primitiveValue());
+      }
+      b.append(")");
+    }
+
+    @Override
+    boolean isConstant() {
+      return true;
+    }
+  }
+
+  /**
+   * a %constant or a date - these depend on the context
+   */
+  private static class FHIRConstantStep extends CompiledNode {
+    private Base constant;
+
+    public FHIRConstantStep(Base constant) {
+      this.constant = constant;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      Base b = engine.resolveConstant(context, constant, false);
+      return b == null ? EMPTY : Collections.singletonList(b);
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append(constant.primitiveValue());
+    }
+  }
+
+  private static class GroupStep extends CompiledNode {
+    private CompiledNode group;
+
+    public GroupStep(CompiledNode group) {
+      this.group = group;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      return group.execute(engine, context, focus);
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append("(");
+      group.describe(b);
+      b.append(")");
+    }
+
+    @Override
+    boolean isConstant() {
+      return group.isConstant();
+    }
+  }
+
+  private static class FunctionStep extends CompiledNode {
+    private ExpressionNode exp;
+
+    public FunctionStep(ExpressionNode exp) {
+      this.exp = exp;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      return engine.evaluateFunction(context, focus, exp);
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      // not exp.toString(), which goes on to the rest of the path
+      b.append(exp.getFunction() == Function.Item ? "[" : exp.getName()+"(");
+      for (int i = 0; i < exp.getParameters().size(); i++) {
+        if (i > 0)
+          b.append(", ");
+        b.append(exp.getParameters().get(i).toString());
+      }
+      b.append(exp.getFunction() == Function.Item ? "]" : ")");
+    }
+  }
+
+  private static class WhereStep extends CompiledNode {
+    private CompiledNode criteria;
+
+    public WhereStep(CompiledNode criteria) {
+      this.criteria = criteria;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      if (focus.isEmpty())
+        return EMPTY;
+      List<Base> result = new ArrayList<Base>();
+      List<Base> pc = new ArrayList<Base>();
+      for (Base item : focus) {
+        pc.clear();
+        pc.add(item);
+        Equality v = engine.asBool(criteria.execute(engine, engine.changeThis(context, item), pc));
+        if (v == Equality.True)
+          result.add(item);
+      }
+      return result;
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append("where(");
+      criteria.describe(b);
+      b.append(")");
+    }
+  }
+
+  private static class SelectStep extends CompiledNode {
+    private CompiledNode selection;
+
+    public SelectStep(CompiledNode selection) {
+      this.selection = selection;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      if (focus.isEmpty())
+        return EMPTY;
+      List<Base> result = new ArrayList<Base>();
+      List<Base> pc = new ArrayList<Base>();
+      for (Base item : focus) {
+        pc.clear();
+        pc.add(item);
+        result.addAll(selection.execute(engine, engine.changeThis(context, item), pc));
+      }
+      return result;
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append("select(");
+      selection.describe(b);
+      b.append(")");
+    }
+  }
+
+  private static class AllStep extends CompiledNode {
+    private CompiledNode criteria;
+
+    public AllStep(CompiledNode criteria) {
+      this.criteria = criteria;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      List<Base> pc = new ArrayList<Base>();
+      boolean all = true;
+      for (Base item : focus) {
+        pc.clear();
+        pc.add(item);
+        Equality eq = engine.asBool(criteria.execute(engine, engine.changeThis(context, item), pc));
+        if (eq != Equality.True) {
+          all = false;
+          break;
+        }
+      }
+      return engine.makeBoolean(all);
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append("all(");
+      criteria.describe(b);
+      b.append(")");
+    }
+  }
+
+  private static class ExistsStep extends CompiledNode {
+    private CompiledNode criteria;
+
+    public ExistsStep(CompiledNode criteria) {
+      this.criteria = criteria;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      boolean empty = true;
+      List<Base> pc = new ArrayList<Base>();
+      for (Base f : focus) {
+        pc.clear();
+        pc.add(f);
+        Equality v = engine.asBool(criteria.execute(engine, engine.changeThis(context, f), pc));
+        if (v == Equality.True) {
+          empty = false;
+        }
+      }
+      return engine.makeBoolean(!empty);
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append("exists(");
+      criteria.describe(b);
+      b.append(")");
+    }
+  }
+
+  private static class IifStep extends CompiledNode {
+    private CompiledNode criterion;
+    private CompiledNode trueResult;
+    private CompiledNode otherwiseResult;
+
+    public IifStep(CompiledNode criterion, CompiledNode trueResult, CompiledNode otherwiseResult) {
+      this.criterion = criterion;
+      this.trueResult = trueResult;
+      this.otherwiseResult = otherwiseResult;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      Equality v = engine.asBool(criterion.execute(engine, context, focus));
+      if (v == Equality.True)
+        return trueResult.execute(engine, context, focus);
+      else if (otherwiseResult != null)
+        return otherwiseResult.execute(engine, context, focus);
+      else
+        return EMPTY;
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append("iif(");
+      criterion.describe(b);
+      b.append(", ");
+      trueResult.describe(b);
+      if (otherwiseResult != null) {
+        b.append(", ");
+        otherwiseResult.describe(b);
+      }
+      b.append(")");
+    }
+  }
+
+  private static class CustomStep extends CompiledNode {
+    private String name;
+    private CompiledNode[] parameters;
+
+    public CustomStep(String name, CompiledNode[] parameters) {
+      this.name = name;
+      this.parameters = parameters;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      List<List<Base>> params = new ArrayList<List<Base>>();
+      for (CompiledNode p : parameters) 
+        params.add(p.execute(engine, context, focus));
+      return new ArrayList<Base>(engine.hostServices.executeFunction(context.appInfo, name, params));
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append(name+"(");
+      for (int i = 0; i < parameters.length; i++) {
+        if (i > 0)
+          b.append(", ");
+        parameters[i].describe(b);
+      }
+      b.append(")");
+    }
+  }
+
+  /**
+   * name.name...exists() / empty(): the same outcome as getting all the elements and then testing them, 
+   * but it stops as soon as it finds one that isn't empty
+   */
+  private static class PathExistsStep extends CompiledNode {
+    private String[] names;
+    private boolean exists;
+
+    public PathExistsStep(String[] names, boolean exists) {
+      this.names = names;
+      this.exists = exists;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      for (Base item : focus) {
+        if (find(engine, item, 0))
+          return engine.makeBoolean(exists);
+      }
+      return engine.makeBoolean(!exists);
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append(exists ? "exists(" : "empty(");
+      b.append(String.join(".", names));
+      b.append(")");
+    }
+
+    private boolean find(FHIRPathEngine engine, Base item, int index) throws FHIRException {
+      List<Base> children = new ArrayList<Base>();
+      engine.getChildrenByName(item, names[index], children);
+      for (Base child : children) {
+        if (index < names.length - 1) {
+          if (find(engine, child, index + 1))
+            return true;
+        } else if (child != null && !child.isEmpty()) 
+          return true;
+      }
+      return false;
+    }
+  }
+
+  /**
+   * ele-1: hasValue() or (children().count() > id.count())
+   */
+  private static class Ele1Step extends CompiledNode {
+    private CompiledNode id;
+
+    public Ele1Step(CompiledNode id) {
+      this.id = id;
+    }
+
+    @Override
+    List<Base> execute(FHIRPathEngine engine, ExecutionContext context, List<Base> focus) throws FHIRException {
+      if (engine.hasValue(focus))
+        return TRUE_LIST;
+      List<Base> children = new ArrayList<Base>();
+      for (Base item : focus)
+        engine.getChildrenByName(item, "*", children);
+      if (children.isEmpty())
+        return FALSE_LIST;
+      return engine.makeBoolean(children.size() > id.execute(engine, context, focus).size());
+    }
+
+    @Override
+    void describe(StringBuilder b) {
+      b.append("ele-1");
+    }
+  }
+
   private List<Base> executeTypeName(ExecutionContext context, List<Base> focus, ExpressionNode next, boolean atEntry) {
     List<Base> result = new ArrayList<Base>();
     if (next.getInner() != null)
@@ -1214,14 +2180,48 @@ public class FHIRPathEngine {
   }
 
   private List<Base> makeBoolean(boolean b) {
-    List<Base> res = new ArrayList<Base>();
-    res.add(new BooleanType(b).noExtensions());
-    return res;
+    return b ? TRUE_LIST : FALSE_LIST;
+  }
+
+  private BooleanType booleanOf(boolean b) {
+    return b ? BOOLEAN_TRUE : BOOLEAN_FALSE;
   }
 
   private List<Base> makeNull() {
-    List<Base> res = new ArrayList<Base>();
-    return res;
+    return EMPTY;
+  }
+
+  /**
+   * The list that is handed back to the caller has to be one that they can change, and it can't 
+   * contain the shared values or the constants from the expression (they might change them, or add 
+   * them to a resource)
+   */
+  private List<Base> publish(List<Base> result) {
+    boolean copy = !(result instanceof ArrayList);
+    for (int i = 0; i < result.size() && !copy; i++) 
+      copy = isShared(result.get(i)) || isConstant(result.get(i));
+    if (!copy)
+      return result;
+    List<Base> list = new ArrayList<Base>(result.size());
+    for (Base b : result) {
+      if (b == BOOLEAN_TRUE || b == BOOLEAN_FALSE)
+        list.add(new BooleanType(b == BOOLEAN_TRUE).noExtensions());
+      else if (b == INTEGER_ZERO)
+        list.add(new IntegerType(0));
+      else if (isConstant(b))
+        list.add(((Element) b).copy());
+      else
+        list.add(b);
+    }
+    return list;
+  }
+
+  private static boolean isShared(Base b) {
+    return b == BOOLEAN_TRUE || b == BOOLEAN_FALSE || b == INTEGER_ZERO;
+  }
+
+  private static boolean isConstant(Base b) {
+    return b instanceof Element && b.hasUserData(CONSTANT);
   }
 
   private TypeDetails executeTypeName(ExecutionTypeContext context, TypeDetails focus, ExpressionNode exp, boolean atEntry) throws PathEngineException, DefinitionException {
@@ -1229,6 +2229,10 @@ public class FHIRPathEngine {
   }
 
   private TypeDetails executeType(ExecutionTypeContext context, TypeDetails focus, ExpressionNode exp, boolean atEntry) throws PathEngineException, DefinitionException {
+    if (context.focusTypes != null && focus != null) {
+      TypeDetails seen = context.focusTypes.get(exp);
+      context.focusTypes.put(exp, seen == null ? focus : seen.union(focus));
+    }
     TypeDetails result = new TypeDetails(null);
     switch (exp.getKind()) {
     case Name:
@@ -1258,7 +2262,9 @@ public class FHIRPathEngine {
     case Group:
       result.update(executeType(context, focus, exp.getGroup(), atEntry));
     }
-    exp.setTypes(result);
+    if (!exp.isShared()) {
+      exp.setTypes(result);
+    }
 
     if (exp.getInner() != null) {
       result = executeType(context, result, exp.getInner(), false);
@@ -1277,7 +2283,9 @@ public class FHIRPathEngine {
         last = next;
         next = next.getOpNext();
       }
-      exp.setOpTypes(result);
+      if (!exp.isShared()) {
+        exp.setOpTypes(result);
+      }
     }
     return result;
   }
@@ -1450,15 +2458,15 @@ public class FHIRPathEngine {
     List<Base> result = new ArrayList<Base>();
     if (left.size() == 0 || right.size() == 0) {
     } else if (left.size() != 1 || right.size() != 1) 
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     else {
       String tn = convertToString(right);
       if (left.get(0) instanceof org.hl7.fhir.r5.elementmodel.Element)
-        result.add(new BooleanType(left.get(0).hasType(tn)).noExtensions());
+        result.add(booleanOf(left.get(0).hasType(tn)));
       else if ((left.get(0) instanceof Element) && ((Element) left.get(0)).isDisallowExtensions())
-        result.add(new BooleanType(Utilities.capitalize(left.get(0).fhirType()).equals(tn) || ("System."+Utilities.capitalize(left.get(0).fhirType())).equals(tn)).noExtensions());
+        result.add(booleanOf(Utilities.capitalize(left.get(0).fhirType()).equals(tn) || ("System."+Utilities.capitalize(left.get(0).fhirType())).equals(tn)));
       else
-        result.add(new BooleanType(left.get(0).hasType(tn)).noExtensions());
+        result.add(booleanOf(left.get(0).hasType(tn)));
     }
     return result;
   }
@@ -2698,10 +3706,10 @@ public class FHIRPathEngine {
 
   private void checkContextPrimitive(TypeDetails focus, String name, boolean canQty) throws PathEngineException {
     if (canQty) {
-       if (!focus.hasType(primitiveTypes) && !focus.hasType("Quantity"))
-        throw new PathEngineException("The function '"+name+"'() can only be used on a Quantity or on "+primitiveTypes.toString()); 
-    } else if (!focus.hasType(primitiveTypes))
-      throw new PathEngineException("The function '"+name+"'() can only be used on "+primitiveTypes.toString()); 
+       if (!focus.hasType(types().primitiveTypes) && !focus.hasType("Quantity"))
+        throw new PathEngineException("The function '"+name+"'() can only be used on a Quantity or on "+types().primitiveTypes.toString()); 
+    } else if (!focus.hasType(types().primitiveTypes))
+      throw new PathEngineException("The function '"+name+"'() can only be used on "+types().primitiveTypes.toString()); 
   }
 
 
@@ -2713,7 +3721,7 @@ public class FHIRPathEngine {
   }
 
   private TypeDetails anything(CollectionStatus status) {
-    return new TypeDetails(status, allTypes.keySet());
+    return new TypeDetails(status, types().allTypes.keySet());
   }
 
   //	private boolean isPrimitiveType(String s) {
@@ -2799,7 +3807,7 @@ public class FHIRPathEngine {
       List<List<Base>> params = new ArrayList<List<Base>>();
       for (ExpressionNode p : exp.getParameters()) 
         params.add(execute(context, focus, p, true));
-      return hostServices.executeFunction(context.appInfo, exp.getName(), params);
+      return new ArrayList<Base>(hostServices.executeFunction(context.appInfo, exp.getName(), params));
     }
     default:
       throw new Error("not Implemented yet");
@@ -2843,7 +3851,7 @@ public class FHIRPathEngine {
           break;
         }
       }
-      result.add(new BooleanType(all).noExtensions());
+      result.add(booleanOf(all));
     } else {// (exp.getParameters().size() == 0) {
       boolean all = true;
       for (Base item : focus) {
@@ -2853,18 +3861,22 @@ public class FHIRPathEngine {
           break;
         }
       }
-      result.add(new BooleanType(all).noExtensions());
+      result.add(booleanOf(all));
     }
     return result;
   }
 
 
   private ExecutionContext changeThis(ExecutionContext context, Base newThis) {
-    return new ExecutionContext(context.appInfo, context.focusResource, context.rootResource, context.context, context.aliases, newThis);
+    ExecutionContext result = new ExecutionContext(context.appInfo, context.focusResource, context.rootResource, context.context, context.aliases, newThis);
+    result.root = context.root == null ? context : context.root;
+    return result;
   }
 
   private ExecutionTypeContext changeThis(ExecutionTypeContext context, TypeDetails newThis) {
-    return new ExecutionTypeContext(context.appInfo, context.resource, context.context, newThis);
+    ExecutionTypeContext result = new ExecutionTypeContext(context.appInfo, context.resource, context.context, newThis);
+    result.focusTypes = context.focusTypes;
+    return result;
   }
 
 
@@ -2972,7 +3984,7 @@ public class FHIRPathEngine {
     String repl = convertToString(execute(context, focus, exp.getParameters().get(1), true));
 
     if (focus.size() == 1 && !Utilities.noString(regex))
-      result.add(new StringType(convertToString(focus.get(0)).replaceAll(regex, repl)).noExtensions());
+      result.add(new StringType(RegexCache.replaceAll(convertToString(focus.get(0)), regex, repl)).noExtensions());
     else
       result.add(new StringType(convertToString(focus.get(0))).noExtensions());
     return result;
@@ -2984,14 +3996,14 @@ public class FHIRPathEngine {
     String sw = convertToString(execute(context, focus, exp.getParameters().get(0), true));
 
     if (focus.size() == 0)
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     else if (Utilities.noString(sw))
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else {
       if (focus.size() == 1 && !Utilities.noString(sw))
-        result.add(new BooleanType(convertToString(focus.get(0)).endsWith(sw)).noExtensions());
+        result.add(booleanOf(convertToString(focus.get(0)).endsWith(sw)));
       else
-        result.add(new BooleanType(false).noExtensions());
+        result.add(booleanOf(false));
     }
     return result;
   }
@@ -3011,19 +4023,19 @@ public class FHIRPathEngine {
       else if (focus.get(0) instanceof IntegerType) {
         int i = Integer.parseInt(focus.get(0).primitiveValue());
         if (i == 0)
-          result.add(new BooleanType(false).noExtensions());
+          result.add(booleanOf(false));
         else if (i == 1)
-          result.add(new BooleanType(true).noExtensions());
+          result.add(booleanOf(true));
       } else if (focus.get(0) instanceof DecimalType) {
         if (((DecimalType) focus.get(0)).getValue().compareTo(BigDecimal.ZERO) == 0)
-          result.add(new BooleanType(false).noExtensions());
+          result.add(booleanOf(false));
         else if (((DecimalType) focus.get(0)).getValue().compareTo(BigDecimal.ONE) == 0)
-          result.add(new BooleanType(true).noExtensions());
+          result.add(booleanOf(true));
       } else if (focus.get(0) instanceof StringType) {
         if ("true".equalsIgnoreCase(focus.get(0).primitiveValue()))
-          result.add(new BooleanType(true).noExtensions());
+          result.add(booleanOf(true));
         else if ("false".equalsIgnoreCase(focus.get(0).primitiveValue()))
-          result.add(new BooleanType(false).noExtensions()); 
+          result.add(booleanOf(false)); 
       }
     }
     return result;
@@ -3296,7 +4308,7 @@ public class FHIRPathEngine {
       }
     }
     List<Base> result = new ArrayList<Base>();
-    result.add(new BooleanType(valid).noExtensions());
+    result.add(booleanOf(valid));
     return result;
   }
 
@@ -3319,13 +4331,12 @@ public class FHIRPathEngine {
       }
     }
     List<Base> result = new ArrayList<Base>();
-    result.add(new BooleanType(valid).noExtensions());
+    result.add(booleanOf(valid));
     return result;
   }
 
 
   private List<Base> funcExists(ExecutionContext context, List<Base> focus, ExpressionNode exp) {
-    List<Base> result = new ArrayList<Base>();
     boolean empty = true;
     List<Base> pc = new ArrayList<Base>();
     for (Base f : focus) {
@@ -3340,8 +4351,7 @@ public class FHIRPathEngine {
         empty = false;
       }
     }
-    result.add(new BooleanType(!empty).noExtensions());
-    return result;
+    return makeBoolean(!empty);
   }
 
 
@@ -3430,7 +4440,7 @@ public class FHIRPathEngine {
 	        break;
 	      }
 	    }
-	    result.add(new BooleanType(all).noExtensions());
+	    result.add(booleanOf(all));
 	  } else { 
 	    boolean all = true;
 	    for (Base item : focus) {
@@ -3440,7 +4450,7 @@ public class FHIRPathEngine {
 	        break;
 	      }
 	    }
-	    result.add(new BooleanType(all).noExtensions());
+	    result.add(booleanOf(all));
 	  }
 	  return result;
 	}
@@ -3460,7 +4470,7 @@ public class FHIRPathEngine {
 	        break;
 	      }
 	    }
-	    result.add(new BooleanType(any).noExtensions());
+	    result.add(booleanOf(any));
 	  } else {
 	    boolean any = false;
 	    for (Base item : focus) {
@@ -3470,7 +4480,7 @@ public class FHIRPathEngine {
 	        break;
 	      }
 	    }
-	    result.add(new BooleanType(any).noExtensions());
+	    result.add(booleanOf(any));
 	  }
 	  return result;
 	}
@@ -3490,7 +4500,7 @@ public class FHIRPathEngine {
 	        break;
 	      }
 	    }
-	    result.add(new BooleanType(all).noExtensions());
+	    result.add(booleanOf(all));
 	  } else { 
 	    boolean all = true;
 	    for (Base item : focus) {
@@ -3500,7 +4510,7 @@ public class FHIRPathEngine {
 	        break;
 	      }
 	    }
-	    result.add(new BooleanType(all).noExtensions());
+	    result.add(booleanOf(all));
 	  }
 	  return result;
 	}
@@ -3520,7 +4530,7 @@ public class FHIRPathEngine {
 	        break;
 	      }
 	    }
-	    result.add(new BooleanType(any).noExtensions());
+	    result.add(booleanOf(any));
 	  } else {
 	    boolean any = false;
       for (Base item : focus) {
@@ -3530,7 +4540,7 @@ public class FHIRPathEngine {
 	          break;
 	        }
       }
-      result.add(new BooleanType(any).noExtensions());
+      result.add(booleanOf(any));
 	  }
 	  return result;
 	}
@@ -3540,9 +4550,9 @@ public class FHIRPathEngine {
     String name = nl.get(0).primitiveValue();
     if (exp.getParameters().size() == 2) {
       List<Base> n2 = execute(context, focus, exp.getParameters().get(1), true);
-      log(name, n2);
+      log(context, name, n2);
     } else 
-      log(name, focus);
+      log(context, name, focus);
     return focus;
   }
 
@@ -3585,13 +4595,13 @@ public class FHIRPathEngine {
     if (focus.size() == 1 && !Utilities.noString(sw)) {
       String st = convertToString(focus.get(0));
       if (Utilities.noString(st))
-        result.add(new BooleanType(false).noExtensions());
+        result.add(booleanOf(false));
       else {
-        boolean ok = st.matches(sw);
-        result.add(new BooleanType(ok).noExtensions());
+        boolean ok = RegexCache.matches(st, sw);
+        result.add(booleanOf(ok));
       }
     } else
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     return result;
   }
 
@@ -3600,15 +4610,15 @@ public class FHIRPathEngine {
     String sw = convertToString(execute(context, focus, exp.getParameters().get(0), true));
 
     if (focus.size() != 1) {
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     } else if (Utilities.noString(sw)) {
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     } else {
       String st = convertToString(focus.get(0));
       if (Utilities.noString(st))
-        result.add(new BooleanType(false).noExtensions());
+        result.add(booleanOf(false));
       else
-        result.add(new BooleanType(st.contains(sw)).noExtensions());
+        result.add(booleanOf(st.contains(sw)));
     } 
     return result;
   }
@@ -3623,13 +4633,11 @@ public class FHIRPathEngine {
   }
 
   private List<Base> funcHasValue(ExecutionContext context, List<Base> focus, ExpressionNode exp) {
-    List<Base> result = new ArrayList<Base>();
-    if (focus.size() == 1) {
-      String s = convertToString(focus.get(0));
-      result.add(new BooleanType(!Utilities.noString(s)).noExtensions());
-    } else
-      result.add(new BooleanType(false).noExtensions());
-    return result;
+    return makeBoolean(hasValue(focus));
+  }
+
+  private boolean hasValue(List<Base> focus) {
+    return focus.size() == 1 && !Utilities.noString(convertToString(focus.get(0)));
   }
 
 	private List<Base> funcStartsWith(ExecutionContext context, List<Base> focus, ExpressionNode exp) throws FHIRException {
@@ -3637,15 +4645,15 @@ public class FHIRPathEngine {
     String sw = convertToString(execute(context, focus, exp.getParameters().get(0), true));
 
     if (focus.size() == 0) {
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     } else if (Utilities.noString(sw)) {
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     } else {
       String s = convertToString(focus.get(0));
       if (s == null)
-        result.add(new BooleanType(false).noExtensions());
+        result.add(booleanOf(false));
       else
-        result.add(new BooleanType(s.startsWith(sw)).noExtensions());
+        result.add(booleanOf(s.startsWith(sw)));
     }
     return result;
   }
@@ -3738,46 +4746,45 @@ public class FHIRPathEngine {
   private List<Base> funcIsInteger(ExecutionContext context, List<Base> focus, ExpressionNode exp) {
     List<Base> result = new ArrayList<Base>();
     if (focus.size() != 1)
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     else if (focus.get(0) instanceof IntegerType)
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else if (focus.get(0) instanceof BooleanType)
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else if (focus.get(0) instanceof StringType)
-      result.add(new BooleanType(Utilities.isInteger(convertToString(focus.get(0)))).noExtensions());
+      result.add(booleanOf(Utilities.isInteger(convertToString(focus.get(0)))));
     else 
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     return result;
   }
 
   private List<Base> funcIsBoolean(ExecutionContext context, List<Base> focus, ExpressionNode exp) {
     List<Base> result = new ArrayList<Base>();
     if (focus.size() != 1)
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     else if (focus.get(0) instanceof IntegerType)
-      result.add(new BooleanType(((IntegerType) focus.get(0)).getValue() >= 0 && ((IntegerType) focus.get(0)).getValue() <= 1).noExtensions());
+      result.add(booleanOf(((IntegerType) focus.get(0)).getValue() >= 0 && ((IntegerType) focus.get(0)).getValue() <= 1));
     else if (focus.get(0) instanceof DecimalType)
-      result.add(new BooleanType(((DecimalType) focus.get(0)).getValue().compareTo(BigDecimal.ZERO) == 0 || ((DecimalType) focus.get(0)).getValue().compareTo(BigDecimal.ONE) == 0).noExtensions());
+      result.add(booleanOf(((DecimalType) focus.get(0)).getValue().compareTo(BigDecimal.ZERO) == 0 || ((DecimalType) focus.get(0)).getValue().compareTo(BigDecimal.ONE) == 0));
     else if (focus.get(0) instanceof BooleanType)
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else if (focus.get(0) instanceof StringType)
-      result.add(new BooleanType(Utilities.existsInList(convertToString(focus.get(0)).toLowerCase(), "true", "false")).noExtensions());
+      result.add(booleanOf(Utilities.existsInList(convertToString(focus.get(0)).toLowerCase(), "true", "false")));
     else 
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     return result;
   }
 
   private List<Base> funcIsDateTime(ExecutionContext context, List<Base> focus, ExpressionNode exp) {
     List<Base> result = new ArrayList<Base>();
     if (focus.size() != 1)
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     else if (focus.get(0) instanceof DateTimeType || focus.get(0) instanceof DateType)
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else if (focus.get(0) instanceof StringType)
-      result.add(new BooleanType((convertToString(focus.get(0)).matches
-          ("([0-9]([0-9]([0-9][1-9]|[1-9]0)|[1-9]00)|[1-9]000)(-(0[1-9]|1[0-2])(-(0[1-9]|[1-2][0-9]|3[0-1])(T([01][0-9]|2[0-3]):[0-5][0-9]:([0-5][0-9]|60)(\\.[0-9]+)?(Z|(\\+|-)((0[0-9]|1[0-3]):[0-5][0-9]|14:00))?)?)?)?"))).noExtensions());
+      result.add(booleanOf(RegexCache.DATETIME_PATTERN.matcher(convertToString(focus.get(0))).matches()));
     else 
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     return result;
   }
 
@@ -3786,10 +4793,10 @@ public class FHIRPathEngine {
       throw new FHIRException("Unable to check conformsTo - no hostservices provided");
     List<Base> result = new ArrayList<Base>();
     if (focus.size() != 1)
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     else {
       String url = convertToString(execute(context, focus, exp.getParameters().get(0), true));
-      result.add(new BooleanType(hostServices.conformsToProfile(context.appInfo,  focus.get(0), url)).noExtensions());
+      result.add(booleanOf(hostServices.conformsToProfile(context.appInfo,  focus.get(0), url)));
     }
     return result;
   }
@@ -3797,45 +4804,44 @@ public class FHIRPathEngine {
   private List<Base> funcIsTime(ExecutionContext context, List<Base> focus, ExpressionNode exp) {
     List<Base> result = new ArrayList<Base>();
     if (focus.size() != 1)
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     else if (focus.get(0) instanceof TimeType)
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else if (focus.get(0) instanceof StringType)
-      result.add(new BooleanType((convertToString(focus.get(0)).matches
-          ("T([01][0-9]|2[0-3]):[0-5][0-9]:([0-5][0-9]|60)(\\.[0-9]+)?(Z|(\\+|-)((0[0-9]|1[0-3]):[0-5][0-9]|14:00))?"))).noExtensions());
+      result.add(booleanOf(TIME_PATTERN.matcher(convertToString(focus.get(0))).matches()));
     else 
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     return result;
   }
 
   private List<Base> funcIsString(ExecutionContext context, List<Base> focus, ExpressionNode exp) {
     List<Base> result = new ArrayList<Base>();
     if (focus.size() != 1)
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     else if (!(focus.get(0) instanceof DateTimeType) && !(focus.get(0) instanceof TimeType))
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else 
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     return result;
   }
 
   private List<Base> funcIsQuantity(ExecutionContext context, List<Base> focus, ExpressionNode exp) {
     List<Base> result = new ArrayList<Base>();
     if (focus.size() != 1)
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     else if (focus.get(0) instanceof IntegerType)
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else if (focus.get(0) instanceof DecimalType)
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else if (focus.get(0) instanceof Quantity)
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else if (focus.get(0) instanceof BooleanType)
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else  if (focus.get(0) instanceof StringType) {
       Quantity q = parseQuantityString(focus.get(0).primitiveValue());
-      result.add(new BooleanType(q != null).noExtensions());
+      result.add(booleanOf(q != null));
     } else
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     return result;
   }
 
@@ -3880,17 +4886,17 @@ public class FHIRPathEngine {
   private List<Base> funcIsDecimal(ExecutionContext context, List<Base> focus, ExpressionNode exp) {
     List<Base> result = new ArrayList<Base>();
     if (focus.size() != 1)
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     else if (focus.get(0) instanceof IntegerType)
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else if (focus.get(0) instanceof BooleanType)
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else if (focus.get(0) instanceof DecimalType)
-      result.add(new BooleanType(true).noExtensions());
+      result.add(booleanOf(true));
     else if (focus.get(0) instanceof StringType)
-      result.add(new BooleanType(Utilities.isDecimal(convertToString(focus.get(0)), true)).noExtensions());
+      result.add(booleanOf(Utilities.isDecimal(convertToString(focus.get(0)), true)));
     else 
-      result.add(new BooleanType(false).noExtensions());
+      result.add(booleanOf(false));
     return result;
   }
 
@@ -3966,9 +4972,7 @@ public class FHIRPathEngine {
   }
 
   private List<Base> funcEmpty(ExecutionContext context, List<Base> focus, ExpressionNode exp) {
-    List<Base> result = new ArrayList<Base>();
-		result.add(new BooleanType(ElementUtil.isEmpty(focus)).noExtensions());
-    return result;
+    return makeBoolean(ElementUtil.isEmpty(focus));
   }
 
   private List<Base> funcNot(ExecutionContext context, List<Base> focus, ExpressionNode exp) throws PathEngineException {
@@ -4149,7 +5153,7 @@ public class FHIRPathEngine {
         return new ElementDefinitionMatch(ed, null);
       if (allowTypedName && ed.getPath().endsWith("[x]") && path.startsWith(ed.getPath().substring(0, ed.getPath().length()-3)) && path.length() > ed.getPath().length()-3) {
     	String s = Utilities.uncapitalize(path.substring(ed.getPath().length()-3));
-    	if (primitiveTypes.contains(s))
+    	if (types().primitiveTypes.contains(s))
           return new ElementDefinitionMatch(ed, s);
     	else
         return new ElementDefinitionMatch(ed, path.substring(ed.getPath().length()-3));
@@ -4197,6 +5201,7 @@ public class FHIRPathEngine {
 
 
   public boolean hasLog() {
+    StringBuilder log = lastLog.get();
     return log != null && log.length() > 0;
   }
 
@@ -4204,8 +5209,8 @@ public class FHIRPathEngine {
   public String takeLog() {
     if (!hasLog())
       return "";
-    String s = log.toString();
-    log = new StringBuilder();
+    String s = lastLog.get().toString();
+    lastLog.remove();
     return s;
   }
 
@@ -378,7 +378,6 @@ public class GraphQLEngine implements IGraphQLEngine {
         for (BundleEntryComponent be : bnd.getEntry())
           result.add(be.getResource());
       else {
-        FHIRPathEngine fpe = new FHIRPathEngine(context);
         ExpressionNode node = fpe.parse(getSingleValue(fhirpath));
         for (BundleEntryComponent be : bnd.getEntry())
           if (fpe.evaluateToBoolean(null, be.getResource(), be.getResource(), node))
@@ -395,7 +394,6 @@ public class GraphQLEngine implements IGraphQLEngine {
         for (IBaseResource v : list)
           result.add((Resource) v);
       else {
-        FHIRPathEngine fpe = new FHIRPathEngine(context);
         ExpressionNode node = fpe.parse(getSingleValue(fhirpath));
         for (IBaseResource v : list)
           if (fpe.evaluateToBoolean(null, (Resource)v, (Base) v, node))
@@ -17,6 +17,8 @@ import org.junit.runners.Suite.SuiteClasses;
     GraphQLEngineTests.class,
     LiquidEngineTests.class,
     FHIRPathTests.class,
+    FHIRPathSharedEngineTests.class,
+    FHIRPathOptimiserTests.class,
     NarrativeGenerationTests.class,
     NarrativeGeneratorTests.class,
     ShexGeneratorTests.class,
@@ -24,6 +26,10 @@ import org.junit.runners.Suite.SuiteClasses;
     OpenApiGeneratorTest.class,
     MetadataResourceManagerTester.class,
     MetaTest.class,
+    ClientLoggerTests.class,
+    TerminologyCacheTests.class,
+    ContextConcurrencyTests.class,
+    CollectedCodeValidationTests.class,
     UtilitiesTests.class,
     SnapShotGenerationTests.class})
 
@@ -0,0 +1,94 @@
+package org.hl7.fhir.r5.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.r5.context.HTMLClientLogger;
+import org.hl7.fhir.r5.context.TextClientLogger;
+import org.hl7.fhir.r5.test.utils.TestingUtilities;
+import org.hl7.fhir.r5.utils.client.ToolingClientLogger;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The terminology requests collected by the validator are sent on several threads that share the context's logger
+ */
+public class ClientLoggerTests {
+
+  private static final int THREADS = 8;
+  private static final int REQUESTS = 50;
+
+  @Test
+  public void testTextLogger() throws Exception {
+    String path = Utilities.path(TestingUtilities.tempFolder("client-logger"), "tx.txt");
+    check(new TextClientLogger(path));
+    String log = TextFile.fileToString(path);
+    for (int i = 1; i <= THREADS * REQUESTS; i++) {
+      Assert.assertTrue(log.contains("\r\n--- "+i+" -----------------\r\n"));
+      Assert.assertTrue(log.contains("Response to "+i+": "));
+    }
+  }
+
+  @Test
+  public void testHtmlLogger() throws Exception {
+    String path = Utilities.path(TestingUtilities.tempFolder("client-logger"), "tx.html");
+    check(new HTMLClientLogger(path));
+    String log = TextFile.fileToString(path);
+    for (int i = 1; i <= THREADS * REQUESTS; i++) {
+      Assert.assertTrue(log.contains("<a name=\"l"+i+"\"> </a>"));
+      Assert.assertTrue(log.contains("Response to <a href=\"#l"+i+"\">"+i+"</a>"));
+    }
+  }
+
+  private void check(final ToolingClientLogger logger) throws Exception {
+    final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<String>> futures = new ArrayList<Future<String>>();
+      for (int t = 0; t < THREADS; t++) {
+        final int thread = t;
+        futures.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            for (int i = 0; i < REQUESTS; i++) {
+              logger.clearLastId();
+              if (logger.getLastId() != null) {
+                return "id not cleared";
+              }
+              logger.logRequest("GET", "http://test.org/fhir/CodeSystem/$validate-code?thread="+thread+"&i="+i, new ArrayList<String>(), null);
+              String id = logger.getLastId();
+              Thread.yield();
+              logger.logResponse("200", new ArrayList<String>(), null);
+              if (id == null || !id.equals(logger.getLastId())) {
+                return "id changed by another thread";
+              }
+              ids.add(id);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<String> f : futures) {
+        Assert.assertNull(f.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    Set<String> distinct = new HashSet<String>(ids);
+    Assert.assertEquals(THREADS * REQUESTS, ids.size());
+    Assert.assertEquals(THREADS * REQUESTS, distinct.size());
+    // this thread didn't make a request
+    Assert.assertNull(logger.getLastId());
+  }
+
+}
@@ -0,0 +1,93 @@
+package org.hl7.fhir.r5.test;
+
+import java.io.IOException;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r5.terminologies.CodeSystemUtilities;
+import org.hl7.fhir.r5.terminologies.CodeSystemUtilities.CodeSystemIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CodeSystemIndexTests {
+
+  private CodeSystem makeCodeSystem() {
+    CodeSystem cs = new CodeSystem();
+    cs.setUrl("http://test.org/fhir/CodeSystem/test");
+    ConceptDefinitionComponent a = cs.addConcept().setCode("a").setDisplay("A");
+    ConceptDefinitionComponent b = a.addConcept().setCode("b").setDisplay("B");
+    b.addConcept().setCode("c").setDisplay("C").setDefinition("the c");
+    cs.addConcept().setCode("D").setDisplay("D");
+    return cs;
+  }
+
+  @Test
+  public void testLookup() {
+    CodeSystem cs = makeCodeSystem();
+    Assert.assertTrue(CodeSystemUtilities.hasCode(cs, "c"));
+    Assert.assertFalse(CodeSystemUtilities.hasCode(cs, "e"));
+    Assert.assertEquals("C", CodeSystemUtilities.getCode(cs, "c").getDisplay());
+    Assert.assertEquals("the c", CodeSystemUtilities.getCodeDefinition(cs, "c"));
+    Assert.assertNull(CodeSystemUtilities.findCode(cs, "d"));
+    Assert.assertNotNull(CodeSystemUtilities.findCode(cs, "d", false));
+  }
+
+  @Test
+  public void testHierarchy() {
+    CodeSystem cs = makeCodeSystem();
+    CodeSystemIndex index = CodeSystemUtilities.getIndex(cs);
+    Assert.assertTrue(index.isDescendantOf("c", "a"));
+    Assert.assertTrue(index.isDescendantOf("c", "b"));
+    Assert.assertFalse(index.isDescendantOf("a", "c"));
+    Assert.assertFalse(index.isDescendantOf("D", "a"));
+    Assert.assertEquals(1, index.getParents("b").size());
+    Assert.assertSame(index, CodeSystemUtilities.getIndex(cs));
+  }
+
+  @Test
+  public void testChanges() {
+    CodeSystem cs = makeCodeSystem();
+    Assert.assertFalse(CodeSystemUtilities.hasCode(cs, "e"));
+    cs.addConcept().setCode("e");
+    Assert.assertTrue(CodeSystemUtilities.hasCode(cs, "e"));
+    CodeSystemUtilities.getCode(cs, "b").addConcept().setCode("f");
+    CodeSystemUtilities.invalidateIndex(cs);
+    Assert.assertTrue(CodeSystemUtilities.hasCode(cs, "f"));
+    Assert.assertTrue(CodeSystemUtilities.getIndex(cs).isDescendantOf("f", "a"));
+    CodeSystemUtilities.getCode(cs, "c").setCode("g");
+    CodeSystemUtilities.invalidateIndex(cs);
+    Assert.assertNull(CodeSystemUtilities.findCode(cs, "c"));
+    Assert.assertNotNull(CodeSystemUtilities.findCode(cs, "g"));
+  }
+
+  @Test
+  public void testContextChanges() throws IOException {
+    SimpleWorkerContext context = new SimpleWorkerContext();
+    context.setAllowLoadingDuplicates(true);
+    CodeSystem cs = makeCodeSystem();
+    cs.setId("test");
+    context.cacheResource(cs);
+    Assert.assertTrue(CodeSystemUtilities.hasCode(context.fetchCodeSystem(cs.getUrl()), "c"));
+
+    // edit a nested concept, and load the code system again
+    CodeSystemUtilities.getCode(cs, "c").addConcept().setCode("h");
+    context.cacheResource(cs);
+    CodeSystem t = context.fetchCodeSystem(cs.getUrl());
+    Assert.assertTrue(CodeSystemUtilities.hasCode(t, "h"));
+    Assert.assertTrue(CodeSystemUtilities.getIndex(t).isDescendantOf("h", "a"));
+
+    // change it without invalidating the index, and drop it: dropping it rebuilds the index
+    CodeSystemUtilities.getCode(cs, "h").addConcept().setCode("i");
+    context.dropResource(cs);
+    Assert.assertNull(context.fetchCodeSystem(cs.getUrl()));
+    Assert.assertTrue(CodeSystemUtilities.hasCode(cs, "i"));
+
+    // once it's no longer in the context, nested edits need an explicit invalidation
+    CodeSystemUtilities.getCode(cs, "b").getConcept().clear();
+    CodeSystemUtilities.invalidateIndex(cs);
+    Assert.assertFalse(CodeSystemUtilities.hasCode(cs, "c"));
+    Assert.assertFalse(CodeSystemUtilities.hasCode(cs, "h"));
+    Assert.assertTrue(CodeSystemUtilities.hasCode(cs, "b"));
+  }
+}
@@ -0,0 +1,49 @@
+package org.hl7.fhir.r5.test;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.Coding;
+import org.hl7.fhir.r5.model.Parameters;
+import org.hl7.fhir.utilities.validation.ValidationOptions;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Code validations collected while validating, with no terminology server, so the collected validations
+ * all resolve to errors
+ */
+public class CollectedCodeValidationTests {
+
+  private Coding code(String system, String code) {
+    return new Coding("http://test.org/fhir/CodeSystem/"+system, code, null);
+  }
+
+  @Test
+  public void testNestedCollections() throws Exception {
+    SimpleWorkerContext context = new SimpleWorkerContext();
+    context.setExpansionProfile(new Parameters());
+    ValidationOptions options = new ValidationOptions();
+
+    context.collectCodeValidations();
+    Assert.assertTrue(context.validateCode(options, code("outer", "a"), null).isOk());
+
+    // e.g. a referenced resource validated part way through
+    context.collectCodeValidations();
+    Assert.assertTrue(context.validateCode(options, code("inner", "b"), null).isOk());
+    Assert.assertTrue(context.validateCode(options, code("inner", "c"), null).isOk());
+    Assert.assertTrue(context.validateCode(options, code("inner", "b"), null).isOk());
+    Assert.assertEquals(2, context.resolveCodeValidations(1));
+    Assert.assertFalse(context.validateCode(options, code("inner", "b"), null).isOk());
+
+    // the outer collection is still going, and still has what it collected before
+    Assert.assertTrue(context.validateCode(options, code("outer", "d"), null).isOk());
+    Assert.assertEquals(2, context.resolveCodeValidations(1));
+    Assert.assertFalse(context.validateCode(options, code("outer", "a"), null).isOk());
+    Assert.assertFalse(context.validateCode(options, code("outer", "d"), null).isOk());
+
+    // not collecting any more
+    Assert.assertEquals(0, context.resolveCodeValidations(1));
+    Assert.assertFalse(context.validateCode(options, code("outer", "e"), null).isOk());
+    Assert.assertEquals(0, context.resolveCodeValidations(1));
+  }
+
+}
@@ -0,0 +1,185 @@
+package org.hl7.fhir.r5.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Readers use the context while resources are being cached and dropped, with and without lock free reads, 
+ * and the definitions they get from it are shared between threads
+ */
+public class ContextConcurrencyTests {
+
+  private static final int READERS = 6;
+  private static final int STABLE = 50;
+  private static final int CHURN = 20;
+  private static final int ROUNDS = 200;
+
+  private static final String CS_URL = "http://test.org/fhir/CodeSystem/";
+  private static final String VS_URL = "http://test.org/fhir/ValueSet/";
+
+  @Test
+  public void testLockedReads() throws Exception {
+    check(false);
+  }
+
+  @Test
+  public void testLockFreeReads() throws Exception {
+    check(true);
+  }
+
+  /**
+   * the validator keeps things it works out about the definitions in their user data, from several threads at once
+   */
+  @Test
+  public void testUserData() throws Exception {
+    final ElementDefinition ed = new ElementDefinition();
+    ExecutorService executor = Executors.newFixedThreadPool(READERS);
+    try {
+      List<Future<String>> futures = new ArrayList<Future<String>>();
+      for (int t = 0; t < READERS; t++) {
+        final int thread = t;
+        futures.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            for (int i = 0; i < 2000; i++) {
+              String key = "test."+thread+"."+i;
+              ed.setUserData(key, i);
+              if (ed.getUserInt(key) != i)
+                return "lost "+key;
+              if (i % 2 == 0)
+                ed.clearUserData(key);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<String> f : futures) {
+        Assert.assertNull(f.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    for (int t = 0; t < READERS; t++) {
+      for (int i = 0; i < 2000; i++) {
+        Assert.assertEquals(i % 2 == 1, ed.hasUserData("test."+t+"."+i));
+      }
+    }
+  }
+
+  private CodeSystem codeSystem(String id) {
+    CodeSystem cs = new CodeSystem();
+    cs.setId(id);
+    cs.setUrl(CS_URL+id);
+    cs.addConcept().setCode("a");
+    return cs;
+  }
+
+  private ValueSet valueSet(String id) {
+    ValueSet vs = new ValueSet();
+    vs.setId(id);
+    vs.setUrl(VS_URL+id);
+    vs.getCompose().addInclude().setSystem(CS_URL+id);
+    return vs;
+  }
+
+  private void check(boolean lockFree) throws Exception {
+    final SimpleWorkerContext context = new SimpleWorkerContext();
+    for (int i = 0; i < STABLE; i++) {
+      context.cacheResource(codeSystem("stable"+i));
+      context.cacheResource(valueSet("stable"+i));
+    }
+    context.setLockFreeReads(lockFree);
+    Assert.assertEquals(lockFree, context.isLockFreeReads());
+
+    final AtomicBoolean done = new AtomicBoolean();
+    ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+    try {
+      List<Future<String>> readers = new ArrayList<Future<String>>();
+      for (int t = 0; t < READERS; t++) {
+        readers.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            int i = 0;
+            while (!done.get()) {
+              String id = "stable"+(i % STABLE);
+              CodeSystem cs = context.fetchCodeSystem(CS_URL+id);
+              if (cs == null || !id.equals(cs.getId()))
+                return "stable code system "+id+" not found";
+              ValueSet vs = context.fetchResource(ValueSet.class, VS_URL+id);
+              if (vs == null || !id.equals(vs.getId()))
+                return "stable value set "+id+" not found";
+              Resource r = context.fetchResourceById("CodeSystem", id);
+              if (r != cs)
+                return "code system "+id+" not found by id";
+              // these come and go, but if they're found, they have to be the right one
+              String cid = "churn"+(i % CHURN);
+              cs = context.fetchCodeSystem(CS_URL+cid);
+              if (cs != null && !cid.equals(cs.getId()))
+                return "wrong code system for "+cid;
+              vs = context.fetchResource(ValueSet.class, VS_URL+cid);
+              if (vs != null && !cid.equals(vs.getId()))
+                return "wrong value set for "+cid;
+              int stable = 0;
+              for (CanonicalResource cr : context.allConformanceResources()) {
+                if (cr.getId().startsWith("stable"))
+                  stable++;
+              }
+              if (stable != STABLE * 2)
+                return "found "+stable+" stable resources";
+              i++;
+            }
+            return null;
+          }
+        }));
+      }
+      Future<String> writer = executor.submit(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          try {
+            for (int r = 0; r < ROUNDS; r++) {
+              String id = "churn"+(r % CHURN);
+              if (context.fetchCodeSystem(CS_URL+id) == null) {
+                context.cacheResource(codeSystem(id));
+                context.cacheResource(valueSet(id));
+              } else {
+                context.dropResource("CodeSystem", id);
+                context.dropResource("ValueSet", id);
+              }
+            }
+          } finally {
+            done.set(true);
+          }
+          return null;
+        }
+      });
+      Assert.assertNull(writer.get());
+      for (Future<String> f : readers) {
+        Assert.assertNull(f.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // every churned resource was added and dropped the same number of times
+    for (int i = 0; i < CHURN; i++) {
+      Assert.assertNull(context.fetchCodeSystem(CS_URL+"churn"+i));
+      Assert.assertNull(context.fetchResource(ValueSet.class, VS_URL+"churn"+i));
+    }
+    Assert.assertEquals(STABLE * 2, context.allConformanceResources().size());
+  }
+
+}
@@ -0,0 +1,67 @@
+package org.hl7.fhir.r5.test;
+
+import java.io.IOException;
+
+import org.hl7.fhir.r5.context.ContextImage;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.test.utils.TestingUtilities;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.cache.NpmPackage;
+import org.hl7.fhir.utilities.cache.PackageCacheManager;
+import org.hl7.fhir.utilities.cache.ToolsVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ContextImageTests {
+
+  @Test
+  public void testImageRoundTrip() throws IOException {
+    PackageCacheManager pcm = new PackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
+    NpmPackage npm = pcm.loadPackage("hl7.fhir.r4.core", "4.0.1");
+
+    long start = System.currentTimeMillis();
+    SimpleWorkerContext context = SimpleWorkerContext.fromPackage(npm);
+    context.finishLoading();
+    long tPackage = System.currentTimeMillis() - start;
+
+    String filename = Utilities.path("[tmp]", "r4.core.image");
+    context.saveImage(filename);
+
+    start = System.currentTimeMillis();
+    SimpleWorkerContext image = SimpleWorkerContext.fromImage(filename);
+    long tImage = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    StructureDefinition sd = image.fetchResource(StructureDefinition.class, "http://hl7.org/fhir/StructureDefinition/Patient");
+    ValueSet vs = image.fetchResource(ValueSet.class, "http://hl7.org/fhir/ValueSet/administrative-gender");
+    long tFetch = System.currentTimeMillis() - start;
+    if (!TestingUtilities.silent) {
+      System.out.println("Context from package: "+tPackage+"ms, from image: "+tImage+"ms (first fetches: "+tFetch+"ms)");
+    }
+
+    Assert.assertNotNull(sd);
+    Assert.assertTrue(sd.hasSnapshot());
+    Assert.assertNotNull(vs);
+    Assert.assertEquals(context.getVersion(), image.getVersion());
+    Assert.assertEquals(context.getBinaries().size(), image.getBinaries().size());
+    Assert.assertEquals(context.listAllResources().size(), image.listAllResources().size());
+    Assert.assertEquals(context.fetchResource(StructureDefinition.class, "http://hl7.org/fhir/StructureDefinition/Patient").getSnapshot().getElement().size(), sd.getSnapshot().getElement().size());
+
+    // map the image in small chunks, so that the header and many of the resources are split across chunks
+    SimpleWorkerContext chunked = new SimpleWorkerContext();
+    chunked.setAllowLoadingDuplicates(true);
+    ContextImage ci = ContextImage.load(filename, chunked, 4096);
+    Assert.assertEquals(image.listAllResources().size(), ci.getCount());
+    Assert.assertEquals(context.getVersion(), chunked.getVersion());
+    Assert.assertEquals(context.getBinaries().size(), chunked.getBinaries().size());
+    Assert.assertEquals(context.listAllResources().size(), chunked.listAllResources().size());
+    for (StructureDefinition t : context.allStructures()) {
+      StructureDefinition c = chunked.fetchResource(StructureDefinition.class, t.getUrl());
+      Assert.assertNotNull(t.getUrl(), c);
+      Assert.assertEquals(t.getUrl(), t.getSnapshot().getElement().size(), c.getSnapshot().getElement().size());
+    }
+  }
+
+}
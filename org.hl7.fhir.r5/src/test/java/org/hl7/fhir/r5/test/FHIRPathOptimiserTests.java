@@ -0,0 +1,243 @@
+package org.hl7.fhir.r5.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.BooleanType;
+import org.hl7.fhir.r5.model.DateTimeType;
+import org.hl7.fhir.r5.model.DateType;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.ElementDefinitionConstraintComponent;
+import org.hl7.fhir.r5.model.ExpressionNode;
+import org.hl7.fhir.r5.model.IntegerType;
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.test.utils.TestingUtilities;
+import org.hl7.fhir.r5.utils.FHIRPathEngine;
+import org.hl7.fhir.r5.utils.FHIRPathEngine.CompiledExpression;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs the invariants from the core structure definitions against the example resources, interpreted and
+ * compiled with the types of the elements they apply to, and checks they come to the same conclusion. Then checks
+ * that each of the optimiser's rewrites is made, and gives the same answers as the interpreter
+ */
+public class FHIRPathOptimiserTests {
+
+  private static final String[] INPUTS = { "patient-example.xml", "observation-example.xml", "questionnaire-example.xml" };
+  private static final int RUNS = 20;
+
+  private static class Check {
+    private Element resource;
+    private Base item;
+    private String name;
+    private ExpressionNode node;
+    private CompiledExpression compiled;
+  }
+
+  @Test
+  public void testCoreInvariants() throws Exception {
+    FHIRPathEngine fp = new FHIRPathEngine(TestingUtilities.context());
+    List<Check> checks = new ArrayList<Check>();
+    int choices = 0;
+    for (String input : INPUTS) {
+      Element res = Manager.parse(TestingUtilities.context(), TestingUtilities.loadTestResourceStream("r5", input), FhirFormat.XML);
+      StructureDefinition sd = TestingUtilities.context().fetchTypeDefinition(res.fhirType());
+      for (ElementDefinition ed : sd.getSnapshot().getElement()) {
+        // the validator compiles the invariants on choice elements against the path with [x] in it
+        List<Base> items = fp.evaluate(res, ed.getPath().replace("[x]", ""));
+        for (ElementDefinitionConstraintComponent inv : ed.getConstraint()) {
+          if (inv.hasExpression()) {
+            ExpressionNode node = fp.parse(inv.getExpression());
+            CompiledExpression compiled = fp.compile(null, sd, ed.getPath(), node);
+            if (ed.getPath().contains("[x]")) {
+              choices = choices + items.size();
+            }
+            for (Base item : items) {
+              Check c = new Check();
+              c.resource = res;
+              c.item = item;
+              c.name = inv.getKey()+" on "+ed.getPath()+" in "+input;
+              c.node = node;
+              c.compiled = compiled;
+              checks.add(c);
+            }
+          }
+        }
+      }
+    }
+    Assert.assertTrue(checks.size() > 0);
+    Assert.assertTrue(choices > 0);
+
+    for (Check c : checks) {
+      Assert.assertEquals(c.name, outcome(fp, c, false), outcome(fp, c, true));
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++) {
+      for (Check c : checks) {
+        outcome(fp, c, false);
+      }
+    }
+    long tInterpreted = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++) {
+      for (Check c : checks) {
+        outcome(fp, c, true);
+      }
+    }
+    long tCompiled = System.nanoTime() - start;
+    if (!TestingUtilities.silent) {
+      System.out.println("Core invariants: "+checks.size() * RUNS+" evaluations, interpreted "+tInterpreted / 1000000+"ms, compiled "+tCompiled / 1000000+"ms");
+    }
+  }
+
+  @Test
+  public void testConstants() throws Exception {
+    FHIRPathEngine fp = new FHIRPathEngine(TestingUtilities.context());
+    Patient p = new Patient();
+    CompiledExpression ce = fp.compile("(1 + 2 = 3) and (2 * 3 > 5)");
+    Assert.assertEquals("const(true)", ce.describe());
+    Assert.assertTrue(fp.evaluateToBoolean(null, p, p, p, ce));
+    ce = fp.compile("1 + 2");
+    Assert.assertEquals("const(3)", ce.describe());
+    Assert.assertEquals("3", fp.evaluate(p, ce).get(0).primitiveValue());
+    // not constant
+    Assert.assertEquals("active = const(true)", fp.compile("active = true").describe());
+  }
+
+  @Test
+  public void testConstantsAreCopied() throws Exception {
+    FHIRPathEngine fp = new FHIRPathEngine(TestingUtilities.context());
+    Patient p = new Patient();
+    p.setActive(true);
+    CompiledExpression ce = fp.compile("1 + 2");
+    ((IntegerType) fp.evaluate(p, ce).get(0)).setValue(7);
+    Assert.assertEquals("3", fp.evaluate(p, ce).get(0).primitiveValue());
+    // literals, whether the expression is compiled or not
+    ce = fp.compile("active | 'test'");
+    List<Base> result = fp.evaluate(p, ce);
+    Assert.assertSame(p.getActiveElement(), result.get(0));
+    ((StringType) result.get(1)).setValue("changed");
+    Assert.assertEquals("test", fp.evaluate(p, ce).get(1).primitiveValue());
+    ((StringType) fp.evaluate(p, "'test'").get(0)).setValue("changed");
+    Assert.assertEquals("test", fp.evaluate(p, "'test'").get(0).primitiveValue());
+  }
+
+  @Test
+  public void testPathExists() throws Exception {
+    FHIRPathEngine fp = new FHIRPathEngine(TestingUtilities.context());
+    StructureDefinition sd = TestingUtilities.context().fetchTypeDefinition("Patient");
+    CompiledExpression suffixEmpty = fp.compile(null, sd, "Patient", fp.parse("name.suffix.empty()"));
+    CompiledExpression suffixExists = fp.compile(null, sd, "Patient", fp.parse("name.suffix.exists()"));
+    CompiledExpression familyEmpty = fp.compile(null, sd, "Patient", fp.parse("name.family.empty()"));
+    CompiledExpression givenExists = fp.compile(null, sd, "Patient", fp.parse("name.given.exists()"));
+    CompiledExpression nameExists = fp.compile(null, sd, "Patient", fp.parse("Patient.name.exists()"));
+    Assert.assertEquals("name.empty(suffix)", suffixEmpty.describe());
+    Assert.assertEquals("name.exists(suffix)", suffixExists.describe());
+    Assert.assertEquals("Patient.exists(name)", nameExists.describe());
+
+    // no names at all
+    Patient p = new Patient();
+    assertSame(fp, p, suffixEmpty, true);
+    assertSame(fp, p, suffixExists, false);
+    assertSame(fp, p, familyEmpty, true);
+    assertSame(fp, p, givenExists, false);
+    assertSame(fp, p, nameExists, false);
+
+    // a name with no suffix or family
+    p.addName().addGiven("Pete");
+    assertSame(fp, p, suffixEmpty, true);
+    assertSame(fp, p, familyEmpty, true);
+    assertSame(fp, p, givenExists, true);
+    assertSame(fp, p, nameExists, true);
+
+    // the second name has them
+    p.addName().setFamily("Smith").addSuffix("Jr");
+    assertSame(fp, p, suffixEmpty, false);
+    assertSame(fp, p, suffixExists, true);
+    assertSame(fp, p, familyEmpty, false);
+  }
+
+  @Test
+  public void testEle1() throws Exception {
+    FHIRPathEngine fp = new FHIRPathEngine(TestingUtilities.context());
+    StructureDefinition sd = TestingUtilities.context().fetchTypeDefinition("Patient");
+    CompiledExpression ce = fp.compile(null, sd, "Patient.birthDate", fp.parse("hasValue() or (children().count() > id.count())"));
+    Assert.assertEquals("ele-1", ce.describe());
+    Assert.assertEquals("name.all(ele-1)", fp.compile("name.all(hasValue() or (children().count() > id.count()))").describe());
+    Assert.assertEquals("ele-1", fp.compile("hasValue() or (children().count()>id.count())").describe());
+    // anything else is left alone
+    Assert.assertFalse(fp.compile("hasValue() or (children().count() > extension.count())").describe().contains("ele-1"));
+    Assert.assertFalse(fp.compile("hasValue() or (children().count() >= id.count())").describe().contains("ele-1"));
+    Assert.assertFalse(fp.compile("hasValue() or (children().count() > id.count()) or true").describe().contains("ele-1"));
+
+    Patient p = new Patient();
+    // a primitive with only an id fails ele-1
+    p.getBirthDateElement().setId("b1");
+    assertSame(fp, p, p.getBirthDateElement(), ce, false);
+    // ... but passes with an extension
+    p.getBirthDateElement().addExtension("http://test.org/fhir/StructureDefinition/ext", new BooleanType(true));
+    assertSame(fp, p, p.getBirthDateElement(), ce, true);
+    // ... or a value
+    p.setBirthDateElement(new DateType("2000-01-01"));
+    assertSame(fp, p, p.getBirthDateElement(), ce, true);
+  }
+
+  @Test
+  public void testOfType() throws Exception {
+    FHIRPathEngine fp = new FHIRPathEngine(TestingUtilities.context());
+    StructureDefinition sd = TestingUtilities.context().fetchTypeDefinition("Patient");
+    CompiledExpression quantity = fp.compile(null, sd, "Patient", fp.parse("deceased.ofType(Quantity).empty()"));
+    CompiledExpression dateTime = fp.compile(null, sd, "Patient", fp.parse("deceased.ofType(dateTime).exists()"));
+    CompiledExpression asBoolean = fp.compile(null, sd, "Patient", fp.parse("(deceased as boolean).exists()"));
+    CompiledExpression either = fp.compile(null, sd, "Patient", fp.parse("deceased.ofType(boolean).exists() or deceased.ofType(Quantity).exists()"));
+    // deceased can't be a Quantity, so that ofType() is dropped, but not the others
+    Assert.assertEquals("deceased.{}.empty()", quantity.describe());
+    Assert.assertEquals("deceased.ofType(dateTime).exists()", dateTime.describe());
+    Assert.assertEquals("deceased.ofType(boolean).exists() or deceased.{}.exists()", either.describe());
+
+    Patient p = new Patient();
+    p.setDeceased(new DateTimeType("2020-01-01"));
+    assertSame(fp, p, quantity, true);
+    assertSame(fp, p, dateTime, true);
+    assertSame(fp, p, asBoolean, false);
+    assertSame(fp, p, either, false);
+    p.setDeceased(new BooleanType(true));
+    assertSame(fp, p, quantity, true);
+    assertSame(fp, p, dateTime, false);
+    assertSame(fp, p, asBoolean, true);
+    assertSame(fp, p, either, true);
+  }
+
+  /**
+   * the compiled expression and the interpreted one both come to the expected answer
+   */
+  private void assertSame(FHIRPathEngine fp, Patient p, CompiledExpression ce, boolean expected) throws Exception {
+    assertSame(fp, p, p, ce, expected);
+  }
+
+  private void assertSame(FHIRPathEngine fp, Patient p, Base focus, CompiledExpression ce, boolean expected) throws Exception {
+    Assert.assertEquals(ce.toString(), expected, fp.evaluateToBoolean(null, p, p, focus, ce.getExpression()));
+    Assert.assertEquals(ce.describe(), expected, fp.evaluateToBoolean(null, p, p, focus, ce));
+  }
+
+  private String outcome(FHIRPathEngine fp, Check c, boolean compiled) {
+    try {
+      if (compiled) {
+        return Boolean.toString(fp.evaluateToBoolean(null, c.resource, c.resource, c.item, c.compiled));
+      } else {
+        return Boolean.toString(fp.evaluateToBoolean(null, c.resource, c.resource, c.item, c.node));
+      }
+    } catch (Exception e) {
+      return "error";
+    }
+  }
+
+}
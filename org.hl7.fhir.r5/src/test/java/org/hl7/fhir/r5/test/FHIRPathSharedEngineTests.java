@@ -0,0 +1,125 @@
+package org.hl7.fhir.r5.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.ExpressionNode;
+import org.hl7.fhir.r5.model.Patient;
+import org.hl7.fhir.r5.test.utils.TestingUtilities;
+import org.hl7.fhir.r5.utils.ExpressionNodeCache;
+import org.hl7.fhir.r5.utils.FHIRLexer;
+import org.hl7.fhir.r5.utils.FHIRPathEngine;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * One engine, used by several threads at once: each thread should get its own results and its own log
+ */
+public class FHIRPathSharedEngineTests {
+
+  private static final int THREADS = 8;
+  private static final int RUNS = 200;
+
+  @Test
+  public void testSharedEngine() throws Exception {
+    final FHIRPathEngine fp = new FHIRPathEngine(TestingUtilities.context());
+    final ExpressionNode node = fp.parse("name.given.trace('given').count() = 2 and name.family.where($this.startsWith('F')).exists()");
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int i = 0; i < THREADS; i++) {
+        final String id = Integer.toString(i);
+        results.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            Patient p = new Patient();
+            p.addName().setFamily("F"+id).addGiven("A"+id).addGiven("B"+id);
+            for (int j = 0; j < RUNS; j++) {
+              List<Base> outcome = fp.evaluate(p, node);
+              if (outcome.size() != 1 || !"true".equals(outcome.get(0).primitiveValue()))
+                return "wrong result: "+outcome;
+              String log = fp.forLog();
+              if (!log.contains("A"+id+",B"+id))
+                return "wrong log: "+log;
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<String> f : results) {
+        Assert.assertNull(f.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testLogIsPerEvaluation() throws Exception {
+    FHIRPathEngine fp = new FHIRPathEngine(TestingUtilities.context());
+    Patient p = new Patient();
+    p.addName().setFamily("Smith");
+    fp.evaluate(p, fp.parse("name.family.trace('family')"));
+    Assert.assertTrue(fp.hasLog());
+    fp.evaluate(p, fp.parse("name.family"));
+    Assert.assertFalse(fp.hasLog());
+  }
+
+  @Test
+  public void testParseCache() throws Exception {
+    FHIRPathEngine fp1 = new FHIRPathEngine(TestingUtilities.context());
+    FHIRPathEngine fp2 = new FHIRPathEngine(TestingUtilities.context());
+    String path = "name.where(use = 'official').family.exists() and birthDate.empty().not()";
+    ExpressionNode node = fp1.parse(path);
+    long hits = ExpressionNodeCache.getHits();
+    Assert.assertSame(node, fp2.parse(path));
+    Assert.assertEquals(hits + 1, ExpressionNodeCache.getHits());
+    // the parse name is part of the key
+    Assert.assertNotSame(node, fp2.parse(path, "other"));
+  }
+
+  @Test
+  public void testCheckLeavesSharedNodeAlone() throws Exception {
+    FHIRPathEngine fp = new FHIRPathEngine(TestingUtilities.context());
+    ExpressionNode node = fp.parse("name.given | name.family");
+    Assert.assertTrue(node.isShared());
+    Assert.assertTrue(node.getOpNext().isShared());
+    Assert.assertTrue(fp.check(null, "Patient", "Patient", node).hasType(TestingUtilities.context(), "string"));
+    Assert.assertTrue(fp.check(null, "Practitioner", "Practitioner", node).hasType(TestingUtilities.context(), "string"));
+    Assert.assertNull(node.getTypes());
+    Assert.assertNull(node.getOpTypes());
+  }
+
+  @Test
+  public void testCheckSetsTypesOnOwnNode() throws Exception {
+    FHIRPathEngine fp = new FHIRPathEngine(TestingUtilities.context());
+    ExpressionNode node = fp.parse(new FHIRLexer("name.given | name.family", null));
+    Assert.assertFalse(node.isShared());
+    Assert.assertTrue(fp.check(null, "Patient", "Patient", node).hasType(TestingUtilities.context(), "string"));
+    Assert.assertTrue(node.getTypes().hasType(TestingUtilities.context(), "HumanName"));
+    Assert.assertTrue(node.getOpTypes().hasType(TestingUtilities.context(), "string"));
+    Assert.assertTrue(node.getOpNext().getTypes().hasType(TestingUtilities.context(), "HumanName"));
+  }
+
+  @Test
+  public void testParseCacheKeepsExpressionsInUse() throws Exception {
+    FHIRPathEngine fp = new FHIRPathEngine(TestingUtilities.context());
+    ExpressionNode hot = fp.parse("identifier.where(system = 'urn:hot').exists()");
+    ExpressionNode cold = fp.parse("identifier.where(system = 'urn:cold').exists()");
+    for (int i = 0; i < ExpressionNodeCache.MAX_SIZE * 3; i++) {
+      fp.parse("identifier.where(value = '"+i+"').exists()");
+      if (i % 1000 == 0) {
+        Assert.assertSame(hot, fp.parse("identifier.where(system = 'urn:hot').exists()"));
+      }
+    }
+    Assert.assertSame(hot, fp.parse("identifier.where(system = 'urn:hot').exists()"));
+    Assert.assertNotSame(cold, fp.parse("identifier.where(system = 'urn:cold').exists()"));
+    Assert.assertTrue(ExpressionNodeCache.size() <= ExpressionNodeCache.MAX_SIZE);
+  }
+
+}
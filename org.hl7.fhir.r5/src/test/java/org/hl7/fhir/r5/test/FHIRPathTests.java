@@ -110,8 +110,12 @@ public class FHIRPathTests {
 
     List<Object[]> objects = new ArrayList<Object[]>(list.size());
 
+    // each test is run twice: once interpreted, and once compiled
     for (Element e : list) {
-      objects.add(new Object[] { getName(e), e });
+      objects.add(new Object[] { getName(e), e, false });
+    }
+    for (Element e : list) {
+      objects.add(new Object[] { getName(e)+" (compiled)", e, true });
     }
 
     return objects;
@@ -137,11 +141,13 @@ public class FHIRPathTests {
 
   private final Element test;
   private final String name;
+  private final boolean compiled;
   private Map<String, Resource> resources = new HashMap<String, Resource>();
 
-  public FHIRPathTests(String name, Element e) {
+  public FHIRPathTests(String name, Element e, boolean compiled) {
     this.name = name;
     this.test = e;
+    this.compiled = compiled;
   }
 
   @SuppressWarnings("deprecation")
@@ -173,7 +179,10 @@ public class FHIRPathTests {
         }
         fp.check(res, res.getResourceType().toString(), res.getResourceType().toString(), node);
       }
-      outcome = fp.evaluate(res, node);
+      if (compiled)
+        outcome = fp.evaluate(res, fp.compile(node));
+      else
+        outcome = fp.evaluate(res, node);
       Assert.assertTrue(String.format("Expected exception parsing %s", expression), !fail);
     } catch (Exception e) {
       Assert.assertTrue(String.format("Unexpected exception parsing %s: "+e.getMessage(), expression), fail);
@@ -0,0 +1,49 @@
+package org.hl7.fhir.r5.test;
+
+import java.io.IOException;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.test.utils.TestingUtilities;
+import org.hl7.fhir.utilities.cache.NpmPackage;
+import org.hl7.fhir.utilities.cache.PackageCacheManager;
+import org.hl7.fhir.utilities.cache.ToolsVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LazyLoadingTests {
+
+  @Test
+  public void testLazyLoading() throws IOException {
+    PackageCacheManager pcm = new PackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
+    NpmPackage npm = pcm.loadPackage("hl7.fhir.r4.core", "4.0.1");
+
+    SimpleWorkerContext eager = new SimpleWorkerContext();
+    eager.loadFromPackage(npm, null);
+
+    long start = System.currentTimeMillis();
+    SimpleWorkerContext lazy = new SimpleWorkerContext();
+    lazy.setLazyLoading(true);
+    lazy.loadFromPackage(npm, null);
+    long t = System.currentTimeMillis() - start;
+    if (!TestingUtilities.silent)
+      System.out.println("Lazy load of r4.core: "+t+"ms");
+
+    StructureDefinition sd = lazy.fetchResource(StructureDefinition.class, "http://hl7.org/fhir/StructureDefinition/Patient");
+    Assert.assertNotNull(sd);
+    Assert.assertEquals("Patient", sd.getType());
+    Assert.assertTrue(sd.hasSnapshot());
+    Assert.assertSame(sd, lazy.fetchResource(StructureDefinition.class, "http://hl7.org/fhir/StructureDefinition/Patient"));
+    Assert.assertSame(sd, lazy.fetchResourceById("StructureDefinition", "Patient"));
+
+    ValueSet vs = lazy.fetchResource(ValueSet.class, "http://hl7.org/fhir/ValueSet/administrative-gender|4.0.1");
+    Assert.assertNotNull(vs);
+
+    // listing still works, and loads everything
+    Assert.assertEquals(eager.listStructures().size(), lazy.listStructures().size());
+    Assert.assertEquals(eager.listTransforms().size(), lazy.listTransforms().size());
+    Assert.assertEquals(eager.allConformanceResources().size(), lazy.allConformanceResources().size());
+  }
+
+}
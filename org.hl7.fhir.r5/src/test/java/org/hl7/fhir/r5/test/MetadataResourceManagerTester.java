@@ -5,6 +5,7 @@ import static org.junit.Assert.*;
 import org.hl7.fhir.r5.context.CanonicalResourceManager;
 import org.hl7.fhir.r5.model.CodeSystem;
 import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.test.utils.TestingUtilities;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -371,4 +372,90 @@ public class MetadataResourceManagerTester {
     Assert.assertNull(mrm.get("http://url/ValueSet/234", "4.1"));
   }
 
+  @Test
+  public void testVersionOrderIsNumeric() {
+    CanonicalResourceManager<ValueSet> mrm = new CanonicalResourceManager<>(true);
+    ValueSet vs1 = new ValueSet();
+    vs1.setId("2345");
+    vs1.setUrl("http://url/ValueSet/234");
+    vs1.setVersion("4.10.0");
+    vs1.setName("1");
+    
+    ValueSet vs2 = new ValueSet();
+    vs2.setId("2346");
+    vs2.setUrl("http://url/ValueSet/234");
+    vs2.setVersion("4.9.0");
+    vs2.setName("2");
+    
+    mrm.see(vs1);
+    mrm.see(vs2);
+    Assert.assertEquals(mrm.get("http://url/ValueSet/234").getName(), "1");
+    Assert.assertEquals(mrm.get("http://url/ValueSet/234", "4.9.1").getName(), "2");
+    Assert.assertEquals(mrm.get("http://url/ValueSet/234", "4.10.1").getName(), "1");
+  }
+
+  @Test
+  public void testManyVersions() {
+    int count = 10000;
+    CanonicalResourceManager<ValueSet> mrm = new CanonicalResourceManager<>(false);
+    for (int i = 0; i < count; i++) {
+      ValueSet vs = new ValueSet();
+      vs.setId("vs"+i);
+      vs.setUrl("http://url/ValueSet/"+(i / 5));
+      // the versions for each url arrive out of order
+      vs.setVersion("1."+((i * 3) % 5)+".0");
+      mrm.see(vs);
+    }
+    Assert.assertEquals(count, mrm.size());
+    Assert.assertEquals(count, mrm.getList().size());
+    for (int u = 0; u < count / 5; u += 499) {
+      String url = "http://url/ValueSet/"+u;
+      Assert.assertEquals("1.4.0", mrm.get(url).getVersion());
+      for (int v = 0; v < 5; v++) {
+        Assert.assertEquals("1."+v+".0", mrm.get(url, "1."+v+".0").getVersion());
+        Assert.assertEquals("1."+v+".0", mrm.get(url, "1."+v).getVersion());
+      }
+    }
+
+    // dropping the latest version makes the next one the latest
+    ValueSet latest = mrm.get("http://url/ValueSet/0");
+    mrm.drop(latest.getId());
+    Assert.assertEquals(count - 1, mrm.size());
+    Assert.assertEquals("1.3.0", mrm.get("http://url/ValueSet/0").getVersion());
+    Assert.assertNull(mrm.get("http://url/ValueSet/0", "1.4.0"));
+    Assert.assertEquals("1.4.0", mrm.get("http://url/ValueSet/1").getVersion());
+  }
+
+  @Test
+  public void testLoadScaling() {
+    loadMany(10000); // warm up
+    long t10 = Long.MAX_VALUE;
+    long t50 = Long.MAX_VALUE;
+    // the best of 3, so a pause for garbage collection or a busy machine doesn't decide the result
+    for (int i = 0; i < 3; i++) {
+      t10 = Math.min(t10, loadMany(10000));
+      t50 = Math.min(t50, loadMany(50000));
+    }
+    if (!TestingUtilities.silent)
+      System.out.println("CanonicalResourceManager: 10k resources in "+t10+"ms, 50k resources in "+t50+"ms");
+    // 5 times the resources should cost about 5 times as much; 25 times would mean a quadratic load
+    Assert.assertTrue("loading 50k resources took "+t50+"ms vs "+t10+"ms for 10k", t50 < Math.max(t10, 50) * 15);
+  }
+
+  private long loadMany(int count) {
+    CanonicalResourceManager<ValueSet> mrm = new CanonicalResourceManager<>(false);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < count; i++) {
+      ValueSet vs = new ValueSet();
+      vs.setId("vs"+i);
+      vs.setUrl("http://url/ValueSet/"+(i / 5));
+      vs.setVersion("1."+(i % 5)+".0");
+      mrm.see(vs);
+    }
+    long res = System.currentTimeMillis() - start;
+    Assert.assertEquals(count, mrm.size());
+    Assert.assertEquals("1.4.0", mrm.get("http://url/ValueSet/0").getVersion());
+    return res;
+  }
+
 }
@@ -0,0 +1,48 @@
+package org.hl7.fhir.r5.test;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.test.utils.TestingUtilities;
+import org.hl7.fhir.utilities.cache.NpmPackage;
+import org.hl7.fhir.utilities.cache.PackageCacheManager;
+import org.hl7.fhir.utilities.cache.ToolsVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelLoadingTests {
+
+  @Test
+  public void testSameResultAsSerial() throws IOException {
+    PackageCacheManager pcm = new PackageCacheManager(true, ToolsVersion.TOOLS_VERSION);
+    NpmPackage npm = pcm.loadPackage("hl7.fhir.r4.core", "4.0.1");
+
+    long start = System.currentTimeMillis();
+    SimpleWorkerContext serial = new SimpleWorkerContext();
+    serial.loadFromPackage(npm, null);
+    long tSerial = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    SimpleWorkerContext parallel = new SimpleWorkerContext();
+    parallel.setLoadThreads(Runtime.getRuntime().availableProcessors());
+    parallel.loadFromPackage(npm, null);
+    long tParallel = System.currentTimeMillis() - start;
+    if (!TestingUtilities.silent)
+      System.out.println("Load r4.core: serial "+tSerial+"ms, "+parallel.getLoadThreads()+" threads "+tParallel+"ms");
+
+    List<Resource> ls = serial.listAllResources();
+    List<Resource> lp = parallel.listAllResources();
+    Assert.assertEquals(ls.size(), lp.size());
+    for (int i = 0; i < ls.size(); i++) {
+      Assert.assertEquals(ls.get(i).fhirType()+"/"+ls.get(i).getId(), lp.get(i).fhirType()+"/"+lp.get(i).getId());
+      if (ls.get(i) instanceof CanonicalResource) {
+        CanonicalResource cs = (CanonicalResource) ls.get(i);
+        Assert.assertEquals(serial.fetchResource(Resource.class, cs.getUrl()).getId(), parallel.fetchResource(Resource.class, cs.getUrl()).getId());
+      }
+    }
+  }
+
+}
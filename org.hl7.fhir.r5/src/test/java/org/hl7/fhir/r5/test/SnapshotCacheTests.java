@@ -0,0 +1,101 @@
+package org.hl7.fhir.r5.test;
+
+import java.io.IOException;
+
+import org.hl7.fhir.r5.context.SnapshotCache;
+import org.hl7.fhir.r5.model.Enumerations.FHIRVersion;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition.StructureDefinitionKind;
+import org.hl7.fhir.r5.model.StructureDefinition.TypeDerivationRule;
+import org.hl7.fhir.r5.test.utils.TestingUtilities;
+import org.hl7.fhir.utilities.Utilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SnapshotCacheTests {
+
+  private StructureDefinition makeBase() {
+    StructureDefinition sd = new StructureDefinition();
+    sd.setUrl("http://test.org/fhir/StructureDefinition/base");
+    sd.setFhirVersion(FHIRVersion._4_0_1);
+    sd.setKind(StructureDefinitionKind.RESOURCE);
+    sd.setType("Patient");
+    sd.setDerivation(TypeDerivationRule.CONSTRAINT);
+    sd.getSnapshot().addElement().setPath("Patient").setMin(0).setMax("*");
+    sd.getSnapshot().addElement().setPath("Patient.name").setMin(0).setMax("*");
+    return sd;
+  }
+
+  private StructureDefinition makeProfile(int min) {
+    StructureDefinition sd = new StructureDefinition();
+    sd.setUrl("http://test.org/fhir/StructureDefinition/profile");
+    sd.setVersion("1.0.0");
+    sd.setFhirVersion(FHIRVersion._4_0_1);
+    sd.setKind(StructureDefinitionKind.RESOURCE);
+    sd.setType("Patient");
+    sd.setDerivation(TypeDerivationRule.CONSTRAINT);
+    sd.setBaseDefinition("http://test.org/fhir/StructureDefinition/base");
+    sd.getDifferential().addElement().setPath("Patient.name").setMin(min);
+    return sd;
+  }
+
+  private SnapshotCache makeCache() throws IOException {
+    String folder = TestingUtilities.tempFolder("snapshot-cache");
+    Utilities.clearDirectory(folder);
+    return new SnapshotCache(folder);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    SnapshotCache cache = makeCache();
+    StructureDefinition base = makeBase();
+
+    StructureDefinition p = makeProfile(1);
+    String key = cache.getKey(p, base);
+    Assert.assertFalse(cache.load(p, key));
+    p.getSnapshot().addElement().setPath("Patient").setMin(0).setMax("*");
+    p.getSnapshot().addElement().setPath("Patient.name").setMin(1).setMax("*");
+    cache.save(p, key);
+
+    StructureDefinition p2 = makeProfile(1);
+    String key2 = cache.getKey(p2, base);
+    Assert.assertEquals(key, key2);
+    Assert.assertTrue(cache.load(p2, key2));
+    Assert.assertEquals(2, p2.getSnapshot().getElement().size());
+    Assert.assertEquals("Patient.name", p2.getSnapshot().getElement().get(1).getPath());
+    Assert.assertEquals(1, p2.getSnapshot().getElement().get(1).getMin());
+    Assert.assertEquals(1, cache.getHits());
+    Assert.assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testSourceChanges() throws IOException {
+    SnapshotCache cache = makeCache();
+    StructureDefinition base = makeBase();
+
+    StructureDefinition p = makeProfile(1);
+    String key = cache.getKey(p, base);
+    p.getSnapshot().addElement().setPath("Patient").setMin(0).setMax("*");
+    cache.save(p, key);
+
+    // a profile that is edited after its key was worked out
+    StructureDefinition p2 = makeProfile(1);
+    Assert.assertEquals(key, cache.getKey(p2, base));
+    p2.getDifferential().getElementFirstRep().setMin(2);
+    String key2 = cache.getKey(p2, base);
+    Assert.assertFalse(key.equals(key2));
+    Assert.assertFalse(cache.load(p2, key2));
+    Assert.assertFalse(p2.hasSnapshot());
+
+    // a change to the base
+    StructureDefinition p3 = makeProfile(1);
+    base.getSnapshot().getElement().get(1).setMax("1");
+    String key3 = cache.getKey(p3, base);
+    Assert.assertFalse(key.equals(key3));
+    Assert.assertFalse(cache.load(p3, key3));
+
+    Assert.assertEquals(0, cache.getHits());
+    Assert.assertEquals(2, cache.getMisses());
+  }
+
+}
@@ -0,0 +1,211 @@
+package org.hl7.fhir.r5.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import org.hl7.fhir.r5.context.IWorkerContext.ValidationResult;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.context.TerminologyCache;
+import org.hl7.fhir.r5.context.TerminologyCache.CacheToken;
+import org.hl7.fhir.r5.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r5.model.CodeableConcept;
+import org.hl7.fhir.r5.model.Coding;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.test.utils.TestingUtilities;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationOptions;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TerminologyCacheTests {
+
+  private static final String ENTRY_MARKER = "-------------------------------------------------------------------------------------";
+
+  private String folder(String name) throws IOException {
+    String folder = TestingUtilities.tempFolder(name);
+    Utilities.clearDirectory(folder);
+    return folder;
+  }
+
+  private ValueSet valueSet() {
+    ValueSet vs = new ValueSet();
+    vs.getCompose().addInclude().setSystem("http://loinc.org").addConcept().setCode("1234-5");
+    return vs;
+  }
+
+  private CacheToken token(TerminologyCache cache, String code) {
+    return cache.generateValidationToken(new ValidationOptions(), new Coding("http://loinc.org", code, null), valueSet());
+  }
+
+  private int countEntries(File f) throws IOException {
+    String s = TextFile.fileToString(f.getAbsolutePath());
+    int res = -1; // the file starts with a marker
+    int i = s.indexOf(ENTRY_MARKER);
+    while (i > -1) {
+      res++;
+      i = s.indexOf(ENTRY_MARKER, i + ENTRY_MARKER.length());
+    }
+    return res;
+  }
+
+  @Test
+  public void testJournalReplay() throws Exception {
+    String folder = folder("tx-cache-replay");
+    TerminologyCache cache = new TerminologyCache(new Object(), folder);
+    cache.cacheValidation(token(cache, "1234-5"), new ValidationResult(null, null, new ConceptDefinitionComponent().setDisplay("Test Code")), true);
+    cache.cacheValidation(token(cache, "9999-9"), new ValidationResult(IssueSeverity.ERROR, "Unknown code 9999-9"), true);
+    cache.cacheValidation(token(cache, "8888-8"), new ValidationResult(IssueSeverity.ERROR, "not kept"), false);
+
+    File f = new File(Utilities.path(folder, "loinc.cache"));
+    Assert.assertTrue(f.exists());
+    Assert.assertEquals(2, countEntries(f));
+
+    TerminologyCache reloaded = new TerminologyCache(new Object(), folder);
+    ValidationResult vr = reloaded.getValidation(token(reloaded, "1234-5"));
+    Assert.assertNotNull(vr);
+    Assert.assertEquals("Test Code", vr.getDisplay());
+    Assert.assertNull(vr.getSeverity());
+    vr = reloaded.getValidation(token(reloaded, "9999-9"));
+    Assert.assertNotNull(vr);
+    Assert.assertEquals(IssueSeverity.ERROR, vr.getSeverity());
+    Assert.assertEquals("Unknown code 9999-9", vr.getMessage());
+    Assert.assertNull(reloaded.getValidation(token(reloaded, "8888-8")));
+  }
+
+  @Test
+  public void testJournalReplayCodeableConcept() throws Exception {
+    String folder = folder("tx-cache-replay-cc");
+    TerminologyCache cache = new TerminologyCache(new Object(), folder);
+    CodeableConcept cc = new CodeableConcept().setText("a \"quoted\" <test>");
+    cc.addCoding().setSystem("http://loinc.org").setCode("1234-5").setDisplay("Test Code");
+    cache.cacheValidation(cache.generateValidationToken(new ValidationOptions(), cc, valueSet()), new ValidationResult(IssueSeverity.WARNING, "a warning"), true);
+
+    TerminologyCache reloaded = new TerminologyCache(new Object(), folder);
+    ValidationResult vr = reloaded.getValidation(reloaded.generateValidationToken(new ValidationOptions(), cc, valueSet()));
+    Assert.assertNotNull(vr);
+    Assert.assertEquals("a warning", vr.getMessage());
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    TerminologyCache cache = new TerminologyCache(new Object(), null);
+    cache.setMaxTransientWeight(10);
+    Assert.assertNull(cache.getValidation(token(cache, "code-0")));
+    for (int i = 0; i < 25; i++) {
+      cache.cacheValidation(token(cache, "code-"+i), new ValidationResult(IssueSeverity.ERROR, "message "+i), false);
+    }
+    // each validation weighs 1, so the 15 oldest are gone
+    Assert.assertEquals(15, cache.getEvictions());
+    for (int i = 0; i < 15; i++) {
+      Assert.assertNull(cache.getValidation(token(cache, "code-"+i)));
+    }
+    for (int i = 15; i < 25; i++) {
+      Assert.assertEquals("message "+i, cache.getValidation(token(cache, "code-"+i)).getMessage());
+    }
+    Assert.assertEquals(10, cache.getHits());
+    Assert.assertEquals(16, cache.getMisses());
+
+    // persistent entries are never evicted, and lowering the limit evicts straight away
+    cache.cacheValidation(token(cache, "kept"), new ValidationResult(IssueSeverity.ERROR, "kept"), true);
+    cache.setMaxTransientWeight(4);
+    Assert.assertEquals(21, cache.getEvictions());
+    Assert.assertNull(cache.getValidation(token(cache, "code-20")));
+    Assert.assertNotNull(cache.getValidation(token(cache, "code-21")));
+    Assert.assertNotNull(cache.getValidation(token(cache, "kept")));
+    Assert.assertEquals(12, cache.getHits());
+    Assert.assertEquals(17, cache.getMisses());
+    Assert.assertEquals("hits: 12, misses: 17 (41% hit rate), evictions: 21, temporary weight: 4/4", cache.getStatistics());
+  }
+
+  @Test
+  public void testValueSetDigest() throws Exception {
+    TerminologyCache cache = new TerminologyCache(new Object(), null);
+    Coding code = new Coding("http://loinc.org", "1234-5", null);
+    ValueSet vs = valueSet();
+    String key = cache.generateValidationToken(new ValidationOptions(), code, vs).getKey();
+    Assert.assertEquals(key, cache.generateValidationToken(new ValidationOptions(), code, vs).getKey());
+    Assert.assertEquals(key, cache.generateValidationToken(new ValidationOptions(), code, valueSet()).getKey());
+
+    // the digest is kept until the value set is invalidated
+    vs.getCompose().getIncludeFirstRep().addConcept().setCode("9999-9");
+    Assert.assertEquals(key, cache.generateValidationToken(new ValidationOptions(), code, vs).getKey());
+    TerminologyCache.invalidateEssenceDigest(vs);
+    String changed = cache.generateValidationToken(new ValidationOptions(), code, vs).getKey();
+    Assert.assertFalse(key.equals(changed));
+    Assert.assertEquals(changed, cache.generateValidationToken(new ValidationOptions(), code, vs).getKey());
+
+    // caching the value set in a context again also invalidates it
+    SimpleWorkerContext context = new SimpleWorkerContext();
+    context.setAllowLoadingDuplicates(true);
+    vs.setUrl("http://test.org/fhir/ValueSet/test");
+    vs.setId("test");
+    context.cacheResource(vs);
+    vs.getCompose().getIncludeFirstRep().getConcept().remove(1);
+    Assert.assertEquals(changed, cache.generateValidationToken(new ValidationOptions(), code, vs).getKey());
+    context.cacheResource(vs);
+    Assert.assertEquals(key, cache.generateValidationToken(new ValidationOptions(), code, vs).getKey());
+  }
+
+  @Test
+  public void testJournalCompaction() throws Exception {
+    String folder = folder("tx-cache-compaction");
+    TerminologyCache cache = new TerminologyCache(new Object(), folder);
+    int count = 250;
+    for (int i = 0; i < count; i++) {
+      cache.cacheValidation(token(cache, "1234-5"), new ValidationResult(IssueSeverity.ERROR, "message "+i), true);
+    }
+    // compaction runs in the background once the garbage outweighs the live entries
+    File f = new File(Utilities.path(folder, "loinc.cache"));
+    long stop = System.currentTimeMillis() + 10000;
+    while (countEntries(f) >= count && System.currentTimeMillis() < stop) {
+      Thread.sleep(50);
+    }
+    Assert.assertTrue(countEntries(f) < count);
+
+    TerminologyCache reloaded = new TerminologyCache(new Object(), folder);
+    ValidationResult vr = reloaded.getValidation(token(reloaded, "1234-5"));
+    Assert.assertNotNull(vr);
+    Assert.assertEquals("message "+(count-1), vr.getMessage());
+  }
+
+  @Test
+  public void testJournalRecovery() throws Exception {
+    String folder = folder("tx-cache-recovery");
+    TerminologyCache cache = new TerminologyCache(new Object(), folder);
+    cache.cacheValidation(token(cache, "1234-5"), new ValidationResult(IssueSeverity.ERROR, "first"), true);
+    cache.cacheValidation(token(cache, "9999-9"), new ValidationResult(IssueSeverity.WARNING, "second"), true);
+
+    // a damaged entry, then one that was cut off while it was being appended
+    File f = new File(Utilities.path(folder, "loinc.cache"));
+    OutputStreamWriter sw = new OutputStreamWriter(new FileOutputStream(f, true), "UTF-8");
+    try {
+      sw.write("{\"code\" : {\"system\" : \"http://loinc.org\", \"code\" : \"7777-7\"}####\r\nv: {\r\n  \"display\" : \r\n"+ENTRY_MARKER+"\r\n");
+      sw.write("{\"code\" : {\"system\" : \"http://loinc.org\", \"code\" : \"6666-6\"}, \"valueSet\" :null}####\r\nv: {\r\n  \"disp");
+    } finally {
+      sw.close();
+    }
+
+    TerminologyCache reloaded = new TerminologyCache(new Object(), folder);
+    ValidationResult vr = reloaded.getValidation(token(reloaded, "1234-5"));
+    Assert.assertNotNull(vr);
+    Assert.assertEquals("first", vr.getMessage());
+    vr = reloaded.getValidation(token(reloaded, "9999-9"));
+    Assert.assertNotNull(vr);
+    Assert.assertEquals("second", vr.getMessage());
+
+    // the file was rewritten without the bad entries, so new entries can be appended to it
+    String s = TextFile.fileToString(f.getAbsolutePath());
+    Assert.assertFalse(s.contains("7777-7"));
+    Assert.assertFalse(s.contains("6666-6"));
+    Assert.assertEquals(2, countEntries(f));
+    reloaded.cacheValidation(token(reloaded, "5555-5"), new ValidationResult(IssueSeverity.ERROR, "third"), true);
+    reloaded = new TerminologyCache(new Object(), folder);
+    Assert.assertEquals("third", reloaded.getValidation(token(reloaded, "5555-5")).getMessage());
+    Assert.assertEquals("first", reloaded.getValidation(token(reloaded, "1234-5")).getMessage());
+  }
+
+}
@@ -0,0 +1,65 @@
+package org.hl7.fhir.utilities;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A shared cache of compiled regular expressions.
+ *
+ * String.matches() compiles the regex every time it is called, which adds up when the same
+ * few expressions (from profiles, or FHIRPath matches()) are checked against millions of values.
+ *
+ * The cache is bounded - if it gets too big (e.g. because the regexes come from the content
+ * being validated) it's just emptied, rather than tracking which expressions are used most
+ *
+ * The cache is safe to use from multiple threads
+ */
+public class RegexCache {
+
+  public static final int MAX_SIZE = 1000;
+
+  /**
+   * the lexical form of a FHIR dateTime, used by both FHIRPath and the validator
+   */
+  public static final Pattern DATETIME_PATTERN = Pattern.compile("([0-9]([0-9]([0-9][1-9]|[1-9]0)|[1-9]00)|[1-9]000)(-(0[1-9]|1[0-2])(-(0[1-9]|[1-2][0-9]|3[0-1])(T([01][0-9]|2[0-3]):[0-5][0-9]:([0-5][0-9]|60)(\\.[0-9]+)?(Z|(\\+|-)((0[0-9]|1[0-3]):[0-5][0-9]|14:00))?)?)?)?");
+
+  private static final Map<String, Pattern> cache = new ConcurrentHashMap<String, Pattern>();
+
+  /**
+   * get a compiled pattern for the regex. Throws PatternSyntaxException if the regex is not valid
+   */
+  public static Pattern compile(String regex) {
+    Pattern p = cache.get(regex);
+    if (p == null) {
+      p = Pattern.compile(regex);
+      if (cache.size() >= MAX_SIZE) {
+        cache.clear();
+      }
+      cache.put(regex, p);
+    }
+    return p;
+  }
+
+  /**
+   * same as value.matches(regex) - i.e. the regex must match the entire value
+   */
+  public static boolean matches(String value, String regex) {
+    return compile(regex).matcher(value).matches();
+  }
+
+  /**
+   * same as value.replaceAll(regex, replacement)
+   */
+  public static String replaceAll(String value, String regex, String replacement) {
+    return compile(regex).matcher(value).replaceAll(replacement);
+  }
+
+  public static int size() {
+    return cache.size();
+  }
+
+  public static void clear() {
+    cache.clear();
+  }
+}
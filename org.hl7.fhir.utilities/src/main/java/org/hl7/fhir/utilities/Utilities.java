@@ -72,6 +72,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
 import org.hl7.fhir.exceptions.FHIRException;
@@ -85,6 +86,8 @@ public class Utilities {
 //	 private static final String TOKEN_REGEX = "^a-z[A-Za-z0-9]*$";
 
   private static final String OID_REGEX = "[0-2](\\.(0|[1-9][0-9]*))+";
+  private static final Pattern OID_PATTERN = Pattern.compile(OID_REGEX);
+  private static final Pattern URL_PATTERN = Pattern.compile("^http(s{0,1})://[a-zA-Z0-9_/\\-\\.]+\\.([A-Za-z/]{2,5})[a-zA-Z0-9_/\\&\\?\\=\\-\\.\\~\\%]*");
 
   /**
      * Returns the plural form of the word in the string.
@@ -899,7 +902,7 @@ public class Utilities {
   }
 
   public static boolean isURL(String s) {
-    boolean ok = s.matches("^http(s{0,1})://[a-zA-Z0-9_/\\-\\.]+\\.([A-Za-z/]{2,5})[a-zA-Z0-9_/\\&\\?\\=\\-\\.\\~\\%]*");
+    boolean ok = URL_PATTERN.matcher(s).matches();
     return ok;
  }
 
@@ -974,7 +977,7 @@ public class Utilities {
 
 
   public static boolean isOid(String cc) {
-    return cc.matches(OID_REGEX) && cc.lastIndexOf('.') >= 5;
+    return OID_PATTERN.matcher(cc).matches() && cc.lastIndexOf('.') >= 5;
   }
 
 
@@ -1194,7 +1197,17 @@ public class Utilities {
   }
 
   public static boolean isValidId(String id) {
-    return id.matches("[A-Za-z0-9\\-\\.]{1,64}");
+    // same as id.matches("[A-Za-z0-9\\-\\.]{1,64}"), without compiling the regex each time
+    if (id.length() < 1 || id.length() > 64) {
+      return false;
+    }
+    for (int i = 0; i < id.length(); i++) {
+      char ch = id.charAt(i);
+      if (!((ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9') || ch == '-' || ch == '.')) {
+        return false;
+      }
+    }
+    return true;
   }
 
   public static List<String> sorted(Set<String> set) {
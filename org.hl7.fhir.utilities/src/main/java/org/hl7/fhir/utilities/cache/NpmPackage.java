@@ -33,6 +33,7 @@ import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -84,6 +85,46 @@ public class NpmPackage {
     return ver.matches("^[0-9]+\\.[0-9]+\\.[0-9]+$");
   }
 
+  /**
+   * the information about a resource from the .index.json of a package folder
+   */
+  public class PackageResourceInformation {
+    private String id;
+    private String type;
+    private String url;
+    private String version;
+    private String filename;
+
+    public PackageResourceInformation(JsonObject fi) {
+      super();
+      id = JSONUtil.str(fi, "id");
+      type = JSONUtil.str(fi, "resourceType");
+      url = JSONUtil.str(fi, "url");
+      version = JSONUtil.str(fi, "version");
+      filename = JSONUtil.str(fi, "filename");
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public String getVersion() {
+      return version;
+    }
+
+    public String getFilename() {
+      return filename;
+    }
+  }
+
   public class NpmPackageFolder {
     private String name;
     private Map<String, List<String>> types = new HashMap<>();
@@ -440,6 +481,30 @@ public class NpmPackage {
     return res;
   }
 
+  /**
+   * The index entries for the resources of the given types, in the same order as listResources(). This allows 
+   * the resources to be registered without loading them
+   */
+  public List<PackageResourceInformation> listIndexedResources(String... types) throws IOException {
+    List<PackageResourceInformation> res = new ArrayList<PackageResourceInformation>();
+    NpmPackageFolder folder = folders.get("package");
+    if (folder.index != null) {
+      for (JsonElement e : folder.index.getAsJsonArray("files")) {
+        JsonObject fi = (JsonObject) e;
+        if (Utilities.existsInList(JSONUtil.str(fi, "resourceType"), types)) {
+          res.add(new PackageResourceInformation(fi));
+        }
+      }
+    }
+    Collections.sort(res, new Comparator<PackageResourceInformation>() {
+      @Override
+      public int compare(PackageResourceInformation o1, PackageResourceInformation o2) {
+        return o1.getFilename().compareTo(o2.getFilename());
+      }
+    });
+    return res;
+  }
+
   /**
    * use the name from listResources()
    * 
@@ -2,6 +2,7 @@ package org.hl7.fhir.utilities.tests;
 
 import java.io.IOException;
 
+import org.hl7.fhir.utilities.RegexCache;
 import org.hl7.fhir.utilities.Utilities;
 import org.junit.Test;
 
@@ -15,4 +16,26 @@ public class UtilitiesTests {
     Assert.assertEquals(Utilities.path("[user]", "test.txt"), System.getProperty("user.home")+"\\test.txt");
     Assert.assertEquals(Utilities.path("[JAVA_HOME]", "test.txt"), System.getenv("JAVA_HOME")+"\\test.txt");
   }
+
+  @Test
+  public void testIsValidId() {
+    Assert.assertTrue(Utilities.isValidId("example-1.2"));
+    Assert.assertFalse(Utilities.isValidId(""));
+    Assert.assertFalse(Utilities.isValidId("a_b"));
+    Assert.assertFalse(Utilities.isValidId("a b"));
+    Assert.assertTrue(Utilities.isValidId("a123456789012345678901234567890123456789012345678901234567890123".substring(0, 64)));
+    Assert.assertFalse(Utilities.isValidId("a1234567890123456789012345678901234567890123456789012345678901234"));
+  }
+
+  @Test
+  public void testRegexCache() {
+    Assert.assertTrue(RegexCache.matches("abc123", "[a-z]+[0-9]+"));
+    Assert.assertFalse(RegexCache.matches("abc123x", "[a-z]+[0-9]+"));
+    Assert.assertSame(RegexCache.compile("[a-z]+[0-9]+"), RegexCache.compile("[a-z]+[0-9]+"));
+    Assert.assertEquals("a-b-c", RegexCache.replaceAll("a b  c", " +", "-"));
+    for (int i = 0; i <= RegexCache.MAX_SIZE; i++) {
+      RegexCache.compile("x"+i);
+    }
+    Assert.assertTrue(RegexCache.size() <= RegexCache.MAX_SIZE);
+  }
 }
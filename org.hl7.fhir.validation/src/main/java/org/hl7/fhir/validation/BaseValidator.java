@@ -75,6 +75,10 @@ public class BaseValidator {
     this.context = context;
   }
 
+  public TimeTracker getTimeTracker() {
+    return timeTracker;
+  }
+
   /**
    * Test a rule and add a {@link IssueSeverity#FATAL} validation message if the validation fails
    * 
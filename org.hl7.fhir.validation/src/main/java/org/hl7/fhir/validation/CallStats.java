@@ -0,0 +1,89 @@
+package org.hl7.fhir.validation;
+
+import java.util.Arrays;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Counts calls to a service, and how long they took.
+ *
+ * The mean and max are over all the calls; the percentiles are over the most recent calls
+ * (up to WINDOW of them), so they follow changes in the load. Safe to use from multiple threads
+ */
+public class CallStats {
+
+  public static final int WINDOW = 1000;
+
+  private long started = System.currentTimeMillis();
+  private int count;
+  private int failures;
+  private long totalNanos;
+  private long maxNanos;
+  private long[] recent = new long[WINDOW];
+  private int recentCount;
+
+  public synchronized void record(long nanos, boolean failed) {
+    count++;
+    if (failed) {
+      failures++;
+    }
+    totalNanos = totalNanos + nanos;
+    maxNanos = Math.max(maxNanos, nanos);
+    recent[recentCount % WINDOW] = nanos;
+    recentCount++;
+  }
+
+  public synchronized int getCount() {
+    return count;
+  }
+
+  public synchronized int getFailures() {
+    return failures;
+  }
+
+  public synchronized double getMeanMs() {
+    return count == 0 ? 0 : (double) totalNanos / count / 1000000;
+  }
+
+  public synchronized double getMaxMs() {
+    return (double) maxNanos / 1000000;
+  }
+
+  /**
+   * the latency (in ms) that pct percent of the recent calls came in under
+   */
+  public synchronized double getPercentileMs(int pct) {
+    int n = Math.min(recentCount, WINDOW);
+    if (n == 0) {
+      return 0;
+    }
+    long[] sorted = Arrays.copyOf(recent, n);
+    Arrays.sort(sorted);
+    int i = (int) Math.ceil(pct / 100.0 * n) - 1;
+    return (double) sorted[Math.max(i, 0)] / 1000000;
+  }
+
+  /**
+   * calls per second, since the stats were started
+   */
+  public synchronized double getThroughput() {
+    long elapsed = System.currentTimeMillis() - started;
+    return elapsed == 0 ? 0 : count * 1000.0 / elapsed;
+  }
+
+  public synchronized void toJson(JsonObject json, String prefix) {
+    json.addProperty(prefix+"count", count);
+    json.addProperty(prefix+"failures", failures);
+    json.addProperty(prefix+"per-second", round(getThroughput()));
+    json.addProperty(prefix+"mean-ms", round(getMeanMs()));
+    json.addProperty(prefix+"max-ms", round(getMaxMs()));
+    json.addProperty(prefix+"p50-ms", round(getPercentileMs(50)));
+    json.addProperty(prefix+"p95-ms", round(getPercentileMs(95)));
+    json.addProperty(prefix+"p99-ms", round(getPercentileMs(99)));
+  }
+
+  private double round(double v) {
+    return Math.round(v * 100) / 100.0;
+  }
+
+}
@@ -0,0 +1,224 @@
+package org.hl7.fhir.validation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+
+/**
+ * Validates NDJSON content (e.g. the output of a bulk data $export) one line at a time.
+ *
+ * Each line is a resource, and is validated on its own, on a pool of threads. Only a few lines
+ * per thread are read ahead of the validation, so the memory used doesn't depend on the size of
+ * the file. The outcome for each line is passed to a listener as soon as the line has been validated
+ * (so not necessarily in line order - the line number is on the outcome as the file extension),
+ * and the counts of issues are accumulated in a summary by resource type and severity
+ */
+public class NDJsonValidator {
+
+  /**
+   * gets the outcome for each line. Calls are never concurrent, but may come from any of the threads
+   */
+  public interface INDJsonOutcomeListener {
+    void outcome(int line, String resourceType, OperationOutcome outcome) throws IOException;
+  }
+
+  /**
+   * A listener that writes the outcomes out as NDJSON, one OperationOutcome per line
+   */
+  public static class NDJsonOutcomeWriter implements INDJsonOutcomeListener {
+    private Writer writer;
+    private JsonParser json = new JsonParser();
+
+    public NDJsonOutcomeWriter(OutputStream stream) {
+      this.writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+      json.setOutputStyle(OutputStyle.NORMAL);
+    }
+
+    @Override
+    public void outcome(int line, String resourceType, OperationOutcome outcome) throws IOException {
+      writer.write(json.composeString(outcome));
+      writer.write("\n");
+    }
+
+    public void close() throws IOException {
+      writer.flush();
+      writer.close();
+    }
+  }
+
+  /**
+   * counts of lines, and of issues by resource type and severity
+   */
+  public static class Summary {
+    private int lines;
+    private int failedLines;
+    private Map<String, int[]> counts = new TreeMap<>(); // resource type -> count by IssueSeverity.ordinal(), then the number of resources
+
+    public synchronized void record(String resourceType, OperationOutcome outcome) {
+      lines++;
+      int[] c = counts.get(resourceType);
+      if (c == null) {
+        c = new int[IssueSeverity.values().length + 1];
+        counts.put(resourceType, c);
+      }
+      c[c.length - 1]++;
+      boolean failed = false;
+      for (OperationOutcomeIssueComponent iss : outcome.getIssue()) {
+        if (iss.hasSeverity()) {
+          c[iss.getSeverity().ordinal()]++;
+          failed = failed || iss.getSeverity() == IssueSeverity.ERROR || iss.getSeverity() == IssueSeverity.FATAL;
+        }
+      }
+      if (failed) {
+        failedLines++;
+      }
+    }
+
+    public synchronized int getLines() {
+      return lines;
+    }
+
+    /**
+     * the number of lines with at least one error
+     */
+    public synchronized int getFailedLines() {
+      return failedLines;
+    }
+
+    public synchronized List<String> getResourceTypes() {
+      return Collections.unmodifiableList(new ArrayList<>(counts.keySet()));
+    }
+
+    public synchronized int getResourceCount(String resourceType) {
+      int[] c = counts.get(resourceType);
+      return c == null ? 0 : c[c.length - 1];
+    }
+
+    public synchronized int getCount(String resourceType, IssueSeverity severity) {
+      int[] c = counts.get(resourceType);
+      return c == null ? 0 : c[severity.ordinal()];
+    }
+
+    public synchronized int getCount(IssueSeverity severity) {
+      int res = 0;
+      for (int[] c : counts.values()) {
+        res = res + c[severity.ordinal()];
+      }
+      return res;
+    }
+
+    public synchronized String report() {
+      StringBuilder b = new StringBuilder();
+      b.append("Validated "+lines+" resources, "+failedLines+" with errors\r\n");
+      for (String rt : counts.keySet()) {
+        int[] c = counts.get(rt);
+        b.append("  "+rt+" ("+c[c.length - 1]+"): fatal:"+c[IssueSeverity.FATAL.ordinal()]+" error:"+c[IssueSeverity.ERROR.ordinal()]+
+            " warn:"+c[IssueSeverity.WARNING.ordinal()]+" info:"+c[IssueSeverity.INFORMATION.ordinal()]+"\r\n");
+      }
+      return b.toString();
+    }
+  }
+
+  private static final Pattern RESOURCE_TYPE_PATTERN = Pattern.compile("\"resourceType\"\\s*:\\s*\"([A-Za-z]+)\"");
+  private static final int READ_AHEAD = 4;
+
+  private ValidationEngine engine;
+  private int threads;
+
+  public NDJsonValidator(ValidationEngine engine, int threads) {
+    super();
+    this.engine = engine;
+    this.threads = Math.max(threads, 1);
+  }
+
+  public Summary validate(String location, InputStream stream, final List<String> profiles, final INDJsonOutcomeListener listener) throws Exception {
+    final Summary summary = new Summary();
+    final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+    final Semaphore inFlight = new Semaphore(threads * READ_AHEAD);
+    engine.prepareForThreads();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+      String line;
+      int lineNo = 0;
+      while ((line = reader.readLine()) != null && failures.isEmpty()) {
+        lineNo++;
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        inFlight.acquire();
+        final int ln = lineNo;
+        final String src = line;
+        final String loc = location+":"+ln;
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              String rt = resourceType(src);
+              OperationOutcome outcome;
+              try {
+                outcome = engine.validate(loc, src.getBytes(StandardCharsets.UTF_8), FhirFormat.JSON, profiles);
+              } catch (Exception e) {
+                outcome = engine.exceptionToOutcome(e);
+              }
+              ToolingExtensions.addStringExtension(outcome, ToolingExtensions.EXT_OO_FILE, loc);
+              summary.record(rt, outcome);
+              if (listener != null) {
+                synchronized (listener) {
+                  listener.outcome(ln, rt, outcome);
+                }
+              }
+            } catch (Exception e) {
+              failures.add(e);
+            } finally {
+              inFlight.release();
+            }
+          }
+        });
+      }
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+    if (!failures.isEmpty()) {
+      throw failures.get(0);
+    }
+    return summary;
+  }
+
+  /**
+   * the resource type, without parsing the whole line (the validator will do that). resourceType
+   * is usually the first property - if it isn't, this may find the type of a contained resource, but
+   * that only affects how the counts are grouped
+   */
+  private String resourceType(String line) {
+    Matcher m = RESOURCE_TYPE_PATTERN.matcher(line);
+    return m.find() ? m.group(1) : "Unknown";
+  }
+
+}
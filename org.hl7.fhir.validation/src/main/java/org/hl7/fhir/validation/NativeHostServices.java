@@ -23,6 +23,8 @@ package org.hl7.fhir.validation;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.hl7.fhir.convertors.*;
 import org.hl7.fhir.exceptions.FHIRException;
@@ -39,7 +41,9 @@ import org.hl7.fhir.exceptions.FHIRException;
  *  - server wants to convert from R4 to something else, it calls convertResource  
  *  - server wants to convert to R4 from something else, it calls unConvertResource  
  *  
- * threading: todo: this class should be thread safe
+ * threading: validate, convert and unconvert can be called concurrently. Each validation gets its own
+ * validator, and they share the context. seeResource and dropResource change the context, so they wait for
+ * the calls in progress to finish, and the other calls wait for them
  *  
  * note: this is a solution that uses lots of RAM...  
  */
@@ -126,13 +130,19 @@ public class NativeHostServices {
   }
 
   private ValidationEngine validator;
-  private int validationCount = 0;
-  private int resourceCount = 0;
-  private int convertCount = 0;
-  private int unConvertCount = 0;
-  private int exceptionCount = 0;
-  private String lastException = null;  
-  private Object lock = new Object();
+  private AtomicInteger validationCount = new AtomicInteger();
+  private AtomicInteger resourceCount = new AtomicInteger();
+  private AtomicInteger convertCount = new AtomicInteger();
+  private AtomicInteger unConvertCount = new AtomicInteger();
+  private AtomicInteger exceptionCount = new AtomicInteger();
+  private volatile String lastException = null;  
+  private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private volatile boolean prepared = false;
+  private AtomicInteger waiting = new AtomicInteger();
+  private AtomicInteger active = new AtomicInteger();
+  private CallStats validationStats = new CallStats();
+  private CallStats convertStats = new CallStats();
+  private CallStats unConvertStats = new CallStats();
 
   private VersionConvertorAdvisor50 conv_10_50_advisor = new NH_10_50_Advisor();
 
@@ -162,7 +172,13 @@ public class NativeHostServices {
    * @throws Exception
    */
   public void load(String pack) throws Exception {
-    validator.loadIg(pack, false);
+    lock.writeLock().lock();
+    try {
+      validator.loadIg(pack, false);
+      prepared = false;
+    } finally {
+      lock.writeLock().unlock();
+    }
   }
 
   /** 
@@ -181,15 +197,18 @@ public class NativeHostServices {
    */
   public String status() {
     JsonObject json = new JsonObject();
-    json.addProperty("custom-resource-count", resourceCount);
+    json.addProperty("custom-resource-count", resourceCount.get());
     validator.getContext().reportStatus(json);
-    json.addProperty("validation-count", validationCount);
-    json.addProperty("convert-count", convertCount);
-    json.addProperty("unconvert-count", unConvertCount);
-    json.addProperty("exception-count", exceptionCount);
-    synchronized (lock) {
-      json.addProperty("last-exception", lastException);      
-    }
+    json.addProperty("validation-count", validationCount.get());
+    json.addProperty("convert-count", convertCount.get());
+    json.addProperty("unconvert-count", unConvertCount.get());
+    json.addProperty("exception-count", exceptionCount.get());
+    json.addProperty("last-exception", lastException);      
+    json.addProperty("queue-depth", waiting.get());
+    json.addProperty("active", active.get());
+    validationStats.toJson(json, "validation-latency-");
+    convertStats.toJson(json, "convert-latency-");
+    unConvertStats.toJson(json, "unconvert-latency-");
 
     json.addProperty("mem-max", Runtime.getRuntime().maxMemory() / (1024*1024));
     json.addProperty("mem-total", Runtime.getRuntime().totalMemory() / (1024*1024));
@@ -216,6 +235,16 @@ public class NativeHostServices {
    * @throws Exception
    */
   public void seeResource(byte[] source, FhirFormat fmt) throws Exception {
+    lock.writeLock().lock();
+    try {
+      doSeeResource(source, fmt);
+      prepared = false;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void doSeeResource(byte[] source, FhirFormat fmt) throws Exception {
     try {
       Resource r;
       if (fmt == FhirFormat.JSON) {
@@ -226,13 +255,9 @@ public class NativeHostServices {
         throw new Exception("Unsupported format "+fmt.name());
       }
       validator.seeResource(r);
-      resourceCount++;
+      resourceCount.incrementAndGet();
     } catch (Exception e) {
-      exceptionCount++;
-
-      synchronized (lock) {
-        lastException = e.getMessage();
-      }
+      recordException(e);
       throw e;
     }
   }
@@ -246,14 +271,20 @@ public class NativeHostServices {
    * @throws Exception
    */
   public void dropResource(String type, String id) throws Exception  {
+    lock.writeLock().lock();
+    try {
+      doDropResource(type, id);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void doDropResource(String type, String id) throws Exception  {
     try {
       validator.dropResource(type, id);
-      resourceCount--;
+      resourceCount.decrementAndGet();
     } catch (Exception e) {
-      exceptionCount++;
-      synchronized (lock) {
-        lastException = e.getMessage();
-      }
+      recordException(e);
       throw e;
     }
   }
@@ -284,6 +315,20 @@ public class NativeHostServices {
    * @throws Exception
    */
   public byte[] validateResource(String location, byte[] source, String cntType, String options) throws Exception {
+    long t = System.nanoTime();
+    boolean failed = true;
+    startCall();
+    try {
+      byte[] res = doValidateResource(location, source, cntType, options);
+      failed = false;
+      return res;
+    } finally {
+      endCall();
+      validationStats.record(System.nanoTime() - t, failed);
+    }
+  }
+
+  private byte[] doValidateResource(String location, byte[] source, String cntType, String options) throws Exception {
     try {
       IdStatus resourceIdRule = IdStatus.OPTIONAL;
       boolean anyExtensionsAllowed = true;
@@ -325,13 +370,10 @@ public class NativeHostServices {
       OperationOutcome oo = validator.validate(location, source, FhirFormat.valueOf(cntType), null, resourceIdRule, anyExtensionsAllowed, bpWarnings, displayOption);
       ByteArrayOutputStream bs = new ByteArrayOutputStream();
       new XmlParser().compose(bs, oo);
-      validationCount++;
+      validationCount.incrementAndGet();
       return bs.toByteArray();
     } catch (Exception e) {
-      exceptionCount++;
-      synchronized (lock) {
-        lastException = e.getMessage();
-      }
+      recordException(e);
       throw e;
     }
   }
@@ -347,42 +389,53 @@ public class NativeHostServices {
    * @throws IOException
    */
   public byte[] convertResource(byte[] r, String fmt, String version) throws FHIRException, IOException  {
+    long t = System.nanoTime();
+    boolean failed = true;
+    startCall();
+    try {
+      byte[] res = doConvertResource(r, fmt, version);
+      failed = false;
+      return res;
+    } finally {
+      endCall();
+      convertStats.record(System.nanoTime() - t, failed);
+    }
+  }
+
+  private byte[] doConvertResource(byte[] r, String fmt, String version) throws FHIRException, IOException  {
     try {
       if (VersionUtilities.isR3Ver(version)) {
         org.hl7.fhir.dstu3.formats.ParserBase p3 = org.hl7.fhir.dstu3.formats.FormatUtilities.makeParser(fmt);
         org.hl7.fhir.dstu3.model.Resource res3 = p3.parse(r);
         Resource res4 = VersionConvertor_30_50.convertResource(res3, false);
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
-        convertCount++;
+        convertCount.incrementAndGet();
         return p4.composeBytes(res4);
       } else if (VersionUtilities.isR2Ver(version)) {
         org.hl7.fhir.dstu2.formats.ParserBase p2 = org.hl7.fhir.dstu2.formats.FormatUtilities.makeParser(fmt);
         org.hl7.fhir.dstu2.model.Resource res2 = p2.parse(r);
         Resource res4 = VersionConvertor_10_50.convertResource(res2, conv_10_50_advisor);
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
-        convertCount++;
+        convertCount.incrementAndGet();
         return p4.composeBytes(res4);
       } else if (VersionUtilities.isR2BVer(version)) {
         org.hl7.fhir.dstu2016may.formats.ParserBase p2 = org.hl7.fhir.dstu2016may.formats.FormatUtilities.makeParser(fmt);
         org.hl7.fhir.dstu2016may.model.Resource res2 = p2.parse(r);
         Resource res4 = VersionConvertor_14_50.convertResource(res2);
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
-        convertCount++;
+        convertCount.incrementAndGet();
         return p4.composeBytes(res4);
       } else if (VersionUtilities.isR4Ver(version)) {
         org.hl7.fhir.r4.formats.ParserBase p2 = org.hl7.fhir.r4.formats.FormatUtilities.makeParser(fmt);
         org.hl7.fhir.r4.model.Resource res2 = p2.parse(r);
         Resource res4 = VersionConvertor_40_50.convertResource(res2);
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
-        convertCount++;
+        convertCount.incrementAndGet();
         return p4.composeBytes(res4);
       } else
         throw new FHIRException("Unsupported version "+version);
     } catch (Exception e) {
-      exceptionCount++;
-      synchronized (lock) {
-        lastException = e.getMessage();
-      }
+      recordException(e);
       throw e;
     }
   }
@@ -398,38 +451,85 @@ public class NativeHostServices {
    * @throws IOException
    */
   public byte[] unConvertResource(byte[] r, String fmt, String version) throws FHIRException, IOException  {
+    long t = System.nanoTime();
+    boolean failed = true;
+    startCall();
+    try {
+      byte[] res = doUnConvertResource(r, fmt, version);
+      failed = false;
+      return res;
+    } finally {
+      endCall();
+      unConvertStats.record(System.nanoTime() - t, failed);
+    }
+  }
+
+  private byte[] doUnConvertResource(byte[] r, String fmt, String version) throws FHIRException, IOException  {
     try {
       if ("3.0".equals(version) || "3.0.1".equals(version) || "r3".equals(version)) {
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
         org.hl7.fhir.r5.model.Resource res4 = p4.parse(r);
         org.hl7.fhir.dstu3.model.Resource res3 = VersionConvertor_30_50.convertResource(res4, false);
         org.hl7.fhir.dstu3.formats.ParserBase p3 = org.hl7.fhir.dstu3.formats.FormatUtilities.makeParser(fmt);
-        unConvertCount++;
+        unConvertCount.incrementAndGet();
         return p3.composeBytes(res3);
       } else if ("1.0".equals(version) || "1.0.2".equals(version) || "r2".equals(version)) {
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
         org.hl7.fhir.r5.model.Resource res4 = p4.parse(r);
         org.hl7.fhir.dstu2.model.Resource res2 = VersionConvertor_10_50.convertResource(res4, conv_10_50_advisor);
         org.hl7.fhir.dstu2.formats.ParserBase p2 = org.hl7.fhir.dstu2.formats.FormatUtilities.makeParser(fmt);
-        unConvertCount++;
+        unConvertCount.incrementAndGet();
         return p2.composeBytes(res2);
       } else if ("1.4".equals(version) || "1.4.0".equals(version)) {
         org.hl7.fhir.r5.formats.ParserBase p4 = org.hl7.fhir.r5.formats.FormatUtilities.makeParser(fmt);
         org.hl7.fhir.r5.model.Resource res4 = p4.parse(r);
         org.hl7.fhir.dstu2016may.model.Resource res2 = VersionConvertor_14_50.convertResource(res4);
         org.hl7.fhir.dstu2016may.formats.ParserBase p2 = org.hl7.fhir.dstu2016may.formats.FormatUtilities.makeParser(fmt);
-        unConvertCount++;
+        unConvertCount.incrementAndGet();
         return p2.composeBytes(res2);
       } else
         throw new FHIRException("Unsupported version "+version);
     } catch (Exception e) {
-      exceptionCount++;
-      synchronized (lock) {
-        lastException = e.getMessage();
-      }
+      recordException(e);
       throw e;
     }
   }
 
 
-}   
+  /**
+   * wait for any changes to the context to finish. The first call after the context changes gets it ready 
+   * for concurrent use (e.g. generates any missing snapshots) first
+   */
+  private void startCall() {
+    waiting.incrementAndGet();
+    try {
+      if (!prepared) {
+        lock.writeLock().lock();
+        try {
+          if (!prepared) {
+            validator.prepareForThreads();
+            prepared = true;
+          }
+        } finally {
+          lock.writeLock().unlock();
+        }
+      }
+      lock.readLock().lock();
+    } finally {
+      // whether or not the call goes ahead, it's no longer waiting
+      waiting.decrementAndGet();
+    }
+    active.incrementAndGet();
+  }
+
+  private void endCall() {
+    active.decrementAndGet();
+    lock.readLock().unlock();
+  }
+
+  private void recordException(Exception e) {
+    exceptionCount.incrementAndGet();
+    lastException = e.getMessage();
+  }
+
+}
@@ -1,58 +1,321 @@
 package org.hl7.fhir.validation;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Tracks where the validator spends its time.
+ *
+ * Each phase (overall, load, tx, sd, fpe) has a total time (in nanoseconds) and a count. On top of that,
+ * the time is broken down by the profile the content is being validated against, and by the invariant
+ * being checked, and the hits and misses of the validator's caches are counted.
+ *
+ * Profile times are inclusive - the time for a profile includes the time spent validating contained
+ * and bundled resources against their own profiles
+ *
+ * A tracker belongs to a single validator, and is not thread safe. Use merge() to combine trackers
+ */
 public class TimeTracker {
-  private long overall = 0;
-  private long txTime = 0;
-  private long sdTime = 0;
-  private long loadTime = 0;
-  private long fpeTime = 0;
-  
-  
-  
+
+  public static class Counter {
+    protected long time;
+    protected int count;
+
+    public long getTime() {
+      return time;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    protected void add(long nanos) {
+      time = time + nanos;
+      count++;
+    }
+
+    protected void add(Counter other) {
+      time = time + other.time;
+      count = count + other.count;
+    }
+
+    protected JsonObject toJson() {
+      JsonObject res = new JsonObject();
+      res.addProperty("ms", time / 1000000);
+      res.addProperty("count", count);
+      return res;
+    }
+  }
+
+  public static class InvariantCounter extends Counter {
+    private String key;
+    private String expression;
+
+    public InvariantCounter(String key, String expression) {
+      super();
+      this.key = key;
+      this.expression = expression;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public String getExpression() {
+      return expression;
+    }
+  }
+
+  public static class CacheCounter {
+    private int hits;
+    private int misses;
+
+    public int getHits() {
+      return hits;
+    }
+
+    public int getMisses() {
+      return misses;
+    }
+
+    public double getHitRate() {
+      return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+  }
+
+  private Counter overall = new Counter();
+  private Counter tx = new Counter();
+  private Counter sd = new Counter();
+  private Counter load = new Counter();
+  private Counter fpe = new Counter();
+  private Map<String, Counter> profiles = new HashMap<>();
+  private Map<String, InvariantCounter> invariants = new HashMap<>();
+  private Map<String, CacheCounter> caches = new HashMap<>();
+
   public long getOverall() {
-    return overall;
+    return overall.time;
   }
   public long getTxTime() {
-    return txTime;
+    return tx.time;
   }
   public long getSdTime() {
-    return sdTime;
+    return sd.time;
   }
   public long getLoadTime() {
-    return loadTime;
+    return load.time;
   }
   public long getFpeTime() {
-    return fpeTime;
+    return fpe.time;
   }
-  
-  public void load(long t, long nanoTime) {
-    // TODO Auto-generated method stub
-    
+  public int getTxCount() {
+    return tx.count;
   }
-  public void overall(long t, long nanoTime) {
-    // TODO Auto-generated method stub
-    
+
+  public Map<String, Counter> getProfiles() {
+    return profiles;
   }
-  public void tx(long t, long nanoTime) {
-    // TODO Auto-generated method stub
-    
+
+  public Map<String, InvariantCounter> getInvariants() {
+    return invariants;
   }
-  public void sd(long t, long nanoTime) {
-    // TODO Auto-generated method stub
-    
+
+  public Map<String, CacheCounter> getCaches() {
+    return caches;
   }
-  public void fpe(long t, long nanoTime) {
-    // TODO Auto-generated method stub
-    fpeTime = fpeTime + (System.nanoTime() - t);
 
+  public void load(long start, long end) {
+    load.add(end - start);
+  }
+  public void overall(long start, long end) {
+    overall.add(end - start);
   }
+  public void tx(long start, long end) {
+    tx.add(end - start);
+  }
+  public void sd(long start, long end) {
+    sd.add(end - start);
+  }
+  public void fpe(long start, long end) {
+    fpe.add(end - start);
+  }
+
+  /**
+   * time spent validating an element against a profile (including the time spent in the other phases while doing so)
+   */
+  public void profile(String url, long start, long end) {
+    Counter c = profiles.get(url);
+    if (c == null) {
+      c = new Counter();
+      profiles.put(url, c);
+    }
+    c.add(end - start);
+  }
+
+  /**
+   * time spent evaluating an invariant. This is also counted as fpe time by the caller
+   */
+  public void invariant(String key, String expression, long start, long end) {
+    String k = key == null ? expression : key+": "+expression;
+    InvariantCounter c = invariants.get(k);
+    if (c == null) {
+      c = new InvariantCounter(key, expression);
+      invariants.put(k, c);
+    }
+    c.add(end - start);
+  }
+
+  public void cacheHit(String cache) {
+    getCache(cache).hits++;
+  }
+
+  public void cacheMiss(String cache) {
+    getCache(cache).misses++;
+  }
+
+  private CacheCounter getCache(String cache) {
+    CacheCounter c = caches.get(cache);
+    if (c == null) {
+      c = new CacheCounter();
+      caches.put(cache, c);
+    }
+    return c;
+  }
+
+  /**
+   * the invariants that took the most time in total, slowest first
+   */
+  public List<InvariantCounter> slowestInvariants(int count) {
+    List<InvariantCounter> list = new ArrayList<>(invariants.values());
+    Collections.sort(list, new Comparator<InvariantCounter>() {
+      @Override
+      public int compare(InvariantCounter o1, InvariantCounter o2) {
+        return Long.compare(o2.getTime(), o1.getTime());
+      }
+    });
+    return list.size() > count ? list.subList(0, count) : list;
+  }
+
+  /**
+   * add the times and counts from another tracker to this one (e.g. to total up several validation runs)
+   */
+  public void merge(TimeTracker other) {
+    overall.add(other.overall);
+    tx.add(other.tx);
+    sd.add(other.sd);
+    load.add(other.load);
+    fpe.add(other.fpe);
+    for (String url : other.profiles.keySet()) {
+      Counter c = profiles.get(url);
+      if (c == null) {
+        c = new Counter();
+        profiles.put(url, c);
+      }
+      c.add(other.profiles.get(url));
+    }
+    for (String k : other.invariants.keySet()) {
+      InvariantCounter o = other.invariants.get(k);
+      InvariantCounter c = invariants.get(k);
+      if (c == null) {
+        c = new InvariantCounter(o.key, o.expression);
+        invariants.put(k, c);
+      }
+      c.add(o);
+    }
+    for (String name : other.caches.keySet()) {
+      CacheCounter c = getCache(name);
+      c.hits = c.hits + other.caches.get(name).hits;
+      c.misses = c.misses + other.caches.get(name).misses;
+    }
+  }
+
+  public JsonObject toJson(int topN) {
+    JsonObject res = new JsonObject();
+    JsonObject phases = new JsonObject();
+    res.add("phases", phases);
+    phases.add("overall", overall.toJson());
+    phases.add("load", load.toJson());
+    phases.add("tx", tx.toJson());
+    phases.add("sd", sd.toJson());
+    phases.add("fpe", fpe.toJson());
+    JsonObject p = new JsonObject();
+    res.add("profiles", p);
+    for (String url : sorted(profiles.keySet())) {
+      p.add(url, profiles.get(url).toJson());
+    }
+    JsonArray inv = new JsonArray();
+    res.add("slowestInvariants", inv);
+    for (InvariantCounter c : slowestInvariants(topN)) {
+      JsonObject o = c.toJson();
+      if (c.key != null) {
+        o.addProperty("key", c.key);
+      }
+      o.addProperty("expression", c.expression);
+      inv.add(o);
+    }
+    JsonObject cs = new JsonObject();
+    res.add("caches", cs);
+    for (String name : sorted(caches.keySet())) {
+      CacheCounter c = caches.get(name);
+      JsonObject o = new JsonObject();
+      o.addProperty("hits", c.hits);
+      o.addProperty("misses", c.misses);
+      cs.add(name, o);
+    }
+    return res;
+  }
+
+  /**
+   * a human readable report, for the console
+   */
+  public String report(int topN) {
+    StringBuilder b = new StringBuilder();
+    b.append(String.format("Times (ms): overall = %d, tx = %d (%d calls), sd = %d, load = %d, fpe = %d\r\n", overall.time / 1000000, tx.time / 1000000, tx.count, sd.time / 1000000, load.time / 1000000, fpe.time / 1000000));
+    if (!profiles.isEmpty()) {
+      b.append("Profiles:\r\n");
+      for (String url : sorted(profiles.keySet())) {
+        Counter c = profiles.get(url);
+        b.append(String.format("  %s: %d ms (%d)\r\n", url, c.time / 1000000, c.count));
+      }
+    }
+    if (!invariants.isEmpty()) {
+      b.append("Slowest invariants:\r\n");
+      for (InvariantCounter c : slowestInvariants(topN)) {
+        b.append(String.format("  %s: %d ms (%d) %s\r\n", c.key, c.time / 1000000, c.count, c.expression));
+      }
+    }
+    if (!caches.isEmpty()) {
+      b.append("Caches:\r\n");
+      for (String name : sorted(caches.keySet())) {
+        CacheCounter c = caches.get(name);
+        b.append(String.format("  %s: %d hits, %d misses (%.0f%%)\r\n", name, c.hits, c.misses, c.getHitRate() * 100));
+      }
+    }
+    return b.toString();
+  }
+
+  private List<String> sorted(Set<String> keys) {
+    List<String> res = new ArrayList<>(keys);
+    Collections.sort(res);
+    return res;
+  }
+
   public void reset() {
-    overall = 0;
-    txTime = 0;
-    sdTime = 0;
-    loadTime = 0;
-    fpeTime = 0;
-    
+    overall = new Counter();
+    tx = new Counter();
+    sd = new Counter();
+    load = new Counter();
+    fpe = new Counter();
+    profiles.clear();
+    invariants.clear();
+    caches.clear();
   }
 
 }
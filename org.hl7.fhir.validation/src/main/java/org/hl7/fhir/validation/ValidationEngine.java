@@ -7,6 +7,7 @@ import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r5.conformance.ProfileUtilities;
 import org.hl7.fhir.r5.context.SimpleWorkerContext;
 import org.hl7.fhir.r5.context.SimpleWorkerContext.IContextResourceLoader;
+import org.hl7.fhir.r5.context.SnapshotCache;
 import org.hl7.fhir.r5.elementmodel.Element;
 import org.hl7.fhir.r5.elementmodel.Manager;
 import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
@@ -44,6 +45,11 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -228,7 +234,7 @@ public class ValidationEngine implements IValidatorResourceFetcher {
   }
   
   private SimpleWorkerContext context;
-//  private FHIRPathEngine fpe;
+  private FHIRPathEngine fpe; // shared by the threads using this engine - see getFHIRPathEngine()
   private Map<String, byte[]> binaries = new HashMap<String, byte[]>();
   private boolean doNative;
   private boolean noInvariantChecks;
@@ -243,6 +249,10 @@ public class ValidationEngine implements IValidatorResourceFetcher {
   private IValidatorResourceFetcher fetcher;
   private boolean assumeValidRestReferences;
   private Locale locale;
+  private int threads = 1;
+  private int terminologyThreads = 0;
+  private boolean profileTimings;
+  private TimeTracker timings = new TimeTracker();
 
   private class AsteriskFilter implements FilenameFilter {
     String dir;
@@ -342,6 +352,7 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     if (version == null)
       version = getVersionFromPack(source);
     context = SimpleWorkerContext.fromDefinitions(source, loaderForVersion());
+    fpe = null;
     context.setAllowLoadingDuplicates(true); // because of Forge
     context.setExpansionProfile(makeExpProfile());
     NpmPackage npm = pcm.loadPackage("hl7.fhir.xver-extensions", "0.0.2");
@@ -886,7 +897,7 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     List<ValidationMessage> messages = new ArrayList<ValidationMessage>();
     InstanceValidator validator = getValidator();
     validator.validate(null, messages, stream, format, asSdList(profiles));
-    return messagesToOutcome(messages);
+    return recordTimings(validator, messagesToOutcome(messages));
   }
 
   public List<StructureDefinition> asSdList(List<String> profiles) throws Error {
@@ -990,6 +1001,18 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     boolean asBundle = handleSources(sources, refs);
     Bundle results = new Bundle();
     results.setType(Bundle.BundleType.COLLECTION);
+    if (threads > 1 && refs.size() > 1) {
+      validateInParallel(refs, profiles, results);
+    } else {
+      validateInSequence(refs, profiles, results);
+    }
+    if (asBundle)
+      return results;
+    else
+      return results.getEntryFirstRep().getResource();
+  }
+
+  private void validateInSequence(List<String> refs, List<String> profiles, Bundle results) throws Exception {
     for (String ref : refs) {
       Content cnt = loadContent(ref, "validate");
       if (refs.size() > 1)
@@ -1005,12 +1028,70 @@ public class ValidationEngine implements IValidatorResourceFetcher {
         throw e;
       }
     }
-    if (asBundle)
-      return results;
-    else
-      return results.getEntryFirstRep().getResource();
+  }
+
+  /**
+   * Each source is validated by its own InstanceValidator (see getValidator()), so the only thing the 
+   * threads share is the context. The snapshots are generated up front, and the context is switched 
+   * to lock free reads, so that the validators don't contend for it. The outcomes are added to the 
+   * bundle in the same order as the sources, whichever order they finish in
+   */
+  private void validateInParallel(final List<String> refs, final List<String> profiles, Bundle results) throws Exception {
+    prepareForThreads();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, refs.size()));
+    try {
+      List<Future<OperationOutcome>> futures = new ArrayList<Future<OperationOutcome>>();
+      for (final String ref : refs) {
+        futures.add(executor.submit(new Callable<OperationOutcome>() {
+          @Override
+          public OperationOutcome call() throws Exception {
+            Content cnt = loadContent(ref, "validate");
+            System.out.println("Validate "+ref);
+            return validate(ref, cnt.focus, cnt.cntType, profiles);
+          }
+        }));
+      }
+      for (int i = 0; i < refs.size(); i++) {
+        String ref = refs.get(i);
+        OperationOutcome outcome;
+        try {
+          outcome = futures.get(i).get();
+        } catch (ExecutionException ee) {
+          Throwable e = ee.getCause();
+          System.out.println("Validation Infrastructure fail validating "+ref+": "+e.getMessage());
+          throw e instanceof Exception ? (Exception) e : ee;
+        }
+        ToolingExtensions.addStringExtension(outcome, ToolingExtensions.EXT_OO_FILE, ref);
+        produceValidationSummary(outcome);
+        results.addEntry().setResource(outcome);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
   }
   
+  /**
+   * get the context ready for validators running on several threads at once
+   */
+  void prepareForThreads() {
+    context.finishLoading();
+    context.setLockFreeReads(true);
+    context.setLocale(locale);
+  }
+
+  /**
+   * validate a file of NDJSON, one resource per line. The outcome for each line is passed to the listener 
+   * (if there is one) as it is completed. Uses the number of threads set by setThreads()
+   */
+  public NDJsonValidator.Summary validateNDJson(String source, List<String> profiles, NDJsonValidator.INDJsonOutcomeListener listener) throws Exception {
+    InputStream stream = new FileInputStream(source);
+    try {
+      return new NDJsonValidator(this, threads).validate(source, stream, profiles, listener);
+    } finally {
+      stream.close();
+    }
+  }
+
   private void produceValidationSummary(OperationOutcome oo) {
     for (OperationOutcomeIssueComponent iss : oo.getIssue()) {
       if (iss.getSeverity() == org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity.ERROR || iss.getSeverity() == org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity.FATAL) {
@@ -1082,7 +1163,7 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     }
     InstanceValidator validator = getValidator();
     validator.validate(null, messages, new ByteArrayInputStream(source), cntType, asSdList(profiles));
-    return messagesToOutcome(messages);
+    return recordTimings(validator, messagesToOutcome(messages));
   }
 
   public OperationOutcome validate(String location, byte[] source, FhirFormat cntType, List<String> profiles, IdStatus resourceIdRule, boolean anyExtensionsAllowed, BestPracticeWarningLevel bpWarnings, CheckDisplayOption displayOption) throws Exception {
@@ -1100,10 +1181,23 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     validator.setBestPracticeWarningLevel(bpWarnings);
     validator.setCheckDisplay(displayOption);   
     validator.validate(null, messages, new ByteArrayInputStream(source), cntType, asSdList(profiles));
-    return messagesToOutcome(messages);
+    return recordTimings(validator, messagesToOutcome(messages));
   }
   
   
+  /**
+   * if timings are being profiled, the outcome gets the validator's timings (as json), and they are added to the running totals
+   */
+  private OperationOutcome recordTimings(InstanceValidator validator, OperationOutcome outcome) {
+    if (profileTimings) {
+      ToolingExtensions.addStringExtension(outcome, ToolingExtensions.EXT_OO_TIMINGS, validator.getTimeTracker().toJson(10).toString());
+      synchronized (timings) {
+        timings.merge(validator.getTimeTracker());
+      }
+    }
+    return outcome;
+  }
+
   private void validateSHEX(String location, List<ValidationMessage> messages) {
     messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.INFORMATIONAL, location, "SHEX Validation is not done yet", IssueSeverity.INFORMATION));
   }
@@ -1136,33 +1230,61 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.INFORMATIONAL, location, "JSON Schema Validation is not done yet", IssueSeverity.INFORMATION));   
   }
 
+  /**
+   * remove the duplicate messages (same message at the same location), and sort them. 
+   * The sort keys are worked out once per message, rather than on each comparison
+   */
   private List<ValidationMessage> filterMessages(List<ValidationMessage> messages) {
-    List<ValidationMessage> filteredValidation = new ArrayList<ValidationMessage>();
+    Set<ValidationMessage> seen = new HashSet<ValidationMessage>();
+    final Map<ValidationMessage, String> keys = new IdentityHashMap<ValidationMessage, String>();
+    List<ValidationMessage> filteredValidation = new ArrayList<ValidationMessage>(messages.size());
     for (ValidationMessage e : messages) {
-      if (!filteredValidation.contains(e))
+      if (seen.add(e)) {
         filteredValidation.add(e);
+        keys.put(e, e.getSortKey());
+      }
     }
-    filteredValidation.sort(null);
+    filteredValidation.sort(new Comparator<ValidationMessage>() {
+      @Override
+      public int compare(ValidationMessage o1, ValidationMessage o2) {
+        return keys.get(o1).compareTo(keys.get(o2));
+      }
+    });
     return filteredValidation;
   }
   
-  private OperationOutcome exceptionToOutcome(Exception ex) throws DefinitionException {
+  OperationOutcome exceptionToOutcome(Exception ex) throws DefinitionException {
     OperationOutcome op = new OperationOutcome();
     op.addIssue().setCode(org.hl7.fhir.r5.model.OperationOutcome.IssueType.EXCEPTION).setSeverity(org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity.FATAL).getDetails().setText(ex.getMessage());
     new NarrativeGenerator("", "", context).generate(null, op);
     return op;
   }
   
-  private OperationOutcome messagesToOutcome(List<ValidationMessage> messages) throws DefinitionException {
+  // Public to allow reporting of results in alternate ways
+  public OperationOutcome messagesToOutcome(List<ValidationMessage> messages) throws DefinitionException {
     OperationOutcome op = new OperationOutcome();
-    for (ValidationMessage vm : filterMessages(messages)) {
-      FHIRPathEngine fpe = new FHIRPathEngine(context);
-      try {
-        fpe.parse(vm.getLocation());
-      } catch (Exception e) {
-        System.out.println("Internal error in location for message: '"+e.getMessage()+"', loc = '"+vm.getLocation()+"', err = '"+vm.getMessage()+"'");
+    List<ValidationMessage> filtered = filterMessages(messages);
+    if (!filtered.isEmpty()) {
+      // the locations are checked to catch validator bugs. Many messages share a location, so each location is only checked once
+      FHIRPathEngine engine = getFHIRPathEngine();
+      Set<String> checked = new HashSet<String>();
+      List<OperationOutcomeIssueComponent> issues = new ArrayList<OperationOutcomeIssueComponent>(filtered.size());
+      for (ValidationMessage vm : filtered) {
+        if (checked.add(vm.getLocation())) {
+          try {
+            // not parse(String): that would put every location in the shared parse cache
+            FHIRLexer lexer = new FHIRLexer(vm.getLocation(), null);
+            engine.parse(lexer);
+            if (!lexer.done()) {
+              throw lexer.error("Premature ExpressionNode termination at unexpected token \""+lexer.getCurrent()+"\"");
+            }
+          } catch (Exception e) {
+            System.out.println("Internal error in location for message: '"+e.getMessage()+"', loc = '"+vm.getLocation()+"', err = '"+vm.getMessage()+"'");
+          }
+        }
+        issues.add(OperationOutcomeUtilities.convertToIssue(vm, op));
       }
-      op.getIssue().add(OperationOutcomeUtilities.convertToIssue(vm, op));
+      op.setIssue(issues);
     }
     new NarrativeGenerator("", "", context).generate(null, op);
     return op;
@@ -1233,9 +1355,19 @@ public class ValidationEngine implements IValidatorResourceFetcher {
 
   public String evaluateFhirPath(String source, String expression) throws Exception {
     Content cnt = loadContent(source, "validate");
-    FHIRPathEngine fpe = new FHIRPathEngine(context);
     Element e = Manager.parse(context, new ByteArrayInputStream(cnt.focus), cnt.cntType);
-    return fpe.evaluateToString(e, expression);
+    return getFHIRPathEngine().evaluateToString(e, expression);
+  }
+
+  /**
+   * an engine with no host services, for the checks and evaluations done here. It can be used by several threads 
+   * at once, so there's only one for the context
+   */
+  private synchronized FHIRPathEngine getFHIRPathEngine() {
+    if (fpe == null) {
+      fpe = new FHIRPathEngine(context);
+    }
+    return fpe;
   }
 
   public StructureDefinition snapshot(String source, String version) throws Exception {
@@ -1275,7 +1407,10 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     validator.setNoInvariantChecks(isNoInvariantChecks());
     validator.setValidationLanguage(language);
     validator.setAssumeValidRestReferences(assumeValidRestReferences);
-    validator.getContext().setLocale(locale);
+    validator.setTerminologyThreads(terminologyThreads);
+    if (!validator.getContext().getLocale().equals(locale == null ? Locale.US : locale)) {
+      validator.getContext().setLocale(locale);
+    }
     validator.setFetcher(this);
     return validator;
   }
@@ -1308,6 +1443,44 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     
   }
 
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * The number of threads to use when validating multiple sources. With more than one, each source 
+   * gets its own validator, and they share the context (see validate(List, List))
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  public int getTerminologyThreads() {
+    return terminologyThreads;
+  }
+
+  /**
+   * see InstanceValidator.setTerminologyThreads
+   */
+  public void setTerminologyThreads(int terminologyThreads) {
+    this.terminologyThreads = terminologyThreads;
+  }
+
+  public boolean isProfileTimings() {
+    return profileTimings;
+  }
+
+  public void setProfileTimings(boolean profileTimings) {
+    this.profileTimings = profileTimings;
+  }
+
+  /**
+   * the timings for all the validation done by this engine (if profileTimings is true)
+   */
+  public TimeTracker getTimings() {
+    return timings;
+  }
+
   public boolean isDebug() {
     return debug;
   }
@@ -1633,6 +1806,14 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     }
   }
 
+  /**
+   * write the resource as XML or JSON, in the FHIR version of the context, as handleOutput() does
+   */
+  public void composeForContextVersion(Resource r, FhirFormat fmt, OutputStream s) throws Exception {
+    String version = context.getVersion();
+    handleOutputToStream(r, fmt == FhirFormat.XML ? "output.xml" : "output.json", s, VersionUtilities.isR5Ver(version) ? Constants.VERSION : version);
+  }
+
   private void handleOutputToStream(Resource r, String fn, OutputStream s, String version) throws Exception {
     if (fn.endsWith(".html") || fn.endsWith(".htm") && r instanceof DomainResource)
       new XhtmlComposer(XhtmlComposer.HTML, true).compose(s, ((DomainResource) r).getText().getDiv());
@@ -1704,6 +1885,14 @@ public class ValidationEngine implements IValidatorResourceFetcher {
     this.assumeValidRestReferences = assumeValidRestReferences;
   }
 
+  /**
+   * keep generated snapshots in the default snapshot cache (~/.fhir/snapshots) so they don't have to be generated again next time.
+   * This should be set before any IGs are loaded
+   */
+  public void setSnapshotCache(boolean useCache) throws IOException {
+    context.setSnapshotCache(useCache ? new SnapshotCache(SnapshotCache.defaultFolder()) : null);
+  }
+
   public byte[] transformVersion(String source, String targetVer, FhirFormat format, Boolean canDoNative) throws FHIRException, IOException, Exception {
     Content cnt = loadContent(source, "validate");
     org.hl7.fhir.r5.elementmodel.Element src = Manager.parse(context, new ByteArrayInputStream(cnt.focus), cnt.cntType);
@@ -107,7 +107,7 @@ import org.hl7.fhir.utilities.validation.ValidationMessage;
 public class Validator {
 
   public enum EngineMode {
-    VALIDATION, TRANSFORM, NARRATIVE, SNAPSHOT, SCAN, CONVERT, FHIRPATH, VERSION
+    VALIDATION, TRANSFORM, NARRATIVE, SNAPSHOT, SCAN, CONVERT, FHIRPATH, VERSION, SERVER
   }
 
   private static String getNamedParam(String[] args, String param) {
@@ -167,6 +167,9 @@ public class Validator {
       System.out.println("    used, results will be provided as a Bundle.");
       System.out.println("    Patterns are limited to a directory followed by a filename with an embedded");
       System.out.println("    asterisk.  E.g. foo*-examples.xml or someresource.*, etc.");
+      System.out.println("    A single .ndjson file (e.g. from a bulk data export) is validated one line at");
+      System.out.println("    a time (using -threads), and a summary is reported. If there is an output");
+      System.out.println("    parameter, the OperationOutcomes are written to it as NDJSON");
       System.out.println("-version [ver]: The FHIR version to use. This can only appear once. ");
       System.out.println("    valid values 1.0 | 1.4 | 3.0 | "+VersionUtilities.CURRENT_VERSION+" or 1.0.2 | 1.4.0 | 3.0.2 | 4.0.1 | "+VersionUtilities.CURRENT_FULL_VERSION);
       System.out.println("    Default value is  "+VersionUtilities.CURRENT_VERSION);
@@ -196,6 +199,25 @@ public class Validator {
       System.out.println("     Produce additional information about the loading/validation process");
       System.out.println("-recurse");
       System.out.println("     Look in subfolders when -ig refers to a folder");
+      System.out.println("-snapshot-cache");
+      System.out.println("     Keep generated snapshots in ~/.fhir/snapshots, so that they don't have to be");
+      System.out.println("     generated again the next time the same profiles are loaded");
+      System.out.println("-profile-timings");
+      System.out.println("     Report where the time was spent validating: by phase, by profile, the slowest");
+      System.out.println("     invariants, and cache hit rates. Each OperationOutcome also gets the timings");
+      System.out.println("     for its source as an extension");
+      System.out.println("-threads [n]");
+      System.out.println("     Validate multiple sources using n threads. Default: 1. The results are");
+      System.out.println("     reported in the same order as the sources either way");
+      System.out.println("-tx-threads [n]");
+      System.out.println("     Find all the codes in each resource that need the terminology server first, and");
+      System.out.println("     then check them with up to n requests at a time, instead of one at a time as");
+      System.out.println("     they are found. Default: 0 (one at a time)");
+      System.out.println("-server [port]");
+      System.out.println("     Don't validate any sources; instead, load the context and then run as a service");
+      System.out.println("     on http://localhost:[port]. POST a resource to /validate (with ?profile=[url]");
+      System.out.println("     for any loaded profile) to get an OperationOutcome back. GET /status reports");
+      System.out.println("     throughput and latency. Requests are handled on -threads threads");
       System.out.println("-locale");
       System.out.println("     Specifies the locale/language of the validation result messages (eg.: de-DE");
       System.out.println("-sct");
@@ -402,6 +424,11 @@ public class Validator {
       boolean anyExtensionsAllowed = true;
       boolean hintAboutNonMustSupport = false;
       boolean recursive = false;
+      boolean snapshotCache = false;
+      int threads = 1;
+      int txThreads = 0;
+      int port = 0;
+      boolean profileTimings = false;
       Locale locale = null;
       List<String> profiles = new ArrayList<String>();
       EngineMode mode = EngineMode.VALIDATION;
@@ -481,6 +508,16 @@ public class Validator {
             throw new Error("Snomed edition '"+s+"' not known");            
         } else if (args[i].equals("-recurse")) {
           recursive = true;
+        } else if (args[i].equals("-snapshot-cache")) {
+          snapshotCache = true;
+        } else if (args[i].equals("-profile-timings")) {
+          profileTimings = true;
+        } else if (args[i].equals("-threads")) {
+          if (i+1 == args.length) {
+            throw new Error("Specified -threads without indicating the number of threads");
+          } else {
+            threads = Integer.parseInt(args[++i]);
+          }
         } else if (args[i].equals("-locale")) {
           if (i+1 == args.length) {
             throw new Error("Specified -locale without indicating locale");
@@ -505,6 +542,19 @@ public class Validator {
           mode = EngineMode.NARRATIVE;
         } else if (args[i].equals("-snapshot")) {
           mode = EngineMode.SNAPSHOT;
+        } else if (args[i].equals("-tx-threads")) {
+          if (i+1 == args.length) {
+            throw new Error("Specified -tx-threads without indicating the number of threads");
+          } else {
+            txThreads = Integer.parseInt(args[++i]);
+          }
+        } else if (args[i].equals("-server")) {
+          if (i+1 == args.length) {
+            throw new Error("Specified -server without indicating the port");
+          } else {
+            port = Integer.parseInt(args[++i]);
+          }
+          mode = EngineMode.SERVER;
         } else if (args[i].equals("-scan")) {
           mode = EngineMode.SCAN;
         } else if (args[i].equals("-tx")) {
@@ -576,7 +626,7 @@ public class Validator {
           sources.add(args[i]);
         }
       }
-      if  (sources.isEmpty())
+      if  (sources.isEmpty() && mode != EngineMode.SERVER)
         throw new Exception("Must provide at least one source file");
 
       // Comment this out because definitions filename doesn't necessarily contain version (and many not even be 14 characters long).  Version gets spit out a couple of lines later after we've loaded the context
@@ -585,6 +635,10 @@ public class Validator {
       System.out.println("  .. connect to tx server @ "+txServer);
       ValidationEngine validator = new ValidationEngine(definitions, txServer, txLog, FhirPublication.fromCode(sv), sv);
       validator.setDebug(doDebug);
+      validator.setSnapshotCache(snapshotCache);
+      validator.setThreads(threads);
+      validator.setTerminologyThreads(txThreads);
+      validator.setProfileTimings(profileTimings);
       System.out.println("    (v"+validator.getContext().getVersion()+")");
       for (String src : igs) {
         System.out.println("+  .. load IG from "+src);
@@ -677,7 +731,12 @@ public class Validator {
             validator.loadProfile(locations.getOrDefault(s, s));
           }
         }
-        if (mode == EngineMode.SCAN) {
+        if (mode == EngineMode.SERVER) {
+          validator.prepare(); // generate any missing snapshots
+          ValidatorServer server = new ValidatorServer(validator);
+          server.start(port, threads);
+          System.out.println("  .. validation service running at http://localhost:"+server.getPort()+"/validate ("+Math.max(threads, 1)+" threads)");
+        } else if (mode == EngineMode.SCAN) {
           if (Utilities.noString(output))
             throw new Exception("Output parameter required when scanning");
           if (!(new File(output).isDirectory()))
@@ -691,6 +750,8 @@ public class Validator {
           List<ScanOutputItem> res = validator.validateScan(sources, urls);
           validator.genScanOutput(output, res);         
           System.out.println("Done. output in "+Utilities.path(output, "scan.html"));
+        } else if (sources.size() == 1 && sources.get(0).endsWith(".ndjson")) {
+          validateNDJson(validator, sources.get(0), profiles, output);
         } else { 
           if (profiles.size() > 0)
             System.out.println("  .. validate "+sources+" against "+profiles.toString());
@@ -698,6 +759,9 @@ public class Validator {
             System.out.println("  .. validate "+sources);
           validator.prepare(); // generate any missing snapshots
           Resource r = validator.validate(sources, profiles);
+          if (profileTimings) {
+            System.out.println(validator.getTimings().report(20));
+          }
           int ec = 0;
           if (output == null) {
             if (r instanceof Bundle)
@@ -716,6 +780,37 @@ public class Validator {
     }
   }
 
+  private static void validateNDJson(ValidationEngine validator, String source, List<String> profiles, String output) throws Exception {
+    System.out.println("  .. validate "+source+" as NDJSON"+(profiles.size() > 0 ? " against "+profiles.toString() : ""));
+    validator.prepare(); // generate any missing snapshots
+    NDJsonValidator.Summary summary;
+    if (output == null) {
+      summary = validator.validateNDJson(source, profiles, new NDJsonValidator.INDJsonOutcomeListener() {
+        @Override
+        public void outcome(int line, String resourceType, OperationOutcome outcome) {
+          for (OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+            if (issue.getSeverity() == OperationOutcome.IssueSeverity.FATAL || issue.getSeverity() == OperationOutcome.IssueSeverity.ERROR) {
+              displayOO(outcome);
+              return;
+            }
+          }
+        }
+      });
+    } else {
+      NDJsonValidator.NDJsonOutcomeWriter writer = new NDJsonValidator.NDJsonOutcomeWriter(new FileOutputStream(output));
+      try {
+        summary = validator.validateNDJson(source, profiles, writer);
+      } finally {
+        writer.close();
+      }
+    }
+    System.out.println(summary.report());
+    if (validator.isProfileTimings()) {
+      System.out.println(validator.getTimings().report(20));
+    }
+    System.exit(summary.getFailedLines() > 0 ? 1 : 0);
+  }
+
   private static String chooseName(String[] args, String name, CanonicalResource mr) {
     String s = getParam(args, "-"+name);
     if (Utilities.noString(s))
@@ -0,0 +1,212 @@
+package org.hl7.fhir.validation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.utils.ExpressionNodeCache;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.Utilities;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the validator as a local HTTP service, so that the context (packages, snapshots, terminology
+ * connection) is loaded once, and then used for as many validations as the clients want.
+ *
+ *   POST /validate : the body is the resource (JSON, XML or Turtle, according to the Content-Type).
+ *      Parameters: profile (any number of times - the profiles must already be loaded), location
+ *      Returns an OperationOutcome, in the FHIR version of the context, and in the format asked for by the
+ *      Accept header (default: the same as the request)
+ *   GET /status : JSON with throughput and latency stats, and the context status
+ *
+ * Requests are handled concurrently, on a fixed number of threads. The service only listens on the loopback interface
+ */
+public class ValidatorServer {
+
+  private ValidationEngine engine;
+  private HttpServer server;
+  private ExecutorService executor;
+  private int threads;
+  private CallStats stats = new CallStats();
+  private AtomicInteger active = new AtomicInteger();
+
+  public ValidatorServer(ValidationEngine engine) {
+    super();
+    this.engine = engine;
+  }
+
+  public void start(int port, int threads) throws IOException {
+    this.threads = Math.max(threads, 1);
+    engine.prepareForThreads();
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/validate", new ValidateHandler());
+    server.createContext("/status", new StatusHandler());
+    executor = Executors.newFixedThreadPool(this.threads);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  public CallStats getStats() {
+    return stats;
+  }
+
+  public String status() {
+    JsonObject json = new JsonObject();
+    json.addProperty("threads", threads);
+    json.addProperty("active", active.get());
+    stats.toJson(json, "validation-");
+    engine.getContext().reportStatus(json);
+    json.addProperty("fhirpath-cache-size", ExpressionNodeCache.size());
+    json.addProperty("fhirpath-cache-hit-rate", Math.round(ExpressionNodeCache.getHitRate() * 1000) / 1000.0);
+    json.addProperty("mem-max", Runtime.getRuntime().maxMemory() / (1024*1024));
+    json.addProperty("mem-used", (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / (1024*1024));
+    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    return gson.toJson(json);
+  }
+
+  private class ValidateHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      long t = System.nanoTime();
+      active.incrementAndGet();
+      boolean failed = false;
+      try {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+          sendText(exchange, 405, "Use POST to validate a resource");
+          return;
+        }
+        FhirFormat fmt = formatFor(exchange.getRequestHeaders().getFirst("Content-Type"), FhirFormat.JSON);
+        FhirFormat rfmt = formatFor(exchange.getRequestHeaders().getFirst("Accept"), fmt == FhirFormat.XML ? FhirFormat.XML : FhirFormat.JSON);
+        String location = "request";
+        List<String> profiles = new ArrayList<String>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+          for (String p : query.split("&")) {
+            String name = p.contains("=") ? p.substring(0, p.indexOf("=")) : p;
+            String value = p.contains("=") ? decode(p.substring(p.indexOf("=")+1)) : "";
+            if ("profile".equals(name)) {
+              profiles.add(value);
+            } else if ("location".equals(name)) {
+              location = value;
+            }
+          }
+        }
+        for (String p : profiles) {
+          // the profiles have to be loaded already - loading them here would change the context while other requests are using it
+          if (!engine.getContext().hasResource(StructureDefinition.class, p)) {
+            sendOutcome(exchange, 400, engine.exceptionToOutcome(new Exception("Unknown profile "+p)), rfmt);
+            return;
+          }
+        }
+        byte[] source = TextFile.streamToBytes(exchange.getRequestBody());
+        OperationOutcome oo;
+        int code = 200;
+        try {
+          oo = engine.validate(location, source, fmt, profiles);
+        } catch (Exception e) {
+          failed = true;
+          code = 500;
+          oo = engine.exceptionToOutcome(e);
+        }
+        sendOutcome(exchange, code, oo, rfmt);
+      } catch (Exception e) {
+        failed = true;
+        if (exchange.getResponseCode() == -1) {
+          sendText(exchange, 500, "Error: "+e.getMessage());
+        } else {
+          // the response has already started, so all that can be done is to drop the connection
+          System.out.println("Error sending the validation outcome: "+e.getMessage());
+        }
+      } finally {
+        active.decrementAndGet();
+        stats.record(System.nanoTime() - t, failed);
+        exchange.close();
+      }
+    }
+  }
+
+  private class StatusHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        byte[] cnt = status().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, cnt.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(cnt);
+        os.close();
+      } finally {
+        exchange.close();
+      }
+    }
+  }
+
+  private FhirFormat formatFor(String mimeType, FhirFormat defaultFormat) {
+    if (Utilities.noString(mimeType)) {
+      return defaultFormat;
+    } else if (mimeType.contains("xml")) {
+      return FhirFormat.XML;
+    } else if (mimeType.contains("json")) {
+      return FhirFormat.JSON;
+    } else if (mimeType.contains("turtle")) {
+      return FhirFormat.TURTLE;
+    } else {
+      return defaultFormat;
+    }
+  }
+
+  private String decode(String value) throws UnsupportedEncodingException {
+    return URLDecoder.decode(value, "UTF-8");
+  }
+
+  private void sendOutcome(HttpExchange exchange, int code, OperationOutcome oo, FhirFormat fmt) throws Exception {
+    ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    if (fmt != FhirFormat.XML) {
+      fmt = FhirFormat.JSON;
+    }
+    engine.composeForContextVersion(oo, fmt, bs);
+    exchange.getResponseHeaders().set("Content-Type", fmt == FhirFormat.XML ? "application/fhir+xml" : "application/fhir+json");
+    byte[] cnt = bs.toByteArray();
+    exchange.sendResponseHeaders(code, cnt.length);
+    OutputStream os = exchange.getResponseBody();
+    os.write(cnt);
+    os.close();
+  }
+
+  private void sendText(HttpExchange exchange, int code, String msg) throws IOException {
+    byte[] cnt = msg.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+    exchange.sendResponseHeaders(code, cnt.length);
+    OutputStream os = exchange.getResponseBody();
+    os.write(cnt);
+    os.close();
+  }
+
+}
@@ -32,11 +32,14 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.NotImplementedException;
 import org.apache.commons.lang3.StringUtils;
@@ -130,6 +133,7 @@ import org.hl7.fhir.r5.model.ValueSet.ValueSetExpansionContainsComponent;
 import org.hl7.fhir.r5.terminologies.ValueSetUtilities;
 import org.hl7.fhir.r5.utils.FHIRLexer.FHIRLexerException;
 import org.hl7.fhir.r5.utils.FHIRPathEngine;
+import org.hl7.fhir.r5.utils.FHIRPathEngine.CompiledExpression;
 import org.hl7.fhir.r5.utils.FHIRPathEngine.IEvaluationContext;
 import org.hl7.fhir.r5.utils.IResourceValidator;
 import org.hl7.fhir.r5.utils.NarrativeGenerator;
@@ -142,6 +146,7 @@ import org.hl7.fhir.validation.instance.type.MeasureValidator;
 import org.hl7.fhir.validation.instance.type.QuestionnaireValidator;
 import org.hl7.fhir.validation.XVerExtensionManager;
 import org.hl7.fhir.utilities.CommaSeparatedStringBuilder;
+import org.hl7.fhir.utilities.RegexCache;
 import org.hl7.fhir.utilities.Utilities;
 import org.hl7.fhir.utilities.Utilities.DecimalStatus;
 import org.hl7.fhir.utilities.VersionUtilities;
@@ -190,6 +195,12 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   private final String BUNDLE = "Bundle";
   private final String LAST_UPDATED = "lastUpdated";
 
+  // the lexical forms of the primitive types, compiled once rather than for every value
+  private static final Pattern TIME_PATTERN = Pattern.compile("([01][0-9]|2[0-3]):[0-5][0-9]:([0-5][0-9]|60)");
+  private static final Pattern DATE_PATTERN = Pattern.compile("([0-9]([0-9]([0-9][1-9]|[1-9]0)|[1-9]00)|[1-9]000)(-(0[1-9]|1[0-2])(-(0[1-9]|[1-2][0-9]|3[0-1]))?)?");
+  private static final Pattern INSTANT_PATTERN = Pattern.compile("-?[0-9]{4}-(0[1-9]|1[0-2])-(0[1-9]|[1-2][0-9]|3[0-1])T([01][0-9]|2[0-3]):[0-5][0-9]:([0-5][0-9]|60)(\\.[0-9]+)?(Z|(\\+|-)((0[0-9]|1[0-3]):[0-5][0-9]|14:00))");
+  private static final Pattern SEARCH_QUERY_PATTERN = Pattern.compile("([_a-zA-Z][_a-zA-Z0-9]*=[^=&]+)(&([_a-zA-Z][_a-zA-Z0-9]*=[^=&]+))*");
+
   private class ValidatorHostServices implements IEvaluationContext {
 
     @Override
@@ -271,18 +282,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       if (bnd == null)
         return null;
       if (bnd.fhirType().equals(BUNDLE)) {
-        for (Element be : bnd.getChildrenByName(ENTRY)) {
-          Element res = be.getNamedChild(RESOURCE);
-          if (res != null) {
-            String fullUrl = be.getChildValue(FULL_URL);
-            String rt = res.fhirType();
-            String id = res.getChildValue(ID);
-            if (url.equals(fullUrl))
-              return res;
-            if (url.equals(rt + "/" + id))
-              return res;
-          }
-        }
+        return BundleIndex.forBundle(bnd).findResource(url);
       }
       return null;
     }
@@ -352,6 +352,8 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   private boolean errorForUnknownProfiles;
   private boolean noInvariantChecks;
   private boolean noTerminologyChecks;
+  private int terminologyThreads;
+  private boolean collecting; // true while the first pass is finding the codes to send to the terminology server
   private boolean hintAboutNonMustSupport;
   private boolean showMessagesFromReferences;
   private BestPracticeWarningLevel bpWarnings;
@@ -371,6 +373,8 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   private boolean debug;
   private Map<String, Element> fetchCache = new HashMap<>();
   private HashMap<Element, ResourceValidationTracker> resourceTracker = new HashMap<>();
+  // whether each profile uses mustSupport. Not kept in the profile's user data, since the profiles are shared with other validators
+  private Map<StructureDefinition, Boolean> usesMustSupport = new ConcurrentHashMap<>();
   private IValidatorResourceFetcher fetcher;
   long time = 0;
   private IEvaluationContext externalHostServices;
@@ -694,6 +698,56 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     baseOnly = profiles.isEmpty();
 
     long t = System.nanoTime();
+    if (terminologyThreads > 0 && !noTerminologyChecks) {
+      // a first pass to find the codes that need the terminology server, so they can all be checked at once.
+      // the results are cached, so the real pass below doesn't need to wait for the server
+      // this pass doesn't leave anything on the elements that the real pass wouldn't (see isCollecting())
+      boolean resolved = element.hasUserData("validator.bundle.resolved");
+      context.collectCodeValidations();
+      collecting = true;
+      try {
+        validateAgainstProfiles(appContext, new ArrayList<ValidationMessage>(), element, profiles);
+      } catch (Exception e) {
+        // any problems will be found again, and reported, by the real pass
+      } finally {
+        collecting = false;
+        if (!resolved) {
+          clearBundleResolutions(element);
+        }
+        long tt = System.nanoTime();
+        context.resolveCodeValidations(terminologyThreads);
+        timeTracker.tx(tt, System.nanoTime());
+      }
+      fetchCache.clear();
+      fetchCache.put(element.fhirType() + "/" + element.getIdBase(), element);
+      resourceTracker.clear();
+      executionId = UUID.randomUUID().toString();
+    }
+    validateAgainstProfiles(appContext, errors, element, profiles);
+    if (hintAboutNonMustSupport) {
+      checkElementUsage(errors, element, new NodeStack(context, element, validationLanguage));
+    }
+    timeTracker.overall(t, System.nanoTime());
+  }
+
+  /**
+   * the references in bundles are resolved up front, and the resolutions are used by the invariants (resolve()), so the
+   * collection pass needs them too. If it made them, they're dropped afterwards, and the real pass makes them again
+   */
+  private void clearBundleResolutions(Element element) {
+    element.clearUserData("validator.bundle.resolved");
+    element.clearUserData("validator.bundle.resolution-resource");
+    element.clearUserData("validator.bundle.resolution");
+    element.clearUserData("validator.bundle.resolution-failed");
+    element.clearUserData("validator.bundle.resolution-noref");
+    if (element.hasChildren()) {
+      for (Element child : element.getChildren()) {
+        clearBundleResolutions(child);
+      }
+    }
+  }
+
+  private void validateAgainstProfiles(Object appContext, List<ValidationMessage> errors, Element element, List<StructureDefinition> profiles) throws FHIRException {
     if (profiles == null || profiles.isEmpty()) {
       validateResource(new ValidatorHostContext(appContext, element), errors, element, element, null, resourceIdRule, new NodeStack(context, element, validationLanguage));
     } else {
@@ -701,10 +755,6 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
         validateResource(new ValidatorHostContext(appContext, element), errors, element, element, defn, resourceIdRule, new NodeStack(context, element, validationLanguage));
       }
     }
-    if (hintAboutNonMustSupport) {
-      checkElementUsage(errors, element, new NodeStack(context, element, validationLanguage));
-    }
-    timeTracker.overall(t, System.nanoTime());
   }
 
   private void checkElementUsage(List<ValidationMessage> errors, Element element, NodeStack stack) {
@@ -1778,7 +1828,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
     String regex = context.getExtensionString(ToolingExtensions.EXT_REGEX);
     if (regex != null)
-      rule(errors, IssueType.INVALID, e.line(), e.col(), path, e.primitiveValue().matches(regex), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_PRIMITIVE_REGEX, e.primitiveValue(), regex);
+      rule(errors, IssueType.INVALID, e.line(), e.col(), path, RegexCache.matches(e.primitiveValue(), regex), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_PRIMITIVE_REGEX, e.primitiveValue(), regex);
 
     if (type.equals("boolean")) {
       rule(errors, IssueType.INVALID, e.line(), e.col(), path, "true".equals(e.primitiveValue()) || "false".equals(e.primitiveValue()), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_BOOLEAN_VALUE);
@@ -1837,8 +1887,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     if (type.equals("dateTime")) {
       warning(errors, IssueType.INVALID, e.line(), e.col(), path, yearIsValid(e.primitiveValue()), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_DATETIME_REASONABLE, e.primitiveValue());
       rule(errors, IssueType.INVALID, e.line(), e.col(), path,
-        e.primitiveValue()
-          .matches("([0-9]([0-9]([0-9][1-9]|[1-9]0)|[1-9]00)|[1-9]000)(-(0[1-9]|1[0-2])(-(0[1-9]|[1-2][0-9]|3[0-1])(T([01][0-9]|2[0-3]):[0-5][0-9]:([0-5][0-9]|60)(\\.[0-9]+)?(Z|(\\+|-)((0[0-9]|1[0-3]):[0-5][0-9]|14:00))?)?)?)?"), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_DATETIME_VALID, e.primitiveValue());
+        RegexCache.DATETIME_PATTERN.matcher(e.primitiveValue()).matches(), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_DATETIME_VALID, e.primitiveValue());
       rule(errors, IssueType.INVALID, e.line(), e.col(), path, !hasTime(e.primitiveValue()) || hasTimeZone(e.primitiveValue()), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_DATETIME_TZ);
       rule(errors, IssueType.INVALID, e.line(), e.col(), path, !context.hasMaxLength() || context.getMaxLength() == 0 || e.primitiveValue().length() <= context.getMaxLength(), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_PRIMITIVE_LENGTH, context.getMaxLength());
       try {
@@ -1849,8 +1898,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
     if (type.equals("time")) {
       rule(errors, IssueType.INVALID, e.line(), e.col(), path,
-        e.primitiveValue()
-          .matches("([01][0-9]|2[0-3]):[0-5][0-9]:([0-5][0-9]|60)"), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_TIME_VALID);
+        TIME_PATTERN.matcher(e.primitiveValue()).matches(), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_TIME_VALID);
       try {
         TimeType dt = new TimeType(e.primitiveValue());
       } catch (Exception ex) {
@@ -1859,7 +1907,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
     if (type.equals("date")) {
       warning(errors, IssueType.INVALID, e.line(), e.col(), path, yearIsValid(e.primitiveValue()), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_DATETIME_REASONABLE, e.primitiveValue());
-      rule(errors, IssueType.INVALID, e.line(), e.col(), path, e.primitiveValue().matches("([0-9]([0-9]([0-9][1-9]|[1-9]0)|[1-9]00)|[1-9]000)(-(0[1-9]|1[0-2])(-(0[1-9]|[1-2][0-9]|3[0-1]))?)?"), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_DATE_VALID);
+      rule(errors, IssueType.INVALID, e.line(), e.col(), path, DATE_PATTERN.matcher(e.primitiveValue()).matches(), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_DATE_VALID);
       rule(errors, IssueType.INVALID, e.line(), e.col(), path, !context.hasMaxLength() || context.getMaxLength() == 0 || e.primitiveValue().length() <= context.getMaxLength(), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_PRIMITIVE_LENGTH, context.getMaxLength());
       try {
         DateType dt = new DateType(e.primitiveValue());
@@ -1928,7 +1976,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
     if (type.equals("instant")) {
       rule(errors, IssueType.INVALID, e.line(), e.col(), path,
-        e.primitiveValue().matches("-?[0-9]{4}-(0[1-9]|1[0-2])-(0[1-9]|[1-2][0-9]|3[0-1])T([01][0-9]|2[0-3]):[0-5][0-9]:([0-5][0-9]|60)(\\.[0-9]+)?(Z|(\\+|-)((0[0-9]|1[0-3]):[0-5][0-9]|14:00))"), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_DATETIME_REGEX, e.primitiveValue());
+        INSTANT_PATTERN.matcher(e.primitiveValue()).matches(), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_DATETIME_REGEX, e.primitiveValue());
       warning(errors, IssueType.INVALID, e.line(), e.col(), path, yearIsValid(e.primitiveValue()), I18nConstants.TYPE_SPECIFIC_CHECKS_DT_DATETIME_REASONABLE, e.primitiveValue());
       try {
         InstantType dt = new InstantType(e.primitiveValue());
@@ -2147,8 +2195,10 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
         } else {
           Element ext = null;
           if (fetchCache.containsKey(ref)) {
+            timeTracker.cacheHit("fetch");
             ext = fetchCache.get(ref);
           } else {
+            timeTracker.cacheMiss("fetch");
             try {
               ext = fetcher.fetch(hostContext.getAppContext(), ref);
             } catch (IOException e) {
@@ -2616,29 +2666,26 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       targetUrl = base + id;
     }
 
-    List<Element> entries = new ArrayList<Element>();
-    bundle.getNamedChildren(ENTRY, entries);
+    BundleIndex index = BundleIndex.forBundle(bundle);
+    List<Element> entries = index.getEntries();
     Element match = null;
     int matchIndex = -1;
-    for (int i = 0; i < entries.size(); i++) {
-      Element we = entries.get(i);
-      if (targetUrl.equals(we.getChildValue(FULL_URL))) {
-        Element r = we.getNamedChild(RESOURCE);
-        if (version.isEmpty()) {
-          rule(errors, IssueType.FORBIDDEN, -1, -1, path, match == null, I18nConstants.BUNDLE_BUNDLE_MULTIPLEMATCHES, ref);
-          match = r;
-          matchIndex = i;
-        } else {
-          try {
-            if (version.equals(r.getChildren(META).get(0).getChildValue("versionId"))) {
-              rule(errors, IssueType.FORBIDDEN, -1, -1, path, match == null, I18nConstants.BUNDLE_BUNDLE_MULTIPLEMATCHES, ref);
-              match = r;
-              matchIndex = i;
-            }
-          } catch (Exception e) {
-            warning(errors, IssueType.REQUIRED, -1, -1, path, r.getChildren(META).size() == 1 && r.getChildren(META).get(0).getChildValue("versionId") != null, I18nConstants.BUNDLE_BUNDLE_FULLURL_NEEDVERSION, targetUrl);
-            // If one of these things is null
+    for (int i : index.findByFullUrl(targetUrl)) {
+      Element r = entries.get(i).getNamedChild(RESOURCE);
+      if (version.isEmpty()) {
+        rule(errors, IssueType.FORBIDDEN, -1, -1, path, match == null, I18nConstants.BUNDLE_BUNDLE_MULTIPLEMATCHES, ref);
+        match = r;
+        matchIndex = i;
+      } else {
+        try {
+          if (version.equals(r.getChildren(META).get(0).getChildValue("versionId"))) {
+            rule(errors, IssueType.FORBIDDEN, -1, -1, path, match == null, I18nConstants.BUNDLE_BUNDLE_MULTIPLEMATCHES, ref);
+            match = r;
+            matchIndex = i;
           }
+        } catch (Exception e) {
+          warning(errors, IssueType.REQUIRED, -1, -1, path, r.getChildren(META).size() == 1 && r.getChildren(META).get(0).getChildValue("versionId") != null, I18nConstants.BUNDLE_BUNDLE_FULLURL_NEEDVERSION, targetUrl);
+          // If one of these things is null
         }
       }
     }
@@ -2659,8 +2706,22 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     if (!context.getResourceNames().contains(tn)) {
       return false;
     } else {
-      return q.matches("([_a-zA-Z][_a-zA-Z0-9]*=[^=&]+)(&([_a-zA-Z][_a-zA-Z0-9]*=[^=&]+))*");
+      return SEARCH_QUERY_PATTERN.matcher(q).matches();
+    }
+  }
+
+  private StructureDefinition getProfileForType(String type, ElementDefinition ed) {
+    ElementPlan plan = ElementPlan.forElement(ed);
+    int version = context.getStructuresVersion();
+    StructureDefinition res = plan.getTypeProfile(type, version);
+    if (res != null) {
+      timeTracker.cacheHit("type-profile");
+    } else {
+      timeTracker.cacheMiss("type-profile");
+      res = getProfileForType(type, ed.getType());
+      plan.setTypeProfile(type, res, version);
     }
+    return res;
   }
 
   private StructureDefinition getProfileForType(String type, List<TypeRefComponent> list) {
@@ -2917,8 +2978,10 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     if (fetcher == null)
       return null;
     if (fetchCache.containsKey(ref)) {
+      timeTracker.cacheHit("fetch");
       return fetchCache.get(ref);
     } else {
+      timeTracker.cacheMiss("fetch");
       Element res = fetcher.fetch(appContext, ref);
       fetchCache.put(ref, res);
       return res;
@@ -2926,15 +2989,10 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
 
-  private Element resolveInBundle(List<Element> entries, String ref, String fullUrl, String type, String id) {
+  private Element resolveInBundle(BundleIndex index, String ref, String fullUrl, String type, String id) {
     if (Utilities.isAbsoluteUrl(ref)) {
       // if the reference is absolute, then you resolve by fullUrl. No other thinking is required.
-      for (Element entry : entries) {
-        String fu = entry.getNamedChildValue(FULL_URL);
-        if (ref.equals(fu))
-          return entry;
-      }
-      return null;
+      return index.findEntryByFullUrl(ref);
     } else {
       // split into base, type, and id
       String u = null;
@@ -2944,22 +3002,10 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 //        u = fullUrl.substring((type+"/"+id).length())+ref;
       String[] parts = ref.split("\\/");
       if (parts.length >= 2) {
-        String t = parts[0];
-        String i = parts[1];
-        for (Element entry : entries) {
-          String fu = entry.getNamedChildValue(FULL_URL);
-          if (fu != null && fu.equals(u))
-            return entry;
-          if (u == null) {
-            Element resource = entry.getNamedChild(RESOURCE);
-            if (resource != null) {
-              String et = resource.getType();
-              String eid = resource.getNamedChildValue(ID);
-              if (t.equals(et) && i.equals(eid))
-                return entry;
-            }
-          }
-        }
+        if (u != null)
+          return index.findEntryByFullUrl(u);
+        else
+          return index.findEntryByTypeAndId(parts[0], parts[1]);
       }
       return null;
     }
@@ -3053,8 +3099,12 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     if (!slicer.getSlicing().hasDiscriminator())
       return false; // cannot validate in this case
 
-    ExpressionNode n = (ExpressionNode) ed.getUserData("slice.expression.cache");
-    if (n == null) {
+    ElementPlan plan = ElementPlan.forElement(ed);
+    ExpressionNode n = plan.getSliceExpression();
+    if (n != null) {
+      timeTracker.cacheHit("slice-expression");
+    } else {
+      timeTracker.cacheMiss("slice-expression");
       long t = System.nanoTime();
       // GG: this approach is flawed because it treats discriminators individually rather than collectively
       StringBuilder expression = new StringBuilder("true");
@@ -3141,7 +3191,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
         throw new FHIRException(context.formatMessage(I18nConstants.PROBLEM_PROCESSING_EXPRESSION__IN_PROFILE__PATH__, expression, profile.getUrl(), path, e.getMessage()));
       }
       timeTracker.fpe(t, System.nanoTime());
-      ed.setUserData("slice.expression.cache", n);
+      plan.setSliceExpression(n);
     }
 
     ValidatorHostContext shc = hostContext.forSlicing();
@@ -3390,8 +3440,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       String ref = element.getChildValue("reference");
       if (!Utilities.noString(ref)) {
         for (Element bundle : bundles) {
-          List<Element> entries = bundle.getChildren(ENTRY);
-          Element tgt = resolveInBundle(entries, ref, fu, resource.fhirType(), resource.getIdBase());
+          Element tgt = resolveInBundle(BundleIndex.forBundle(bundle), ref, fu, resource.fhirType(), resource.getIdBase());
           if (tgt != null) {
             element.setUserData("validator.bundle.resolution", tgt.getNamedChild(RESOURCE));
             return;
@@ -3414,6 +3463,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     ResourceValidationTracker resTracker = getResourceTracker(element);
     List<ValidationMessage> cachedErrors = resTracker.getOutcomes(defn);
     if (cachedErrors != null) {
+      timeTracker.cacheHit("resource-profile");
       for (ValidationMessage vm : cachedErrors) {
         if (!errors.contains(vm)) {
           errors.add(vm);
@@ -3423,9 +3473,12 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
     if (rule(errors, IssueType.STRUCTURE, element.line(), element.col(), stack.getLiteralPath(), defn.hasSnapshot(), I18nConstants.VALIDATION_VAL_PROFILE_NOSNAPSHOT)) {
       List<ValidationMessage> localErrors = new ArrayList<ValidationMessage>();
+      timeTracker.cacheMiss("resource-profile");
       resTracker.startValidating(defn);
       trackUsage(defn, hostContext, element);
+      long t = System.nanoTime();
       validateElement(hostContext, localErrors, defn, defn.getSnapshot().getElement().get(0), null, null, resource, element, element.getName(), stack, false, true, null);
+      timeTracker.profile(defn.getUrl(), t, System.nanoTime());
       resTracker.storeOutcomes(defn, localErrors);
       for (ValidationMessage vm : localErrors) {
         if (!errors.contains(vm)) {
@@ -3563,8 +3616,8 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 
 
   private void validateBundle(List<ValidationMessage> errors, Element bundle, NodeStack stack, boolean checkSpecials) {
-    List<Element> entries = new ArrayList<Element>();
-    bundle.getNamedChildren(ENTRY, entries);
+    BundleIndex index = BundleIndex.build(bundle);
+    List<Element> entries = index.getEntries();
     String type = bundle.getNamedChildValue(TYPE);
     type = StringUtils.defaultString(type);
 
@@ -3582,20 +3635,20 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
         Element resource = firstEntry.getNamedChild(RESOURCE);
         String id = resource.getNamedChildValue(ID);
         if (rule(errors, IssueType.INVALID, firstEntry.line(), firstEntry.col(), stack.addToLiteralPath(ENTRY, PATH_ARG), resource != null, I18nConstants.BUNDLE_BUNDLE_ENTRY_NOFIRSTRESOURCE)) {
-          validateDocument(errors, entries, resource, firstStack.push(resource, -1, null, null), fullUrl, id);
+          validateDocument(errors, index, resource, firstStack.push(resource, -1, null, null), fullUrl, id);
         }
         if (!VersionUtilities.isThisOrLater(FHIRVersion._4_0_1.getDisplay(), bundle.getProperty().getStructure().getFhirVersion().getDisplay())) {
           handleSpecialCaseForLastUpdated(bundle, errors, stack);
         }
-        checkAllInterlinked(errors, entries, stack, bundle, true);
+        checkAllInterlinked(errors, index, stack, bundle, true);
       }
       if (type.equals(MESSAGE)) {
         Element resource = firstEntry.getNamedChild(RESOURCE);
         String id = resource.getNamedChildValue(ID);
         if (rule(errors, IssueType.INVALID, firstEntry.line(), firstEntry.col(), stack.addToLiteralPath(ENTRY, PATH_ARG), resource != null, I18nConstants.BUNDLE_BUNDLE_ENTRY_NOFIRSTRESOURCE)) {
-          validateMessage(errors, entries, resource, firstStack.push(resource, -1, null, null), fullUrl, id);
+          validateMessage(errors, index, resource, firstStack.push(resource, -1, null, null), fullUrl, id);
         }
-        checkAllInterlinked(errors, entries, stack, bundle, VersionUtilities.isR5Ver(context.getVersion()));
+        checkAllInterlinked(errors, index, stack, bundle, VersionUtilities.isR5Ver(context.getVersion()));
       }
       // We do not yet have rules requiring that the id and fullUrl match when dealing with messaging Bundles
       //      validateResourceIds(errors, entries, stack);
@@ -3605,7 +3658,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       String url = getCanonicalURLForEntry(entry);
       String id = getIdForEntry(entry);
       if (url != null) {
-        if (!(!url.equals(fullUrl) || (url.matches(uriRegexForVersion()) && url.endsWith("/" + id))) && !isV3orV2Url(url))
+        if (!(!url.equals(fullUrl) || (RegexCache.matches(url, uriRegexForVersion()) && url.endsWith("/" + id))) && !isV3orV2Url(url))
           rule(errors, IssueType.INVALID, entry.line(), entry.col(), stack.addToLiteralPath(ENTRY, PATH_ARG), false, I18nConstants.BUNDLE_BUNDLE_ENTRY_MISMATCHIDURL, url, fullUrl, id);
         rule(errors, IssueType.INVALID, entry.line(), entry.col(), stack.addToLiteralPath(ENTRY, PATH_ARG), !url.equals(fullUrl) || serverBase == null || (url.equals(Utilities.pathURL(serverBase, entry.getNamedChild(RESOURCE).fhirType(), id))), I18nConstants.BUNDLE_BUNDLE_ENTRY_CANONICAL, url, fullUrl);
       }
@@ -3693,20 +3746,23 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
   }
 
-  private void checkAllInterlinked(List<ValidationMessage> errors, List<Element> entries, NodeStack stack, Element bundle, boolean isError) {
+  private void checkAllInterlinked(List<ValidationMessage> errors, BundleIndex index, NodeStack stack, Element bundle, boolean isError) {
     List<EntrySummary> entryList = new ArrayList<>();
-    for (Element entry : entries) {
+    Map<Element, EntrySummary> summaries = new IdentityHashMap<>();
+    for (Element entry : index.getEntries()) {
       Element r = entry.getNamedChild(RESOURCE);
       if (r != null) {
-        entryList.add(new EntrySummary(entry, r));
+        EntrySummary e = new EntrySummary(entry, r);
+        entryList.add(e);
+        summaries.put(entry, e);
       }
     }
     for (EntrySummary e : entryList) {
       Set<String> references = findReferences(e.getEntry());
       for (String ref : references) {
-        Element tgt = resolveInBundle(entries, ref, e.getEntry().getChildValue(FULL_URL), e.getResource().fhirType(), e.getResource().getIdBase());
+        Element tgt = resolveInBundle(index, ref, e.getEntry().getChildValue(FULL_URL), e.getResource().fhirType(), e.getResource().getIdBase());
         if (tgt != null) {
-          EntrySummary t = entryForTarget(entryList, tgt);
+          EntrySummary t = summaries.get(tgt);
           if (t != null) {
             e.getTargets().add(t);
           }
@@ -3747,15 +3803,6 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
   }
 
-  private EntrySummary entryForTarget(List<EntrySummary> entryList, Element tgt) {
-    for (EntrySummary e : entryList) {
-      if (e.getEntry() == tgt) {
-        return e;
-      }
-    }
-    return null;
-  }
-
   private void visitLinked(Set<EntrySummary> visited, EntrySummary t) {
     if (!visited.contains(t)) {
       visited.add(t);
@@ -3809,7 +3856,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
   }
 
-  private void validateBundleReference(List<ValidationMessage> errors, List<Element> entries, Element ref, String name, NodeStack stack, String fullUrl, String type, String id) {
+  private void validateBundleReference(List<ValidationMessage> errors, BundleIndex index, Element ref, String name, NodeStack stack, String fullUrl, String type, String id) {
     String reference = null;
     try {
       reference = ref.getNamedChildValue("reference");
@@ -3818,7 +3865,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
 
     if (ref != null && !Utilities.noString(reference) && !reference.startsWith("#")) {
-      Element target = resolveInBundle(entries, reference, fullUrl, type, id);
+      Element target = resolveInBundle(index, reference, fullUrl, type, id);
       rule(errors, IssueType.INVALID, ref.line(), ref.col(), stack.addToLiteralPath("reference"), target != null, I18nConstants.BUNDLE_BUNDLE_ENTRY_NOTFOUND, reference, name);
     }
   }
@@ -3896,47 +3943,47 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     return false;
   }
 
-  private void validateDocument(List<ValidationMessage> errors, List<Element> entries, Element composition, NodeStack stack, String fullUrl, String id) {
+  private void validateDocument(List<ValidationMessage> errors, BundleIndex index, Element composition, NodeStack stack, String fullUrl, String id) {
     // first entry must be a composition
     if (rule(errors, IssueType.INVALID, composition.line(), composition.col(), stack.getLiteralPath(), composition.getType().equals("Composition"), I18nConstants.BUNDLE_BUNDLE_ENTRY_DOCUMENT)) {
 
       // the composition subject etc references must resolve in the bundle
-      validateDocumentReference(errors, entries, composition, stack, fullUrl, id, false, "subject", "Composition");
-      validateDocumentReference(errors, entries, composition, stack, fullUrl, id, true, "author", "Composition");
-      validateDocumentReference(errors, entries, composition, stack, fullUrl, id, false, "encounter", "Composition");
-      validateDocumentReference(errors, entries, composition, stack, fullUrl, id, false, "custodian", "Composition");
-      validateDocumentSubReference(errors, entries, composition, stack, fullUrl, id, "Composition", "attester", false, "party");
-      validateDocumentSubReference(errors, entries, composition, stack, fullUrl, id, "Composition", "event", true, "detail");
+      validateDocumentReference(errors, index, composition, stack, fullUrl, id, false, "subject", "Composition");
+      validateDocumentReference(errors, index, composition, stack, fullUrl, id, true, "author", "Composition");
+      validateDocumentReference(errors, index, composition, stack, fullUrl, id, false, "encounter", "Composition");
+      validateDocumentReference(errors, index, composition, stack, fullUrl, id, false, "custodian", "Composition");
+      validateDocumentSubReference(errors, index, composition, stack, fullUrl, id, "Composition", "attester", false, "party");
+      validateDocumentSubReference(errors, index, composition, stack, fullUrl, id, "Composition", "event", true, "detail");
 
-      validateSections(errors, entries, composition, stack, fullUrl, id);
+      validateSections(errors, index, composition, stack, fullUrl, id);
     }
   }
 
-  public void validateDocumentSubReference(List<ValidationMessage> errors, List<Element> entries, Element composition, NodeStack stack, String fullUrl, String id, String title, String parent, boolean repeats, String propName) {
+  public void validateDocumentSubReference(List<ValidationMessage> errors, BundleIndex index, Element composition, NodeStack stack, String fullUrl, String id, String title, String parent, boolean repeats, String propName) {
     List<Element> list = new ArrayList<>();
     composition.getNamedChildren(parent, list);
     int i = 1;
     for (Element elem : list) {
-      validateDocumentReference(errors, entries, elem, stack.push(elem, i, null, null), fullUrl, id, repeats, propName, title + "." + parent);
+      validateDocumentReference(errors, index, elem, stack.push(elem, i, null, null), fullUrl, id, repeats, propName, title + "." + parent);
       i++;
     }
   }
 
-  public void validateDocumentReference(List<ValidationMessage> errors, List<Element> entries, Element composition, NodeStack stack, String fullUrl, String id, boolean repeats, String propName, String title) {
+  public void validateDocumentReference(List<ValidationMessage> errors, BundleIndex index, Element composition, NodeStack stack, String fullUrl, String id, boolean repeats, String propName, String title) {
     if (repeats) {
       List<Element> list = new ArrayList<>();
       composition.getNamedChildren(propName, list);
       int i = 1;
       for (Element elem : list) {
         
-        validateBundleReference(errors, entries, elem, title + "." + propName, stack.push(elem, i, null, null), fullUrl, "Composition", id);
+        validateBundleReference(errors, index, elem, title + "." + propName, stack.push(elem, i, null, null), fullUrl, "Composition", id);
         i++;
       }
 
     } else {
       Element elem = composition.getNamedChild(propName);
       if (elem != null) {
-        validateBundleReference(errors, entries, elem, title + "." + propName, stack.push(elem, -1, null, null), fullUrl, "Composition", id);
+        validateBundleReference(errors, index, elem, title + "." + propName, stack.push(elem, -1, null, null), fullUrl, "Composition", id);
       }
     }
   }
@@ -3960,7 +4007,8 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       checkFixedValue(errors, stack.getLiteralPath(), element, definition.getFixed(), profile.getUrl(), definition.getSliceName(), null);
 
     // get the list of direct defined children, including slices
-    List<ElementDefinition> childDefinitions = profileUtilities.getChildMap(profile, definition);
+    ElementPlan plan = ElementPlan.forElement(definition);
+    List<ElementDefinition> childDefinitions = getChildDefinitions(plan, profile, definition);
     if (childDefinitions.isEmpty()) {
       if (actualType == null)
         return; // there'll be an error elsewhere in this case, and we're going to stop.
@@ -3970,8 +4018,15 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       if (actualType == null)
         return; // there'll be an error elsewhere in this case, and we're going to stop.
       List<ElementDefinition> typeChildDefinitions = getActualTypeChildren(hostContext, element, actualType);
-      // what were going to do is merge them - the type is not allowed to constrain things that the child definitions already do (well, if it does, it'll be ignored)
-      mergeChildLists(childDefinitions, typeChildDefinitions, definition.getPath(), actualType);
+      List<ElementDefinition> merged = plan.getTypeChildDefinitions(profile, actualType);
+      if (merged == null) {
+        // what were going to do is merge them - the type is not allowed to constrain things that the child definitions already do (well, if it does, it'll be ignored)
+        // the merge is done on a copy, since the child definitions are shared with other validations
+        merged = new ArrayList<ElementDefinition>(childDefinitions);
+        mergeChildLists(merged, typeChildDefinitions, definition.getPath(), actualType);
+        plan.setTypeChildDefinitions(profile, actualType, merged);
+      }
+      childDefinitions = merged;
     }
 
     List<ElementInfo> children = listChildren(element, stack);
@@ -3986,6 +4041,18 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
   }
 
+  private List<ElementDefinition> getChildDefinitions(ElementPlan plan, StructureDefinition profile, ElementDefinition definition) {
+    List<ElementDefinition> res = plan.getChildDefinitions(profile);
+    if (res != null) {
+      timeTracker.cacheHit("child-definitions");
+    } else {
+      timeTracker.cacheMiss("child-definitions");
+      res = profileUtilities.getChildMap(profile, definition);
+      plan.setChildDefinitions(profile, res);
+    }
+    return res;
+  }
+
   private void mergeChildLists(List<ElementDefinition> master, List<ElementDefinition> additional, String masterPath, String typePath) {
     for (ElementDefinition ed : additional) {
       boolean inMaster = false;
@@ -4015,7 +4082,8 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       throw new DefinitionException(context.formatMessage(I18nConstants.UNABLE_TO_RESOLVE_ACTUAL_TYPE_, actualType));
     trackUsage(dt, hostContext, element);
 
-    childDefinitions = profileUtilities.getChildMap(dt, dt.getSnapshot().getElement().get(0));
+    ElementDefinition root = dt.getSnapshot().getElement().get(0);
+    childDefinitions = getChildDefinitions(ElementPlan.forElement(root), dt, root);
     return childDefinitions;
   }
 
@@ -4104,7 +4172,9 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 
       checkInvariants(hostContext, errors, profile, ei.definition, resource, ei.getElement(), localStack, true);
 
-      ei.getElement().markValidation(profile, ei.definition);
+      if (!collecting) {
+        ei.getElement().markValidation(profile, ei.definition);
+      }
       boolean elementValidated = false;
       if (type != null) {
         if (isPrimitiveType(type)) {
@@ -4162,7 +4232,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       String tail = null;
       if (profiles.isEmpty()) {
         if (type != null) {
-          p = getProfileForType(type, ei.definition.getType());
+          p = getProfileForType(type, ei.definition);
 
           // If dealing with a primitive type, then we need to check the current child against
           // the invariants (constraints) on the current element, because otherwise it only gets
@@ -4288,18 +4358,18 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
   public void checkMustSupport(StructureDefinition profile, ElementInfo ei) {
-    String usesMustSupport = profile.getUserString("usesMustSupport");
-    if (usesMustSupport == null) {
-      usesMustSupport = "N";
+    Boolean ums = usesMustSupport.get(profile);
+    if (ums == null) {
+      ums = false;
       for (ElementDefinition pe : profile.getSnapshot().getElement()) {
         if (pe.getMustSupport()) {
-          usesMustSupport = "Y";
+          ums = true;
           break;
         }
       }
-      profile.setUserData("usesMustSupport", usesMustSupport);
+      usesMustSupport.put(profile, ums);
     }
-    if (usesMustSupport.equals("Y")) {
+    if (ums && !collecting) {
       String elementSupported = ei.getElement().getUserString("elementSupported");
       if (elementSupported == null || ei.definition.getMustSupport())
         if (ei.definition.getMustSupport()) {
@@ -4542,23 +4612,41 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     if (noInvariantChecks)
       return;
 
-    for (ElementDefinitionConstraintComponent inv : ed.getConstraint()) {
-      if (inv.hasExpression() && (!onlyNonInherited || !inv.hasSource() || !isInheritedProfile(profile, inv.getSource()))) {
-        @SuppressWarnings("unchecked")
-        Set<String> invList = executionId.equals(element.getUserString(EXECUTION_ID)) ? (Set<String>) element.getUserData(EXECUTED_CONSTRAINT_LIST) : null;
-        if (invList == null) {
-          invList = new HashSet<>();
-          element.setUserData(EXECUTED_CONSTRAINT_LIST, invList);
-          element.setUserData(EXECUTION_ID, executionId);
-        }
-        if (!invList.contains(inv.getKey())) {
-          invList.add(inv.getKey());
-          checkInvariant(hostContext, errors, path, profile, resource, element, inv);
-        } else {
-          //System.out.println("Skip "+inv.getKey()+" on "+path);
+    for (ElementDefinitionConstraintComponent inv : getConstraints(profile, ed, onlyNonInherited)) {
+      @SuppressWarnings("unchecked")
+      Set<String> invList = executionId.equals(element.getUserString(EXECUTION_ID)) ? (Set<String>) element.getUserData(EXECUTED_CONSTRAINT_LIST) : null;
+      if (invList == null) {
+        invList = new HashSet<>();
+        element.setUserData(EXECUTED_CONSTRAINT_LIST, invList);
+        element.setUserData(EXECUTION_ID, executionId);
+      }
+      if (!invList.contains(inv.getKey())) {
+        invList.add(inv.getKey());
+        checkInvariant(hostContext, errors, path, profile, ed, resource, element, inv);
+      } else {
+        //System.out.println("Skip "+inv.getKey()+" on "+path);
+      }
+    }
+  }
+
+  /**
+   * the constraints with expressions on the element that apply when validating against this profile.
+   * Working out which constraints are inherited means walking the base definitions, so the list is
+   * kept in the element plan
+   */
+  private List<ElementDefinitionConstraintComponent> getConstraints(StructureDefinition profile, ElementDefinition ed, boolean onlyNonInherited) {
+    ElementPlan plan = ElementPlan.forElement(ed);
+    List<ElementDefinitionConstraintComponent> res = plan.getConstraints(profile.getUrl(), onlyNonInherited);
+    if (res == null) {
+      res = new ArrayList<>();
+      for (ElementDefinitionConstraintComponent inv : ed.getConstraint()) {
+        if (inv.hasExpression() && (!onlyNonInherited || !inv.hasSource() || !isInheritedProfile(profile, inv.getSource()))) {
+          res.add(inv);
         }
       }
+      plan.setConstraints(profile.getUrl(), onlyNonInherited, res);
     }
+    return res;
   }
 
   private boolean isInheritedProfile(StructureDefinition profile, String source) {
@@ -4577,24 +4665,53 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
   public void checkInvariant(ValidatorHostContext hostContext, List<ValidationMessage> errors, String path, StructureDefinition profile, Element resource, Element element, ElementDefinitionConstraintComponent inv) throws FHIRException {
-    ExpressionNode n = (ExpressionNode) inv.getUserData("validator.expression.cache");
-    if (n == null) {
+    checkInvariant(hostContext, errors, path, profile, null, resource, element, inv);
+  }
+
+  /**
+   * ed is the element definition in the profile that the invariant belongs to, if known. When it is, the 
+   * invariant is compiled for the types the element can have
+   */
+  private void checkInvariant(ValidatorHostContext hostContext, List<ValidationMessage> errors, String path, StructureDefinition profile, ElementDefinition ed, Element resource, Element element, ElementDefinitionConstraintComponent inv) throws FHIRException {
+    ExpressionNode n;
+    CompiledExpression ce;
+    synchronized (inv) {
+      n = (ExpressionNode) inv.getUserData("validator.expression.cache");
+      ce = (CompiledExpression) inv.getUserData("validator.expression.compiled");
+    }
+    if (ce != null) {
+      timeTracker.cacheHit("invariant-expression");
+      n = ce.getExpression();
+    } else {
+      timeTracker.cacheMiss("invariant-expression");
       long t = System.nanoTime();
-      try {
-        n = fpe.parse(fixExpr(inv.getExpression()));
-      } catch (FHIRLexerException e) {
-        throw new FHIRException(context.formatMessage(I18nConstants.PROBLEM_PROCESSING_EXPRESSION__IN_PROFILE__PATH__, inv.getExpression(), profile.getUrl(), path, e.getMessage()));
+      if (n == null) {
+        try {
+          n = fpe.parse(fixExpr(inv.getExpression()));
+        } catch (FHIRLexerException e) {
+          throw new FHIRException(context.formatMessage(I18nConstants.PROBLEM_PROCESSING_EXPRESSION__IN_PROFILE__PATH__, inv.getExpression(), profile.getUrl(), path, e.getMessage()));
+        }
+      }
+      if (ed != null && profile.getSnapshot().getElement().contains(ed)) {
+        ce = fpe.compile(hostContext, profile, ed.getPath(), n);
+      } else {
+        ce = fpe.compile(n);
       }
       timeTracker.fpe(t, System.nanoTime());
-      inv.setUserData("validator.expression.cache", n);
+      synchronized (inv) {
+        inv.setUserData("validator.expression.cache", n);
+        inv.setUserData("validator.expression.compiled", ce);
+      }
     }
 
     String msg;
     boolean ok;
     try {
       long t = System.nanoTime();
-      ok = fpe.evaluateToBoolean(hostContext, resource, hostContext.getRootResource(), element, n);
-      timeTracker.fpe(t, System.nanoTime());
+      ok = fpe.evaluateToBoolean(hostContext, resource, hostContext.getRootResource(), element, ce);
+      long end = System.nanoTime();
+      timeTracker.fpe(t, end);
+      timeTracker.invariant(inv.getKey(), inv.getExpression(), t, end);
       msg = fpe.forLog();
     } catch (Exception ex) {
       ok = false;
@@ -4619,12 +4736,12 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
   }
 
-  private void validateMessage(List<ValidationMessage> errors, List<Element> entries, Element messageHeader, NodeStack stack, String fullUrl, String id) {
+  private void validateMessage(List<ValidationMessage> errors, BundleIndex index, Element messageHeader, NodeStack stack, String fullUrl, String id) {
     // first entry must be a messageheader
     if (rule(errors, IssueType.INVALID, messageHeader.line(), messageHeader.col(), stack.getLiteralPath(), messageHeader.getType().equals("MessageHeader"), I18nConstants.VALIDATION_BUNDLE_MESSAGE)) {
       List<Element> elements = messageHeader.getChildren("focus");
       for (Element elem : elements)
-        validateBundleReference(errors, entries, elem, "MessageHeader Data", stack.push(elem, -1, null, null), fullUrl, "MessageHeader", id);
+        validateBundleReference(errors, index, elem, "MessageHeader Data", stack.push(elem, -1, null, null), fullUrl, "MessageHeader", id);
     }
   }
 
@@ -4692,7 +4809,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
   }
 
-  private void validateSections(List<ValidationMessage> errors, List<Element> entries, Element focus, NodeStack stack, String fullUrl, String id) {
+  private void validateSections(List<ValidationMessage> errors, BundleIndex index, Element focus, NodeStack stack, String fullUrl, String id) {
     List<Element> sections = new ArrayList<Element>();
     focus.getNamedChildren("section", sections);
     int i = 1;
@@ -4700,18 +4817,18 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       NodeStack localStack = stack.push(section, i, null, null);
 
       // technically R4+, but there won't be matches from before that
-      validateDocumentReference(errors, entries, section, stack, fullUrl, id, false, "author", "Section");
-      validateDocumentReference(errors, entries, section, stack, fullUrl, id, false, "focus", "Section");
+      validateDocumentReference(errors, index, section, stack, fullUrl, id, false, "author", "Section");
+      validateDocumentReference(errors, index, section, stack, fullUrl, id, false, "focus", "Section");
 
       List<Element> sectionEntries = new ArrayList<Element>();
       section.getNamedChildren(ENTRY, sectionEntries);
       int j = 1;
       for (Element sectionEntry : sectionEntries) {
         NodeStack localStack2 = localStack.push(sectionEntry, j, null, null);
-        validateBundleReference(errors, entries, sectionEntry, "Section Entry", localStack2, fullUrl, "Composition", id);
+        validateBundleReference(errors, index, sectionEntry, "Section Entry", localStack2, fullUrl, "Composition", id);
         j++;
       }
-      validateSections(errors, entries, section, localStack, fullUrl, id);
+      validateSections(errors, index, section, localStack, fullUrl, id);
       i++;
     }
   }
@@ -4746,7 +4863,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
 
 
   public String reportTimes() {
-    String s = String.format("Times (ms): overall = %d, tx = %d, sd = %d, load = %d, fpe = %d", timeTracker.getOverall() / 1000000, timeTracker.getTxTime() / 1000000, timeTracker.getSdTime() / 1000000, timeTracker.getLoadTime() / 1000000, timeTracker.getFpeTime() / 1000000);
+    String s = timeTracker.report(10);
     timeTracker.reset();
     return s;
   }
@@ -4770,6 +4887,27 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     return this;
   }
 
+  public int getTerminologyThreads() {
+    return terminologyThreads;
+  }
+
+  /**
+   * If more than 0, the codes that need the terminology server are collected in a first pass over the
+   * resource, and checked all at once, with up to this many requests at a time. If 0 (the default) each 
+   * code is checked when the validator gets to it
+   */
+  public void setTerminologyThreads(int terminologyThreads) {
+    this.terminologyThreads = terminologyThreads;
+  }
+
+  /**
+   * true while validate() is making its first pass to collect the codes for the terminology server. The messages from
+   * that pass are thrown away, and it doesn't decorate the elements or mark the ones that are mustSupport
+   */
+  public boolean isCollecting() {
+    return collecting;
+  }
+
   public void checkAllInvariants() {
     for (StructureDefinition sd : context.allStructures()) {
       if (sd.getDerivation() == TypeDerivationRule.SPECIALIZATION) {
@@ -4777,10 +4915,15 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
           for (ElementDefinitionConstraintComponent inv : ed.getConstraint()) {
             if (inv.hasExpression()) {
               try {
-                ExpressionNode n = (ExpressionNode) inv.getUserData("validator.expression.cache");
+                ExpressionNode n;
+                synchronized (inv) {
+                  n = (ExpressionNode) inv.getUserData("validator.expression.cache");
+                }
                 if (n == null) {
                   n = fpe.parse(fixExpr(inv.getExpression()));
-                  inv.setUserData("validator.expression.cache", n);
+                  synchronized (inv) {
+                    inv.setUserData("validator.expression.cache", n);
+                  }
                 }
                 fpe.check(null, sd.getKind() == StructureDefinitionKind.RESOURCE ? sd.getType() : "DomainResource", ed.getPath(), n);
               } catch (Exception e) {
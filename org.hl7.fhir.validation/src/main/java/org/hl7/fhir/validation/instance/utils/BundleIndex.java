@@ -0,0 +1,135 @@
+package org.hl7.fhir.validation.instance.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+
+/**
+ * An index of the entries in a bundle, so that references between the entries can be resolved
+ * without scanning all the entries for each reference.
+ *
+ * The entries are indexed by fullUrl and by resource type/id. Base-relative references are
+ * resolved by working out the fullUrl they refer to, and looking that up. Where more than
+ * one entry matches, the first one in the bundle is the one found, as before
+ *
+ * The index is built once for a bundle, and kept in the bundle's user data. The validator
+ * does not change the bundle, so it does not go stale
+ */
+public class BundleIndex {
+
+  public static final String USER_DATA_KEY = "validator.bundle.index";
+
+  private static final String ENTRY = "entry";
+  private static final String RESOURCE = "resource";
+  private static final String FULL_URL = "fullUrl";
+  private static final String ID = "id";
+
+  private List<Element> entries;
+  private Map<String, List<Integer>> byFullUrl = new HashMap<>();
+  private Map<String, Integer> resourceByFullUrl = new HashMap<>();
+  private Map<String, Integer> byTypeAndId = new HashMap<>();
+  private Map<Element, Integer> positions = new IdentityHashMap<>();
+
+  public BundleIndex(List<Element> entries) {
+    this.entries = entries;
+    for (int i = 0; i < entries.size(); i++) {
+      Element entry = entries.get(i);
+      positions.put(entry, i);
+      String fullUrl = entry.getNamedChildValue(FULL_URL);
+      Element resource = entry.getNamedChild(RESOURCE);
+      if (fullUrl != null) {
+        List<Integer> list = byFullUrl.get(fullUrl);
+        if (list == null) {
+          list = new ArrayList<>();
+          byFullUrl.put(fullUrl, list);
+        }
+        list.add(i);
+        if (resource != null && !resourceByFullUrl.containsKey(fullUrl)) {
+          resourceByFullUrl.put(fullUrl, i);
+        }
+      }
+      if (resource != null) {
+        String key = resource.getType() + "/" + resource.getNamedChildValue(ID);
+        if (!byTypeAndId.containsKey(key)) {
+          byTypeAndId.put(key, i);
+        }
+      }
+    }
+  }
+
+  /**
+   * get the index for the bundle, building it if it hasn't already been built
+   */
+  public static BundleIndex forBundle(Element bundle) {
+    BundleIndex res = (BundleIndex) bundle.getUserData(USER_DATA_KEY);
+    if (res == null) {
+      res = build(bundle);
+    }
+    return res;
+  }
+
+  /**
+   * build the index for the bundle, and keep it in the bundle's user data, replacing any existing index
+   */
+  public static BundleIndex build(Element bundle) {
+    List<Element> entries = new ArrayList<Element>();
+    bundle.getNamedChildren(ENTRY, entries);
+    BundleIndex res = new BundleIndex(entries);
+    bundle.setUserData(USER_DATA_KEY, res);
+    return res;
+  }
+
+  public List<Element> getEntries() {
+    return entries;
+  }
+
+  /**
+   * the position of all the entries with the given fullUrl, in bundle order
+   */
+  public List<Integer> findByFullUrl(String fullUrl) {
+    List<Integer> res = fullUrl == null ? null : byFullUrl.get(fullUrl);
+    return res == null ? Collections.<Integer>emptyList() : Collections.unmodifiableList(res);
+  }
+
+  /**
+   * the first entry with the given fullUrl
+   */
+  public Element findEntryByFullUrl(String fullUrl) {
+    List<Integer> list = fullUrl == null ? null : byFullUrl.get(fullUrl);
+    return list == null ? null : entries.get(list.get(0));
+  }
+
+  /**
+   * the first entry with a resource of the given type and id
+   */
+  public Element findEntryByTypeAndId(String type, String id) {
+    Integer i = byTypeAndId.get(type + "/" + id);
+    return i == null ? null : entries.get(i);
+  }
+
+  /**
+   * the resource in the first entry that has either a fullUrl of url, or a type/id of url
+   */
+  public Element findResource(String url) {
+    Integer i = resourceByFullUrl.get(url);
+    Integer j = byTypeAndId.get(url);
+    if (i == null || (j != null && j < i)) {
+      i = j;
+    }
+    return i == null ? null : entries.get(i).getNamedChild(RESOURCE);
+  }
+
+  /**
+   * the position of the entry in the bundle, or -1 if it isn't an entry in the bundle
+   */
+  public int indexOf(Element entry) {
+    Integer i = positions.get(entry);
+    return i == null ? -1 : i;
+  }
+
+}
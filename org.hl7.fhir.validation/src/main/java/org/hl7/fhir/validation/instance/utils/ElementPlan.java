@@ -0,0 +1,117 @@
+package org.hl7.fhir.validation.instance.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.ElementDefinition.ElementDefinitionConstraintComponent;
+import org.hl7.fhir.r5.model.ExpressionNode;
+import org.hl7.fhir.r5.model.StructureDefinition;
+
+/**
+ * The things the validator works out about an element definition that only depend on the profile,
+ * not on the instance being validated: the child definitions, the constraints to check, the profiles
+ * for the types, and the slicing expression.
+ *
+ * The plan is built up the first time each thing is needed, and kept in the element definition's
+ * user data, so it is reused by every validation against the profile, including validations
+ * running on other threads (all the access is synchronized)
+ *
+ * Profiles that can't be found are not remembered, in case they are loaded into the context later. The
+ * profiles that are found are only used while the context's structures stay the same (see
+ * IWorkerContext.getStructuresVersion()), since a profile may be replaced or dropped
+ */
+public class ElementPlan {
+
+  public static final String USER_DATA_KEY = "validator.element.plan";
+
+  private StructureDefinition childProfile;
+  private List<ElementDefinition> childDefinitions;
+  private Map<String, List<ElementDefinition>> typeChildDefinitions = new HashMap<>();
+  private Map<String, List<ElementDefinitionConstraintComponent>> constraints = new HashMap<>();
+  private Map<String, StructureDefinition> typeProfiles = new HashMap<>();
+  private int typeProfilesVersion;
+  private ExpressionNode sliceExpression;
+
+  public static ElementPlan forElement(ElementDefinition ed) {
+    synchronized (ed) {
+      ElementPlan res = (ElementPlan) ed.getUserData(USER_DATA_KEY);
+      if (res == null) {
+        res = new ElementPlan();
+        ed.setUserData(USER_DATA_KEY, res);
+      }
+      return res;
+    }
+  }
+
+  /**
+   * the direct children of the element in the profile (including slices), or null if they haven't been worked out yet
+   */
+  public synchronized List<ElementDefinition> getChildDefinitions(StructureDefinition profile) {
+    return childProfile == profile ? childDefinitions : null;
+  }
+
+  public synchronized void setChildDefinitions(StructureDefinition profile, List<ElementDefinition> childDefinitions) {
+    if (childProfile != profile) {
+      typeChildDefinitions.clear();
+    }
+    this.childProfile = profile;
+    this.childDefinitions = childDefinitions;
+  }
+
+  /**
+   * where the element has a choice of types, the child definitions merged with the definitions for the actual type
+   */
+  public synchronized List<ElementDefinition> getTypeChildDefinitions(StructureDefinition profile, String type) {
+    return childProfile == profile ? typeChildDefinitions.get(type) : null;
+  }
+
+  public synchronized void setTypeChildDefinitions(StructureDefinition profile, String type, List<ElementDefinition> list) {
+    if (childProfile == profile) {
+      typeChildDefinitions.put(type, list);
+    }
+  }
+
+  /**
+   * the constraints with expressions to check for the element, when validating against the profile
+   */
+  public synchronized List<ElementDefinitionConstraintComponent> getConstraints(String profile, boolean onlyNonInherited) {
+    return constraints.get(constraintKey(profile, onlyNonInherited));
+  }
+
+  public synchronized void setConstraints(String profile, boolean onlyNonInherited, List<ElementDefinitionConstraintComponent> list) {
+    constraints.put(constraintKey(profile, onlyNonInherited), new ArrayList<>(list));
+  }
+
+  private String constraintKey(String profile, boolean onlyNonInherited) {
+    return onlyNonInherited ? profile+"|noninherited" : profile;
+  }
+
+  /**
+   * the profile for the type, if it was found when the context's structures version was structuresVersion
+   */
+  public synchronized StructureDefinition getTypeProfile(String type, int structuresVersion) {
+    return typeProfilesVersion == structuresVersion ? typeProfiles.get(type) : null;
+  }
+
+  public synchronized void setTypeProfile(String type, StructureDefinition sd, int structuresVersion) {
+    if (typeProfilesVersion != structuresVersion) {
+      typeProfiles.clear();
+      typeProfilesVersion = structuresVersion;
+    }
+    if (sd != null) {
+      typeProfiles.put(type, sd);
+    }
+  }
+
+  public synchronized ExpressionNode getSliceExpression() {
+    return sliceExpression;
+  }
+
+  public synchronized void setSliceExpression(ExpressionNode sliceExpression) {
+    this.sliceExpression = sliceExpression;
+  }
+
+}
@@ -39,9 +39,11 @@ public class ProfileValidator extends BaseValidator {
 
   private boolean checkAggregation = false;
   private boolean checkMustSupport = false;
+  private FHIRPathEngine fpe;
 
   public ProfileValidator(IWorkerContext context) {
     super(context);
+    fpe = new FHIRPathEngine(context);
   }
 
   public boolean isCheckAggregation() {
@@ -89,7 +91,7 @@ public class ProfileValidator extends BaseValidator {
             if (!inExemptList(inv.getKey())) {
               if (rule(errors, IssueType.BUSINESSRULE, profile.getId()+"::"+ed.getPath()+"::"+inv.getKey(), inv.hasExpression(), "The invariant has no FHIR Path expression ("+inv.getXpath()+")")) {
                 try {
-                  new FHIRPathEngine(context).check(null, profile.getType(), ed.getPath(), inv.getExpression()); // , inv.hasXpath() && inv.getXpath().startsWith("@value")
+                  fpe.check(null, profile.getType(), ed.getPath(), inv.getExpression()); // , inv.hasXpath() && inv.getXpath().startsWith("@value")
                 } catch (Exception e) {
 //                  rule(errors, IssueType.STRUCTURE, profile.getId()+"::"+ed.getPath()+"::"+inv.getId(), exprExt != null, e.getMessage());
                 }
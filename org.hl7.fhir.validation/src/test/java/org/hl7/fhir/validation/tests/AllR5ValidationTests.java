@@ -11,6 +11,7 @@ import org.junit.runners.Suite.SuiteClasses;
   ValidationTestSuite.class, 
   ValidationEngineTests.class,
   JsonSchemaTests.class,
+  BundleIndexTests.class,
   NativeHostServiceTester.class,
   // CDAValidationTestCase.class,
   ProfileComparisonTests.class})
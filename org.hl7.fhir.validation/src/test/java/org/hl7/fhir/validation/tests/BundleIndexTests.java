@@ -0,0 +1,156 @@
+package org.hl7.fhir.validation.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.test.utils.TestingUtilities;
+import org.hl7.fhir.validation.instance.utils.BundleIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the bundle index resolves references to the same entries as scanning the entries
+ * in order does (the first match wins)
+ */
+public class BundleIndexTests {
+
+  private static final String[] BASES = { "http://a.org/fhir/", "http://b.org/fhir/", "urn:uuid:" };
+
+  private Element parse(String json) throws IOException {
+    return Manager.parse(TestingUtilities.context(), new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), FhirFormat.JSON);
+  }
+
+  private void addEntry(StringBuilder b, String fullUrl, String type, String id) {
+    if (b.charAt(b.length()-1) != '[') {
+      b.append(",");
+    }
+    b.append("{\"fullUrl\":\""+fullUrl+"\"");
+    if (type != null) {
+      b.append(",\"resource\":{\"resourceType\":\""+type+"\",\"id\":\""+id+"\"}");
+    }
+    b.append(",\"request\":{\"method\":\""+(type == null ? "DELETE" : "PUT")+"\",\"url\":\""+(type == null ? "Observation/gone" : type+"/"+id)+"\"}}");
+  }
+
+  @Test
+  public void testResolution() throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append("{\"resourceType\":\"Bundle\",\"type\":\"transaction\",\"entry\":[");
+    addEntry(b, "http://a.org/fhir/Patient/p", "Patient", "p");
+    addEntry(b, "http://b.org/fhir/Patient/p", "Patient", "p");
+    addEntry(b, "urn:uuid:6d9c0d9e-5b7a-4f8c-9d0e-0a4b2c6e1f21", "Observation", "o1");
+    addEntry(b, "http://a.org/fhir/Patient/p", "Patient", "p");
+    addEntry(b, "http://a.org/fhir/Observation/gone", null, null);
+    b.append("]}");
+    Element bundle = parse(b.toString());
+    List<Element> entries = bundle.getChildrenByName("entry");
+
+    BundleIndex index = BundleIndex.forBundle(bundle);
+    Assert.assertSame(index, BundleIndex.forBundle(bundle));
+    Assert.assertEquals(5, index.getEntries().size());
+
+    Assert.assertSame(entries.get(0), index.findEntryByFullUrl("http://a.org/fhir/Patient/p"));
+    Assert.assertEquals(2, index.findByFullUrl("http://a.org/fhir/Patient/p").size());
+    Assert.assertEquals(3, (int) index.findByFullUrl("http://a.org/fhir/Patient/p").get(1));
+    Assert.assertSame(entries.get(0), index.findEntryByTypeAndId("Patient", "p"));
+    Assert.assertSame(entries.get(1).getNamedChild("resource"), index.findResource("http://b.org/fhir/Patient/p"));
+    Assert.assertSame(entries.get(0).getNamedChild("resource"), index.findResource("Patient/p"));
+    Assert.assertSame(entries.get(2).getNamedChild("resource"), index.findResource("Observation/o1"));
+
+    // an entry with no resource can be found by fullUrl, but it doesn't resolve to a resource
+    Assert.assertSame(entries.get(4), index.findEntryByFullUrl("http://a.org/fhir/Observation/gone"));
+    Assert.assertNull(index.findResource("http://a.org/fhir/Observation/gone"));
+
+    Assert.assertNull(index.findEntryByFullUrl("http://c.org/fhir/Patient/p"));
+    Assert.assertNull(index.findEntryByTypeAndId("Patient", "q"));
+    Assert.assertTrue(index.findByFullUrl(null).isEmpty());
+    Assert.assertEquals(3, index.indexOf(entries.get(3)));
+    Assert.assertEquals(-1, index.indexOf(bundle));
+  }
+
+  /**
+   * a bundle where the same resources turn up under several bases, and the same fullUrls more than once,
+   * with every lookup compared to a scan of the entries
+   */
+  @Test
+  public void testMatchesScan() throws IOException {
+    StringBuilder b = new StringBuilder();
+    b.append("{\"resourceType\":\"Bundle\",\"type\":\"transaction\",\"entry\":[");
+    for (int i = 0; i < 300; i++) {
+      String type = i % 2 == 0 ? "Patient" : "Observation";
+      String id = "r"+(i % 40);
+      String base = BASES[i % BASES.length];
+      addEntry(b, base.startsWith("urn") ? base+"00000000-0000-0000-0000-"+String.format("%012d", i % 70) : base+type+"/"+id, i % 23 == 0 ? null : type, id);
+    }
+    b.append("]}");
+    Element bundle = parse(b.toString());
+    List<Element> entries = bundle.getChildrenByName("entry");
+    BundleIndex index = BundleIndex.build(bundle);
+
+    List<String> urls = new ArrayList<>();
+    for (Element entry : entries) {
+      urls.add(entry.getNamedChildValue("fullUrl"));
+      Element r = entry.getNamedChild("resource");
+      if (r != null) {
+        urls.add(r.fhirType()+"/"+r.getIdBase());
+      }
+    }
+    urls.add("Patient/missing");
+    urls.add("http://c.org/fhir/Patient/r1");
+
+    for (String url : urls) {
+      Assert.assertSame(url, scanResource(entries, url), index.findResource(url));
+      Assert.assertSame(url, scanEntry(entries, url), index.findEntryByFullUrl(url));
+      Assert.assertEquals(url, scanPositions(entries, url), index.findByFullUrl(url));
+      String[] parts = url.split("\\/");
+      if (parts.length == 2) {
+        Assert.assertSame(url, scanEntry(entries, parts[0], parts[1]), index.findEntryByTypeAndId(parts[0], parts[1]));
+      }
+    }
+  }
+
+  private Element scanResource(List<Element> entries, String url) {
+    for (Element entry : entries) {
+      Element r = entry.getNamedChild("resource");
+      if (r != null && (url.equals(entry.getNamedChildValue("fullUrl")) || url.equals(r.fhirType()+"/"+r.getNamedChildValue("id")))) {
+        return r;
+      }
+    }
+    return null;
+  }
+
+  private Element scanEntry(List<Element> entries, String fullUrl) {
+    for (Element entry : entries) {
+      if (fullUrl.equals(entry.getNamedChildValue("fullUrl"))) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  private Element scanEntry(List<Element> entries, String type, String id) {
+    for (Element entry : entries) {
+      Element r = entry.getNamedChild("resource");
+      if (r != null && type.equals(r.getType()) && id.equals(r.getNamedChildValue("id"))) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  private List<Integer> scanPositions(List<Element> entries, String fullUrl) {
+    List<Integer> res = new ArrayList<>();
+    for (int i = 0; i < entries.size(); i++) {
+      if (fullUrl.equals(entries.get(i).getNamedChildValue("fullUrl"))) {
+        res.add(i);
+      }
+    }
+    return res;
+  }
+
+}
@@ -0,0 +1,86 @@
+package org.hl7.fhir.validation.tests;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.model.FhirPublication;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.hl7.fhir.validation.tests.utilities.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Validates document bundles of increasing size, to check that resolving references between
+ * the entries doesn't get quadratically slower as the bundle grows. This uses the terminology 
+ * server and takes a while, so it's not part of AllR5ValidationTests (see BundleIndexTests for that)
+ */
+public class BundleScalingTests {
+
+  private static final String DEF_TX = "http://tx.fhir.org";
+
+  @Test
+  public void testBundleScaling() throws Exception {
+    ValidationEngine ve = new ValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, null, FhirPublication.R4, "4.0.1");
+    // warm up. All the bundles have the same shape, so they should all have the same errors (if any)
+    int errors = errors(ve.validate(FhirFormat.JSON, new ByteArrayInputStream(makeDocument(10)), null));
+    long t1 = 0;
+    for (int size : new int[] { 1000, 10000, 50000 }) {
+      byte[] content = makeDocument(size);
+      long start = System.currentTimeMillis();
+      OperationOutcome op = ve.validate(FhirFormat.JSON, new ByteArrayInputStream(content), null);
+      long t = System.currentTimeMillis() - start;
+      if (!TestUtilities.silent) {
+        System.out.println("Bundle with "+size+" entries: "+t+"ms ("+(t * 1000 / size)+"us/entry)");
+      }
+      Assert.assertEquals(errors, errors(op));
+      if (size == 1000) {
+        t1 = t;
+      } else {
+        // linear would be size/1000 times as long as 1k entries; allow 5 times that, which is still well short of quadratic
+        Assert.assertTrue("validating "+size+" entries took "+t+"ms vs "+t1+"ms for 1000", t < Math.max(t1, 100) * (size / 1000) * 5);
+      }
+    }
+  }
+
+  private int errors(OperationOutcome op) {
+    int i = 0;
+    for (OperationOutcomeIssueComponent iss : op.getIssue()) {
+      if (iss.getSeverity() == IssueSeverity.ERROR || iss.getSeverity() == IssueSeverity.FATAL) {
+        i++;
+      }
+    }
+    return i;
+  }
+
+  /**
+   * a document with a composition, a patient, and count observations, each of which is referenced from the composition
+   */
+  private byte[] makeDocument(int count) {
+    StringBuilder b = new StringBuilder();
+    b.append("{\"resourceType\":\"Bundle\",\"id\":\"doc\",\"meta\":{\"lastUpdated\":\"2020-01-01T00:00:00Z\"},\"identifier\":{\"system\":\"urn:ietf:rfc:3986\",\"value\":\"urn:uuid:0c3151bd-1cbf-4d64-b04d-cd9187a4c6e0\"},");
+    b.append("\"type\":\"document\",\"timestamp\":\"2020-01-01T00:00:00Z\",\"entry\":[");
+    b.append("{\"fullUrl\":\"http://test.org/fhir/Composition/c\",\"resource\":{\"resourceType\":\"Composition\",\"id\":\"c\",\"status\":\"final\",");
+    b.append("\"type\":{\"text\":\"test\"},\"subject\":{\"reference\":\"Patient/p\"},\"date\":\"2020-01-01\",\"author\":[{\"reference\":\"Patient/p\"}],\"title\":\"Test\",");
+    b.append("\"section\":[{\"title\":\"Observations\",\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">Observations</div>\"},\"entry\":[");
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        b.append(",");
+      }
+      b.append("{\"reference\":\"Observation/o"+i+"\"}");
+    }
+    b.append("]}]}},");
+    b.append("{\"fullUrl\":\"http://test.org/fhir/Patient/p\",\"resource\":{\"resourceType\":\"Patient\",\"id\":\"p\",\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">Patient</div>\"}}}");
+    for (int i = 0; i < count; i++) {
+      b.append(",{\"fullUrl\":\"http://test.org/fhir/Observation/o"+i+"\",\"resource\":{\"resourceType\":\"Observation\",\"id\":\"o"+i+"\",");
+      b.append("\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">Observation "+i+"</div>\"},");
+      b.append("\"status\":\"final\",\"code\":{\"text\":\"test\"},\"subject\":{\"reference\":\"Patient/p\"},\"valueString\":\"v"+i+"\"}}");
+    }
+    b.append("]}");
+    return b.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+}
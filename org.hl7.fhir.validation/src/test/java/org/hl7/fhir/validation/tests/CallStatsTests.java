@@ -0,0 +1,43 @@
+package org.hl7.fhir.validation.tests;
+
+import org.hl7.fhir.validation.CallStats;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class CallStatsTests {
+
+  @Test
+  public void testLatencies() {
+    CallStats stats = new CallStats();
+    for (int i = 1; i <= 100; i++) {
+      stats.record(i * 1000000L, i == 100);
+    }
+    Assert.assertEquals(100, stats.getCount());
+    Assert.assertEquals(1, stats.getFailures());
+    Assert.assertEquals(50.5, stats.getMeanMs(), 0.001);
+    Assert.assertEquals(100, stats.getMaxMs(), 0.001);
+    Assert.assertEquals(50, stats.getPercentileMs(50), 0.001);
+    Assert.assertEquals(95, stats.getPercentileMs(95), 0.001);
+
+    JsonObject json = new JsonObject();
+    stats.toJson(json, "validation-");
+    Assert.assertEquals(100, json.get("validation-count").getAsInt());
+  }
+
+  @Test
+  public void testWindow() {
+    CallStats stats = new CallStats();
+    for (int i = 0; i < CallStats.WINDOW; i++) {
+      stats.record(1000000000L, false);
+    }
+    for (int i = 0; i < CallStats.WINDOW; i++) {
+      stats.record(1000000L, false);
+    }
+    // the slow calls have dropped out of the window, but not out of the max
+    Assert.assertEquals(1, stats.getPercentileMs(99), 0.001);
+    Assert.assertEquals(1000, stats.getMaxMs(), 0.001);
+  }
+
+}
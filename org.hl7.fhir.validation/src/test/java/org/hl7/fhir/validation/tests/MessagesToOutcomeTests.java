@@ -0,0 +1,79 @@
+package org.hl7.fhir.validation.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r5.model.FhirPublication;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.utils.FHIRPathEngine;
+import org.hl7.fhir.r5.utils.OperationOutcomeUtilities;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
+import org.hl7.fhir.utilities.validation.ValidationMessage.IssueType;
+import org.hl7.fhir.utilities.validation.ValidationMessage.Source;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.hl7.fhir.validation.tests.utilities.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Builds the OperationOutcome for a bundle-sized set of messages (lots of best practice hints, many
+ * of them reported more than once), and compares it with the way it used to be done
+ */
+public class MessagesToOutcomeTests {
+
+  private static final String DEF_TX = "http://tx.fhir.org";
+  private static final int ENTRIES = 2000;
+
+  @Test
+  public void testLargeOutcome() throws Exception {
+    ValidationEngine ve = new ValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, null, FhirPublication.R4, "4.0.1");
+    List<ValidationMessage> messages = new ArrayList<>();
+    for (int i = 0; i < ENTRIES; i++) {
+      String loc = "Bundle.entry["+i+"].resource.ofType(Observation)";
+      messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.BUSINESSRULE, i, 1, loc, "Best Practice Recommendation: In general, all observations should have a performer", IssueSeverity.WARNING));
+      messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.BUSINESSRULE, i, 1, loc, "Best Practice Recommendation: In general, all observations should have a performer", IssueSeverity.WARNING));
+      messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.INFORMATIONAL, i, 1, loc+".code", "None of the codes provided are in the value set", IssueSeverity.INFORMATION));
+      messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.STRUCTURE, i, 1, loc+".subject", "Unable to resolve resource", IssueSeverity.ERROR));
+      messages.add(new ValidationMessage(Source.InstanceValidator, IssueType.STRUCTURE, i, 1, loc+".subject", "Unable to resolve resource", IssueSeverity.ERROR));
+    }
+
+    long start = System.currentTimeMillis();
+    OperationOutcome op = ve.messagesToOutcome(messages);
+    long t = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    List<ValidationMessage> expected = oldFilterMessages(ve, messages);
+    long tOld = System.currentTimeMillis() - start;
+    if (!TestUtilities.silent) {
+      System.out.println("OperationOutcome for "+messages.size()+" messages: "+t+"ms (was "+tOld+"ms)");
+    }
+
+    Assert.assertEquals(ENTRIES * 3, op.getIssue().size());
+    Assert.assertEquals(expected.size(), op.getIssue().size());
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(expected.get(i).getMessage(), op.getIssue().get(i).getDetails().getText());
+      Assert.assertEquals(expected.get(i).getLocation(), op.getIssue().get(i).getExpression().get(0).getValue());
+    }
+  }
+
+  /**
+   * the way the messages used to be filtered and checked, for comparison
+   */
+  private List<ValidationMessage> oldFilterMessages(ValidationEngine ve, List<ValidationMessage> messages) {
+    List<ValidationMessage> filteredValidation = new ArrayList<ValidationMessage>();
+    for (ValidationMessage e : messages) {
+      if (!filteredValidation.contains(e))
+        filteredValidation.add(e);
+    }
+    filteredValidation.sort(null);
+    OperationOutcome op = new OperationOutcome();
+    for (ValidationMessage vm : filteredValidation) {
+      FHIRPathEngine fpe = new FHIRPathEngine(ve.getContext());
+      fpe.parse(vm.getLocation());
+      op.getIssue().add(OperationOutcomeUtilities.convertToIssue(vm, op));
+    }
+    return filteredValidation;
+  }
+
+}
@@ -0,0 +1,230 @@
+package org.hl7.fhir.validation.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r5.model.FhirPublication;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r5.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r5.utils.ToolingExtensions;
+import org.hl7.fhir.validation.NDJsonValidator;
+import org.hl7.fhir.validation.NDJsonValidator.INDJsonOutcomeListener;
+import org.hl7.fhir.validation.NDJsonValidator.NDJsonOutcomeWriter;
+import org.hl7.fhir.validation.NDJsonValidator.Summary;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NDJsonValidatorTests {
+
+  private static final String DEF_TX = "http://tx.fhir.org";
+  private static final int THREADS = 4;
+  private static final int LINES = 60;
+  private static final int BAD_LINE = 7;
+  private static final int BLANK_LINE = 12;
+
+  private static ValidationEngine engine;
+
+  private static ValidationEngine engine() throws Exception {
+    if (engine == null) {
+      engine = new ValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, null, FhirPublication.R4, "4.0.1");
+    }
+    return engine;
+  }
+
+  /**
+   * Hands out the content a line at a time, and says nothing more is available, so the reader
+   * only reads the lines as it needs them. Counts the lines read
+   */
+  private static class LineStream extends InputStream {
+    private List<byte[]> lines = new ArrayList<>();
+    private int line;
+    private int pos;
+
+    public LineStream() {
+      for (int i = 1; i <= LINES; i++) {
+        String s;
+        if (i == BAD_LINE) {
+          s = "{\"resourceType\":\"Patient\",\"id\":";
+        } else if (i == BLANK_LINE) {
+          s = "";
+        } else {
+          s = "{\"resourceType\":\"Patient\",\"id\":\"p"+i+"\",\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">Patient "+i+"</div>\"},\"active\":true}";
+        }
+        lines.add((s+"\n").getBytes(StandardCharsets.UTF_8));
+      }
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+      if (line == lines.size()) {
+        return -1;
+      }
+      byte[] l = lines.get(line);
+      int c = Math.min(len, l.length - pos);
+      System.arraycopy(l, pos, b, off, c);
+      pos = pos + c;
+      if (pos == l.length) {
+        line++;
+        pos = 0;
+      }
+      return c;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return 0;
+    }
+
+    public synchronized int getLinesRead() {
+      return line;
+    }
+  }
+
+  private OperationOutcome outcome(IssueSeverity... severities) {
+    OperationOutcome oo = new OperationOutcome();
+    for (IssueSeverity s : severities) {
+      oo.addIssue().setSeverity(s).setCode(IssueType.INVALID).getDetails().setText("test");
+    }
+    return oo;
+  }
+
+  @Test
+  public void testSummary() {
+    Summary summary = new Summary();
+    summary.record("Patient", outcome());
+    summary.record("Patient", outcome(IssueSeverity.ERROR, IssueSeverity.WARNING));
+    summary.record("Observation", outcome(IssueSeverity.WARNING, IssueSeverity.WARNING));
+    summary.record("Observation", outcome(IssueSeverity.FATAL));
+
+    Assert.assertEquals(4, summary.getLines());
+    Assert.assertEquals(2, summary.getFailedLines());
+    Assert.assertEquals(2, summary.getResourceCount("Patient"));
+    Assert.assertEquals(1, summary.getCount("Patient", IssueSeverity.ERROR));
+    Assert.assertEquals(2, summary.getCount("Observation", IssueSeverity.WARNING));
+    Assert.assertEquals(3, summary.getCount(IssueSeverity.WARNING));
+    Assert.assertEquals("Observation", summary.getResourceTypes().get(0));
+    Assert.assertTrue(summary.report().contains("Patient (2)"));
+  }
+
+  @Test
+  public void testWriter() throws Exception {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    NDJsonOutcomeWriter writer = new NDJsonOutcomeWriter(stream);
+    writer.outcome(1, "Patient", outcome(IssueSeverity.ERROR));
+    writer.outcome(2, "Patient", outcome());
+    writer.close();
+    String[] lines = new String(stream.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    Assert.assertEquals(2, lines.length);
+    Assert.assertTrue(lines[0].startsWith("{\"resourceType\":\"OperationOutcome\""));
+  }
+
+  /**
+   * validates the lines on several threads. Each line gets exactly one outcome (in whatever order), the
+   * bad line gets an error, and while the listener is held up, the reader doesn't get more than a few
+   * lines per thread ahead
+   */
+  @Test
+  public void testThreads() throws Exception {
+    final Map<Integer, OperationOutcome> outcomes = new HashMap<>();
+    final List<Integer> duplicates = new ArrayList<>();
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch proceed = new CountDownLatch(1);
+    final LineStream stream = new LineStream();
+    final Summary[] summary = new Summary[1];
+    final Exception[] failure = new Exception[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          summary[0] = new NDJsonValidator(engine(), THREADS).validate("test.ndjson", stream, null, new INDJsonOutcomeListener() {
+            @Override
+            public void outcome(int line, String resourceType, OperationOutcome outcome) throws IOException {
+              entered.countDown();
+              try {
+                proceed.await();
+              } catch (InterruptedException e) {
+                throw new IOException(e);
+              }
+              if (outcomes.put(line, outcome) != null) {
+                duplicates.add(line);
+              }
+            }
+          });
+        } catch (Exception e) {
+          failure[0] = e;
+        }
+      }
+    };
+    t.start();
+    Assert.assertTrue(entered.await(5, TimeUnit.MINUTES));
+    // the listener is holding up all the threads now. Give the reader time to get as far ahead as it's going to
+    Thread.sleep(1000);
+    int read = stream.getLinesRead();
+    proceed.countDown();
+    t.join();
+
+    if (failure[0] != null) {
+      throw failure[0];
+    }
+    // 4 lines per thread, the blank line, the line waiting to be let in, and a line of slack for the reader's buffer
+    Assert.assertTrue("read "+read+" lines while the validation was held up", read <= THREADS * 4 + 3);
+    Assert.assertTrue("lines reported more than once: "+duplicates, duplicates.isEmpty());
+    Assert.assertEquals(LINES - 1, outcomes.size());
+    Assert.assertFalse(outcomes.containsKey(BLANK_LINE));
+    for (int i = 1; i <= LINES; i++) {
+      if (i != BLANK_LINE) {
+        Assert.assertEquals("test.ndjson:"+i, ToolingExtensions.readStringExtension(outcomes.get(i), ToolingExtensions.EXT_OO_FILE));
+      }
+    }
+    Assert.assertTrue(hasError(outcomes.get(BAD_LINE)));
+    Assert.assertEquals(LINES - 1, summary[0].getLines());
+    Assert.assertEquals(1, summary[0].getFailedLines());
+  }
+
+  private boolean hasError(OperationOutcome oo) {
+    for (OperationOutcomeIssueComponent iss : oo.getIssue()) {
+      if (iss.getSeverity() == IssueSeverity.ERROR || iss.getSeverity() == IssueSeverity.FATAL) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * if the listener fails, the validation stops reading, and the failure is passed on
+   */
+  @Test
+  public void testListenerFailure() throws Exception {
+    LineStream stream = new LineStream();
+    try {
+      new NDJsonValidator(engine(), THREADS).validate("test.ndjson", stream, null, new INDJsonOutcomeListener() {
+        @Override
+        public void outcome(int line, String resourceType, OperationOutcome outcome) throws IOException {
+          throw new IOException("Unable to write the outcome for line "+line);
+        }
+      });
+      Assert.fail("the listener failure was not reported");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage().startsWith("Unable to write the outcome for line "));
+    }
+    Assert.assertTrue(stream.getLinesRead() < LINES);
+  }
+
+}
@@ -1,10 +1,21 @@
 package org.hl7.fhir.validation.tests;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
 import org.hl7.fhir.r5.test.utils.TestingUtilities;
 import org.hl7.fhir.validation.NativeHostServices;
+import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 public class NativeHostServiceTester {
 
   @Test
@@ -38,4 +49,68 @@ public class NativeHostServiceTester {
     System.out.println("done");
   }
 
+  private static final int THREADS = 4;
+  private static final int VALIDATIONS = 5;
+
+  private JsonObject status(NativeHostServices svc) {
+    return (JsonObject) new JsonParser().parse(svc.status());
+  }
+
+  /**
+   * validations on several threads while resources are loaded and dropped (which waits for the validations in progress)
+   */
+  @Test
+  public void testConcurrentCalls() throws Exception {
+    final NativeHostServices svc = new NativeHostServices();
+    svc.init("hl7.fhir.r4.core#4.0.1");
+    svc.connectToTxSvc("http://tx.fhir.org/r4", null);
+    final byte[] patient = TestingUtilities.loadTestResourceBytes("validator", "patient-example.xml");
+    byte[] vs = TestingUtilities.loadTestResourceBytes("validator", "misc", "ValueSet-dicm-2-AnatomicModifier.json");
+    final String expected = new String(svc.validateResource("my-loc", patient, "XML", "any-extensions id-optional"));
+
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<String>> futures = new ArrayList<Future<String>>();
+      for (int t = 0; t < THREADS; t++) {
+        futures.add(executor.submit(new Callable<String>() {
+          @Override
+          public String call() throws Exception {
+            for (int i = 0; i < VALIDATIONS; i++) {
+              String res = new String(svc.validateResource("my-loc", patient, "XML", "any-extensions id-optional"));
+              if (!expected.equals(res)) {
+                return "different outcome: "+res;
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      boolean running = true;
+      while (running) {
+        svc.seeResource(vs, FhirFormat.JSON);
+        JsonObject json = status(svc);
+        Assert.assertEquals(1, json.get("custom-resource-count").getAsInt());
+        Assert.assertTrue(json.get("queue-depth").getAsInt() >= 0 && json.get("queue-depth").getAsInt() <= THREADS);
+        Assert.assertTrue(json.get("active").getAsInt() >= 0 && json.get("active").getAsInt() <= THREADS);
+        svc.dropResource("ValueSet", "dicm-2-AnatomicModifier");
+        running = false;
+        for (Future<String> f : futures) {
+          running = running || !f.isDone();
+        }
+      }
+      for (Future<String> f : futures) {
+        Assert.assertNull(f.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    JsonObject json = status(svc);
+    Assert.assertEquals(1 + THREADS * VALIDATIONS, json.get("validation-count").getAsInt());
+    Assert.assertEquals(0, json.get("custom-resource-count").getAsInt());
+    Assert.assertEquals(0, json.get("exception-count").getAsInt());
+    Assert.assertEquals(0, json.get("queue-depth").getAsInt());
+    Assert.assertEquals(0, json.get("active").getAsInt());
+  }
+
 }
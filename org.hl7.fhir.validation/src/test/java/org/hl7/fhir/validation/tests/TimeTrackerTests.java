@@ -0,0 +1,58 @@
+package org.hl7.fhir.validation.tests;
+
+import java.util.List;
+
+import org.hl7.fhir.validation.TimeTracker;
+import org.hl7.fhir.validation.TimeTracker.InvariantCounter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+public class TimeTrackerTests {
+
+  @Test
+  public void testPhases() {
+    TimeTracker tt = new TimeTracker();
+    tt.fpe(100, 300);
+    tt.fpe(1000, 1100);
+    tt.tx(0, 50);
+    Assert.assertEquals(300, tt.getFpeTime());
+    Assert.assertEquals(50, tt.getTxTime());
+    Assert.assertEquals(1, tt.getTxCount());
+    tt.reset();
+    Assert.assertEquals(0, tt.getFpeTime());
+  }
+
+  @Test
+  public void testBreakdown() {
+    TimeTracker tt = new TimeTracker();
+    tt.profile("http://test.org/a", 0, 10);
+    tt.profile("http://test.org/a", 0, 20);
+    tt.invariant("inv-1", "a.exists()", 0, 5);
+    tt.invariant("inv-2", "b.exists()", 0, 50);
+    tt.invariant("inv-1", "a.exists()", 0, 5);
+    tt.cacheHit("fetch");
+    tt.cacheHit("fetch");
+    tt.cacheMiss("fetch");
+    tt.cacheMiss("fetch");
+
+    Assert.assertEquals(30, tt.getProfiles().get("http://test.org/a").getTime());
+    Assert.assertEquals(2, tt.getProfiles().get("http://test.org/a").getCount());
+    List<InvariantCounter> slowest = tt.slowestInvariants(1);
+    Assert.assertEquals(1, slowest.size());
+    Assert.assertEquals("inv-2", slowest.get(0).getKey());
+    Assert.assertEquals(0.5, tt.getCaches().get("fetch").getHitRate(), 0.0001);
+
+    TimeTracker total = new TimeTracker();
+    total.merge(tt);
+    total.merge(tt);
+    Assert.assertEquals(4, total.getProfiles().get("http://test.org/a").getCount());
+    Assert.assertEquals(4, total.getCaches().get("fetch").getHits());
+
+    JsonObject json = tt.toJson(10);
+    Assert.assertEquals(2, json.getAsJsonArray("slowestInvariants").size());
+    Assert.assertTrue(json.getAsJsonObject("profiles").has("http://test.org/a"));
+  }
+
+}
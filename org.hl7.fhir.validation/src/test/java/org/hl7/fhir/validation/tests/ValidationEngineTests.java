@@ -1,15 +1,27 @@
 package org.hl7.fhir.validation.tests;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
 import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
 import org.hl7.fhir.r5.model.FhirPublication;
 import org.hl7.fhir.r5.model.OperationOutcome;
 import org.hl7.fhir.r5.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r5.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r5.model.StringType;
 import org.hl7.fhir.r5.test.utils.TestingUtilities;
+import org.hl7.fhir.utilities.ElementDecoration;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.hl7.fhir.validation.ValidationEngine;
+import org.hl7.fhir.validation.instance.InstanceValidator;
 import org.hl7.fhir.validation.tests.utilities.TestUtilities;
 import org.junit.Assert;
 import org.junit.Test;
@@ -176,6 +188,153 @@ public class ValidationEngineTests {
       System.out.println("  .. done: "+Integer.toString(e)+" errors, "+Integer.toString(w)+" warnings, "+Integer.toString(h)+" information messages");
   }
 
+  /**
+   * validates the same resource against the same profile (which uses mustSupport) on several threads at once, 
+   * starting from a cold context, and checks every validation comes to the same conclusion as validating it 
+   * on its own afterwards
+   */
+  @Test
+  public void testParallelSameResource() throws Exception {
+    if (!TestUtilities.silent)
+      System.out.println("Validate patient301.xml against US-Core on several threads");
+    final ValidationEngine ve = new ValidationEngine("hl7.fhir.r3.core#3.0.2", DEF_TX, null, FhirPublication.STU3, "3.0.2");
+    ve.loadIg("hl7.fhir.us.core#1.0.1", false);
+    final List<String> profiles = new ArrayList<>();
+    profiles.add("http://hl7.org/fhir/us/core/StructureDefinition/us-core-patient");
+    final byte[] source = TestingUtilities.loadTestResourceBytes("validator", "patient301.xml");
+    ve.getContext().finishLoading();
+    ve.getContext().setLockFreeReads(true);
+
+    List<OperationOutcome> outcomes = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<OperationOutcome>> futures = new ArrayList<>();
+      for (int i = 0; i < 32; i++) {
+        futures.add(executor.submit(new Callable<OperationOutcome>() {
+          @Override
+          public OperationOutcome call() throws Exception {
+            return ve.validate("patient301.xml", source, FhirFormat.XML, profiles);
+          }
+        }));
+      }
+      for (Future<OperationOutcome> f : futures) {
+        outcomes.add(f.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    OperationOutcome op = ve.validate("patient301.xml", source, FhirFormat.XML, profiles);
+    Assert.assertEquals(1, errors(op));
+    List<String> expected = issues(op);
+    for (OperationOutcome oo : outcomes) {
+      Assert.assertEquals(expected, issues(oo));
+    }
+  }
+
+  private static final String TX_BUNDLE = "{\"resourceType\":\"Bundle\",\"type\":\"collection\",\"entry\":["+
+      "{\"fullUrl\":\"http://test.org/fhir/Patient/p\",\"resource\":{\"resourceType\":\"Patient\",\"id\":\"p\","+
+        "\"maritalStatus\":{\"coding\":[{\"system\":\"http://terminology.hl7.org/CodeSystem/v3-MaritalStatus\",\"code\":\"M\"}]},"+
+        "\"communication\":[{\"language\":{\"coding\":[{\"system\":\"urn:ietf:bcp:47\",\"code\":\"en-AU\"}]}}]}},"+
+      "{\"fullUrl\":\"http://test.org/fhir/Observation/o\",\"resource\":{\"resourceType\":\"Observation\",\"id\":\"o\",\"status\":\"final\","+
+        "\"code\":{\"coding\":[{\"system\":\"http://loinc.org\",\"code\":\"29463-7\",\"display\":\"Body Weight\"},{\"system\":\"http://loinc.org\",\"code\":\"29463-0\"}]},"+
+        "\"subject\":{\"reference\":\"Patient/p\"},"+
+        "\"valueQuantity\":{\"value\":70,\"unit\":\"kg\",\"system\":\"http://unitsofmeasure.org\",\"code\":\"kg\"}}}]}";
+
+  /**
+   * checking the codes all at once after a first pass over the resource gives the same messages, and leaves the
+   * same things on the elements, as checking them one at a time
+   */
+  @Test
+  public void testTerminologyThreads() throws Exception {
+    if (!TestUtilities.silent)
+      System.out.println("Validate a bundle with the codes checked in a first pass");
+    ValidationEngine ve = new ValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, null, FhirPublication.R4, "4.0.1");
+
+    // the deferred run goes first, so the codes aren't in the terminology cache yet
+    Element deferred = Manager.parse(ve.getContext(), new ByteArrayInputStream(TX_BUNDLE.getBytes(StandardCharsets.UTF_8)), FhirFormat.JSON);
+    InstanceValidator validator = ve.getValidator();
+    validator.setHintAboutNonMustSupport(true);
+    validator.setTerminologyThreads(4);
+    List<ValidationMessage> deferredMessages = new ArrayList<>();
+    validator.validate(null, deferredMessages, deferred);
+    Assert.assertFalse(validator.isCollecting());
+
+    Element single = Manager.parse(ve.getContext(), new ByteArrayInputStream(TX_BUNDLE.getBytes(StandardCharsets.UTF_8)), FhirFormat.JSON);
+    validator = ve.getValidator();
+    validator.setHintAboutNonMustSupport(true);
+    validator.setTerminologyThreads(0);
+    List<ValidationMessage> singleMessages = new ArrayList<>();
+    validator.validate(null, singleMessages, single);
+
+    Assert.assertEquals(messages(singleMessages), messages(deferredMessages));
+    Assert.assertTrue(messages(singleMessages).toString(), errors(singleMessages) > 0);
+    List<String> expected = new ArrayList<>();
+    state(single, single.getName(), expected);
+    Assert.assertTrue(expected.size() > 0);
+    List<String> actual = new ArrayList<>();
+    state(deferred, deferred.getName(), actual);
+    Assert.assertEquals(expected, actual);
+  }
+
+  private List<String> messages(List<ValidationMessage> list) {
+    List<String> res = new ArrayList<>();
+    for (ValidationMessage vm : list) {
+      res.add(vm.getLevel().toCode()+" @ "+vm.getLocation()+": "+vm.getMessage());
+    }
+    return res;
+  }
+
+  private int errors(List<ValidationMessage> list) {
+    int i = 0;
+    for (ValidationMessage vm : list) {
+      if (vm.getLevel() == ValidationMessage.IssueSeverity.ERROR || vm.getLevel() == ValidationMessage.IssueSeverity.FATAL)
+        i++;
+    }
+    return i;
+  }
+
+  /**
+   * what the validator left on the elements: the decorations, the mustSupport marks, and the bundle resolutions
+   */
+  @SuppressWarnings("unchecked")
+  private void state(Element element, String path, List<String> res) {
+    List<ElementDecoration> decorations = (List<ElementDecoration>) element.getUserData("fhir.decorations");
+    if (decorations != null) {
+      for (ElementDecoration d : decorations) {
+        res.add(path+": "+d.getType()+" "+d.getLink()+" "+d.getText());
+      }
+    }
+    if (element.hasUserData("elementSupported")) {
+      res.add(path+": supported = "+element.getUserString("elementSupported"));
+    }
+    if (element.hasUserData("validator.bundle.resolution")) {
+      Element tgt = (Element) element.getUserData("validator.bundle.resolution");
+      res.add(path+": resolves to "+tgt.fhirType()+"/"+tgt.getIdBase());
+    }
+    if (element.hasChildren()) {
+      int i = 0;
+      for (Element child : element.getChildren()) {
+        state(child, path+"."+child.getName()+"["+i+"]", res);
+        i++;
+      }
+    }
+  }
+
+  private List<String> issues(OperationOutcome op) {
+    List<String> res = new ArrayList<>();
+    for (OperationOutcomeIssueComponent iss : op.getIssue()) {
+      StringBuilder b = new StringBuilder();
+      b.append(iss.getSeverity().toCode());
+      for (StringType s : iss.getExpression()) {
+        b.append(" @ "+s.getValue());
+      }
+      b.append(": "+iss.getDetails().getText());
+      res.add(b.toString());
+    }
+    return res;
+  }
+
 //  @Test
 //  public void testTransform() throws Exception {
 //    if (!TestUtilities.silent)
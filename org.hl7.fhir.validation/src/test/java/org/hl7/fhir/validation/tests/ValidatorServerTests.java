@@ -0,0 +1,108 @@
+package org.hl7.fhir.validation.tests;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.r4.formats.JsonParser;
+import org.hl7.fhir.r4.formats.XmlParser;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r5.model.FhirPublication;
+import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.hl7.fhir.validation.ValidatorServer;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs the validator service on a free port, and validates resources through it
+ */
+public class ValidatorServerTests {
+
+  private static final String DEF_TX = "http://tx.fhir.org";
+  private static final String GOOD = "{\"resourceType\":\"Patient\",\"id\":\"p\",\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">Patient</div>\"},\"active\":true}";
+  private static final String BAD = "{\"resourceType\":\"Patient\",\"id\":\"p\",\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">Patient</div>\"},\"active\":\"yes\"}";
+
+  private static ValidatorServer server;
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    ValidationEngine ve = new ValidationEngine("hl7.fhir.r4.core#4.0.1", DEF_TX, null, FhirPublication.R4, "4.0.1");
+    server = new ValidatorServer(ve);
+    server.start(0, 2);
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    server.stop();
+  }
+
+  private HttpURLConnection post(String query, String body, String contentType, String accept) throws IOException {
+    HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:"+server.getPort()+"/validate"+(query == null ? "" : "?"+query)).openConnection();
+    c.setDoOutput(true);
+    c.setRequestMethod("POST");
+    c.setRequestProperty("Content-Type", contentType);
+    if (accept != null) {
+      c.setRequestProperty("Accept", accept);
+    }
+    OutputStream os = c.getOutputStream();
+    os.write(body.getBytes(StandardCharsets.UTF_8));
+    os.close();
+    return c;
+  }
+
+  private byte[] content(HttpURLConnection c) throws IOException {
+    InputStream stream = c.getResponseCode() < 400 ? c.getInputStream() : c.getErrorStream();
+    return TextFile.streamToBytes(stream);
+  }
+
+  private int errors(OperationOutcome oo) {
+    int i = 0;
+    for (OperationOutcomeIssueComponent iss : oo.getIssue()) {
+      if (iss.getSeverity() == IssueSeverity.ERROR || iss.getSeverity() == IssueSeverity.FATAL) {
+        i++;
+      }
+    }
+    return i;
+  }
+
+  @Test
+  public void testValidate() throws Exception {
+    HttpURLConnection c = post(null, GOOD, "application/fhir+json", null);
+    Assert.assertEquals(200, c.getResponseCode());
+    Assert.assertEquals("application/fhir+json", c.getContentType());
+    // the outcome comes back as an R4 resource
+    OperationOutcome oo = (OperationOutcome) new JsonParser().parse(content(c));
+    Assert.assertEquals(0, errors(oo));
+
+    c = post("location=bad.json", BAD, "application/fhir+json", "application/fhir+xml");
+    Assert.assertEquals(200, c.getResponseCode());
+    Assert.assertEquals("application/fhir+xml", c.getContentType());
+    oo = (OperationOutcome) new XmlParser().parse(content(c));
+    Assert.assertTrue(errors(oo) > 0);
+  }
+
+  @Test
+  public void testUnknownProfile() throws Exception {
+    HttpURLConnection c = post("profile=http%3A%2F%2Ftest.org%2Ffhir%2FStructureDefinition%2Fnone", GOOD, "application/fhir+json", null);
+    Assert.assertEquals(400, c.getResponseCode());
+    OperationOutcome oo = (OperationOutcome) new JsonParser().parse(content(c));
+    Assert.assertTrue(oo.getIssueFirstRep().getDetails().getText().contains("Unknown profile"));
+  }
+
+  @Test
+  public void testStatus() throws Exception {
+    HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:"+server.getPort()+"/status").openConnection();
+    Assert.assertEquals(200, c.getResponseCode());
+    String status = new String(content(c), StandardCharsets.UTF_8);
+    Assert.assertTrue(status.contains("\"threads\": 2"));
+  }
+
+}